@@ -28,5 +28,36 @@ public class DedupConfigBean {
 	 */
 	public DocumentSchemaBean doc_schema_override() { return doc_schema_override; }
 	
+	/** If set (>0) then a local Bloom filter sized for this many keys is warmed from the dedup fields of the existing data, and any incoming key that is 
+	 *  "definitely new" is not sent to the document service. Only safe when this job is the only writer into the deduplication context while it runs.
+	 *  At most this many existing objects are read - if the deduplication context contains more than that, the index is not used.
+	 * @return
+	 */
+	public Long local_key_index_size() { return local_key_index_size; }
+	
+	/** The acceptable false positive rate of the local key index (defaults to 1%) - false positives just result in a (wasted) lookup
+	 * @return
+	 */
+	public Double local_key_index_fpp() { return local_key_index_fpp; }
+	
+	/** If set (>0) then the lookups for up to this many batches are left in flight while the older batches are grouped and emitted
+	 *  (output order per dedup key is unchanged, but objects are emitted up to this many batches later - all remaining batches are emitted at stage completion)
+	 *  Trade-off: duplicates are only detected within a batch or against objects already in the deduplication context, so if the same key appears in 2 batches 
+	 *  whose lookups are in flight at the same time then neither lookup sees the other's object and both are emitted. (This can also happen without pipelining, 
+	 *  if the earlier batch's output hasn't been written by the time the next lookup runs - pipelining widens that window by up to this many batches)
+	 * @return
+	 */
+	public Integer max_lookups_in_flight() { return max_lookups_in_flight; }
+	
+	/** If set (>0) then the lookups are split into queries of at most this many keys, sorted by the dedup fields, and the results are grouped as they are streamed
+	 *  back instead of being collected into a single map - bounds the memory usage when there are a large number of duplicates per key
+	 * @return
+	 */
+	public Integer lookup_chunk_size() { return lookup_chunk_size; }
+	
 	private DocumentSchemaBean doc_schema_override;
+	private Integer lookup_chunk_size;
+	private Integer max_lookups_in_flight;
+	private Long local_key_index_size;
+	private Double local_key_index_fpp;
 }
@@ -15,6 +15,7 @@
  *******************************************************************************/
 package com.ikanow.aleph2.analytics.services;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -23,11 +24,13 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
@@ -43,6 +46,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
 import com.ikanow.aleph2.analytics.data_model.DedupConfigBean;
 import com.ikanow.aleph2.analytics.utils.ErrorUtils;
 import com.ikanow.aleph2.core.shared.utils.BatchRecordUtils;
@@ -75,7 +81,9 @@ import com.ikanow.aleph2.data_model.utils.Optionals;
 import com.ikanow.aleph2.data_model.utils.Patterns;
 import com.ikanow.aleph2.data_model.utils.TimeUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.MultiQueryComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
 import com.ikanow.aleph2.data_model.utils.JsonUtils;
 import com.ikanow.aleph2.data_model.utils.SetOnce;
 
@@ -105,17 +113,27 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 		
 	protected final SetOnce<IBucketLogger> _logger = new SetOnce<>();
 	
+	protected final SetOnce<BloomFilter<CharSequence>> _key_index = new SetOnce<>(); // (optional, see DedupConfigBean.local_key_index_size)
+	
 	public static class MutableStats {
 		int nonduplicate_keys = 0;		
 		int duplicates_incoming = 0;
 		int duplicates_existing = 0;
 		int duplicate_keys = 0;
 		int deleted = 0;
+		int key_index_hits = 0; // (keys that might be duplicates, so still get looked up)
+		int key_index_misses = 0; // (keys that are definitely new, so skip the lookup)
 	}
+	public static final double DEFAULT_KEY_INDEX_FPP = 0.01;
 	protected final MutableStats _mutable_stats = new MutableStats();
 	
 	protected final LinkedList<CompletableFuture<Long>> mutable_uncompleted_deletes = new LinkedList<>();
 	
+	// (batches whose lookups have been fired off but not yet handled, only ever >1 element if DedupConfigBean.max_lookups_in_flight is set)
+	protected final LinkedList<Tuple2<Tuple3<List<QueryComponent<JsonNode>>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>>, CompletableFuture<Iterator<JsonNode>>>> mutable_pending_lookups = new LinkedList<>();
+	protected final SetOnce<Integer> _max_lookups_in_flight = new SetOnce<>();
+	protected final SetOnce<Integer> _lookup_chunk_size = new SetOnce<>(); // (optional, if set then the lookups are chunked and sorted so the results can be streamed)
+	
 	//TODO (ALEPH-20): move this into the ES service
 	public static class ElasticsearchTechnologyOverride {
 		protected ElasticsearchTechnologyOverride() {}
@@ -200,6 +218,8 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 		
 		final DocumentSchemaBean doc_schema = Optional.ofNullable(dedup_config.doc_schema_override()).orElse(bucket.data_schema().document_schema()); //(exists by construction)
 		_is_system_dedup_stage.set(null == dedup_config.doc_schema_override());
+		_max_lookups_in_flight.set(Optional.ofNullable(dedup_config.max_lookups_in_flight()).filter(n -> n > 0).orElse(0));
+		Optional.ofNullable(dedup_config.lookup_chunk_size()).filter(n -> n > 0).ifPresent(n -> _lookup_chunk_size.set(n));
 		
 		_deduplication_is_disabled.set(
 				(null == doc_schema.deduplication_policy())
@@ -269,6 +289,39 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 		_dedup_fields.set(Optional.ofNullable(_doc_schema.get().deduplication_fields()).orElse(Arrays.asList(AnnotationBean._ID)));
 		_policy.set(Optional.ofNullable( _doc_schema.get().deduplication_policy()).orElse(DeduplicationPolicy.leave));
 		
+		// Optionally warm up a local index of the existing keys so we can skip the lookup for definitely-new keys
+		// (the scan is bounded by the configured index size - if there are more existing keys than that, the index can't be complete so isn't used)
+		Optional.ofNullable(dedup_config.local_key_index_size()).filter(size -> size > 0).ifPresent(size -> 
+			_dedup_context.optional().ifPresent(read_crud -> {
+				try (final ICrudService.Cursor<JsonNode> existing = 
+						read_crud.getObjectsBySpec(CrudUtils.allOf().limit(size + 1), _dedup_fields.get(), true).join())
+				{
+					final Optional<BloomFilter<CharSequence>> maybe_index = createKeyIndex(existing.iterator(), getKeyFields(_dedup_fields.get()), size, 
+													Optional.ofNullable(dedup_config.local_key_index_fpp()).orElse(DEFAULT_KEY_INDEX_FPP));
+					maybe_index.ifPresent(index -> _key_index.set(index));
+					if (!maybe_index.isPresent()) {
+						_logger.optional().ifPresent(l -> l.log(Level.INFO, 
+								ErrorUtils.lazyBuildMessage(true, 
+										() -> "DeduplicationService",
+										() -> "onStageInitialize", 
+										() -> null, 
+										() -> ErrorUtils.get("More than {0} existing keys, not using local key index", size), 
+										() -> null)
+										));
+					}
+				}
+				catch (Exception e) { // (just carry on without the index, every key gets looked up)
+					_logger.optional().ifPresent(l -> l.log(Level.WARN, 
+							ErrorUtils.lazyBuildMessage(false, 
+									() -> "DeduplicationService",
+									() -> "onStageInitialize", 
+									() -> null, 
+									() -> ErrorUtils.get("Failed to build local key index, falling back to per-batch lookups: {0}", e.getMessage()), 
+									() -> null)
+									));
+				}
+			}));
+		
 		if ((DeduplicationPolicy.custom == _policy.get()) || (DeduplicationPolicy.custom_update == _policy.get())) {
 						
 			Optional<EnrichmentControlMetadataBean> custom_config =  
@@ -300,22 +353,58 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 			return;
 		}		
 		
-		// Create big query
+		mutable_pending_lookups.add(startDedupLookup(batch));
+		
+		// (in pipelined mode leave up to N lookups in flight while the older batches are grouped and emitted, otherwise handle this batch now)
+		while (mutable_pending_lookups.size() > _max_lookups_in_flight.get()) {
+			completeDedupLookup(mutable_pending_lookups.poll());
+		}
+	}
+	
+	/** Extracts the keys from the batch and fires off the (asynchronous) lookup of any existing duplicates
+	 * @param batch
+	 * @return a 2-tuple containing the output of getDedupQueries and the lookup future
+	 */
+	protected Tuple2<Tuple3<List<QueryComponent<JsonNode>>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>>, CompletableFuture<Iterator<JsonNode>>> startDedupLookup(
+			final Stream<Tuple2<Long, IBatchRecord>> batch)
+	{
+		// Create big query (or queries if chunked)
 		
-		final Tuple3<QueryComponent<JsonNode>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> fieldinfo_dedupquery_keyfields = 
-				getDedupQuery(batch, _dedup_fields.get(), _db_mapper.get());
+		final Either<String, List<String>> key_field_or_fields = getKeyFields(_dedup_fields.get());
+		final Tuple3<List<QueryComponent<JsonNode>>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> fieldinfo_dedupquery_keyfields = 
+				getDedupQueries(batch, _dedup_fields.get(), _db_mapper.get(),
+					_key_index.optional().<Predicate<JsonNode>>map(index -> key -> {
+						final boolean might_be_dup = getKeyIndexEntry(key, key_field_or_fields).map(entry -> index.mightContain(entry)).orElse(true);
+						if (might_be_dup) _mutable_stats.key_index_hits++; else _mutable_stats.key_index_misses++;
+						return might_be_dup;
+					})
+					.orElse(__ -> true)
+					,
+					_lookup_chunk_size.optional());
 
 		// Get duplicate results
 		
 		final Tuple2<List<String>, Boolean> fields_include = getIncludeFields(_policy.get(), _dedup_fields.get(), _timestamp_field.get());
 
-		final CompletableFuture<Iterator<JsonNode>> dedup_res =
-				fieldinfo_dedupquery_keyfields._2().isEmpty()
-				? 
-				CompletableFuture.completedFuture(Collections.<JsonNode>emptyList().iterator())
-				: 
-				_dedup_context.get().getObjectsBySpec(fieldinfo_dedupquery_keyfields._1(), fields_include._1(), fields_include._2()).thenApply(cursor -> cursor.iterator());
-
+		final CompletableFuture<Iterator<JsonNode>> dedup_res = getDedupResults(_dedup_context.get(), fieldinfo_dedupquery_keyfields._1(), fields_include);
+		
+		// (all the keys in this batch are now either in the DB or about to be, so add them to the index)
+		_key_index.optional().ifPresent(index -> fieldinfo_dedupquery_keyfields._2().forEach(t2 -> 
+			getKeyIndexEntry(t2._1(), fieldinfo_dedupquery_keyfields._3()).ifPresent(entry -> index.put(entry))));
+		
+		return Tuples._2T(fieldinfo_dedupquery_keyfields, dedup_res);
+	}
+	
+	/** Waits for a batch's lookup to complete, then handles the duplicates and emits the remaining objects
+	 *  (batches must be completed in the order they were started, to preserve the output order per dedup key)
+	 * @param fieldinfo_dedupquery_keyfields_res - the output of startDedupLookup
+	 */
+	protected void completeDedupLookup(
+			final Tuple2<Tuple3<List<QueryComponent<JsonNode>>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>>, CompletableFuture<Iterator<JsonNode>>> fieldinfo_dedupquery_keyfields_res)
+	{
+		final Tuple3<List<QueryComponent<JsonNode>>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> fieldinfo_dedupquery_keyfields = fieldinfo_dedupquery_keyfields_res._1();
+		final CompletableFuture<Iterator<JsonNode>> dedup_res = fieldinfo_dedupquery_keyfields_res._2();
+		
 		// Wait for it to finsh
 		
 			//(create handy results structure if so)
@@ -351,26 +440,34 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 		
 		final Stream<JsonNode> records_to_delete = Lambdas.get(() -> {
 			if (isCustom(_doc_schema.get().deduplication_policy()) || _doc_schema.get().delete_unhandled_duplicates()) {
-				return Optionals.streamOf(cursor, true)
+				// (if the lookup results are sorted by key then they can be grouped as they stream past, otherwise they all have to be collected first)
+				final Stream<Tuple2<Optional<JsonNode>, List<JsonNode>>> grouped_cursor =
+						_lookup_chunk_size.isSet()
+						? Optionals.streamOf(groupSortedByKey(cursor, fieldinfo_dedupquery_keyfields._3()), false)
+						: Optionals.streamOf(cursor, true)
 							.collect(Collectors.groupingBy(ret_obj -> getKeyFieldsAgain(ret_obj, fieldinfo_dedupquery_keyfields._3())))
 							.entrySet()
 							.stream()
+							.map(kv -> Tuples._2T(kv.getKey(), kv.getValue()))
+							;
+				
+				return grouped_cursor
 							.<JsonNode>flatMap(kv -> {
 								
-								final Optional<JsonNode> maybe_key = kv.getKey();
+								final Optional<JsonNode> maybe_key = kv._1();
 								final Optional<LinkedList<Tuple3<Long, IBatchRecord, ObjectNode>>> matching_records = maybe_key.map(key -> mutable_obj_map.get(key));
 								
 								// Stats:
 								_mutable_stats.duplicate_keys++;
-								_mutable_stats.duplicates_existing += kv.getValue().size();
+								_mutable_stats.duplicates_existing += kv._2().size();
 								_mutable_stats.duplicates_incoming += matching_records.map(l -> l.size()).orElse(0);
 								
 								//DEBUG
-								//System.out.println("?? " + kv.getValue().size() + " vs " + maybe_key + " vs " + matching_records.map(x -> Integer.toString(x.size())).orElse("(no match)"));
+								//System.out.println("?? " + kv._2().size() + " vs " + maybe_key + " vs " + matching_records.map(x -> Integer.toString(x.size())).orElse("(no match)"));
 								
 								return matching_records.<Stream<JsonNode>>map(records -> 
 									handleDuplicateRecord(_doc_schema.get(), _custom_handler.optional().map(handler -> Tuples._2T(handler, this._custom_context.get())),
-															_timestamp_field.get(), records, kv.getValue(), maybe_key.get(), mutable_obj_map))
+															_timestamp_field.get(), records, kv._2(), maybe_key.get(), mutable_obj_map))
 															.orElse(Stream.empty());
 							})
 							;
@@ -595,8 +692,9 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 	 * @return
 	 */
 	protected static boolean newRecordUpdatesOld(String timestamp_field, final JsonNode new_record, final JsonNode old_record) {
-		final Optional<JsonNode> old_timestamp = JsonUtils.getProperty(timestamp_field, old_record);
-		final Optional<JsonNode> new_timestamp = JsonUtils.getProperty(timestamp_field, new_record);
+		final JsonUtils.JsonPath timestamp_path = JsonUtils.JsonPath.compile(timestamp_field);
+		final Optional<JsonNode> old_timestamp = timestamp_path.get(old_record);
+		final Optional<JsonNode> new_timestamp = timestamp_path.get(new_record);
 		final Optional<Tuple2<Long, Long>> maybe_old_new =
 			old_timestamp.flatMap(old_ts -> getTimestampFromJsonNode(old_ts))
 							.flatMap(old_ts -> 
@@ -652,42 +750,219 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 			final Function<String, String> db_field_mapper
 	)
 	{
-		if (1 == dedup_fields.size()) { // this is a simpler case
-			final String key_field = dedup_fields.stream().findFirst().get();
-			final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> field_info = extractKeyField(batch, key_field);
-			return Tuples._3T(
-					CrudUtils.allOf().withAny(db_field_mapper.apply(key_field), field_info.stream().map(t2 -> JsonUtils.jacksonToJava(t2._1())).collect(Collectors.toList())).limit(Integer.MAX_VALUE)
-					,
-					field_info
-					,
-					getKeyFields(dedup_fields)
-					);
-		}
-		else {
-			final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> field_info = extractKeyFields(batch, dedup_fields);
-			
-			final Stream<QueryComponent<JsonNode>> elements =
-				field_info.stream()
-					.map(t2 -> {
-						return Optionals.streamOf(t2._1().fields(), false)
-						 	.reduce(CrudUtils.allOf(),
-						 			(acc, kv) -> acc.when(db_field_mapper.apply(kv.getKey()), JsonUtils.jacksonToJava(kv.getValue())),
-						 			(acc1, acc2) -> acc1 // (not possible because not parallel()
-						 			)
-						 	;
-					})
+		return getDedupQuery(batch, dedup_fields, db_field_mapper, __ -> true);
+	}
+	
+	/** Creates the query and some associated metadata (see also getKeyFields), only keys that pass the filter are included in the query
+	 * @param batch
+	 * @param dedup_fields
+	 * @param db_field_mapper - allows the fields to be transformed (initial workaround for some ES issues, can just leave and pass f->f in once no longer needed)
+	 * @param lookup_filter - returns false for keys that are known not to be duplicates (eg from the local key index) 
+	 * @return a 3-tuple containing: the query to apply (null if no keys need looking up), the list of (all) records indexed by the key, the field-or-fields that form the key
+	 */
+	protected static Tuple3<QueryComponent<JsonNode>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> getDedupQuery(
+			final Stream<Tuple2<Long, IBatchRecord>> batch, 
+			final List<String> dedup_fields,
+			final Function<String, String> db_field_mapper,
+			final Predicate<JsonNode> lookup_filter
+	)
+	{
+		final Tuple3<List<QueryComponent<JsonNode>>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> res =
+				getDedupQueries(batch, dedup_fields, db_field_mapper, lookup_filter, Optional.empty());
+		
+		return Tuples._3T(res._1().stream().findFirst().orElse(null), res._2(), res._3());
+	}
+	
+	/** Creates the query/queries and some associated metadata (see also getKeyFields), only keys that pass the filter are included in the queries
+	 * @param batch
+	 * @param dedup_fields
+	 * @param db_field_mapper - allows the fields to be transformed (initial workaround for some ES issues, can just leave and pass f->f in once no longer needed)
+	 * @param lookup_filter - returns false for keys that are known not to be duplicates (eg from the local key index) 
+	 * @param chunk_size - if present, the keys are split into queries of at most this many keys, each sorted on the key fields (so the results can be streamed, see groupSortedByKey)
+	 * @return a 3-tuple containing: the queries to apply (empty if no keys need looking up), the list of (all) records indexed by the key, the field-or-fields that form the key
+	 */
+	protected static Tuple3<List<QueryComponent<JsonNode>>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> getDedupQueries(
+			final Stream<Tuple2<Long, IBatchRecord>> batch, 
+			final List<String> dedup_fields,
+			final Function<String, String> db_field_mapper,
+			final Predicate<JsonNode> lookup_filter,
+			final Optional<Integer> chunk_size
+	)
+	{
+		final Either<String, List<String>> key_field_or_fields = getKeyFields(dedup_fields);
+		
+		final List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> field_info = key_field_or_fields.either(
+				key_field -> extractKeyField(batch, key_field)
+				,
+				key_fields -> extractKeyFields(batch, key_fields)
+				);
+		
+		final List<JsonNode> lookup_keys = field_info.stream().map(t2 -> t2._1()).filter(lookup_filter).collect(Collectors.toList());
+		
+		final List<QueryComponent<JsonNode>> queries = 
+				chunk_size
+					// (de-duplicate the keys first, otherwise the same key could span 2 chunks and its existing objects would be handled twice)
+					.map(n -> Lists.partition(lookup_keys.stream().distinct().collect(Collectors.toList()), n).stream().map(chunk -> buildDedupQuery(chunk, key_field_or_fields, db_field_mapper, true)))
+					.orElseGet(() -> Stream.of(lookup_keys).filter(l -> !l.isEmpty()).map(l -> buildDedupQuery(l, key_field_or_fields, db_field_mapper, false)))
+					.collect(Collectors.toList())
 					;
-			
-			final QueryComponent<JsonNode> query_dedup = 
-					Optional.of(CrudUtils.anyOf(elements).limit(Integer.MAX_VALUE))
-							//(consider putting a sort in here? I haven't so far because it seems like a lot of work when mostly there will just be a single object
-							// for each batch so we're doing a lot of sorting completely unnecessarily
-							// ... the downside is that if there are a large number of duplicates then the memory usage could get painful if they're not sorted...)
-							.get()
+		
+		return Tuples._3T(queries, field_info, key_field_or_fields);
+	}
+	
+	/** Builds the query for a (non-empty) list of keys 
+	 * @param lookup_keys
+	 * @param key_field_or_fields - see getKeyFields
+	 * @param db_field_mapper - see getDedupQuery
+	 * @param sorted - whether to sort the results by the key fields
+	 * @return
+	 */
+	protected static QueryComponent<JsonNode> buildDedupQuery(final List<JsonNode> lookup_keys, final Either<String, List<String>> key_field_or_fields,
+			final Function<String, String> db_field_mapper, final boolean sorted)
+	{
+		@SuppressWarnings("unchecked")
+		final Tuple2<String, Integer>[] sort_order = 
+				(Tuple2<String, Integer>[]) key_field_or_fields.either(key_field -> Stream.of(key_field), key_fields -> key_fields.stream())
+													.filter(__ -> sorted)
+													.map(f -> Tuples._2T(db_field_mapper.apply(f), 1))
+													.toArray(Tuple2[]::new);
+		
+		return key_field_or_fields.either(
+				key_field -> {
+					final SingleQueryComponent<JsonNode> query_dedup = 
+							CrudUtils.allOf().withAny(db_field_mapper.apply(key_field), lookup_keys.stream().map(j -> JsonUtils.jacksonToJava(j)).collect(Collectors.toList())).limit(Integer.MAX_VALUE);
+					
+					return (QueryComponent<JsonNode>) (sorted ? query_dedup.orderBy(sort_order) : query_dedup);
+				}
+				,
+				key_fields -> {
+					final Stream<QueryComponent<JsonNode>> elements =
+						lookup_keys.stream()
+							.map(key -> {
+								return Optionals.streamOf(key.fields(), false)
+								 	.reduce(CrudUtils.allOf(),
+								 			(acc, kv) -> acc.when(db_field_mapper.apply(kv.getKey()), JsonUtils.jacksonToJava(kv.getValue())),
+								 			(acc1, acc2) -> acc1 // (not possible because not parallel()
+								 			)
+								 	;
+							})
 							;
+					
+					final MultiQueryComponent<JsonNode> query_dedup = CrudUtils.anyOf(elements).limit(Integer.MAX_VALUE);
+					//(only sort if the lookup is chunked, because mostly there will just be a single object for each batch so we'd be doing a lot of sorting completely unnecessarily
+					// ... the downside is that if there are a large number of duplicates then the memory usage could get painful if they're not sorted, hence the option)
+					
+					return (QueryComponent<JsonNode>) (sorted ? query_dedup.orderBy(sort_order) : query_dedup);
+				});
+	}
+	
+	/** Fires off the first lookup query - any subsequent (chunked) queries are only fired once the results of the previous one have been consumed
+	 *  (so that only one chunk's results are held in memory at a time)
+	 * @param dedup_context
+	 * @param queries - from getDedupQueries
+	 * @param fields_include - from getIncludeFields
+	 * @return
+	 */
+	protected static CompletableFuture<Iterator<JsonNode>> getDedupResults(final ICrudService<JsonNode> dedup_context, final List<QueryComponent<JsonNode>> queries, final Tuple2<List<String>, Boolean> fields_include) {
+		if (queries.isEmpty()) {
+			return CompletableFuture.completedFuture(Collections.<JsonNode>emptyList().iterator());
+		}
+		final CompletableFuture<Iterator<JsonNode>> first = 
+				dedup_context.getObjectsBySpec(queries.get(0), fields_include._1(), fields_include._2()).thenApply(cursor -> cursor.iterator());
+		
+		return (1 == queries.size())
+				? first
+				: first.thenApply(it -> 
+					Stream.concat(
+						Optionals.streamOf(it, false)
+						,
+						queries.stream().skip(1)
+							.flatMap(query -> Optionals.streamOf(dedup_context.getObjectsBySpec(query, fields_include._1(), fields_include._2()).join().iterator(), false))
+					)
+					.iterator())
+				;
+	}
+	
+	/** Groups a set of lookup results that are sorted by key into (key, list-of-objects-with-that-key), without holding more than one group in memory
+	 * @param sorted_cursor - lookup results sorted by the key fields
+	 * @param key_field_or_fields - see getKeyFields
+	 * @return
+	 */
+	protected static Iterator<Tuple2<Optional<JsonNode>, List<JsonNode>>> groupSortedByKey(final Iterator<JsonNode> sorted_cursor, final Either<String, List<String>> key_field_or_fields) {
+		return new Iterator<Tuple2<Optional<JsonNode>, List<JsonNode>>>() {
+			JsonNode _next = sorted_cursor.hasNext() ? sorted_cursor.next() : null;
 			
-			return Tuples._3T(query_dedup, field_info, getKeyFields(dedup_fields));
-		}		
+			@Override
+			public boolean hasNext() {
+				return null != _next;
+			}
+
+			@Override
+			public Tuple2<Optional<JsonNode>, List<JsonNode>> next() {
+				if (null == _next) throw new NoSuchElementException();
+				
+				final Optional<JsonNode> key = getKeyFieldsAgain(_next, key_field_or_fields);
+				final LinkedList<JsonNode> mutable_group = new LinkedList<>();
+				mutable_group.add(_next);
+				_next = null;
+				while (sorted_cursor.hasNext()) {
+					final JsonNode candidate = sorted_cursor.next();
+					if (key.equals(getKeyFieldsAgain(candidate, key_field_or_fields))) {
+						mutable_group.add(candidate);
+					}
+					else {
+						_next = candidate;
+						break;
+					}
+				}
+				return Tuples._2T(key, mutable_group);
+			}			
+		};
+	}
+	
+	/** Builds a local (probabilistic) index of the keys already present in the dedup context
+	 * @param existing - the existing objects in the dedup context (only the dedup fields are needed), only read up to expected_size + 1 objects
+	 * @param key_field_or_fields - see getKeyFields
+	 * @param expected_size - the expected number of keys, once exceeded the false positive rate starts to climb
+	 * @param fpp - the false positive rate (for which a lookup is performed unnecessarily)
+	 * @return the index, or empty if there were more than expected_size existing objects (since the index would then be incomplete)
+	 */
+	protected static Optional<BloomFilter<CharSequence>> createKeyIndex(final Iterator<JsonNode> existing, final Either<String, List<String>> key_field_or_fields, final long expected_size, final double fpp) {
+		final BloomFilter<CharSequence> index = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), (int)Math.min(Integer.MAX_VALUE, expected_size), fpp);
+		long mutable_count = 0L;
+		while (existing.hasNext()) {
+			if (++mutable_count > expected_size) {
+				return Optional.empty();
+			}
+			final JsonNode j = existing.next();
+			getKeyFieldsAgain(j, key_field_or_fields).flatMap(key -> getKeyIndexEntry(key, key_field_or_fields)).ifPresent(entry -> index.put(entry));
+		}
+		return Optional.of(index);
+	}
+	
+	/** Builds the local key index entry for a key (see getKeyFieldsAgain), from the values of the key fields in the configured order
+	 *  (so doesn't depend on the field order or number formatting of the object the key was extracted from - different keys can map to the 
+	 *   same entry, which just results in an unnecessary lookup)
+	 * @param key - the key, ie a single value or an object containing the key fields
+	 * @param key_field_or_fields - see getKeyFields
+	 * @return the index entry, or empty if the key can't be represented (in which case it must always be looked up)
+	 */
+	protected static Optional<String> getKeyIndexEntry(final JsonNode key, final Either<String, List<String>> key_field_or_fields) {
+		return key_field_or_fields.either(
+				key_field -> Optional.of(key).filter(j -> j.isValueNode()).map(j -> j.asText())
+				,
+				key_fields -> {
+					final StringBuilder sb = new StringBuilder();
+					for (String key_field: key_fields) {
+						final JsonNode val = key.get(key_field);
+						if ((null != val) && !val.isValueNode()) {
+							return Optional.empty();
+						}
+						sb.append((null == val) ? "" : val.asText()).append('\u0000');
+					}
+					return Optional.of(sb.toString());
+				}
+				);
 	}
 	
 	/** Utility to find fragments of a json object from single/multiple fields
@@ -710,8 +985,9 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 	 * @return
 	 */
 	protected static List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> extractKeyField(final Stream<Tuple2<Long, IBatchRecord>> in, final String key_field) {
+		final JsonUtils.JsonPath key_path = JsonUtils.JsonPath.compile(key_field);
 		return in
-				.map(x -> extractKeyField(x._2().getJson(), key_field).map(y -> Tuples._2T(y, x)).orElse(null))
+				.map(x -> extractKeyField(x._2().getJson(), key_path).map(y -> Tuples._2T(y, x)).orElse(null))
 				.filter(x -> null != x)
 				.collect(Collectors.toList())
 				;
@@ -723,7 +999,17 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 	 * @return
 	 */
 	protected static Optional<JsonNode> extractKeyField(final JsonNode in, final String key_field) {
-		return JsonUtils.getProperty(key_field, in).filter(j -> j.isValueNode());
+		return extractKeyField(in, JsonUtils.JsonPath.compile(key_field));
+	}
+
+	/** Utility to find a single field for dedup purposes 
+	 * @param in - single JSON object
+	 * @param key_path - the (pre-compiled) key field
+	 * @return
+	 */
+	protected static Optional<JsonNode> extractKeyField(final JsonNode in, final JsonUtils.JsonPath key_path) {
+		final JsonNode j = key_path.getOrNull(in);
+		return ((null != j) && j.isValueNode()) ? Optional.of(j) : Optional.empty();
 	}
 
 	
@@ -733,8 +1019,9 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 	 * @return
 	 */
 	protected static List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>> extractKeyFields(final Stream<Tuple2<Long, IBatchRecord>> in, final List<String> key_fields) {
+		final List<JsonUtils.JsonPath> key_paths = key_fields.stream().map(JsonUtils.JsonPath::compile).collect(Collectors.toList());
 		return in
-				.map(x -> extractKeyFields(x._2().getJson(), key_fields).map(y -> Tuples._2T(y, x)).orElse(null))
+				.map(x -> extractKeyFieldPaths(x._2().getJson(), key_paths).map(y -> Tuples._2T(y, x)).orElse(null))
 				.filter(x -> null != x)
 				.collect(Collectors.toList())
 				;
@@ -746,13 +1033,23 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 	 * @return
 	 */
 	protected static Optional<JsonNode> extractKeyFields(final JsonNode in, final List<String> key_fields) {
-		final ObjectNode on = key_fields.stream()
-				.reduce(_mapper.createObjectNode(),
-						(acc, v) -> JsonUtils.getProperty(v, in).<ObjectNode>map(val -> (ObjectNode) acc.set(v, val)).orElse(acc),
-						(acc1, acc2) -> acc1 //(not possible because not parallel())
-						);
-
-		return Optional.of((JsonNode) on).filter(o -> 0 != o.size());
+		return extractKeyFieldPaths(in, key_fields.stream().map(JsonUtils.JsonPath::compile).collect(Collectors.toList()));
+	}
+	
+	/** Utility to find a multiple-field set of values for dedup purposes 
+	 * @param in - single JSON object
+	 * @param key_paths - the (pre-compiled) key fields
+	 * @return
+	 */
+	protected static Optional<JsonNode> extractKeyFieldPaths(final JsonNode in, final List<JsonUtils.JsonPath> key_paths) {
+		final ObjectNode on = _mapper.createObjectNode();
+		for (JsonUtils.JsonPath key_path: key_paths) {
+			final JsonNode val = key_path.getOrNull(in);
+			if (null != val) {
+				on.set(key_path.path(), val);
+			}
+		}
+		return (0 != on.size()) ? Optional.of((JsonNode) on) : Optional.empty();
 	}
 	
 	/* (non-Javadoc)
@@ -761,6 +1058,11 @@ public class DeduplicationService implements IEnrichmentBatchModule {
 	@SuppressWarnings("unchecked")
 	@Override
 	public void onStageComplete(final boolean is_original) {
+		// Handle any batches still in the pipeline
+		while (!mutable_pending_lookups.isEmpty()) {
+			completeDedupLookup(mutable_pending_lookups.poll());
+		}
+		
 		_custom_handler.optional().ifPresent(handler -> handler.onStageComplete(true));
 		
 		final Supplier<String> subsystem_builder = () -> (_is_system_dedup_stage.get() ? "" : ("." + _control.get().name() + Optional.ofNullable("no_name")));
@@ -26,6 +26,7 @@ import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
@@ -45,6 +46,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.common.hash.BloomFilter;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.ikanow.aleph2.analytics.data_model.DedupConfigBean;
@@ -555,6 +557,173 @@ public class TestDeduplicationService {
 		
 	}
 	
+	@Test
+	public void test_keyIndex() {
+		final ObjectNode existing1 = _mapper.createObjectNode();
+		existing1.put("field_1", "test1a");
+		existing1.put("field_2", "test1b");
+		final ObjectNode existing2 = _mapper.createObjectNode();
+		existing2.put("field_2", "test2b");
+		
+		final ObjectNode test1 = _mapper.createObjectNode();
+		test1.put("field_1", "test1a");
+		test1.put("field_2", "test1b");
+		final ObjectNode test2 = _mapper.createObjectNode();
+		test2.put("field_1", "test2a");
+		test2.put("field_2", "test2b");
+		
+		final List<Tuple2<Long, IBatchRecord>> batch =
+				Arrays.<JsonNode>asList(
+						test1,
+						test2
+						)
+						.stream()
+						.map(j -> Tuples._2T(0L, (IBatchRecord)new BatchRecordUtils.JsonBatchRecord(j)))
+						.collect(Collectors.toList());
+		
+		// single field
+		{
+			final BloomFilter<CharSequence> index = DeduplicationService.createKeyIndex(Arrays.<JsonNode>asList(existing1, existing2).iterator(), Either.left("field_1"), 100L, 0.01).get();
+			assertTrue(index.mightContain("test1a"));
+			
+			final Tuple3<QueryComponent<JsonNode>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> res =
+					DeduplicationService.getDedupQuery(batch.stream(), Arrays.asList("field_1"), f -> f, 
+							key -> DeduplicationService.getKeyIndexEntry(key, Either.left("field_1")).map(entry -> index.mightContain(entry)).orElse(true));
+			
+			assertEquals("(SingleQueryComponent: limit=2147483647 sort=(none) op=all_of element=(none) extra={field_1=[(any_of,([test1a],null))]})", res._1().toString());
+			assertEquals(2, res._2().size()); // (all the records are still returned)
+			
+			// No keys pass the filter, so no query
+			final Tuple3<QueryComponent<JsonNode>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> res2 =
+					DeduplicationService.getDedupQuery(batch.stream(), Arrays.asList("field_1"), f -> f, __ -> false);
+			assertEquals(null, res2._1());
+			assertEquals(2, res2._2().size());
+		}
+		// multi field
+		{
+			final BloomFilter<CharSequence> index = DeduplicationService.createKeyIndex(Arrays.<JsonNode>asList(existing1, existing2).iterator(), Either.right(Arrays.asList("field_1", "field_2")), 100L, 0.01).get();
+			
+			final Tuple3<QueryComponent<JsonNode>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> res =
+					DeduplicationService.getDedupQuery(batch.stream(), Arrays.asList("field_1", "field_2"), f -> f, 
+							key -> DeduplicationService.getKeyIndexEntry(key, Either.right(Arrays.asList("field_1", "field_2"))).map(entry -> index.mightContain(entry)).orElse(true));
+			
+			assertEquals("(MultiQueryComponent: limit=2147483647 sort=(none) op=any_of elements=(SingleQueryComponent: limit=(none) sort=(none) op=all_of element=(none) extra={field_1=[(equals,(test1a,null))], field_2=[(equals,(test1b,null))]}))", res._1().toString());
+			assertEquals(2, res._2().size());
+			
+			final Tuple3<QueryComponent<JsonNode>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> res2 =
+					DeduplicationService.getDedupQuery(batch.stream(), Arrays.asList("field_1", "field_2"), f -> f, __ -> false);
+			assertEquals(null, res2._1());
+			assertEquals(2, res2._2().size());
+		}
+		// more existing objects than the index size: no index (it wouldn't be complete)
+		{
+			assertFalse(DeduplicationService.createKeyIndex(Arrays.<JsonNode>asList(existing1, existing2).iterator(), Either.left("field_1"), 1L, 0.01).isPresent());
+			assertTrue(DeduplicationService.createKeyIndex(Arrays.<JsonNode>asList(existing1, existing2).iterator(), Either.left("field_1"), 2L, 0.01).isPresent());
+		}
+		// index entries are built from the key values in the configured order, so don't depend on the field order or number format of the object
+		{
+			final Either<String, List<String>> key_fields = Either.right(Arrays.asList("field_1", "field_2"));
+			final ObjectNode key1 = _mapper.createObjectNode();
+			key1.put("field_1", "test1a");
+			key1.put("field_2", 1);
+			final ObjectNode key2 = _mapper.createObjectNode();
+			key2.put("field_2", 1L);
+			key2.put("field_1", "test1a");
+			assertEquals(DeduplicationService.getKeyIndexEntry(key1, key_fields), DeduplicationService.getKeyIndexEntry(key2, key_fields));
+			
+			// (missing fields are distinguished by position)
+			final ObjectNode key3 = _mapper.createObjectNode();
+			key3.put("field_1", "x");
+			final ObjectNode key4 = _mapper.createObjectNode();
+			key4.put("field_2", "x");
+			assertNotEquals(DeduplicationService.getKeyIndexEntry(key3, key_fields), DeduplicationService.getKeyIndexEntry(key4, key_fields));
+			
+			// (non-scalar values can't be represented, so always get looked up)
+			final ObjectNode key5 = _mapper.createObjectNode();
+			key5.set("field_1", _mapper.createObjectNode().put("a", 1));
+			assertFalse(DeduplicationService.getKeyIndexEntry(key5, key_fields).isPresent());
+		}
+	}
+	
+	@Test
+	public void test_chunkedDedupQueries() {
+		final ObjectNode test1 = _mapper.createObjectNode();
+		test1.put("field_1", "test1a");
+		test1.put("field_2", "test1b");
+		final ObjectNode test2 = _mapper.createObjectNode();
+		test2.put("field_1", "test2a");
+		test2.put("field_2", "test2b");
+		final ObjectNode test3 = _mapper.createObjectNode();
+		test3.put("field_1", "test3a");
+		test3.put("field_2", "test3b");
+		
+		final List<Tuple2<Long, IBatchRecord>> batch =
+				Arrays.<JsonNode>asList(
+						test1,
+						test2,
+						test3
+						)
+						.stream()
+						.map(j -> Tuples._2T(0L, (IBatchRecord)new BatchRecordUtils.JsonBatchRecord(j)))
+						.collect(Collectors.toList());
+		
+		// single field, chunks of 2
+		{
+			final Tuple3<List<QueryComponent<JsonNode>>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> res =
+					DeduplicationService.getDedupQueries(batch.stream(), Arrays.asList("field_1"), f -> f, __ -> true, Optional.of(2));
+			
+			assertEquals(2, res._1().size());
+			assertEquals("(SingleQueryComponent: limit=2147483647 sort=field_1:1 op=all_of element=(none) extra={field_1=[(any_of,([test1a, test2a],null))]})", res._1().get(0).toString());
+			assertEquals("(SingleQueryComponent: limit=2147483647 sort=field_1:1 op=all_of element=(none) extra={field_1=[(any_of,([test3a],null))]})", res._1().get(1).toString());
+			assertEquals(3, res._2().size());
+		}
+		// multi field, chunks of 2, 1 key filtered out
+		{
+			final Tuple3<List<QueryComponent<JsonNode>>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> res =
+					DeduplicationService.getDedupQueries(batch.stream(), Arrays.asList("field_1", "field_2"), f -> f, key -> !key.get("field_1").asText().equals("test2a"), Optional.of(2));
+			
+			assertEquals(1, res._1().size());
+			assertEquals("(MultiQueryComponent: limit=2147483647 sort=field_1:1;field_2:1 op=any_of elements=(SingleQueryComponent: limit=(none) sort=(none) op=all_of element=(none) extra={field_1=[(equals,(test1a,null))], field_2=[(equals,(test1b,null))]});(SingleQueryComponent: limit=(none) sort=(none) op=all_of element=(none) extra={field_1=[(equals,(test3a,null))], field_2=[(equals,(test3b,null))]}))", res._1().get(0).toString());
+			assertEquals(3, res._2().size());
+		}
+		// single field, chunks of 2, duplicate key that would otherwise span the chunk boundary
+		{
+			final List<Tuple2<Long, IBatchRecord>> dup_batch =
+					Arrays.<JsonNode>asList(test1, test2, test1, test3)
+						.stream()
+						.map(j -> Tuples._2T(0L, (IBatchRecord)new BatchRecordUtils.JsonBatchRecord(j)))
+						.collect(Collectors.toList());
+			
+			final Tuple3<List<QueryComponent<JsonNode>>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> res =
+					DeduplicationService.getDedupQueries(dup_batch.stream(), Arrays.asList("field_1"), f -> f, __ -> true, Optional.of(2));
+			
+			assertEquals(2, res._1().size());
+			assertEquals("(SingleQueryComponent: limit=2147483647 sort=field_1:1 op=all_of element=(none) extra={field_1=[(any_of,([test1a, test2a],null))]})", res._1().get(0).toString());
+			assertEquals("(SingleQueryComponent: limit=2147483647 sort=field_1:1 op=all_of element=(none) extra={field_1=[(any_of,([test3a],null))]})", res._1().get(1).toString());
+			assertEquals(4, res._2().size()); // (all the records are still returned)
+		}
+		// not chunked: same as getDedupQuery
+		{
+			final Tuple3<List<QueryComponent<JsonNode>>, List<Tuple2<JsonNode, Tuple2<Long, IBatchRecord>>>, Either<String, List<String>>> res =
+					DeduplicationService.getDedupQueries(batch.stream(), Arrays.asList("field_1"), f -> f, __ -> true, Optional.empty());
+			
+			assertEquals(1, res._1().size());
+			assertEquals(DeduplicationService.getDedupQuery(batch.stream(), Arrays.asList("field_1"), f -> f)._1().toString(), res._1().get(0).toString());
+		}
+		// Grouping sorted results
+		{
+			final List<Tuple2<Optional<JsonNode>, List<JsonNode>>> grouped = 
+					Optionals.streamOf(DeduplicationService.groupSortedByKey(Arrays.<JsonNode>asList(test1, test1, test2, test3, test3, test3).iterator(), Either.left("field_1")), false)
+						.collect(Collectors.toList());
+			
+			assertEquals(3, grouped.size());
+			assertEquals(Arrays.asList("test1a", "test2a", "test3a"), grouped.stream().map(t2 -> t2._1().get().asText()).collect(Collectors.toList()));
+			assertEquals(Arrays.asList(2, 1, 3), grouped.stream().map(t2 -> t2._2().size()).collect(Collectors.toList()));
+			
+			assertFalse(DeduplicationService.groupSortedByKey(Collections.<JsonNode>emptyList().iterator(), Either.left("field_1")).hasNext());
+		}
+	}
+	
 	public static class TimeTestBean {
 		TimeTestBean(Date d_, Long l_, String s_, String err_) {
 			d = d_; l = l_; s = s_; err = err_;
@@ -1707,6 +1876,117 @@ public class TestDeduplicationService {
 		System.out.println("COMPLETING DEDUP TEST NOW: " + new Date());
 	}
 	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_puttingItAllTogether_pipelined() throws InterruptedException {
+		
+		test_puttingItAllTogether_genericPhase();
+		
+		final String ts_field = "@timestamp";
+		
+		// LEAVE, MULTI-FIELD, MULTI-BUCKET CONTEXT - same as TEST 1a in test_puttingItAllTogether, but split over lots of batches with 2 lookups in flight
+		{
+			final IEnrichmentModuleContext enrich_context = getMockEnrichmentContext();
+			
+			final DataBucketBean write_bucket = addTimestampField(ts_field, getDocBucket("/test/dedup/write/a",
+					BeanTemplateUtils.build(DataSchemaBean.DocumentSchemaBean.class)
+						.with(DataSchemaBean.DocumentSchemaBean::deduplication_policy, DeduplicationPolicy.leave)
+						.with(DataSchemaBean.DocumentSchemaBean::deduplication_contexts, Arrays.asList("/dedup/*"))
+						.with(DataSchemaBean.DocumentSchemaBean::deduplication_fields, Arrays.asList("dup_field", "dup"))
+					.done().get()
+					));
+			
+			// Test
+			
+			test_puttingItAllTogether_runTest(write_bucket, enrich_context, ImmutableMap.<String, Object>of("max_lookups_in_flight", 2), 110); //(110 so the in-batch duplicates don't straddle batches)
+			
+			// Things to check:
+			
+			// Should have called emit "num_write_records" times (50% of them are duplicates)
+			Mockito.verify(enrich_context, Mockito.times(num_write_records)).emitImmutableObject(Mockito.any(Long.class), Mockito.any(JsonNode.class), Mockito.any(Optional.class), Mockito.any(Optional.class), Mockito.any(Optional.class));
+		}		
+	}
+	
+	/** A duplicate key split across 2 batches whose lookups are in flight at the same time isn't detected (see DedupConfigBean.max_lookups_in_flight)
+	 * @throws InterruptedException
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_puttingItAllTogether_pipelinedSplitDuplicate() throws InterruptedException {
+		
+		test_puttingItAllTogether_genericPhase();
+		
+		final String ts_field = "@timestamp";
+		
+		final DataBucketBean write_bucket = addTimestampField(ts_field, getDocBucket("/test/dedup/write/a",
+				BeanTemplateUtils.build(DataSchemaBean.DocumentSchemaBean.class)
+					.with(DataSchemaBean.DocumentSchemaBean::deduplication_policy, DeduplicationPolicy.leave)
+					.with(DataSchemaBean.DocumentSchemaBean::deduplication_contexts, Arrays.asList("/dedup/*"))
+					.with(DataSchemaBean.DocumentSchemaBean::deduplication_fields, Arrays.asList("dup_field", "dup"))
+				.done().get()
+				));
+		
+		// 2 objects with the same key, which isn't in the dedup context
+		final List<Tuple2<Long, IBatchRecord>> split_dups = Arrays.asList("split_1", "split_2").stream().map(id -> {
+			final ObjectNode obj = _mapper.createObjectNode();
+			obj.put("_id", id);
+			obj.put("dup", true);
+			obj.put("dup_field", -1);
+			obj.put("@timestamp", 0L);
+			return Tuples._2T(0L, (IBatchRecord)new BatchRecordUtils.JsonBatchRecord(obj));
+		})
+		.collect(Collectors.toList());
+		
+		// Same batch: detected as an in-batch duplicate
+		{
+			final IEnrichmentModuleContext enrich_context = getMockEnrichmentContext();
+			
+			test_puttingItAllTogether_runTest(write_bucket, enrich_context, ImmutableMap.<String, Object>of("max_lookups_in_flight", 1), 
+					Arrays.asList(split_dups));
+			
+			Mockito.verify(enrich_context, Mockito.times(1)).emitImmutableObject(Mockito.any(Long.class), Mockito.any(JsonNode.class), Mockito.any(Optional.class), Mockito.any(Optional.class), Mockito.any(Optional.class));
+		}
+		// Split across 2 batches with both lookups in flight: neither lookup sees the other batch's object, so both are emitted
+		{
+			final IEnrichmentModuleContext enrich_context = getMockEnrichmentContext();
+			
+			test_puttingItAllTogether_runTest(write_bucket, enrich_context, ImmutableMap.<String, Object>of("max_lookups_in_flight", 1), 
+					Arrays.asList(split_dups.subList(0, 1), split_dups.subList(1, 2)));
+			
+			Mockito.verify(enrich_context, Mockito.times(2)).emitImmutableObject(Mockito.any(Long.class), Mockito.any(JsonNode.class), Mockito.any(Optional.class), Mockito.any(Optional.class), Mockito.any(Optional.class));
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_puttingItAllTogether_chunked() throws InterruptedException {
+		
+		test_puttingItAllTogether_genericPhase();
+		
+		final String ts_field = "@timestamp";
+		
+		// LEAVE + DELETE UNHANDLED, MULTI-FIELD, MULTI-BUCKET CONTEXT - compare the unsorted and the sorted/chunked lookups
+		// (the results are grouped by key, which is where the 2 paths differ)
+		
+		final DataBucketBean write_bucket = addTimestampField(ts_field, getDocBucket("/test/dedup/write/a",
+				BeanTemplateUtils.build(DataSchemaBean.DocumentSchemaBean.class)
+					.with(DataSchemaBean.DocumentSchemaBean::deduplication_policy, DeduplicationPolicy.leave)
+					.with(DataSchemaBean.DocumentSchemaBean::deduplication_contexts, Arrays.asList("/dedup/*"))
+					.with(DataSchemaBean.DocumentSchemaBean::deduplication_fields, Arrays.asList("dup_field", "dup"))
+					.with(DataSchemaBean.DocumentSchemaBean::delete_unhandled_duplicates, true) //(no-op for leave, but means the results are grouped)
+				.done().get()
+				));
+		
+		for (Map<String, Object> dedup_config: Arrays.<Map<String, Object>>asList(Collections.emptyMap(), ImmutableMap.<String, Object>of("lookup_chunk_size", 50))) {
+			final IEnrichmentModuleContext enrich_context = getMockEnrichmentContext();
+			
+			test_puttingItAllTogether_runTest(write_bucket, enrich_context, dedup_config, Integer.MAX_VALUE);
+			
+			// Should have called emit "num_write_records" times (50% of them are duplicates)
+			Mockito.verify(enrich_context, Mockito.times(num_write_records)).emitImmutableObject(Mockito.any(Long.class), Mockito.any(JsonNode.class), Mockito.any(Optional.class), Mockito.any(Optional.class), Mockito.any(Optional.class));
+		}
+	}
+	
 	/** 2 Things
 	 *  1) Check that the 
 	 * @throws InterruptedException 
@@ -1924,6 +2204,10 @@ public class TestDeduplicationService {
 	}
 	
 	public void test_puttingItAllTogether_runTest(final DataBucketBean write_bucket, final IEnrichmentModuleContext enrich_context) {
+		test_puttingItAllTogether_runTest(write_bucket, enrich_context, Collections.emptyMap(), Integer.MAX_VALUE);
+	}
+	
+	public void test_puttingItAllTogether_runTest(final DataBucketBean write_bucket, final IEnrichmentModuleContext enrich_context, final Map<String, Object> dedup_config, final int batch_size) {
 		// OK now create a new batch of objects
 		
 		List<Tuple2<Long, IBatchRecord>> imcoming_objects = IntStream.rangeClosed(1, 2*num_write_records).boxed().map(i -> {
@@ -1941,12 +2225,22 @@ public class TestDeduplicationService {
 		.map(j -> Tuples._2T(0L, (IBatchRecord)new BatchRecordUtils.JsonBatchRecord(j)))
 		.collect(Collectors.toList());
 		
+		final List<List<Tuple2<Long, IBatchRecord>>> batches = new LinkedList<>();
+		for (int i = 0; i < imcoming_objects.size(); i += batch_size) {
+			batches.add(imcoming_objects.subList(i, (int)Math.min((long)i + batch_size, imcoming_objects.size())));
+		}
+		
+		test_puttingItAllTogether_runTest(write_bucket, enrich_context, dedup_config, batches);
+	}
+	
+	public void test_puttingItAllTogether_runTest(final DataBucketBean write_bucket, final IEnrichmentModuleContext enrich_context, final Map<String, Object> dedup_config, final List<List<Tuple2<Long, IBatchRecord>>> batches) {
 		// Other things we need:
 		
 		IEnrichmentBatchModule test_module = new DeduplicationService();
 		
 		final EnrichmentControlMetadataBean control = BeanTemplateUtils.build(EnrichmentControlMetadataBean.class)
 					.with(EnrichmentControlMetadataBean::name, "custom_test")
+					.with(EnrichmentControlMetadataBean::config, dedup_config)
 				.done().get();		
 		
 		// Initialize
@@ -1955,7 +2249,9 @@ public class TestDeduplicationService {
 		
 		// Run
 		
-		test_module.onObjectBatch(imcoming_objects.stream(), Optional.empty(), Optional.empty());
+		for (List<Tuple2<Long, IBatchRecord>> batch: batches) {
+			test_module.onObjectBatch(batch.stream(), Optional.empty(), Optional.empty());
+		}
 		
 		// (Finish)
 		test_module.onStageComplete(true);
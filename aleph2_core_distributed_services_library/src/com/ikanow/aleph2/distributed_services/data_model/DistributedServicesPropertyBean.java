@@ -84,4 +84,29 @@ public class DistributedServicesPropertyBean {
 	 */
 	public String cluster_name() { return cluster_name; }
 	private String cluster_name;
+	
+	/** How Kafka consumers (see consumeAs) commit their offsets: "sync_per_poll" (default), "async_per_poll" or "periodic_async" (see WrappedConsumerIterator.CommitPolicy)
+	 * @return
+	 */
+	public String consumer_commit_policy() { return consumer_commit_policy; }
+	private String consumer_commit_policy;
+	
+	/** For consumer_commit_policy: periodic_async, the minimum time between commits (defaults to 1s)
+	 * @return
+	 */
+	public Long consumer_commit_interval_ms() { return consumer_commit_interval_ms; }
+	private Long consumer_commit_interval_ms;
+	
+	/** Kafka producer properties (eg linger.ms, batch.size) that override the defaults for all topics
+	 * @return immutable copy of map
+	 */
+	public Map<String, Object> producer_config() { return null != producer_config ? Collections.unmodifiableMap(producer_config) : null; }
+	private Map<String, Object> producer_config;
+	
+	/** A map of topic names vs Kafka producer properties that override producer_config for that topic
+	 *  (Kafka applies these per producer, so a separate producer is shared by all topics with the same resulting config)
+	 * @return immutable copy of map
+	 */
+	public Map<String, Map<String, Object>> producer_topic_config() { return null != producer_topic_config ? Collections.unmodifiableMap(producer_topic_config) : null; }
+	private Map<String, Map<String, Object>> producer_topic_config;
 }
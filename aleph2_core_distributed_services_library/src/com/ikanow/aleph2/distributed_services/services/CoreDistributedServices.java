@@ -19,7 +19,7 @@ import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -38,7 +38,6 @@ import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.producer.Producer;
-import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.zookeeper.CreateMode;
@@ -106,6 +105,8 @@ public class CoreDistributedServices implements ICoreDistributedServices, IExtra
 	boolean _initializing_kafka = true;
 	protected final CompletableFuture<Void> _initialized_kafka;
 	
+	protected final ConcurrentHashMap<String, Map<String, Object>> _producer_config_by_topic = new ConcurrentHashMap<>(); // (topic -> producer overrides)
+	
 	protected final static ConcurrentHashMap<Tuple3<String, String, String>, RemoteBroadcastMessageBus<?>> _broadcast_buses = 
 			new ConcurrentHashMap<>();
 	protected final static ConcurrentHashMap<Tuple3<String, String, String>, RemoteRoundRobinMessageBus<?>> _roundrobin_buses = 
@@ -465,28 +466,45 @@ public class CoreDistributedServices implements ICoreDistributedServices, IExtra
 	 */
 	@Override
 	public void produce(String topic, String message) {
-		this.createTopic(topic, Optional.empty());
-		
-		logger.debug("PRODUCING");
-		final Producer<String, String> producer = KafkaUtils.getKafkaProducer();
-		
-		logger.debug("SENDING");
-		producer.send(new ProducerRecord<String, String>(topic, message));
+		produceBatch(topic, Arrays.asList(message)); // (fire and forget)
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices#produceBatch(java.lang.String, java.util.Collection)
+	 */
+	@Override
+	public CompletableFuture<Long> produceBatch(String topic, Collection<String> messages) {
+		this.createTopic(topic, Optional.empty()); // (only goes to ZK the first time a topic is seen)
 		
-		logger.debug("DONE SENDING");
+		return KafkaUtils.produce(getProducer(topic), topic, messages);
+	}
+	
+	/** Returns the (cached) producer for this topic, applying any producer_config/producer_topic_config overrides
+	 * @param topic
+	 * @return
+	 */
+	protected Producer<String, String> getProducer(final String topic) {
+		final Map<String, Object> overrides = _producer_config_by_topic.computeIfAbsent(topic, t -> {
+			final Map<String, Object> merged = new HashMap<String, Object>(Optional.ofNullable(_config_bean.producer_config()).orElse(Collections.emptyMap()));
+			merged.putAll(Optional.ofNullable(_config_bean.producer_topic_config()).map(m -> m.get(t)).orElse(Collections.emptyMap()));
+			return merged;
+		});
+		return KafkaUtils.getKafkaProducer(overrides);
 	}
 	
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices#consume(java.lang.String)
 	 */
 	@Override
-	public Iterator<String> consumeAs(String topic, Optional<String> from, Optional<String> consumer_name) {
+	public WrappedConsumerIterator consumeAs(String topic, Optional<String> from, Optional<String> consumer_name) {
 		if (_initializing_kafka) { //(wait for async to complete)
 			_initialized_kafka.join();
 		}		
 		logger.debug("CONSUMING");
 		final KafkaConsumer<String, String> consumer = KafkaUtils.getKafkaConsumer(topic, from, consumer_name);
-		return new WrappedConsumerIterator(consumer, topic);
+		return new WrappedConsumerIterator(consumer, topic, WrappedConsumerIterator.DEFAULT_TIMEOUT_MS,
+				Optional.ofNullable(_config_bean.consumer_commit_policy()).map(WrappedConsumerIterator.CommitPolicy::valueOf).orElse(WrappedConsumerIterator.CommitPolicy.sync_per_poll),
+				Optional.ofNullable(_config_bean.consumer_commit_interval_ms()).orElse(WrappedConsumerIterator.DEFAULT_COMMIT_INTERVAL_MS));
 	}
 
 	/** Memoized version of generateTopicName
@@ -19,6 +19,7 @@ package com.ikanow.aleph2.distributed_services.services;
 //import kafka.javaapi.producer.Producer;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
@@ -142,7 +143,15 @@ public interface ICoreDistributedServices extends IUnderlyingService {
 	 */
 	void produce(String topic, String message);
 	
+	/** Writes a batch of JSON strings to the designated message queue without blocking
+	 * @param topic - the name of the message queue, eg for buckets will usually be KafkaUtils.bucketNameToKafkaTopic(bucket.full_name)
+	 * @param messages - the messages to write
+	 * @return a future that completes with the number of messages written once they have all been acknowledged (or exceptionally if any fail)
+	 */
+	CompletableFuture<Long> produceBatch(String topic, Collection<String> messages);
+	
 	/** Returns an iterator from which messages can be read
+	 *  (the Kafka-backed implementations return a WrappedConsumerIterator, which also supports bulk reads via nextBatch, and exposes consumer metrics)
 	 * @param topic - the name of the message queue, eg for buckets will usually be KafkaUtils.bucketNameToKafkaTopic(bucket.full_name)
 	 * @return an iterator of Strings, typically representing JSON stringd
 	 */
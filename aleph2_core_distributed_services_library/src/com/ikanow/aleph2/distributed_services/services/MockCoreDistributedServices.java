@@ -18,7 +18,6 @@ package com.ikanow.aleph2.distributed_services.services;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -33,8 +32,6 @@ import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.test.TestingServer;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
-import org.apache.kafka.clients.producer.Producer;
-import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -249,20 +246,24 @@ public class MockCoreDistributedServices implements ICoreDistributedServices, IE
 	 */
 	@Override
 	public void produce(String topic, String message) {
-		this.createTopic(topic, Optional.empty());
+		produceBatch(topic, Arrays.asList(message)); // (fire and forget)
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices#produceBatch(java.lang.String, java.util.Collection)
+	 */
+	@Override
+	public CompletableFuture<Long> produceBatch(String topic, Collection<String> messages) {
+		this.createTopic(topic, Optional.empty()); // (only goes to ZK the first time a topic is seen)
 		
-		logger.debug("PRODUCING");
-		Producer<String, String> producer = KafkaUtils.getKafkaProducer();	
-		logger.debug("SENDING");
-		producer.send(new ProducerRecord<String, String>(topic, message));
-		logger.debug("DONE SENDING");
+		return KafkaUtils.produce(KafkaUtils.getKafkaProducer(), topic, messages);
 	}
 	
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices#consume(java.lang.String)
 	 */
 	@Override
-	public Iterator<String> consumeAs(String topic, Optional<String> from, Optional<String> consumer_name) {
+	public WrappedConsumerIterator consumeAs(String topic, Optional<String> from, Optional<String> consumer_name) {
 		setupKafka();
 		logger.debug("CONSUMING");
 		KafkaConsumer<String, String> consumer = KafkaUtils.getKafkaConsumer(topic, from, consumer_name);
@@ -161,6 +161,14 @@ public class NoCoreDistributedServices implements ICoreDistributedServices {
 	public void produce(String topic, String message) {
 	}
 
+	/* (non-Javadoc)
+	 * @see com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices#produceBatch(java.lang.String, java.util.Collection)
+	 */
+	@Override
+	public CompletableFuture<Long> produceBatch(String topic, Collection<String> messages) {
+		return CompletableFuture.completedFuture(0L);
+	}
+
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.distributed_services.services.ICoreDistributedServices#consumeAs(java.lang.String, java.util.Optional)
 	 */
@@ -16,13 +16,16 @@
 package com.ikanow.aleph2.distributed_services.utils;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import org.I0Itec.zkclient.ZkClient;
@@ -31,6 +34,7 @@ import org.apache.curator.framework.CuratorFramework;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -64,7 +68,11 @@ public class KafkaUtils {
 	private final static Logger logger = LogManager.getLogger();
 	protected final static Map<String, Boolean> my_topics = new ConcurrentHashMap<String, Boolean>(); // (Things to which I am publishing)
 	protected final static Cache<String, Boolean> known_topics = CacheBuilder.newBuilder().expireAfterWrite(5, TimeUnit.MINUTES).build();
-	protected static Producer<String, String> producer = null;
+	protected static volatile Producer<String, String> producer = null;
+	protected final static Map<Map<String, Object>, Producer<String, String>> override_producers = new ConcurrentHashMap<>();
+	protected final static AtomicLong num_produced = new AtomicLong(0L);
+	protected final static AtomicLong num_acked = new AtomicLong(0L);
+	protected final static AtomicLong num_failed = new AtomicLong(0L);
 	//TODO (ALEPH-12): make my_topics a cached map also
 	
 	/** Creates a new ZK client from the properties
@@ -84,12 +92,93 @@ public class KafkaUtils {
 	 * 
 	 * @return
 	 */
-	public synchronized static Producer<String, String> getKafkaProducer() {			
-		if ( producer == null )
-			producer = new KafkaProducer<>(kafka_properties);
-			//producer = new Producer<String, String>(new ProducerConfig(kafka_properties));
+	public static Producer<String, String> getKafkaProducer() {
+		final Producer<String, String> existing_producer = producer; // (fast path - no lock once the producer exists)
+		if (null != existing_producer) return existing_producer;
 		
-		return producer;
+		synchronized (KafkaUtils.class) {
+			if ( producer == null )
+				producer = new KafkaProducer<>(kafka_properties);
+				//producer = new Producer<String, String>(new ProducerConfig(kafka_properties));
+			
+			return producer;
+		}
+	}
+	
+	/**
+	 * Returns a producer pointed at the currently configured Kafka instance, with the specified
+	 * producer properties (eg linger.ms, batch.size) overriding the defaults.
+	 * 
+	 * Kafka applies these settings per producer not per topic, so one producer is cached for each 
+	 * distinct set of overrides. An empty set of overrides just returns the default producer.
+	 * 
+	 * @param overrides - producer properties to override
+	 * @return
+	 */
+	public static Producer<String, String> getKafkaProducer(final Map<String, Object> overrides) {
+		if (overrides.isEmpty()) return getKafkaProducer();
+		
+		final Producer<String, String> existing_producer = override_producers.get(overrides);
+		if (null != existing_producer) return existing_producer;
+		
+		synchronized (KafkaUtils.class) {
+			return override_producers.computeIfAbsent(ImmutableMap.copyOf(overrides), __ -> {
+				final Properties props = new Properties();
+				props.putAll(kafka_properties);
+				props.putAll(overrides);
+				return new KafkaProducer<>(props);
+			});
+		}
+	}
+	
+	/**
+	 * Sends a batch of messages to a topic (which must already exist) without blocking - 
+	 * the returned future completes with the number of messages once all of them have been acked,
+	 * or exceptionally as soon as any of them fails.
+	 * 
+	 * @param producer - the producer to use (see getKafkaProducer)
+	 * @param topic - the kafka topic
+	 * @param messages - the messages to send
+	 * @return a future that completes when all the messages have been acked
+	 */
+	public static CompletableFuture<Long> produce(final Producer<String, String> producer, final String topic, final Collection<String> messages) {
+		final long num_messages = messages.size();
+		if (0 == num_messages) return CompletableFuture.completedFuture(0L);
+		
+		final CompletableFuture<Long> acked = new CompletableFuture<>();
+		final AtomicLong remaining = new AtomicLong(num_messages);
+		num_produced.addAndGet(num_messages);
+		for (String message: messages) {
+			producer.send(new ProducerRecord<String, String>(topic, message), (metadata, exception) -> {
+				if (null == exception) {
+					num_acked.incrementAndGet();
+					if (0 == remaining.decrementAndGet()) acked.complete(num_messages);
+				}
+				else {
+					num_failed.incrementAndGet();
+					acked.completeExceptionally(exception);
+				}
+			});
+		}
+		return acked;
+	}
+	
+	/** Returns some simple counters describing everything produced from this process:
+	 *  produced, acked, failed, in_flight (ie produced but not yet acked or failed), producers and topics
+	 * @return
+	 */
+	public static Map<String, Long> getProducerMetrics() {
+		final long failed = num_failed.get(); // (read in the opposite order to which they're updated so in_flight can't go -ve)
+		final long acked = num_acked.get();
+		final long produced = num_produced.get();
+		return ImmutableMap.<String, Long>builder()
+				.put("produced", produced)
+				.put("acked", acked)
+				.put("failed", failed)
+				.put("in_flight", produced - acked - failed)
+				.put("producers", (long)override_producers.size() + (null == producer ? 0L : 1L))
+				.put("topics", (long)my_topics.size())
+				.build();
 	}
 	
 	/**
@@ -267,10 +356,14 @@ public class KafkaUtils {
 		logger.debug("ZOOKEEPER: " + zk);
         
         //reset producer so a new one will be created
-		if ( producer != null ) {
-			producer.close();
-			producer = null;
-		}    
+		synchronized (KafkaUtils.class) {
+			if ( producer != null ) {
+				producer.close();
+				producer = null;
+			}
+			override_producers.values().forEach(p -> p.close());
+			override_producers.clear();
+		}
 	}
 
 	/** Generates a connection string by reading ZooKeeper
@@ -314,7 +407,18 @@ public class KafkaUtils {
 	 * 
 	 * @param topic
 	 */
-	public synchronized static void createTopic(String topic, Optional<Map<String, Object>> options, final ZkUtils zk_client1) {
+	public static void createTopic(String topic, Optional<Map<String, Object>> options, final ZkUtils zk_client1) {
+		if ( !my_topics.containsKey(topic) ) { // (fast path - once a topic is known there's no need to take the lock)
+			createTopic_synchronized(topic, options, zk_client1);
+		}
+	}
+	
+	/** The locked part of createTopic - rechecks the topic under the lock
+	 * @param topic
+	 * @param options
+	 * @param zk_client1
+	 */
+	private synchronized static void createTopic_synchronized(String topic, Optional<Map<String, Object>> options, final ZkUtils zk_client1) {
 		
 		//TODO (ALEPH-10): need to handle topics getting deleted but not being removed from this map
 		//TODO (ALEPH-10): override options if they change? not sure if that's possible 
@@ -16,28 +16,59 @@
 package com.ikanow.aleph2.distributed_services.utils;
 
 import java.io.Closeable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.ImmutableMap;
 
 /**
  * Wrapper around a kafka consumer iterator for ease of use, returns Strings
  * on a next() call.  This can be converted to return JsonNode if we need to instead.
  * 
+ * Also supports reading a whole poll's worth of records at once (see nextBatch), and 
+ * configurable offset commits (see CommitPolicy)
+ * 
  * @author Burch
  *
  */
 public class WrappedConsumerIterator implements Closeable, Iterator<String> {
 
+	/** How the consumer's offsets are committed back to kafka after each poll
+	 *  sync_per_poll - blocks on a commit after every poll (the original behavior, slowest but simplest)
+	 *  async_per_poll - fires off a non-blocking commit after every poll
+	 *  periodic_async - fires off a non-blocking commit after a poll at most once every commit_interval_ms 
+	 */
+	public enum CommitPolicy { sync_per_poll, async_per_poll, periodic_async };
+	
 	final protected KafkaConsumer<String,String> consumer;
 	final protected String topic;	
 	final protected long force_timeout_ms;
-//	final private static Logger logger = LogManager.getLogger();
-	private static final long DEFAULT_TIMEOUT_MS = 2000;
-	protected List<ConsumerRecord<String, String>> curr_record_set = new ArrayList<ConsumerRecord<String,String>>();
+	final protected CommitPolicy commit_policy;
+	final protected long commit_interval_ms;
+	final private static Logger logger = LogManager.getLogger();
+	public static final long DEFAULT_TIMEOUT_MS = 2000;
+	public static final long DEFAULT_COMMIT_INTERVAL_MS = 1000;
+	protected final ArrayDeque<ConsumerRecord<String, String>> curr_record_set = new ArrayDeque<ConsumerRecord<String,String>>();
+	
+	// Metrics (can be read from other threads, so the consuming thread publishes snapshots of the buffer size and lag rather than getMetrics touching the buffer/consumer)
+	protected final long start_time_ms = System.currentTimeMillis();
+	protected final AtomicLong num_records = new AtomicLong(0L);
+	protected final AtomicLong num_polls = new AtomicLong(0L);
+	protected final AtomicLong num_commits = new AtomicLong(0L);
+	protected final AtomicLong num_failed_commits = new AtomicLong(0L);
+	protected volatile int num_buffered = 0;
+	protected volatile long last_lag = -1L;
+	protected long last_commit_time_ms = 0L;
 	
 	/**
 	 * Takes a consumer and the topic name, retrieves the stream of results and
@@ -51,9 +82,24 @@ public class WrappedConsumerIterator implements Closeable, Iterator<String> {
 	}
 	
 	public WrappedConsumerIterator(final KafkaConsumer<String,String> consumer, final String topic, final long force_timeout_ms) {
+		this(consumer, topic, force_timeout_ms, CommitPolicy.sync_per_poll, DEFAULT_COMMIT_INTERVAL_MS);
+	}
+	
+	/**
+	 * As above, but with a configurable commit policy
+	 * 
+	 * @param consumer
+	 * @param topic
+	 * @param force_timeout_ms - see hasNext
+	 * @param commit_policy - how the offsets are committed after each poll (see CommitPolicy)
+	 * @param commit_interval_ms - for CommitPolicy.periodic_async, the minimum time between commits
+	 */
+	public WrappedConsumerIterator(final KafkaConsumer<String,String> consumer, final String topic, final long force_timeout_ms, final CommitPolicy commit_policy, final long commit_interval_ms) {
 		this.consumer = consumer;
 		this.topic = topic;
 		this.force_timeout_ms = force_timeout_ms;
+		this.commit_policy = commit_policy;
+		this.commit_interval_ms = commit_interval_ms;
 		getNextRecordSet(0); //initialize by forcing a poll call to occur (ugh)        
 	}
 	
@@ -63,9 +109,38 @@ public class WrappedConsumerIterator implements Closeable, Iterator<String> {
 	 */
 	@Override
 	public String next() {
-		if ( curr_record_set.isEmpty())
+		final ConsumerRecord<String, String> record = curr_record_set.poll();
+		if (null == record)
 			return null;
-		return curr_record_set.remove(0).value();
+		num_records.incrementAndGet();
+		num_buffered = curr_record_set.size();
+		return record.value();
+	}
+	
+	/**
+	 * Returns up to max_records of the buffered records, polling for more first if the buffer is empty 
+	 * (so nextBatch(Integer.MAX_VALUE) returns a whole poll's worth of records). Returns an empty list if
+	 * nothing arrived before the timeout (see hasNext).
+	 * 
+	 * @param max_records - must be >= 0
+	 * @return
+	 * @throws IllegalArgumentException if max_records is negative
+	 */
+	public List<String> nextBatch(final int max_records) {
+		if ( max_records < 0 )
+			throw new IllegalArgumentException("nextBatch: max_records must be >= 0, was " + max_records);
+		
+		if ( curr_record_set.isEmpty() )
+			getNextRecordSet(force_timeout_ms);
+		
+		final int batch_size = Math.min(max_records, curr_record_set.size());
+		final ArrayList<String> batch = new ArrayList<String>(batch_size);
+		for (int i = 0; i < batch_size; ++i) {
+			batch.add(curr_record_set.poll().value());
+		}
+		num_records.addAndGet(batch_size);
+		num_buffered = curr_record_set.size();
+		return batch;
 	}
 	
 	/**
@@ -86,26 +161,101 @@ public class WrappedConsumerIterator implements Closeable, Iterator<String> {
 		
 		//otherwise try to get more records
 		getNextRecordSet(force_timeout_ms);
-		return curr_record_set.size() > 0;
+		return !curr_record_set.isEmpty();
 	}
 	
 	private void getNextRecordSet(long timeout_ms) {
 		ConsumerRecords<String, String> records = consumer.poll(timeout_ms);
+		num_polls.incrementAndGet();
 		for ( ConsumerRecord<String, String> record : records) {
 			curr_record_set.add(record);
 		}
-		consumer.commitSync();
+		num_buffered = curr_record_set.size();
+		last_lag = getLag();
+		commit(false);
+	}
+	
+	/** The max number of records this consumer is behind the end of the topic, from kafka's own metrics 
+	 *  (must be called from the consuming thread, kafka consumers aren't thread safe)
+	 * @return the lag, or -1 if not available
+	 */
+	private long getLag() {
+		return (long) consumer.metrics().entrySet().stream()
+								.filter(kv -> "records-lag-max".equals(kv.getKey().name()))
+								.mapToDouble(kv -> kv.getValue().value())
+								.filter(d -> !Double.isInfinite(d) && !Double.isNaN(d))
+								.max()
+								.orElse(-1.0);
+	}
+	
+	/** Commits the offsets according to the commit policy
+	 * @param force - if true then always commits (synchronously)
+	 */
+	private void commit(final boolean force) {
+		final long now = System.currentTimeMillis();
+		if (force || (CommitPolicy.sync_per_poll == commit_policy)) {
+			consumer.commitSync();
+			num_commits.incrementAndGet();
+			last_commit_time_ms = now;
+		}
+		else if ((CommitPolicy.async_per_poll == commit_policy) || ((now - last_commit_time_ms) >= commit_interval_ms)) {
+			consumer.commitAsync((offsets, exception) -> {
+				if (null == exception) {
+					num_commits.incrementAndGet();
+				}
+				else {
+					num_failed_commits.incrementAndGet();
+					logger.warn("Async offset commit failed for topic: " + topic + ": " + exception.getMessage());
+				}
+			});
+			last_commit_time_ms = now;
+		}
 	}
 	
 	/**
-	 * Shuts down the consumer as a cleanup step.
+	 * Returns some consumer metrics: 
+	 * records - the number of records returned via next/nextBatch
+	 * buffered - the number of records polled but not yet returned
+	 * polls, commits, failed_commits - the number of polls and (successful/failed) offset commits
+	 * records_per_sec - the average throughput since this consumer was created
+	 * lag - the max number of records this consumer is behind the end of the topic (from kafka's own metrics as of the last poll, -1 if not available)
+	 * 
+	 * Can be called from any thread (the values may be slightly stale relative to each other)
+	 * 
+	 * @return
+	 */
+	public Map<String, Number> getMetrics() {
+		final long elapsed_ms = Math.max(1L, System.currentTimeMillis() - start_time_ms);
+		
+		return ImmutableMap.<String, Number>builder()
+				.put("records", num_records.get())
+				.put("buffered", num_buffered)
+				.put("polls", num_polls.get())
+				.put("commits", num_commits.get())
+				.put("failed_commits", num_failed_commits.get())
+				.put("records_per_sec", (1000.0*num_records.get())/elapsed_ms)
+				.put("lag", last_lag)
+				.build();
+	}
+	
+	/**
+	 * Shuts down the consumer as a cleanup step (committing the latest offsets first if they're being committed asynchronously)
 	 * 
 	 */
 	@Override
 	public void close() {
 		System.out.println("Consumer for topic: " + topic + " was told to close");
-		if ( consumer != null )
+		if ( consumer != null ) {
+			if (CommitPolicy.sync_per_poll != commit_policy) {
+				try {
+					commit(true);
+				}
+				catch (Exception e) {
+					logger.warn("Final offset commit failed for topic: " + topic + ": " + e.getMessage());
+				}
+			}
 			consumer.close();
+		}
 	}
 
 }
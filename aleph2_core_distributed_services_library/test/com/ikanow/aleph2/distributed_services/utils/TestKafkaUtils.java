@@ -17,7 +17,14 @@ package com.ikanow.aleph2.distributed_services.utils;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
 import kafka.utils.ZkUtils;
 
@@ -29,6 +36,7 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.distributed_services.services.MockCoreDistributedServices;
 
@@ -146,6 +154,104 @@ public class TestKafkaUtils {
 		assertEquals(count, num_messages_to_produce);
 	}
 	
+	/**
+	 * Tests produce and bulk consume into a kafka queue, with async offset commits
+	 * 
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testProduceConsumeBatch() throws InterruptedException {
+		final String topic = "test_produce_consume_batch";
+		final ZkUtils zk_client = KafkaUtils.getNewZkClient();
+		KafkaUtils.createTopic(topic, Optional.empty(), zk_client);		
+		assertTrue(KafkaUtils.doesTopicExist(topic, zk_client));
+		
+		//have to create consumers before producing
+		KafkaConsumer<String, String> consumer = KafkaUtils.getKafkaConsumer(topic, Optional.empty());
+		WrappedConsumerIterator wrapped_consumer = new WrappedConsumerIterator(consumer, topic, 2000, WrappedConsumerIterator.CommitPolicy.async_per_poll, 0L);		
+		
+		//write something into the topic
+		Producer<String, String> producer = KafkaUtils.getKafkaProducer();
+		long num_messages_to_produce = 5;
+		for (long i = 0; i < num_messages_to_produce; i++)
+			producer.send(new ProducerRecord<String, String>(topic, "test" + i));
+		
+		Thread.sleep(10000); //wait a few seconds for producers to dump batch
+		
+		//read the first couple one at a time then the rest in bulk
+		
+		long count = 0;
+		assertTrue(wrapped_consumer.hasNext());
+		assertEquals("test0", wrapped_consumer.next());
+		count++;
+		assertEquals(Arrays.asList("test1"), wrapped_consumer.nextBatch(1));
+		count++;
+		try {
+			wrapped_consumer.nextBatch(-1);
+			fail("Should have rejected a negative batch size");
+		}
+		catch (IllegalArgumentException e) {}
+		List<String> batch;
+		while ( !(batch = wrapped_consumer.nextBatch(Integer.MAX_VALUE)).isEmpty() ) {
+			count += batch.size();
+		}
+		assertEquals(num_messages_to_produce, count);
+		
+		final Map<String, Number> metrics = wrapped_consumer.getMetrics();
+		assertEquals(num_messages_to_produce, metrics.get("records").longValue());
+		assertEquals(0L, metrics.get("buffered").longValue());
+		assertTrue(metrics.get("polls").longValue() > 0);
+		assertEquals(0L, metrics.get("failed_commits").longValue());
+		
+		wrapped_consumer.close();
+	}
+	
+	/**
+	 * Produces a batch via the batched producer (with linger/batch overrides) and checks 
+	 * the acks come back, the producers are cached, and everything can be consumed.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testProduceBatch() throws Exception {
+		final String topic = "test_produce_batch";
+		final ZkUtils zk_client = KafkaUtils.getNewZkClient();
+		KafkaUtils.createTopic(topic, Optional.empty(), zk_client);		
+		KafkaUtils.createTopic(topic, Optional.empty(), zk_client); // (fast path, no-op)		
+		assertTrue(KafkaUtils.doesTopicExist(topic, zk_client));
+		
+		//have to create consumers before producing
+		KafkaConsumer<String, String> consumer = KafkaUtils.getKafkaConsumer(topic, Optional.empty());
+		WrappedConsumerIterator wrapped_consumer = new WrappedConsumerIterator(consumer, topic);		
+		
+		final Map<String, Object> overrides = ImmutableMap.<String, Object>of("linger.ms", 50, "batch.size", 65536);
+		final Producer<String, String> producer = KafkaUtils.getKafkaProducer(overrides);
+		assertTrue(producer == KafkaUtils.getKafkaProducer(new HashMap<String, Object>(overrides)));
+		assertTrue(KafkaUtils.getKafkaProducer() == KafkaUtils.getKafkaProducer(Collections.emptyMap()));
+		
+		final long acked_before = KafkaUtils.getProducerMetrics().get("acked");
+		final long num_messages_to_produce = 50;
+		final List<String> messages = LongStream.range(0, num_messages_to_produce).mapToObj(i -> "test" + i).collect(Collectors.toList());
+		
+		assertEquals(num_messages_to_produce, KafkaUtils.produce(producer, topic, messages).get().longValue());
+		assertEquals(0L, KafkaUtils.produce(producer, topic, Collections.emptyList()).get().longValue());
+		
+		final Map<String, Long> metrics = KafkaUtils.getProducerMetrics();
+		assertEquals(acked_before + num_messages_to_produce, metrics.get("acked").longValue());
+		assertEquals(0L, metrics.get("failed").longValue());
+		assertEquals(0L, metrics.get("in_flight").longValue());
+		
+		Thread.sleep(5000); //wait a few seconds for the consumer to see the messages
+		
+		long count = 0;
+		List<String> batch;
+		while ( !(batch = wrapped_consumer.nextBatch(Integer.MAX_VALUE)).isEmpty() ) {
+			count += batch.size();
+		}
+		assertEquals(num_messages_to_produce, count);
+		wrapped_consumer.close();
+	}
+	
 	/**
 	 * Some systems were holding on to one consumer and checking hasNext perioidically.  This test
 	 * ensures that if you check hasNext and it returns false (because there are no items in the queue)
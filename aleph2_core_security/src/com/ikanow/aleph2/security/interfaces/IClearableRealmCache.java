@@ -21,6 +21,15 @@ public interface IClearableRealmCache {
 
 	void clearAuthorizationCached(Collection<String> principalNames);
 
+	/** Clears the cached authorization info of principals that were built with the given realm name
+	 *  (realms that don't key their cache by realm name can just clear the principals)
+	 * @param principalNames - the principals to clear
+	 * @param realmName - the realm name the principal collections were created with
+	 */
+	default void clearAuthorizationCached(Collection<String> principalNames, String realmName) {
+		clearAuthorizationCached(principalNames);
+	}
+
 	void clearAllCaches();
 
 }
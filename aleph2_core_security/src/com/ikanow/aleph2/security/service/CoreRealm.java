@@ -140,9 +140,16 @@ public class CoreRealm extends AuthorizingRealm implements IClearableRealmCache
     
     @Override
     public void clearAuthorizationCached(Collection<String> principalNames){
-   	 logger.debug("clearCachedAuthorizationInfo for "+principalNames);
-   	 SimplePrincipalCollection principals = new SimplePrincipalCollection(principalNames, this.getClass().getName());
-   	 super.doClearCache(principals);   	 
+   	 clearAuthorizationCached(principalNames, getName());
+    }
+
+    @Override
+    public void clearAuthorizationCached(Collection<String> principalNames, String realmName){
+   	 logger.debug("clearCachedAuthorizationInfo for "+principalNames+" in realm "+realmName);
+   	 // (the cached AuthorizationInfo is keyed by single principal collections in the realm name they were built with)
+   	 for (String principalName : principalNames) {
+   		 super.doClearCache(new SimplePrincipalCollection(principalName, realmName));
+   	 }
     }
 
     @Override
@@ -20,6 +20,8 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -33,10 +35,15 @@ import org.apache.shiro.realm.Realm;
 import org.apache.shiro.session.Session;
 import org.apache.shiro.session.mgt.DefaultSessionManager;
 import org.apache.shiro.session.mgt.SessionManager;
+import org.apache.shiro.subject.PrincipalCollection;
 import org.apache.shiro.subject.SimplePrincipalCollection;
 import org.apache.shiro.subject.Subject;
 import org.apache.shiro.util.ThreadContext;
 
+import scala.Tuple2;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider;
@@ -46,6 +53,7 @@ import com.ikanow.aleph2.data_model.interfaces.shared_services.ISecurityService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ISubject;
 import com.ikanow.aleph2.data_model.objects.shared.AuthorizationBean;
+import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.security.interfaces.IClearableRealmCache;
 import com.ikanow.aleph2.security.module.CoreSecurityModule;
 
@@ -56,6 +64,16 @@ public class SecurityService implements ISecurityService, IExtraDependencyLoader
 	protected static String systemUsername = null;
 	protected static String systemPassword = null;
 
+	public static final String PERMISSION_CACHE_SIZE = "aleph2.security.permission_cache_size";
+	public static final String PERMISSION_CACHE_TTL_SECS = "aleph2.security.permission_cache_ttl_secs";
+	public static final long DEFAULT_PERMISSION_CACHE_SIZE = 10000L;
+	public static final long DEFAULT_PERMISSION_CACHE_TTL_SECS = 60L;
+	
+	// (principal, permission) -> decision, cleared by invalidateAuthenticationCache/invalidateCache
+	protected final Cache<Tuple2<String, String>, Boolean> permissionCache;
+	// bumped (before anything is cleared) by every invalidation, so decisions computed across an invalidation aren't cached
+	protected final AtomicLong permissionCacheGeneration = new AtomicLong(0L);
+
 	@Inject
 	protected IServiceContext serviceContext;
 	protected CacheManager cacheManager;
@@ -78,6 +96,11 @@ public class SecurityService implements ISecurityService, IExtraDependencyLoader
 
 		systemUsername = System.getProperty(IKANOW_SYSTEM_LOGIN, "4e3706c48d26852237078005");
 		systemPassword = System.getProperty(IKANOW_SYSTEM_PASSWORD, "not allowed!");
+		
+		this.permissionCache = CacheBuilder.newBuilder()
+				.maximumSize(Long.getLong(PERMISSION_CACHE_SIZE, DEFAULT_PERMISSION_CACHE_SIZE))
+				.expireAfterWrite(Long.getLong(PERMISSION_CACHE_TTL_SECS, DEFAULT_PERMISSION_CACHE_TTL_SECS), TimeUnit.SECONDS)
+				.build();
 	}
 
 
@@ -181,19 +204,23 @@ public class SecurityService implements ISecurityService, IExtraDependencyLoader
 	}
 
 	public void invalidateAuthenticationCache(Collection<String> principalNames){
+		permissionCacheGeneration.incrementAndGet();
 		for (Realm realm : realms) {
 			if(realm instanceof IClearableRealmCache){
 				IClearableRealmCache ar = (IClearableRealmCache)realm;
-				ar.clearAuthorizationCached(principalNames);
+				// (clear the entries keyed on the same realm name the principals are built with, see getPrincipals)
+				ar.clearAuthorizationCached(principalNames, getRealmName());
 		} 
 			
 		}
+		permissionCache.asMap().keySet().removeIf(key -> principalNames.contains(key._1()));
 	}
 
 	/**
 	 * This function invalidates the whole cache
 	 */
 	public void invalidateCache(){
+		permissionCacheGeneration.incrementAndGet();
 		for (Realm realm : realms) {
 			if(realm instanceof IClearableRealmCache){
 				IClearableRealmCache ar = (IClearableRealmCache)realm;
@@ -201,6 +228,7 @@ public class SecurityService implements ISecurityService, IExtraDependencyLoader
 		} 
 			
 		}
+		permissionCache.invalidateAll();
 	}
 
 	public void setSessionTimeout(long globalSessionTimeout){
@@ -317,16 +345,38 @@ public class SecurityService implements ISecurityService, IExtraDependencyLoader
 		return currentUser.hasRole(role);
 	}
 
+	/**
+	 * Checks the principal's permission directly against the security manager (ie the realms and their cached AuthorizationInfo),
+	 * so unlike runAs there's no global lock or session handling, and caches the decision.
+	 */
 	@Override
-	public boolean isUserPermitted(String principal, String permission) {		
-		Subject currentUser = runAs(principal);		
-		return currentUser.isPermitted(permission);
+	public boolean isUserPermitted(String principal, String permission) {
+		final Tuple2<String, String> key = Tuples._2T(principal, permission);
+		final Boolean cached = permissionCache.getIfPresent(key);
+		if (null != cached) {
+			return cached;
+		}
+		final long generation = permissionCacheGeneration.get();
+		final boolean permitted = SecurityUtils.getSecurityManager().isPermitted(getPrincipals(principal), permission);
+		permissionCache.put(key, permitted);
+		if (generation != permissionCacheGeneration.get()) { // (invalidated while the decision was being computed, so it may be stale)
+			permissionCache.invalidate(key);
+		}
+		return permitted;
 	}
 
 	@Override
 	public boolean hasUserRole(String principal, String role) {
-		Subject currentUser = runAs(principal);		
-		return currentUser.hasRole(role);
+		return SecurityUtils.getSecurityManager().hasRole(getPrincipals(principal), role);
+	}
+
+	/**
+	 * Returns the same principals that runAs would use for the given user.
+	 * @param principal
+	 * @return
+	 */
+	protected PrincipalCollection getPrincipals(String principal) {
+		return new SimplePrincipalCollection(Arrays.asList(principal), getRealmName());
 	}
 
 
@@ -34,8 +34,12 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -593,6 +597,68 @@ public class SecurityServiceTest {
 		}
 	}
 	
+	@Test
+	public void testPermissionCache(){
+		securityService.invalidateCache();
+		assertTrue(securityService.isUserPermitted(testUserId,"t1"));
+		assertFalse(securityService.isUserPermitted(testUserId,"t4"));
+		assertTrue(securityService.hasUserRole(testUserId,"testUser"));
+		assertEquals(2L, securityService.permissionCache.size());
+		
+		// grant a new permission - the cached decision still applies until the user is invalidated 
+		MockSecurityService.permissionsMap.get(testUserId).add("t4");
+		try {
+			assertFalse(securityService.isUserPermitted(testUserId,"t4"));
+			assertTrue(securityService.isUserPermitted(regularUserId,"permission1"));
+			
+			securityService.invalidateAuthenticationCache(Arrays.asList(testUserId));
+			assertEquals(1L, securityService.permissionCache.size()); // (other users' decisions are retained)
+			assertTrue(securityService.isUserPermitted(testUserId,"t4"));
+		}
+		finally {
+			MockSecurityService.permissionsMap.get(testUserId).remove("t4");
+			securityService.invalidateCache();
+		}
+		assertEquals(0L, securityService.permissionCache.size());
+		assertFalse(securityService.isUserPermitted(testUserId,"t4"));
+	}
+
+	@Test
+	public void testPermissionContention() throws Exception {
+		final int num_threads = 8;
+		final int checks_per_thread = 1000;
+		final List<String> users = Arrays.asList(adminUserId, regularUserId, testUserId);
+		
+		// (the decisions made concurrently, with and without the cache, must match the single threaded ones)
+		securityService.invalidateCache();
+		final Map<String, Boolean> expected = new HashMap<String, Boolean>();
+		for (String user : users) {
+			for (int i = 0; i < 4; i++) {
+				expected.put(user + ":permission" + i, securityService.isUserPermitted(user, "permission" + i));
+			}
+		}
+		
+		for (boolean cached : Arrays.asList(false, true)) {
+			securityService.invalidateCache();
+			final AtomicInteger mismatches = new AtomicInteger(0);
+			final List<CompletableFuture<Void>> threads = IntStream.range(0, num_threads).boxed()
+					.map(t -> CompletableFuture.runAsync(() -> {
+						for (int i = 0; i < checks_per_thread; i++) {
+							final String user = users.get((t + i) % users.size());
+							if (!cached) securityService.invalidateAuthenticationCache(Arrays.asList(user));
+							if (expected.get(user + ":permission" + (i % 4)) != securityService.isUserPermitted(user, "permission" + (i % 4))) {
+								mismatches.incrementAndGet();
+							}
+						}
+					}))
+					.collect(Collectors.toList());
+			CompletableFuture.allOf(threads.toArray(new CompletableFuture[0])).get();
+			assertEquals(0, mismatches.get());
+		}
+		assertTrue(securityService.isUserPermitted(regularUserId,"permission1"));
+		assertFalse(securityService.isUserPermitted(testUserId,"permission1"));
+	}
+	
 	protected class PermissionChecker implements Runnable {
 
 		protected String userName;
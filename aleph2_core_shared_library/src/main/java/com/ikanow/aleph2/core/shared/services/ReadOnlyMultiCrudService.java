@@ -15,20 +15,26 @@
  *******************************************************************************/
 package com.ikanow.aleph2.core.shared.services;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import scala.Tuple2;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.Iterators;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IBasicSearchService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
@@ -41,6 +47,7 @@ import com.ikanow.aleph2.data_model.objects.shared.ProjectBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.CrudServiceUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.JsonUtils.JsonPath;
 import com.ikanow.aleph2.data_model.utils.MultiBucketUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
@@ -57,7 +64,7 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 	// INITIALIZATION FOR THIS
 	
 	/** Returns a multi bucket crud wrapper 
-	 *  DOESN'T CURRENTLY SUPPORT LIMITS OR SORTBY PROPERLY
+	 *  (orderBy is handled by merging the sorted results from each bucket, limit is applied to each bucket and then to the merged results)
 	 * @param buckets - a list of bucket paths
 	 * @param maybe_extra_query_builder - for each bucket lets the user specify an additional query to be applied to all queries
 	 * @return
@@ -268,14 +275,42 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 	public CompletableFuture<ICrudService.Cursor<T>> getObjectsBySpec(
 			QueryComponent<T> spec, List<String> field_list, boolean include) {
 		
-		final Stream<CompletableFuture<ICrudService.Cursor<T>>> intermed_res1 = _services.stream().map(s -> s.getObjectsBySpec(spec, field_list, include));
+		// (the spec - including its limit - is passed unchanged to each service, then the limit is re-applied to the combined results)
+		final Optional<Long> limit = getLimit(spec);
+		final List<Tuple2<String, Integer>> order_by = Optional.ofNullable(spec.getOrderBy()).orElse(Collections.emptyList());
 		
-		@SuppressWarnings("unchecked")
-		CompletableFuture<ICrudService.Cursor<T>>[] intermed_res2 = (CompletableFuture<ICrudService.Cursor<T>>[]) intermed_res1.toArray(CompletableFuture[]::new);
-		
-		return CompletableFuture.allOf(intermed_res2).thenApply(__ -> {
-			return new MultiCursor<T>(Arrays.stream(intermed_res2).map(res -> res.join()).collect(Collectors.toList()));
-		});
+		if (order_by.isEmpty()) { // Just concatenate the results, only querying each service when it's needed
+			final MultiCursor<T> cursor = new MultiCursor<T>(limit, _services.stream()
+					.<Supplier<CompletableFuture<ICrudService.Cursor<T>>>>map(s -> () -> s.getObjectsBySpec(spec, field_list, include))
+					.collect(Collectors.toList()));
+			
+			return _services.isEmpty()
+					? CompletableFuture.completedFuture(cursor)
+					: cursor.open(0).thenApply(__ -> cursor);
+		}
+		else { // Need the first object from every service before anything can be returned, so query them all concurrently and merge
+			// (the sort fields are always returned so the results can be merged, then any that weren't requested are removed again)
+			final List<String> sort_fields = order_by.stream().map(t2 -> t2._1()).collect(Collectors.toList());
+			final List<String> merge_field_list = field_list.isEmpty()
+					? field_list
+					: include
+						? Stream.concat(field_list.stream(), sort_fields.stream()).distinct().collect(Collectors.toList())
+						: field_list.stream().filter(f -> !sort_fields.contains(f)).collect(Collectors.toList());
+			final List<String> injected_fields = field_list.isEmpty()
+					? Collections.emptyList()
+					: include
+						? sort_fields.stream().filter(f -> !field_list.contains(f)).collect(Collectors.toList())
+						: sort_fields.stream().filter(f -> field_list.contains(f)).collect(Collectors.toList());
+			
+			final Stream<CompletableFuture<ICrudService.Cursor<T>>> intermed_res1 = _services.stream().map(s -> s.getObjectsBySpec(spec, merge_field_list, include));
+			
+			@SuppressWarnings("unchecked")
+			CompletableFuture<ICrudService.Cursor<T>>[] intermed_res2 = (CompletableFuture<ICrudService.Cursor<T>>[]) intermed_res1.toArray(CompletableFuture[]::new);
+			
+			return CompletableFuture.allOf(intermed_res2).thenApply(__ -> {
+				return new MergeCursor<T>(Arrays.stream(intermed_res2).map(res -> res.join()).collect(Collectors.toList()), order_by, injected_fields, limit);
+			});
+		}
 	}
 	/**
 	 * @param spec
@@ -288,8 +323,9 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 		@SuppressWarnings("unchecked")
 		CompletableFuture<Long>[] intermed_res2 = (CompletableFuture<Long>[]) intermed_res1.toArray(CompletableFuture[]::new);
 		
+		final Optional<Long> limit = getLimit(spec);
 		return CompletableFuture.allOf(intermed_res2).thenApply(__ -> {
-			return Arrays.stream(intermed_res2).map(res -> res.join()).reduce((a, b) -> a + b).orElse(0L);
+			return applyLimit(Arrays.stream(intermed_res2).map(res -> res.join()).reduce((a, b) -> a + b).orElse(0L), limit);
 		});
 	}
 	/**
@@ -425,20 +461,181 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 	
 	// UTILITY
 	
+	/** Returns the limit from a query (0 or less is treated as no limit, as for MongoDB)
+	 * @param spec - the query
+	 * @return
+	 */
+	protected static Optional<Long> getLimit(final QueryComponent<?> spec) {
+		return Optional.ofNullable(spec.getLimit()).filter(l -> l > 0);
+	}
+	
+	/** Caps a count with an (optional) limit
+	 * @param count - the count
+	 * @param limit - the limit
+	 * @return
+	 */
+	protected static long applyLimit(final long count, final Optional<Long> limit) {
+		return limit.map(l -> Math.min(l, count)).orElse(count);
+	}
+	
+	/** A cursor that concatenates the results of a number of other cursors, each one is only opened when the previous one is 
+	 *  being iterated over (the next one is opened at the same time so its query overlaps with the current iteration)
+	 */
 	public static class MultiCursor<O> extends ICrudService.Cursor<O> {
 
 		/** User c'tor
 		 * @param cursors
 		 */
 		public MultiCursor(final List<Cursor<O>> cursors) {
+			this(Optional.empty(), cursors.stream()
+									.<Supplier<CompletableFuture<Cursor<O>>>>map(c -> () -> CompletableFuture.completedFuture(c))
+									.collect(Collectors.toList()));
+		}
+		
+		/** User c'tor - lazy version
+		 * @param limit - the max number of objects to return across all the cursors
+		 * @param lazy_cursors - a list of suppliers that return each cursor when they are first needed
+		 */
+		public MultiCursor(final Optional<Long> limit, final List<Supplier<CompletableFuture<Cursor<O>>>> lazy_cursors) {
+			_limit = limit;
+			_lazy_cursors = lazy_cursors;
+			_cursors = new ArrayList<CompletableFuture<Cursor<O>>>(Collections.nCopies(lazy_cursors.size(), null));
+		}
+		
+		final protected Optional<Long> _limit;
+		final protected List<Supplier<CompletableFuture<Cursor<O>>>> _lazy_cursors;
+		final protected List<CompletableFuture<Cursor<O>>> _cursors; // (guarded by this)
+		
+		/** Returns the specified cursor, opening it if this is the first time it's been requested
+		 * @param index - the index of the cursor
+		 * @return
+		 */
+		protected synchronized CompletableFuture<Cursor<O>> open(final int index) {
+			if (null == _cursors.get(index)) {
+				_cursors.set(index, _lazy_cursors.get(index).get());
+			}
+			return _cursors.get(index);
+		}
+		
+		@Override
+		public Iterator<O> iterator() {
+			final Iterator<O> concat = Iterators.concat(new Iterator<Iterator<O>>() {
+				int _mutable_index = 0;
+				
+				@Override
+				public boolean hasNext() {
+					return _mutable_index < _lazy_cursors.size();
+				}
+
+				@Override
+				public Iterator<O> next() {
+					if (!hasNext()) throw new NoSuchElementException();
+					final CompletableFuture<Cursor<O>> cursor = open(_mutable_index++);
+					if (hasNext()) open(_mutable_index); // (start the next query now)
+					return cursor.join().iterator();
+				}				
+			});
+			return _limit.map(l -> Iterators.limit(concat, (int)Math.min(l, Integer.MAX_VALUE))).orElse(concat);
+		}
+
+		@Override
+		public void close() throws Exception {
+			final List<CompletableFuture<Cursor<O>>> opened;
+			synchronized (this) {
+				opened = new ArrayList<CompletableFuture<Cursor<O>>>(_cursors);
+			}
+			opened.stream()
+				.filter(c -> (null != c) && !c.isCompletedExceptionally())
+				.forEach(Lambdas.wrap_consumer_u(c -> c.join().close()));
+		}
+
+		@Override
+		public long count() {
+			// (need all the cursors for this, so open them all at once)
+			final List<CompletableFuture<Cursor<O>>> all = IntStream.range(0, _lazy_cursors.size()).mapToObj(i -> open(i)).collect(Collectors.toList());
+			return applyLimit(all.stream().map(c -> c.join().count()).reduce((a, b) -> a + b).orElse(0L), _limit);
+		}
+		
+	}
+	
+	/** A cursor that performs a k-way merge of a number of cursors that are each sorted by the same fields
+	 *  (sort values are compared in MongoDB type order: missing/null, numbers, strings, objects, arrays, booleans, other)
+	 */
+	public static class MergeCursor<O> extends ICrudService.Cursor<O> {
+		
+		/** User c'tor
+		 * @param cursors - the cursors to merge, each must be sorted by order_by
+		 * @param order_by - the sort fields (dot notation) and directions (1 ascending, -1 descending)
+		 * @param limit - the max number of objects to return across all the cursors
+		 */
+		public MergeCursor(final List<Cursor<O>> cursors, final List<Tuple2<String, Integer>> order_by, final Optional<Long> limit) {
+			this(cursors, order_by, Collections.emptyList(), limit);
+		}
+		
+		/** User c'tor
+		 * @param cursors - the cursors to merge, each must be sorted by order_by
+		 * @param order_by - the sort fields (dot notation) and directions (1 ascending, -1 descending)
+		 * @param strip_fields - fields (dot notation) that were only added to the projection so the results could be merged, removed from the returned objects 
+		 * @param limit - the max number of objects to return across all the cursors
+		 */
+		public MergeCursor(final List<Cursor<O>> cursors, final List<Tuple2<String, Integer>> order_by, final List<String> strip_fields, final Optional<Long> limit) {
 			_cursors = cursors;
+			_limit = limit;
+			_sort_paths = order_by.stream().map(t2 -> JsonPath.compile(t2._1())).collect(Collectors.toList());
+			_sort_directions = order_by.stream().mapToInt(t2 -> (t2._2() < 0) ? -1 : 1).toArray();
+			_strip_fields = strip_fields.stream().map(f -> f.split("[.]")).collect(Collectors.toList());
 		}
 		
 		final protected List<Cursor<O>> _cursors;
+		final protected Optional<Long> _limit;
+		final protected List<JsonPath> _sort_paths;
+		final protected int[] _sort_directions;
+		final protected List<String[]> _strip_fields;
+		
+		/** The next object from one of the cursors, together with its sort values
+		 */
+		protected static class HeapEntry<O> {
+			protected HeapEntry(final O value, final JsonNode[] sort_values, final int source) {
+				this.value = value;
+				this.sort_values = sort_values;
+				this.source = source;
+			}
+			final O value;
+			final JsonNode[] sort_values;
+			final int source;
+		}
 		
 		@Override
 		public Iterator<O> iterator() {
-			return Iterators.concat(_cursors.stream().map(c -> c.iterator()).iterator());
+			final List<Iterator<O>> iterators = _cursors.stream().map(c -> c.iterator()).collect(Collectors.toList());
+			final Comparator<HeapEntry<O>> comparator = (a, b) -> {
+				for (int i = 0; i < _sort_directions.length; ++i) {
+					final int cmp = compareSortValues(a.sort_values[i], b.sort_values[i]);
+					if (0 != cmp) return _sort_directions[i]*cmp;
+				}
+				return Integer.compare(a.source, b.source); // (ties are returned in cursor order)
+			};
+			final PriorityQueue<HeapEntry<O>> heap = new PriorityQueue<HeapEntry<O>>(Math.max(1, iterators.size()), comparator);
+			for (int i = 0; i < iterators.size(); ++i) {
+				if (iterators.get(i).hasNext()) heap.add(toHeapEntry(iterators.get(i).next(), i));
+			}
+			
+			final Iterator<O> merged = new Iterator<O>() {
+				@Override
+				public boolean hasNext() {
+					return !heap.isEmpty();
+				}
+
+				@Override
+				public O next() {
+					final HeapEntry<O> next = heap.poll();
+					if (null == next) throw new NoSuchElementException();
+					final Iterator<O> source = iterators.get(next.source);
+					if (source.hasNext()) heap.add(toHeapEntry(source.next(), next.source));
+					return next.value;
+				}
+			};
+			return _limit.map(l -> Iterators.limit(merged, (int)Math.min(l, Integer.MAX_VALUE))).orElse(merged);
 		}
 
 		@Override
@@ -448,8 +645,81 @@ public class ReadOnlyMultiCrudService<T> implements ICrudService.IReadOnlyCrudSe
 
 		@Override
 		public long count() {
-			return _cursors.stream().map(c -> c.count()).reduce((a, b) -> a + b).orElse(0L);
+			return applyLimit(_cursors.stream().map(c -> c.count()).reduce((a, b) -> a + b).orElse(0L), _limit);
+		}
+		
+		/** Extracts the sort values from an object (and removes any fields that weren't requested)
+		 */
+		@SuppressWarnings("unchecked")
+		protected HeapEntry<O> toHeapEntry(final O value, final int source) {
+			final JsonNode json = (value instanceof JsonNode) ? (JsonNode) value : BeanTemplateUtils.toJson(value);
+			final JsonNode[] sort_values = new JsonNode[_sort_paths.size()];
+			for (int i = 0; i < sort_values.length; ++i) {
+				sort_values[i] = _sort_paths.get(i).getOrNull(json);
+			}
+			if (_strip_fields.isEmpty() || !json.isObject()) {
+				return new HeapEntry<O>(value, sort_values, source);
+			}
+			else { // (copy rather than modifying the object returned by the underlying service)
+				final ObjectNode stripped = ((ObjectNode) json).deepCopy();
+				_strip_fields.forEach(path -> removePath(stripped, path));
+				return new HeapEntry<O>((value instanceof JsonNode) ? (O) stripped : BeanTemplateUtils.from(stripped, (Class<O>) value.getClass()).get(), sort_values, source);
+			}
 		}
 		
+		/** Removes a (dot notation) field from an object, if present
+		 * @param obj - the object to modify
+		 * @param path - the field, split into its components
+		 */
+		protected static void removePath(final ObjectNode obj, final String[] path) {
+			ObjectNode mutable_curr = obj;
+			for (int i = 0; i < path.length - 1; ++i) {
+				final JsonNode j = mutable_curr.get(path[i]);
+				if ((null == j) || !j.isObject()) return; // (not present, or eg an array - leave as is)
+				mutable_curr = (ObjectNode) j;
+			}
+			mutable_curr.remove(path[path.length - 1]);
+		}
+		
+		/** Compares 2 sort values (either can be null if the field is missing)
+		 * @param a
+		 * @param b
+		 * @return
+		 */
+		protected static int compareSortValues(final JsonNode a, final JsonNode b) {
+			final int type_cmp = Integer.compare(getSortType(a), getSortType(b));
+			if (0 != type_cmp) {
+				return type_cmp;
+			}
+			else if (0 == getSortType(a)) { // (both missing/null)
+				return 0;
+			}
+			else if (a.isNumber()) {
+				return (a.canConvertToLong() && b.canConvertToLong() && a.isIntegralNumber() && b.isIntegralNumber())
+						? Long.compare(a.longValue(), b.longValue())
+						: Double.compare(a.doubleValue(), b.doubleValue());
+			}
+			else if (a.isTextual()) {
+				return a.textValue().compareTo(b.textValue());
+			}
+			else if (a.isBoolean()) {
+				return Boolean.compare(a.booleanValue(), b.booleanValue());
+			}
+			else {
+				return a.toString().compareTo(b.toString());
+			}
+		}
+		
+		/** The MongoDB-style ordering of the different JSON types
+		 */
+		protected static int getSortType(final JsonNode n) {
+			if ((null == n) || n.isNull() || n.isMissingNode()) return 0;
+			else if (n.isNumber()) return 1;
+			else if (n.isTextual()) return 2;
+			else if (n.isObject()) return 3;
+			else if (n.isArray()) return 4;
+			else if (n.isBoolean()) return 5;
+			else return 6;
+		}
 	}
 }
@@ -17,40 +17,50 @@
 package com.ikanow.aleph2.core.shared.utils;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
 import java.util.Optional;
 
+import scala.Tuple2;
+
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.Patterns;
+import com.ikanow.aleph2.data_model.utils.Tuples;
 
 /** A handy centralized supply of implementations of IBatchRecord
  * @author Alex
  */
 public class BatchRecordUtils {
-	private static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+	private static final ObjectMapper _smile_mapper = BeanTemplateUtils.configureMapper(Optional.of(new ObjectMapper(new SmileFactory())));
+
+	/** The version of the binary format written by writeRecord (the first byte of every serialized record)
+	 */
+	public static final byte WIRE_FORMAT_VERSION = 1;
 
 	/** Simple implementation of IBatchRecord - supports both JSON and content
 	 * @author jfreydank
 	 */
 	public static class BatchRecord implements IBatchRecord, Serializable {
-		private static final long serialVersionUID = -1059865997758583525L;
+		private static final long serialVersionUID = -1059865997758583526L;
 				
 		/** Serialize
 		 * @param oos
 		 * @throws IOException
 		 */
 		private void writeObject(ObjectOutputStream oos) throws IOException {
-			oos.writeUTF(_json.toString());
-			if (null != _content) {
-				oos.write(_content.toByteArray());
-			}			
+			writeRecord(oos, _json, Optional.ofNullable(_content));
 		}
 		/** Deserialize
 		 * @param ois
@@ -58,14 +68,9 @@ public class BatchRecordUtils {
 		 * @throws IOException
 		 */
 		private void readObject(ObjectInputStream ois) throws JsonProcessingException, IOException {
-			_json = _mapper.readTree(ois.readUTF());
-			int remaining = ois.available();
-			if (remaining > 0) {
-				_content = new ByteArrayOutputStream();
-				byte[] b = new byte[remaining];
-				ois.read(b);
-				_content.write(b);
-			}
+			final Tuple2<JsonNode, Optional<ByteArrayOutputStream>> record = readRecord(ois);
+			_json = record._1();
+			_content = record._2().orElse(null);
 		}
 		
 		/** USer c'tor
@@ -120,14 +125,14 @@ public class BatchRecordUtils {
 	 * @author jfreydank
 	 */
 	public static class JsonBatchRecord implements IBatchRecord, Serializable {
-		private static final long serialVersionUID = 4202750376887312365L;
+		private static final long serialVersionUID = 4202750376887312366L;
 		
 		/** Serialize
 		 * @param oos
 		 * @throws IOException
 		 */
 		private void writeObject(ObjectOutputStream oos) throws IOException {
-			oos.writeUTF(_json.toString());
+			writeRecord(oos, _json, Optional.empty());
 		}
 		/** Deserialize
 		 * @param ois
@@ -135,7 +140,7 @@ public class BatchRecordUtils {
 		 * @throws IOException
 		 */
 		private void readObject(ObjectInputStream ois) throws JsonProcessingException, IOException {
-			_json = _mapper.readTree(ois.readUTF());
+			_json = readRecord(ois)._1(); // (any content is discarded)
 		}
 		
 		/** USer c'tor
@@ -188,6 +193,76 @@ public class BatchRecordUtils {
 	
 	// UTILS
 	
+	/** Writes a batch record in the binary format: 
+	 *  version byte, 4B length + Smile-encoded JSON, content flag byte, (if present) 4B length + raw content
+	 *  (unlike DataOutput.writeUTF, there's no 64KB limit on the JSON)
+	 * @param out - the output to write to (if it's also an OutputStream then the content is written without copying it)
+	 * @param json - the JSON part of the record
+	 * @param content - the optional raw content of the record
+	 * @throws IOException
+	 */
+	public static void writeRecord(final DataOutput out, final JsonNode json, final Optional<ByteArrayOutputStream> content) throws IOException {
+		out.writeByte(WIRE_FORMAT_VERSION);
+		final byte[] json_bytes = _smile_mapper.writeValueAsBytes(json);
+		out.writeInt(json_bytes.length);
+		out.write(json_bytes);
+		out.writeBoolean(content.isPresent());
+		if (content.isPresent()) {
+			out.writeInt(content.get().size());
+			if (out instanceof OutputStream) {
+				content.get().writeTo((OutputStream) out);
+			}
+			else {
+				out.write(content.get().toByteArray());
+			}
+		}
+	}
+	
+	/** Reads a batch record written by writeRecord
+	 *  The JSON is parsed straight from the Smile bytes, and the content buffer is wrapped rather than copied 
+	 * @param in - the input to read from
+	 * @return a tuple of the JSON and the optional raw content
+	 * @throws IOException - including if the record was written with an unsupported version
+	 */
+	public static Tuple2<JsonNode, Optional<ByteArrayOutputStream>> readRecord(final DataInput in) throws IOException {
+		final byte version = in.readByte();
+		if (WIRE_FORMAT_VERSION != version) {
+			throw new StreamCorruptedException(ErrorUtils.get("Unsupported batch record format version {0}, expecting {1}", version, WIRE_FORMAT_VERSION));
+		}
+		final JsonNode json = _smile_mapper.readTree(readBytes(in));
+		final Optional<ByteArrayOutputStream> content = in.readBoolean() 
+				? Optional.of(new WrappedByteArrayOutputStream(readBytes(in)))
+				: Optional.empty();
+		
+		return Tuples._2T(json, content);
+	}
+	
+	/** Reads a length-prefixed byte array
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	protected static byte[] readBytes(final DataInput in) throws IOException {
+		final int length = in.readInt();
+		if (length < 0) {
+			throw new StreamCorruptedException(ErrorUtils.get("Invalid batch record length {0}", length));
+		}
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+	
+	/** A ByteArrayOutputStream that wraps an existing buffer (so deserialized content doesn't need to be copied)
+	 * @author Alex
+	 */
+	protected static class WrappedByteArrayOutputStream extends ByteArrayOutputStream {
+		protected WrappedByteArrayOutputStream(final byte[] bytes) {
+			super(0);
+			buf = bytes;
+			count = bytes.length;
+		}
+	}
+	
 	/** Pattern match to check equality between the different Json containers
 	 * @param json
 	 * @param content
@@ -16,10 +16,18 @@
 package com.ikanow.aleph2.core.shared.utils;
 
 import java.net.URL;
+import java.util.Collection;
 import java.util.ConcurrentModificationException;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -33,6 +41,7 @@ import scala.Tuple2;
 import com.codepoetics.protonpack.StreamUtils;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
@@ -41,14 +50,83 @@ import com.ikanow.aleph2.data_model.utils.Tuples;
 import fj.data.Validation;
 
 public class ClassloaderUtils {
-	protected final static Cache<String, JarClassLoader> _classloader_cache = CacheBuilder.newBuilder().expireAfterAccess(2, TimeUnit.HOURS).build();
+	protected final static int MAX_CME_RETRIES = 12;
+	protected final static long MAX_CME_BACKOFF_MS = 64L;
+	
+	/** A cached classloader, together with a lock that serializes access to the (non thread safe) JCL internals
+	 *  and the classes that have already been successfully loaded from it (which can then be instantiated without the lock)
+	 *  (also the libraries it was built from, so it can be invalidated if any of them change)
+	 */
+	protected static class ClassloaderEntry {
+		protected ClassloaderEntry(final JarClassLoader jcl, final Set<String> libs) {
+			this.jcl = jcl;
+			this.libs = libs;
+		}
+		final JarClassLoader jcl;
+		final Set<String> libs;
+		final Object lock = new Object();
+		final ConcurrentHashMap<String, Class<?>> classes = new ConcurrentHashMap<>();
+	}
+	
+	// (Cache.get only blocks concurrent callers for the same signature, different signatures are built in parallel)
+	protected final static Cache<String, ClassloaderEntry> _classloader_cache = CacheBuilder.newBuilder().expireAfterAccess(2, TimeUnit.HOURS).build();
+	
+	protected final static AtomicLong _classloaders_built = new AtomicLong(0L);
+	protected final static AtomicLong _cache_hits = new AtomicLong(0L);
+	protected final static AtomicLong _build_time_ns = new AtomicLong(0L);
+	protected final static AtomicLong _instances_created = new AtomicLong(0L);
+	protected final static AtomicLong _create_time_ns = new AtomicLong(0L);
+	protected final static AtomicLong _classloaders_invalidated = new AtomicLong(0L);
 	
 	/** Clear the entire cache
 	 */
-	public static synchronized void clearCache() {
+	public static void clearCache() {
 		_classloader_cache.invalidateAll();
 	}
 	
+	/** Clears just the cached classloaders whose classpath includes the designated library (eg because it has been updated)
+	 * @param lib - the library, as passed to getFromCustomClasspath
+	 * @return the number of classloaders invalidated
+	 */
+	public static int invalidateLibrary(final String lib) {
+		final List<String> signatures = _classloader_cache.asMap().entrySet().stream()
+											.filter(kv -> kv.getValue().libs.contains(lib))
+											.map(kv -> kv.getKey())
+											.collect(Collectors.toList());
+		
+		_classloader_cache.invalidateAll(signatures);
+		_classloaders_invalidated.addAndGet(signatures.size());
+		return signatures.size();
+	}
+	
+	/** Returns the number of classloaders built, classloader cache hits, instances created, and the time spent building classloaders and creating instances
+	 * @return a map of metric name to value
+	 */
+	public static Map<String, Long> getMetrics() {
+		return ImmutableMap.<String, Long>builder()
+				.put("classloaders_built", _classloaders_built.get())
+				.put("cache_hits", _cache_hits.get())
+				.put("cache_size", _classloader_cache.size())
+				.put("build_time_ms", TimeUnit.NANOSECONDS.toMillis(_build_time_ns.get()))
+				.put("instances_created", _instances_created.get())
+				.put("create_time_ms", TimeUnit.NANOSECONDS.toMillis(_create_time_ns.get()))
+				.put("classloaders_invalidated", _classloaders_invalidated.get())
+				.build();
+	}
+	
+	/** Builds the classloaders for the designated classpaths in parallel (eg on startup, once the jars have been cached locally)
+	 *  so that subsequent calls to getFromCustomClasspath don't have to wait for the jars to be read
+	 * @param classpaths - a collection of (primary_lib, secondary_libs) pairs, as would be passed to getFromCustomClasspath
+	 * @param executor - the executor in which to build the classloaders
+	 * @return a future that completes when all the classloaders have been built (exceptionally if any of them failed)
+	 */
+	public static CompletableFuture<Void> warmCache(final Collection<Tuple2<Optional<String>, List<String>>> classpaths, final Executor executor) {
+		return CompletableFuture.allOf(classpaths.stream()
+				.map(primary_secondary -> CompletableFuture.runAsync(Lambdas.wrap_runnable_u(() -> 
+						getClassloaderEntry(primary_secondary._1(), primary_secondary._2())), executor))
+				.toArray(CompletableFuture[]::new));
+	}
+	
 	/** Returns an instance of the requested class from the designated classpath (union of the libs below)
 	 * @param primary_lib - optionally, a single library
 	 * @param secondary_libs - optionally a set of other libraries
@@ -72,7 +150,7 @@ public class ClassloaderUtils {
 	 * @param secondary_libs - optionally a set of other libraries
 	 * @return an instance of the desired function
 	 */
-	public synchronized static <R, M> Validation<BasicMessageBean, Tuple2<R, ClassLoader>> getFromCustomClasspath_withClassloader(
+	public static <R, M> Validation<BasicMessageBean, Tuple2<R, ClassLoader>> getFromCustomClasspath_withClassloader(
 													final Class<R> interface_clazz,
 													final String implementation_classname,
 													final Optional<String> primary_lib, 
@@ -82,20 +160,18 @@ public class ClassloaderUtils {
 													)
 	{
 		try {
-			final String cache_signature = getCacheSignature(primary_lib, secondary_libs);
+			final ClassloaderEntry entry = getClassloaderEntry(primary_lib, secondary_libs);
 			
-			final JarClassLoader jcl = _classloader_cache.get(cache_signature, 
-						() -> {
-							final JarClassLoader jcl_int = new JarClassLoader();
-							primary_lib.ifPresent(Lambdas.wrap_consumer_u(pl -> jcl_int.add(new URL(pl))));
-							secondary_libs.forEach(Lambdas.wrap_consumer_u(j -> jcl_int.add(new URL(j)))); 
-							return jcl_int;
-						});
+			final long start = System.nanoTime();
+			final Class<?> cached_clazz = entry.classes.get(implementation_classname);
 			
-			final JclObjectFactory factory = JclObjectFactory.getInstance();
-		
 			@SuppressWarnings("unchecked")		
-			final R ret_val = exceptionWrapper(() -> (R) factory.create(jcl, implementation_classname));
+			final R ret_val = (null != cached_clazz)
+					? (R) cached_clazz.newInstance() // (already loaded, so doesn't need to go near the JCL internals)
+					: createInstance(entry, implementation_classname);
+			
+			_instances_created.incrementAndGet();
+			_create_time_ns.addAndGet(System.nanoTime() - start);
 			
 			if (null == ret_val) {
 				throw new RuntimeException("Unknown error (possibly concurrent modification exception in 2.4)");
@@ -106,7 +182,7 @@ public class ClassloaderUtils {
 						ErrorUtils.get(SharedErrorUtils.ERROR_CLASS_NOT_SUPERCLASS, implementation_classname, interface_clazz) 
 						));				
 			}
-			else return Validation.success(Tuples._2T(ret_val, jcl));
+			else return Validation.success(Tuples._2T(ret_val, entry.jcl));
 		}
 		catch (Throwable e) {
 			return Validation.fail(SharedErrorUtils.buildErrorMessage(handler_for_errors, 
@@ -116,24 +192,71 @@ public class ClassloaderUtils {
 		}
 	}	
 	
+	/** Returns the cached classloader for the designated classpath, building it if needed 
+	 *  (only callers with the same classpath wait on each other)
+	 * @param primary_lib - optionally, a single library
+	 * @param secondary_libs - optionally a set of other libraries
+	 * @return the classloader entry
+	 * @throws ExecutionException
+	 */
+	protected static ClassloaderEntry getClassloaderEntry(final Optional<String> primary_lib, final List<String> secondary_libs) throws ExecutionException {
+		final String cache_signature = getCacheSignature(primary_lib, secondary_libs);
+		
+		final ClassloaderEntry cached = _classloader_cache.getIfPresent(cache_signature);
+		if (null != cached) {
+			_cache_hits.incrementAndGet();
+			return cached;
+		}
+		return _classloader_cache.get(cache_signature, 
+					() -> {
+						final long start = System.nanoTime();
+						final JarClassLoader jcl_int = new JarClassLoader();
+						primary_lib.ifPresent(Lambdas.wrap_consumer_u(pl -> jcl_int.add(new URL(pl))));
+						secondary_libs.forEach(Lambdas.wrap_consumer_u(j -> jcl_int.add(new URL(j)))); 
+						_classloaders_built.incrementAndGet();
+						_build_time_ns.addAndGet(System.nanoTime() - start);
+						return new ClassloaderEntry(jcl_int, 
+								Stream.concat(StreamUtils.stream(primary_lib), secondary_libs.stream()).collect(Collectors.toSet()));
+					});
+	}
+	
+	/** Loads the class via JCL (serialized per classloader, since JCL isn't thread safe) and remembers it so that future instances can be created lock free
+	 * @param entry - the classloader entry
+	 * @param implementation_classname - the class to instantiate
+	 * @return an instance of the class, or null if JCL kept failing with concurrent modification exceptions
+	 */
+	@SuppressWarnings("unchecked")
+	protected static <R> R createInstance(final ClassloaderEntry entry, final String implementation_classname) {
+		synchronized (entry.lock) {
+			final JclObjectFactory factory = JclObjectFactory.getInstance();
+			
+			final R ret_val = exceptionWrapper(() -> (R) factory.create(entry.jcl, implementation_classname));
+			if (null != ret_val) {
+				entry.classes.putIfAbsent(implementation_classname, ret_val.getClass());
+			}
+			return ret_val;
+		}
+	}
+	
 	/** Workaround for JCL 2.4 bug (can't move to 2.7 because of other issues) 
+	 *  (retries with a capped exponential backoff - should now be rare since access to each classloader is serialized)
 	 * @param supplier
 	 * @return
 	 */
 	protected static <R> R exceptionWrapper(Supplier<R> supplier) {
 		return Lambdas.<R>get(Lambdas.wrap_u(() -> {
-			for (int i = 0; i < 1000; ++i) {
+			for (int i = 0; i < MAX_CME_RETRIES; ++i) {
 				try {
 					return supplier.get();
 				}
 				catch (JclException e) { // Jcl but its cause is concurrent modification
 					if (Optional.ofNullable(e.getCause()).filter(ee -> ee instanceof ConcurrentModificationException).isPresent()) {
-						Thread.sleep(1L);
+						Thread.sleep(Math.min(1L << i, MAX_CME_BACKOFF_MS));
 					}
 					else throw e;
 				}
 				catch (ConcurrentModificationException e) {
-					Thread.sleep(1L);
+					Thread.sleep(Math.min(1L << i, MAX_CME_BACKOFF_MS));
 				}
 			}
 			return (R) null;
@@ -16,25 +16,54 @@
 package com.ikanow.aleph2.core.shared.utils;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.EnumSet;
 import java.util.Optional;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.hadoop.fs.CreateFlag;
 import org.apache.hadoop.fs.FileContext;
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Options;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.security.AccessControlException;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.objects.shared.SharedLibraryBean;
+import com.ikanow.aleph2.data_model.utils.Lambdas;
 
 import fj.data.Validation;
 
 /** Utilities for retrieving shared JARs to a local spot from where they can easily be used by a classloader
+ *  The copies are made in the background (a bounded number at a time), and concurrent requests for the same version of a library share the same copy
  * @author acp
  */
 public class JarCacheUtils {
+	public static final int MAX_CONCURRENT_COPIES = 4;
 
+	protected static final ExecutorService _copy_executor = Executors.newFixedThreadPool(MAX_CONCURRENT_COPIES, 
+																new ThreadFactoryBuilder().setNameFormat("jar-cache-%d").setDaemon(true).build());
+	
+	// (the in-flight fetches, keyed on cached jar and library version)
+	protected static final ConcurrentHashMap<String, CompletableFuture<String>> _in_flight = new ConcurrentHashMap<>();
+	
+	protected static final AtomicLong _num_copies = new AtomicLong(0L);
+	
 	/** Moves a shared JAR into a local spot (if required)
 	 * @param library_bean
 	 * @param fs
@@ -45,44 +74,138 @@ public class JarCacheUtils {
 			final SharedLibraryBean library_bean, final IStorageService fs,
 			final String handler_for_errors, final M msg_for_errors)
 	{		
-		try {
-			final FileContext dfs = fs.getUnderlyingPlatformDriver(FileContext.class, Optional.empty()).get();
-			final FileContext lfs = fs.getUnderlyingPlatformDriver(FileContext.class, IStorageService.LOCAL_FS).get();
+		final String fetch_key = getFetchKey(local_cached_jar_dir, library_bean);
+		
+		final CompletableFuture<String> fetch = _in_flight.computeIfAbsent(fetch_key, __ -> 
+				CompletableFuture.supplyAsync(Lambdas.wrap_u(() -> fetchJar(local_cached_jar_dir, library_bean, fs)), _copy_executor));
+		
+		fetch.whenComplete((__, ___) -> _in_flight.remove(fetch_key, fetch));
+		
+		// (errors are built per caller, since the fetch can be shared)
+		return fetch.handle((cached_jar, t) -> {
+			if (null == t) {
+				return Validation.<BasicMessageBean, String>success(cached_jar);
+			}
+			final Throwable e = unwrap(t);
+			return Validation.<BasicMessageBean, String>fail
+					(SharedErrorUtils.buildErrorMessage(handler_for_errors, 
+							msg_for_errors, 
+							SharedErrorUtils.getLongForm(
+									((e instanceof FileNotFoundException) || (e instanceof AccessControlException)) 
+										? SharedErrorUtils.SHARED_LIBRARY_NAME_NOT_FOUND 
+										: SharedErrorUtils.ERROR_CACHING_SHARED_LIB, 
+									e, library_bean.path_name()) 
+							));
+		});
+	}
+	
+	/** Copies the shared JAR into the local cache if it's not there or is out of date - runs in the copy executor
+	 * @param local_cached_jar_dir
+	 * @param library_bean
+	 * @param fs
+	 * @return the fully qualified path of the cached JAR
+	 * @throws Exception
+	 */
+	protected static String fetchJar(final String local_cached_jar_dir, final SharedLibraryBean library_bean, final IStorageService fs) throws Exception {
+		final FileContext dfs = fs.getUnderlyingPlatformDriver(FileContext.class, Optional.empty()).get();
+		final FileContext lfs = fs.getUnderlyingPlatformDriver(FileContext.class, IStorageService.LOCAL_FS).get();
+		
+		final Path cached_jar_file = lfs.makeQualified(new Path(local_cached_jar_dir + "/" + buildCachedJarName(library_bean))); 
+		final Path original_jar_file = dfs.makeQualified(new Path(library_bean.path_name()));
+		
+		final FileStatus file_status = dfs.getFileStatus(original_jar_file); // (this will exception out if it doesn't exist, as it should)
+		
+		final Optional<FileStatus> local_file_status = getFileStatus(lfs, cached_jar_file);
+		
+		if (!local_file_status.isPresent()) {
+			// 1) if the local version doesn't exist then just copy the distributed file across
+			// (note: don't need to do anything with the classloader cache here since the file doesn't exist so can't have a cache key)
 			
-			final Path cached_jar_file = lfs.makeQualified(new Path(local_cached_jar_dir + "/" + buildCachedJarName(library_bean))); 
-			final Path original_jar_file = dfs.makeQualified(new Path(library_bean.path_name()));
+			copyWithChecksum(dfs, original_jar_file, file_status, lfs, cached_jar_file);
+		}
+		else if (file_status.getModificationTime() > local_file_status.get().getModificationTime()) {
+			// 2) if the local version exists but is out of date then overwrite it
 			
-			final FileStatus file_status = dfs.getFileStatus(original_jar_file); // (this will exception out if it doesn't exist, as it should)
+			copyWithChecksum(dfs, original_jar_file, file_status, lfs, cached_jar_file);
 			
-			try {
-				final FileStatus local_file_status = lfs.getFileStatus(cached_jar_file); // (this will exception in to case 2 if it doesn't exist)
-				
-				// if the local version exists then overwrite it
-				
-				if (file_status.getModificationTime() > local_file_status.getModificationTime()) {
-					// (it gets kinda complicated here so just invalidate the entire classloader cache..)
-					// TODO (ALEPH-12): add a coverage test for this
-					ClassloaderUtils.clearCache();
-					
-					lfs.util().copy(original_jar_file, cached_jar_file, false, true);
-				}
+			// Now only the classloaders that include this jar need to be rebuilt
+			// (after the copy, so they can't get rebuilt from the old version)
+			ClassloaderUtils.invalidateLibrary(cached_jar_file.toString());
+		}
+		return cached_jar_file.toString();
+	}
+	
+	/** Copies a file into a temp file alongside the destination, checks that the size and checksum match what was read, then moves it into place
+	 *  (so the cached jar is never visible half-written)
+	 * @param dfs - the file context of the original
+	 * @param from - the original
+	 * @param from_status - the status of the original
+	 * @param lfs - the file context of the cache
+	 * @param to - the cached file
+	 * @throws Exception
+	 */
+	protected static void copyWithChecksum(final FileContext dfs, final Path from, final FileStatus from_status, final FileContext lfs, final Path to) throws Exception {
+		final Path tmp = new Path(to.getParent(), "." + to.getName() + "." + UUID.randomUUID().toString() + ".tmp");
+		try {
+			final MessageDigest read_digest = MessageDigest.getInstance("MD5");
+			final long num_bytes;
+			try (InputStream in = new DigestInputStream(dfs.open(from), read_digest);
+					OutputStream out = lfs.create(tmp, EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE), Options.CreateOpts.createParent()))
+			{
+				num_bytes = IOUtils.copyLarge(in, out);
 			}
-			catch (FileNotFoundException f) {
-				
-				// 2) if the local version doesn't exist then just copy the distributed file across
-				// (note: don't need to do anything with the classloader cache here since the file doesn't exist so can't have a cache key)
-				
-				lfs.util().copy(original_jar_file, cached_jar_file);
+			if (num_bytes != from_status.getLen()) {
+				throw new IOException(SharedErrorUtils.get(SharedErrorUtils.CACHED_JAR_SIZE_MISMATCH, num_bytes, from, from_status.getLen()));
 			}
-			return CompletableFuture.completedFuture(Validation.success(cached_jar_file.toString()));
-			
-		} catch (Throwable e) {
-			return CompletableFuture.completedFuture(Validation.fail
-					(SharedErrorUtils.buildErrorMessage(handler_for_errors, 
-							msg_for_errors, 
-							SharedErrorUtils.getLongForm(SharedErrorUtils.SHARED_LIBRARY_NAME_NOT_FOUND, e, library_bean.path_name()) 
-							)));
+			final MessageDigest written_digest = MessageDigest.getInstance("MD5");
+			try (InputStream in = new DigestInputStream(lfs.open(tmp), written_digest)) {
+				IOUtils.copyLarge(in, NullOutputStream.NULL_OUTPUT_STREAM);
+			}
+			if (!MessageDigest.isEqual(read_digest.digest(), written_digest.digest())) {
+				throw new IOException(SharedErrorUtils.get(SharedErrorUtils.CACHED_JAR_CHECKSUM_MISMATCH, from));
+			}
+			lfs.rename(tmp, to, Options.Rename.OVERWRITE);
+			_num_copies.incrementAndGet();
+		}
+		finally {
+			try { lfs.delete(tmp, false); } catch (Exception e) {} // (only exists if something went wrong)
+		}
+	}
+	
+	/** Returns the status of the file, or empty if it doesn't exist
+	 * @param fc
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	protected static Optional<FileStatus> getFileStatus(final FileContext fc, final Path path) throws IOException {
+		try {
+			return Optional.of(fc.getFileStatus(path));
 		}
+		catch (FileNotFoundException e) {
+			return Optional.empty();
+		}
+	}
+	
+	/** Strips off the wrappers added by the future and Lambdas.wrap_u
+	 * @param t
+	 * @return
+	 */
+	protected static Throwable unwrap(final Throwable t) {
+		Throwable e = t;
+		while (((e instanceof CompletionException) || (RuntimeException.class == e.getClass())) && (null != e.getCause())) {
+			e = e.getCause();
+		}
+		return e;
+	}
+	
+	/** Returns the key used to share in-flight fetches: the cached jar plus the version of the library
+	 * @param local_cached_jar_dir
+	 * @param library_bean
+	 * @return
+	 */
+	protected static String getFetchKey(final String local_cached_jar_dir, final SharedLibraryBean library_bean) {
+		return local_cached_jar_dir + "/" + buildCachedJarName(library_bean) + ":" + Optional.ofNullable(library_bean.modified()).map(d -> d.getTime()).orElse(0L);
 	}
 	
 	/** Just creates a cached name as <lib bean id>.cache.jar
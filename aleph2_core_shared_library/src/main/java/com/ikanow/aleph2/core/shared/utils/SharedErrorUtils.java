@@ -24,4 +24,7 @@ public class SharedErrorUtils extends com.ikanow.aleph2.data_model.utils.ErrorUt
 	public static final String ERROR_LOADING_CLASS = "Error loading class {1}: {0}";
 	public static final String ERROR_CLASS_NOT_SUPERCLASS = "Error: class {0} is not an implementation of {1}: this may be because you have included eg aleph2_data_model in your class - you should not include any core/contrib JARs in there.";
 	public static final String ERROR_CACHING_SHARED_LIBS = "Misc error caching shared libs for bucket {1}: {0}";
+	public static final String ERROR_CACHING_SHARED_LIB = "Error caching shared library {1}: {0}";
+	public static final String CACHED_JAR_SIZE_MISMATCH = "Copied {0} bytes from {1}, expected {2}";
+	public static final String CACHED_JAR_CHECKSUM_MISMATCH = "Checksum of cached copy of {0} doesn't match the bytes read";
 }
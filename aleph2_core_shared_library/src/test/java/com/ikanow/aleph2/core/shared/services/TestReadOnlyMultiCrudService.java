@@ -15,18 +15,42 @@
  *******************************************************************************/
 package com.ikanow.aleph2.core.shared.services;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 import org.junit.Test;
 
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.MockManagementCrudService;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.FutureUtils;
+import com.ikanow.aleph2.data_model.utils.FutureUtils.ManagementFuture;
+import com.ikanow.aleph2.data_model.utils.Tuples;
 
 public class TestReadOnlyMultiCrudService {
+	protected final static ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+
 
 	//TODO: test interception
 	
@@ -150,4 +174,174 @@ public class TestReadOnlyMultiCrudService {
 		catch (Exception e) {}
 
 	}
+	
+	/** Mock CRUD service that supports orderBy and field lists (on top level fields) and limit, used as the oracle
+	 */
+	public static class SortingMockCrudService extends MockManagementCrudService<JsonNode> {
+		public final AtomicInteger queries = new AtomicInteger(0);
+		
+		public SortingMockCrudService(final List<JsonNode> values) {
+			setMockValues(values);
+		}
+		
+		@Override
+		public ManagementFuture<ICrudService.Cursor<JsonNode>> getObjectsBySpec(final QueryComponent<JsonNode> spec) {
+			return getObjectsBySpec(spec, Arrays.asList(), false);
+		}
+
+		@Override
+		public ManagementFuture<ICrudService.Cursor<JsonNode>> getObjectsBySpec(final QueryComponent<JsonNode> spec, final List<String> field_list, final boolean include) {
+			queries.incrementAndGet();
+			final List<JsonNode> results = _mutable_values.stream()
+					.sorted(getOracleComparator(Optional.ofNullable(spec.getOrderBy()).orElse(Arrays.asList())))
+					.limit(Optional.ofNullable(spec.getLimit()).filter(l -> l > 0).orElse(Long.MAX_VALUE))
+					.map(j -> {
+						if (field_list.isEmpty()) return j;
+						final ObjectNode copy = (ObjectNode) j.deepCopy();
+						if (include) copy.retain(field_list); else copy.remove(field_list);
+						return (JsonNode) copy;
+					})
+					.collect(Collectors.toList());
+			
+			return FutureUtils.createManagementFuture(CompletableFuture.completedFuture(new ICrudService.Cursor<JsonNode>() {
+				@Override
+				public Iterator<JsonNode> iterator() {
+					return results.iterator();
+				}
+				@Override
+				public void close() throws Exception {
+				}
+				@Override
+				public long count() {
+					return results.size();
+				}
+			}));
+		}
+		
+		/** (doesn't apply the limit, so the multi service has to)
+		 */
+		@Override
+		public ManagementFuture<Long> countObjectsBySpec(final QueryComponent<JsonNode> spec) {
+			return FutureUtils.createManagementFuture(CompletableFuture.completedFuture((long)_mutable_values.size()));
+		}
+		
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public static Comparator<JsonNode> getOracleComparator(final List<Tuple2<String, Integer>> order_by) {
+			return order_by.stream()
+					.<Comparator<JsonNode>>map(t2 -> {
+						final Comparator<JsonNode> cmp = Comparator.comparing(
+								(JsonNode j) -> (Comparable) Optional.ofNullable(j.get(t2._1())).map(v -> v.isNumber() ? (Comparable) v.longValue() : v.asText()).orElse(null), 
+								Comparator.nullsFirst(Comparator.naturalOrder()));
+						return (t2._2() < 0) ? cmp.reversed() : cmp;
+					})
+					.reduce((a, b) -> a.thenComparing(b))
+					.orElse((a, b) -> 0);
+		}
+	}
+	
+	protected static List<JsonNode> createRandomData(final Random random, final int num_objects) {
+		return IntStream.range(0, num_objects).<JsonNode>mapToObj(i -> {
+			final ObjectNode o = _mapper.createObjectNode();
+			o.put("id", i);
+			if (random.nextInt(10) > 0) o.put("num", random.nextInt(20) - 10); // (some missing, lots of duplicates)
+			o.put("str", Character.toString((char)('a' + random.nextInt(5))) + random.nextInt(1000));
+			return o;
+		})
+		.collect(Collectors.toList());
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_sortedMerge() {
+		final Random random = new Random(12345L);
+		
+		for (int test = 0; test < 20; ++test) {
+			final List<JsonNode> data = createRandomData(random, random.nextInt(300));
+			
+			// Oracle: a single service containing everything
+			final SortingMockCrudService oracle = new SortingMockCrudService(data);
+			
+			// Randomly split the data between some services (some can be empty)
+			final int num_services = 1 + random.nextInt(8);
+			final List<List<JsonNode>> partitions = IntStream.range(0, num_services).mapToObj(__ -> new ArrayList<JsonNode>()).collect(Collectors.toList());
+			data.forEach(o -> partitions.get(random.nextInt(num_services)).add(o));
+			final ReadOnlyMultiCrudService<JsonNode> multi = ReadOnlyMultiCrudService.from(
+					partitions.stream().map(p -> new SortingMockCrudService(p)).toArray(ICrudService[]::new));
+			
+			final List<List<Tuple2<String, Integer>>> sorts = Arrays.asList(
+					Arrays.asList(Tuples._2T("num", 1), Tuples._2T("id", 1)),
+					Arrays.asList(Tuples._2T("num", -1), Tuples._2T("id", 1)),
+					Arrays.asList(Tuples._2T("str", -1), Tuples._2T("num", 1), Tuples._2T("id", -1)),
+					Arrays.asList(Tuples._2T("id", 1))
+					);
+			for (List<Tuple2<String, Integer>> sort: sorts) {
+				for (long limit: Arrays.asList(0L, 1L, 7L, 50L, 1000L)) {
+					final QueryComponent<JsonNode> query = CrudUtils.allOf().orderBy(sort.toArray(new Tuple2[0])).limit(limit);
+					
+					final List<JsonNode> expected = StreamSupport.stream(oracle.getObjectsBySpec(query).join().spliterator(), false).collect(Collectors.toList());
+					final ICrudService.Cursor<JsonNode> cursor = multi.getObjectsBySpec(query).join();
+					final List<JsonNode> results = StreamSupport.stream(cursor.spliterator(), false).collect(Collectors.toList());
+					
+					assertEquals("sort=" + sort + " limit=" + limit, expected, results);
+					assertEquals(expected.size(), cursor.count());
+					assertEquals((long)expected.size(), multi.countObjectsBySpec(query).join().longValue());
+				}
+			}
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_sortedMergeProjection() {
+		final Random random = new Random(23456L);
+		final List<JsonNode> data = createRandomData(random, 100);
+		final SortingMockCrudService oracle = new SortingMockCrudService(data);
+		final ReadOnlyMultiCrudService<JsonNode> multi = ReadOnlyMultiCrudService.from(
+				new SortingMockCrudService(data.subList(0, 40)), new SortingMockCrudService(data.subList(40, 100)));
+		
+		final QueryComponent<JsonNode> query = CrudUtils.allOf().orderBy(Tuples._2T("num", 1), Tuples._2T("id", 1));
+		
+		// The sort fields are needed to merge, but only the requested fields are returned
+		for (Tuple2<List<String>, Boolean> fields: Arrays.asList(
+				Tuples._2T(Arrays.asList("str"), true),
+				Tuples._2T(Arrays.asList("num", "str"), true),
+				Tuples._2T(Arrays.asList("num"), false),
+				Tuples._2T(Arrays.asList("num", "id"), false)))
+		{
+			final List<JsonNode> expected = StreamSupport.stream(oracle.getObjectsBySpec(query, fields._1(), fields._2()).join().spliterator(), false).collect(Collectors.toList());
+			final List<JsonNode> results = StreamSupport.stream(multi.getObjectsBySpec(query, fields._1(), fields._2()).join().spliterator(), false).collect(Collectors.toList());
+			
+			assertEquals("fields=" + fields, expected, results);
+		}
+	}
+	
+	@Test
+	public void test_lazyConcatenation() throws Exception {
+		final Random random = new Random(54321L);
+		final List<SortingMockCrudService> services = IntStream.range(0, 5).mapToObj(__ -> new SortingMockCrudService(createRandomData(random, 10))).collect(Collectors.toList());
+		final ReadOnlyMultiCrudService<JsonNode> multi = ReadOnlyMultiCrudService.from(services.toArray(new SortingMockCrudService[0]));
+		
+		// Limit satisfied by the first service: only it and the prefetched next one get queried
+		{
+			final ICrudService.Cursor<JsonNode> cursor = multi.getObjectsBySpec(CrudUtils.allOf().limit(5)).join();
+			assertEquals(5, StreamSupport.stream(cursor.spliterator(), false).count());
+			assertEquals(2, services.stream().mapToInt(s -> s.queries.get()).sum());
+			cursor.close();
+		}
+		// No limit: everything gets queried once
+		{
+			services.forEach(s -> s.queries.set(0));
+			final ICrudService.Cursor<JsonNode> cursor = multi.getObjectsBySpec(CrudUtils.allOf()).join();
+			assertEquals(50, StreamSupport.stream(cursor.spliterator(), false).count());
+			assertEquals(50L, cursor.count());
+			assertTrue(services.stream().allMatch(s -> 1 == s.queries.get()));
+		}
+		// Count with a limit
+		{
+			final ICrudService.Cursor<JsonNode> cursor = multi.getObjectsBySpec(CrudUtils.allOf().limit(23)).join();
+			assertEquals(23L, cursor.count());
+			assertEquals(23, StreamSupport.stream(cursor.spliterator(), false).count());
+			assertEquals(23L, multi.countObjectsBySpec(CrudUtils.allOf().limit(23)).join().longValue());
+		}
+	}
 }
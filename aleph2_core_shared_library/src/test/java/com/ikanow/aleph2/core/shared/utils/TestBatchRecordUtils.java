@@ -17,17 +17,33 @@
 package com.ikanow.aleph2.core.shared.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.apache.commons.lang.SerializationUtils;
 import org.junit.Test;
 
 import scala.Tuple2;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.ikanow.aleph2.data_model.interfaces.data_analytics.IBatchRecord;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
@@ -90,4 +106,175 @@ public class TestBatchRecordUtils {
 		}
 	}
 	
+	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+	
+	protected static byte[] write(final JsonNode json, final Optional<ByteArrayOutputStream> content) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			BatchRecordUtils.writeRecord(out, json, content);
+		}
+		return bytes.toByteArray();
+	}
+	
+	protected static Tuple2<JsonNode, Optional<ByteArrayOutputStream>> read(final byte[] bytes) throws IOException {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+			final Tuple2<JsonNode, Optional<ByteArrayOutputStream>> ret_val = BatchRecordUtils.readRecord(in);
+			assertEquals("Read all the bytes", 0, in.available());
+			return ret_val;
+		}
+	}
+	
+	protected static ByteArrayOutputStream content(final byte[] bytes) throws IOException {
+		final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		content.write(bytes);
+		return content;
+	}
+	
+	@Test
+	public void check_largeRecords() throws IOException {
+		// (>64KB of modified UTF-8, including multi-byte and supplementary characters)
+		final String big_string = IntStream.range(0, 40000).mapToObj(i -> (0 == (i % 3)) ? "\u00e9" : (1 == (i % 3)) ? "x" : new String(Character.toChars(0x1F600))).collect(Collectors.joining());
+		final ObjectNode test_json = _mapper.createObjectNode();
+		test_json.put("big", big_string);
+		test_json.putArray("array").add(1).add(2.5).add(true).addNull();
+		
+		final byte[] big_content = new byte[3*1024*1024];
+		new Random(1L).nextBytes(big_content);
+		
+		// The old format can't handle this:
+		try {
+			new DataOutputStream(new ByteArrayOutputStream()).writeUTF(test_json.toString());
+			fail("Should have thrown");
+		}
+		catch (UTFDataFormatException e) {}
+		
+		// Java serialization
+		{
+			final IBatchRecord test_case = new BatchRecordUtils.BatchRecord(test_json, content(big_content));
+			final IBatchRecord phase2 = (IBatchRecord)SerializationUtils.deserialize(SerializationUtils.serialize((Serializable) test_case));
+			
+			assertEquals(test_json, phase2.getJson());
+			assertTrue(Arrays.equals(big_content, phase2.getContent().get().toByteArray()));
+		}
+		{
+			final IBatchRecord test_case = new BatchRecordUtils.JsonBatchRecord(test_json);
+			final IBatchRecord phase2 = (IBatchRecord)SerializationUtils.deserialize(SerializationUtils.serialize((Serializable) test_case));
+			
+			assertEquals(test_json, phase2.getJson());
+			assertFalse(phase2.getContent().isPresent());
+		}
+		// Direct
+		{
+			final Tuple2<JsonNode, Optional<ByteArrayOutputStream>> phase2 = read(write(test_json, Optional.of(content(big_content))));
+			assertEquals(test_json, phase2._1());
+			assertTrue(Arrays.equals(big_content, phase2._2().get().toByteArray()));
+			
+			// (content is wrapped, but still behaves like a normal output stream)
+			phase2._2().get().write(1);
+			assertEquals(big_content.length + 1, phase2._2().get().size());
+		}
+		// Empty content is different to no content
+		{
+			final Tuple2<JsonNode, Optional<ByteArrayOutputStream>> phase2 = read(write(test_json, Optional.of(new ByteArrayOutputStream())));
+			assertEquals(0, phase2._2().get().size());
+		}
+	}
+	
+	@Test
+	public void check_versionByte() throws IOException {
+		final ObjectNode test_json = _mapper.createObjectNode().put("test", "test");
+		final byte[] bytes = write(test_json, Optional.empty());
+		assertEquals(BatchRecordUtils.WIRE_FORMAT_VERSION, bytes[0]);
+		
+		bytes[0] = BatchRecordUtils.WIRE_FORMAT_VERSION + 1;
+		try {
+			read(bytes);
+			fail("Should have thrown");
+		}
+		catch (StreamCorruptedException e) {}
+	}
+	
+	/** Generates a random JSON tree
+	 */
+	protected static JsonNode randomJson(final Random random, final int depth) {
+		final int type = random.nextInt(depth > 3 ? 6 : 8);
+		switch (type) {
+			case 0: return _mapper.getNodeFactory().nullNode();
+			case 1: return _mapper.getNodeFactory().booleanNode(random.nextBoolean());
+			case 2: return _mapper.getNodeFactory().numberNode(random.nextLong());
+			case 3: return _mapper.getNodeFactory().numberNode(random.nextDouble()*Math.pow(10, random.nextInt(20) - 10));
+			case 4: return _mapper.getNodeFactory().numberNode(random.nextInt());
+			case 5: return _mapper.getNodeFactory().textNode(randomString(random));
+			case 6: {
+				final ArrayNode array = _mapper.createArrayNode();
+				IntStream.range(0, random.nextInt(10)).forEach(__ -> array.add(randomJson(random, depth + 1)));
+				return array;
+			}
+			default: {
+				final ObjectNode obj = _mapper.createObjectNode();
+				IntStream.range(0, random.nextInt(10)).forEach(__ -> obj.set(randomString(random), randomJson(random, depth + 1)));
+				return obj;
+			}
+		}
+	}
+	
+	/** Generates a random string (from all of unicode, excluding unpaired surrogates)
+	 */
+	protected static String randomString(final Random random) {
+		final StringBuilder sb = new StringBuilder();
+		IntStream.range(0, random.nextInt(random.nextBoolean() ? 16 : 1024)).forEach(__ -> {
+			final int code_point = random.nextBoolean() ? random.nextInt(128) : random.nextInt(Character.MAX_CODE_POINT + 1);
+			if ((Character.getType(code_point) != Character.SURROGATE)) sb.appendCodePoint(code_point);
+		});
+		return sb.toString();
+	}
+	
+	@Test
+	public void check_randomRoundTrips() throws IOException {
+		for (long seed: Arrays.asList(0L, 1L, 42L, 1450000000000L)) {
+			final Random random = new Random(seed);
+			
+			for (int i = 0; i < 250; ++i) {
+				final JsonNode json = _mapper.createObjectNode().set("root", randomJson(random, 0));
+				final Optional<ByteArrayOutputStream> content = random.nextBoolean() 
+						? Optional.empty()
+						: Optional.of(content(randomString(random).getBytes("UTF-8")));
+				
+				final Tuple2<JsonNode, Optional<ByteArrayOutputStream>> phase2 = read(write(json, content));
+				
+				final String msg = "seed=" + seed + " i=" + i;
+				assertEquals(msg, json, phase2._1());
+				assertEquals(msg, content.isPresent(), phase2._2().isPresent());
+				content.ifPresent(c -> assertTrue(msg, Arrays.equals(c.toByteArray(), phase2._2().get().toByteArray())));
+			}
+		}
+	}
+	
+	@Test
+	public void check_recordStream() throws IOException {
+		// Lots of records written back-to-back to one stream (as in a serialized batch) read back in order
+		final Random random = new Random(0L);
+		final List<JsonNode> records = IntStream.range(0, 1000)
+				.mapToObj(i -> {
+					final ObjectNode obj = _mapper.createObjectNode();
+					obj.put("_id", "id" + i).put("timestamp", 1450000000000L + i).put("value", random.nextDouble()).put("text", randomString(random));
+					obj.putArray("tags").add("tag" + (i % 10)).add("tag" + (i % 7));
+					obj.putObject("nested").put("a", i).put("b", "b" + i);
+					return (JsonNode) obj;
+				})
+				.collect(Collectors.toList());
+		
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			for (JsonNode json: records) BatchRecordUtils.writeRecord(out, json, Optional.empty());
+		}
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			for (JsonNode json: records) {
+				final Tuple2<JsonNode, Optional<ByteArrayOutputStream>> record = BatchRecordUtils.readRecord(in);
+				assertEquals(json, record._1());
+				assertFalse(record._2().isPresent());
+			}
+			assertEquals(-1, in.read());
+		}
+	}
 }
@@ -27,12 +27,23 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import com.ikanow.aleph2.data_model.interfaces.data_import.IHarvestTechnologyModule;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
 
 import fj.data.Validation;
 
@@ -133,6 +144,76 @@ public class TestClassloaderUtils {
 		}
 	}
 	
+	@Test
+	public void test_classLoading_concurrent() throws Exception {
+		
+		final String pathname = System.getProperty("user.dir") + "/misc_test_assets/simple-harvest-example.jar";
+		final Path path = new Path(pathname);
+		final Path path2 = FileContext.getLocalFSFileContext().makeQualified(path);
+		
+		ClassloaderUtils.clearCache();
+		final Map<String, Long> metrics_before = ClassloaderUtils.getMetrics();
+		
+		// Warm the cache:
+		
+		ClassloaderUtils.warmCache(Arrays.asList(Tuples._2T(Optional.of(path2.toString()), Collections.<String>emptyList())), ForkJoinPool.commonPool()).get();
+		assertEquals(metrics_before.get("classloaders_built") + 1L, ClassloaderUtils.getMetrics().get("classloaders_built").longValue());
+		
+		// Lots of concurrent instantiations from the same classpath, should all succeed from the one classloader
+		
+		final int num_threads = 8;
+		final int num_per_thread = 50;
+		final ExecutorService executor = Executors.newFixedThreadPool(num_threads);
+		final List<Future<List<Validation<BasicMessageBean, IHarvestTechnologyModule>>>> futures = IntStream.range(0, num_threads).boxed()
+				.map(__ -> executor.submit(() -> IntStream.range(0, num_per_thread).boxed()
+						.map(___ -> ClassloaderUtils.getFromCustomClasspath(IHarvestTechnologyModule.class, 
+								"com.ikanow.aleph2.test.example.ExampleHarvestTechnology",
+								Optional.of(path2.toString()),
+								Collections.<String>emptyList(), "test1", new TestMessageBean()))
+						.collect(Collectors.toList())))
+				.collect(Collectors.toList());
+		
+		final Set<ClassLoader> classloaders = new HashSet<>();
+		for (Future<List<Validation<BasicMessageBean, IHarvestTechnologyModule>>> f: futures) {
+			for (Validation<BasicMessageBean, IHarvestTechnologyModule> ret_val: f.get()) {
+				assertTrue("Failed: " + (ret_val.isFail() ? ret_val.fail().message() : ""), ret_val.isSuccess());
+				classloaders.add(ret_val.success().getClass().getClassLoader());
+			}
+		}
+		executor.shutdown();
+		
+		assertEquals(1, classloaders.size());
+		final Map<String, Long> metrics_after = ClassloaderUtils.getMetrics();
+		assertEquals(metrics_before.get("classloaders_built") + 1L, metrics_after.get("classloaders_built").longValue());
+		assertEquals(metrics_before.get("cache_hits") + num_threads*num_per_thread, metrics_after.get("cache_hits").longValue());
+		assertEquals(metrics_before.get("instances_created") + num_threads*num_per_thread, metrics_after.get("instances_created").longValue());
+	}
+	
+	@Test
+	public void test_invalidateLibrary() throws Exception {
+		final String lib1 = FileContext.getLocalFSFileContext().makeQualified(new Path(System.getProperty("user.dir") + "/misc_test_assets/simple-harvest-example.jar")).toString();
+		final String lib2 = FileContext.getLocalFSFileContext().makeQualified(new Path(System.getProperty("user.dir") + "/misc_test_assets/simple-harvest-example2.jar")).toString();
+		
+		ClassloaderUtils.clearCache();
+		ClassloaderUtils.warmCache(Arrays.asList(
+				Tuples._2T(Optional.of(lib1), Collections.<String>emptyList()),
+				Tuples._2T(Optional.of(lib2), Collections.<String>emptyList()),
+				Tuples._2T(Optional.of(lib2), Arrays.asList(lib1))
+				), 
+				ForkJoinPool.commonPool()).get();
+		assertEquals(3L, ClassloaderUtils._classloader_cache.size());
+		final long invalidated_before = ClassloaderUtils.getMetrics().get("classloaders_invalidated");
+		
+		// Only the classloaders that include lib1 are removed
+		
+		assertEquals(2, ClassloaderUtils.invalidateLibrary(lib1));
+		assertEquals(1L, ClassloaderUtils._classloader_cache.size());
+		assertTrue(null != ClassloaderUtils._classloader_cache.getIfPresent(ClassloaderUtils.getCacheSignature(Optional.of(lib2), Collections.emptyList())));
+		assertEquals(invalidated_before + 2L, ClassloaderUtils.getMetrics().get("classloaders_invalidated").longValue());
+		
+		assertEquals(0, ClassloaderUtils.invalidateLibrary(lib1));
+	}
+	
 	@Test
 	public void test_exceptionHandling() throws UnsupportedFileSystemException, InterruptedException {
 		
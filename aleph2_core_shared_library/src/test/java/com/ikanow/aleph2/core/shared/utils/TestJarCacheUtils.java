@@ -20,10 +20,21 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.CreateFlag;
@@ -41,6 +52,7 @@ import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
 import com.ikanow.aleph2.data_model.objects.shared.SharedLibraryBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
 
 import fj.data.Validation;
 
@@ -233,5 +245,80 @@ public class TestJarCacheUtils {
 		assertEquals(error.source(), "test1");
 		assertEquals(error.success(), false);
 		
-	}	
+	}
+	
+	@Test
+	public void test_concurrentRequestsShareCopy() throws Exception {
+		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator;
+		final File remote_file = new File(temp_dir + "test_concurrent_" + UUID.randomUUID().toString() + ".jar");
+		final byte[] remote_bytes = new byte[4*1024*1024];
+		new Random(0L).nextBytes(remote_bytes);
+		Files.write(remote_file.toPath(), remote_bytes);
+		
+		final SharedLibraryBean library_bean = BeanTemplateUtils.build(SharedLibraryBean.class)
+				.with(SharedLibraryBean::path_name, remote_file.toString())
+				.with(SharedLibraryBean::_id, "test_concurrent_" + UUID.randomUUID().toString())
+				.with(SharedLibraryBean::modified, new Date())
+				.done().get();
+		
+		final long copies_before = JarCacheUtils._num_copies.get();
+		
+		final List<CompletableFuture<Validation<BasicMessageBean, String>>> futures = IntStream.range(0, 20).boxed()
+				.map(__ -> JarCacheUtils.getCachedJar(_globals.local_cached_jar_dir(), library_bean, _mock_hdfs, "test1", new TestMessageBean()))
+				.collect(Collectors.toList());
+		
+		final Set<String> cached_paths = futures.stream().map(f -> f.join()).map(v -> v.success()).collect(Collectors.toSet());
+		assertEquals(1, cached_paths.size());
+		assertEquals(copies_before + 1L, JarCacheUtils._num_copies.get());
+		
+		final File cached_file = new File(new Path(cached_paths.iterator().next()).toUri().getPath());
+		assertTrue(Arrays.equals(remote_bytes, Files.readAllBytes(cached_file.toPath())));
+		
+		// (no temp files left behind)
+		assertEquals(0, cached_file.getParentFile().listFiles((dir, name) -> name.startsWith("." + cached_file.getName()) && name.endsWith(".tmp")).length);
+		
+		cached_file.delete();
+		remote_file.delete();
+	}
+	
+	@Test
+	public void test_updatedJarInvalidatesClassloaders() throws Exception {
+		final String temp_dir = System.getProperty("java.io.tmpdir") + File.separator;
+		final File remote_file = new File(temp_dir + "test_invalidate_" + UUID.randomUUID().toString() + ".jar");
+		Files.copy(new File(System.getProperty("user.dir") + "/misc_test_assets/simple-harvest-example.jar").toPath(), remote_file.toPath());
+		final String other_lib = FileContext.getLocalFSFileContext().makeQualified(new Path(System.getProperty("user.dir") + "/misc_test_assets/simple-harvest-example2.jar")).toString();
+		
+		final SharedLibraryBean library_bean = BeanTemplateUtils.build(SharedLibraryBean.class)
+				.with(SharedLibraryBean::path_name, remote_file.toString())
+				.with(SharedLibraryBean::_id, "test_invalidate_" + UUID.randomUUID().toString())
+				.with(SharedLibraryBean::modified, new Date())
+				.done().get();
+		
+		final String cached_jar = JarCacheUtils.getCachedJar(_globals.local_cached_jar_dir(), library_bean, _mock_hdfs, "test1", new TestMessageBean()).get().success();
+		
+		ClassloaderUtils.clearCache();
+		ClassloaderUtils.warmCache(Arrays.asList(
+				Tuples._2T(Optional.of(cached_jar), Collections.<String>emptyList()),
+				Tuples._2T(Optional.of(other_lib), Collections.<String>emptyList())
+				), 
+				ForkJoinPool.commonPool()).get();
+		assertEquals(2L, ClassloaderUtils._classloader_cache.size());
+		
+		// Unchanged, so nothing happens
+		
+		JarCacheUtils.getCachedJar(_globals.local_cached_jar_dir(), library_bean, _mock_hdfs, "test1", new TestMessageBean()).get();
+		assertEquals(2L, ClassloaderUtils._classloader_cache.size());
+		
+		// Update the "remote" jar, now only its classloader is invalidated
+		
+		remote_file.setLastModified(System.currentTimeMillis() + 10000L);
+		final SharedLibraryBean updated_library_bean = BeanTemplateUtils.clone(library_bean).with(SharedLibraryBean::modified, new Date(remote_file.lastModified())).done();
+		
+		assertEquals(cached_jar, JarCacheUtils.getCachedJar(_globals.local_cached_jar_dir(), updated_library_bean, _mock_hdfs, "test1", new TestMessageBean()).get().success());
+		assertEquals(1L, ClassloaderUtils._classloader_cache.size());
+		assertTrue(null != ClassloaderUtils._classloader_cache.getIfPresent(ClassloaderUtils.getCacheSignature(Optional.of(other_lib), Collections.emptyList())));
+		
+		new File(new Path(cached_jar).toUri().getPath()).delete();
+		remote_file.delete();
+	}
 }
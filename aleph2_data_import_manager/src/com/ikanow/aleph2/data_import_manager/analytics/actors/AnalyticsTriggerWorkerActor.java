@@ -28,8 +28,13 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -39,10 +44,13 @@ import org.apache.logging.log4j.Logger;
 
 import scala.Tuple2;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ikanow.aleph2.data_import_manager.analytics.services.AnalyticStateTriggerCheckFactory.AnalyticStateChecker;
 import com.ikanow.aleph2.data_import_manager.analytics.utils.AnalyticTriggerCoreUtils;
 import com.ikanow.aleph2.data_import_manager.analytics.utils.AnalyticTriggerCrudUtils;
 import com.ikanow.aleph2.data_import_manager.analytics.utils.AnalyticTriggerBeanUtils;
+import com.ikanow.aleph2.data_import_manager.analytics.utils.TriggerOwnershipRing;
 import com.ikanow.aleph2.data_import_manager.services.DataImportActorContext;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
@@ -70,8 +78,10 @@ import com.ikanow.aleph2.management_db.data_model.AnalyticTriggerMessage.Analyti
 import com.ikanow.aleph2.management_db.data_model.BucketActionMessage.BucketActionAnalyticJobMessage.JobMessageType;
 import com.ikanow.aleph2.management_db.data_model.BucketActionMessage;
 import com.ikanow.aleph2.management_db.data_model.BucketMgmtMessage.BucketTimeoutMessage;
+import com.ikanow.aleph2.management_db.utils.ActorUtils;
 
 import fj.Unit;
+import akka.actor.ActorRef;
 import akka.actor.UntypedActor;
 
 /** This actor is responsible for checking the state of the various active and inactive triggers in the system
@@ -87,6 +97,7 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 	
 	protected final SetOnce<ICrudService<DataBucketStatusBean>> _bucket_status_crud = new SetOnce<>();
 	protected final SetOnce<ICrudService<BucketTimeoutMessage>> _bucket_test_status_crud = new SetOnce<>();
+	protected final SetOnce<TriggerOwnershipRing> _ownership_ring = new SetOnce<>();
 	
 	/** Akka c'tor
 	 */
@@ -116,6 +127,29 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 		}
 	}
 	
+	/** Lazy initialization of this worker's membership of the trigger ownership ring
+	 * @return
+	 */
+	protected TriggerOwnershipRing getOwnershipRing() {
+		if (!_ownership_ring.isSet()) {
+			final TriggerOwnershipRing ring = new TriggerOwnershipRing(_distributed_services.getCuratorFramework(), 
+					ActorUtils.ANALYTICS_TRIGGER_WORKERS_ZOOKEEPER, _local_actor_context.getInformationService().getProcessUuid());
+			Lambdas.wrap_runnable_u(() -> ring.join()).run();
+			_ownership_ring.set(ring);
+		}
+		return _ownership_ring.get();
+	}
+	
+	/* (non-Javadoc)
+	 * @see akka.actor.UntypedActor#postStop()
+	 */
+	@Override
+	public void postStop() {
+		if (_ownership_ring.isSet()) _ownership_ring.get().leave();
+		_bucket_change_executor.shutdown();
+		_trigger_check_executor.shutdown();
+	}
+	
 	/* (non-Javadoc)
 	 * @see akka.actor.UntypedActor#onReceive(java.lang.Object)
 	 */
@@ -124,32 +158,77 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 		try {
 			Patterns.match(message).andAct()
 				// Bucket deletion
-				.when(BucketActionMessage.DeleteBucketActionMessage.class, msg -> onBucketDelete(msg))
-				
+				.when(BucketActionMessage.DeleteBucketActionMessage.class,
+						msg -> chainBucketWork(msg.bucket().full_name(), () -> onBucketDelete(msg)))
+
 				// Test complete
 				.when(BucketActionMessage.UpdateBucketActionMessage.class,
 						msg -> !msg.is_enabled() && BucketUtils.isTestBucket(msg.bucket()),
-							msg -> onBucketDelete(msg))
-							
+							msg -> chainBucketWork(msg.bucket().full_name(), () -> onBucketDelete(msg)))
+
 				// Other bucket update
-				.when(BucketActionMessage.class, msg -> onBucketChanged(msg))
-				
+				// (runs as a single blocking stage on its own executor, since the InterProcessMutex has to be released by the thread that grabbed it,
+				//  and waiting for it mustn't tie up the shared pool that the trigger checks run on)
+				.when(BucketActionMessage.class,
+						msg -> chainBucketWork(msg.bucket().full_name(), () -> CompletableFuture.supplyAsync(() -> { onBucketChanged(msg); return Unit.unit(); }, _bucket_change_executor)))
+
 				// Regular trigger message
-				.when(AnalyticTriggerMessage.class, 
-						msg -> null != msg.trigger_action_message(), 
+				.when(AnalyticTriggerMessage.class,
+						msg -> null != msg.trigger_action_message(),
 							msg -> onAnalyticTrigger(msg.trigger_action_message()))
-							
+
 				// Trigger event from elsewhere in the system
-				.when(AnalyticTriggerMessage.class, 
-						msg -> null != msg.bucket_action_message(), 
-							msg -> onAnalyticBucketEvent(msg.bucket_action_message()))
+				.when(AnalyticTriggerMessage.class,
+						msg -> null != msg.bucket_action_message(),
+							msg -> chainBucketWork(msg.bucket_action_message().bucket().full_name(), () -> onAnalyticBucketEvent(msg.bucket_action_message())))
+
+				// A trigger check has completed
+				.when(TickCompleteMessage.class, msg -> onAnalyticTriggerComplete(msg))
 				;
 		}
 		catch (Throwable t) {
 			_logger.error(ErrorUtils.getLongForm("Error receiving message type = {1} error = {0}", t, message.getClass().getSimpleName()));
 		}
-	}	
+	}
+
+	///////////////////////////////////////////////////////////////////////////////
+
+	// ORDERING OF BUCKET EVENTS
+
+	// (the DB work for each bucket message is chained behind any outstanding work for the same bucket, and behind any trigger
+	//  check in progress when the message was received - ie the same ordering guarantees as when each message blocked the actor)
+	protected final ConcurrentHashMap<String, CompletableFuture<?>> _bucket_work = new ConcurrentHashMap<>();
 	
+	// (bucket changes can block for up to max_time_to_decollide waiting for the bucket's mutex, so they get their own threads)
+	protected static final int MAX_CONCURRENT_BUCKET_CHANGES = 4;
+	protected final ExecutorService _bucket_change_executor = Executors.newFixedThreadPool(MAX_CONCURRENT_BUCKET_CHANGES,
+			new ThreadFactoryBuilder().setNameFormat("analytics-trigger-bucket-change-%d").setDaemon(true).build());
+
+	/** Runs the work for a bucket message once the previous work for that bucket (and any in progress trigger check) has completed
+	 *  (call from the actor thread only)
+	 * @param bucket_name - the bucket whose state the work changes
+	 * @param work - generates the future that completes when the work is done, always called off the actor thread
+	 */
+	protected void chainBucketWork(final String bucket_name, final Supplier<CompletableFuture<?>> work) {
+		final CompletableFuture<?> previous_bucket_work = Optional.<CompletableFuture<?>>ofNullable(_bucket_work.get(bucket_name)).orElse(CompletableFuture.completedFuture(null));
+		final CompletableFuture<?> previous_work = _tick_in_progress.<CompletableFuture<?>>map(tick -> CompletableFuture.allOf(previous_bucket_work, tick.future)).orElse(previous_bucket_work);
+
+		final CompletableFuture<?> next_work = previous_work
+				.handle((__, t) -> Unit.unit()) // (already logged)
+				.thenComposeAsync(__ -> work.get().thenApply(___ -> Unit.unit()), _bucket_change_executor)
+				.whenComplete((__, t) -> {
+					if (null != t) {
+						_logger.error(ErrorUtils.getLongForm("Error processing message for bucket {1}: {0}", t, bucket_name));
+					}
+				});
+		_bucket_work.put(bucket_name, next_work);
+		_pending_bucket_messages.incrementAndGet();
+		next_work.whenComplete((__, ___) -> {
+			_bucket_work.remove(bucket_name, next_work);
+			_pending_bucket_messages.decrementAndGet();
+		});
+	}
+
 	///////////////////////////////////////////////////////////////////////////////
 	
 	// MANUAL CHANGES TO BUCKETS 
@@ -240,16 +319,22 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 	 *  - a suspend message sent to a test bucket
 	 * @param message
 	 */
-	protected void onBucketDelete(final BucketActionMessage message) {
+	protected CompletableFuture<?> onBucketDelete(final BucketActionMessage message) {
 		final ICrudService<AnalyticTriggerStateBean> trigger_crud = 
 				_service_context.getCoreManagementDbService().getAnalyticBucketTriggerState(AnalyticTriggerStateBean.class);
 		
-		AnalyticTriggerCrudUtils.deleteTriggers(trigger_crud, message.bucket()).join();
+		return AnalyticTriggerCrudUtils.deleteTriggers(trigger_crud, message.bucket());
 	}
 	
 	///////////////////////////////////////////////////////////////////////////////
 	
 	// TRIGGERING
+
+	// (the trigger checks block on ZK - the ring and the per-bucket mutexes - so they get their own threads too; ticks never overlap, so only
+	//  one of these is ever blocked holding the mutexes while the bucket checks run on the others)
+	protected static final int TRIGGER_CHECK_THREADS = 4;
+	protected final ExecutorService _trigger_check_executor = Executors.newFixedThreadPool(TRIGGER_CHECK_THREADS,
+			new ThreadFactoryBuilder().setNameFormat("analytics-trigger-check-%d").setDaemon(true).build());
 	
 	
 	/** This is a temporary service until the distributed mutex is in place - at least prevents ticks from colliding against one another
@@ -277,183 +362,346 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 		}
 	}
 	protected TickSpacingService _spacing_service = new TickSpacingService();
-	
+
+	/** The trigger check currently in progress (only accessed from the actor thread)
+	 * @author Alex
+	 */
+	protected static class TickState {
+		protected TickState(final long tick_id, final CompletableFuture<?> future) {
+			this.tick_id = tick_id;
+			this.future = future;
+		}
+		protected final long tick_id;
+		protected final long start_time_ms = System.currentTimeMillis();
+		protected final CompletableFuture<?> future;
+	}
+
+	/** Sent by the actor to itself when a trigger check has completed
+	 * @author Alex
+	 */
+	protected static class TickCompleteMessage {
+		protected TickCompleteMessage(final long tick_id, final Optional<Tuple2<Integer, Integer>> trigger_groups, final Optional<Throwable> error) {
+			this.tick_id = tick_id;
+			this.trigger_groups = trigger_groups;
+			this.error = error;
+		}
+		protected final long tick_id;
+		protected final Optional<Tuple2<Integer, Integer>> trigger_groups; // (groups due, groups owned by this worker)
+		protected final Optional<Throwable> error;
+	}
+
+	protected Optional<TickState> _tick_in_progress = Optional.empty();
+	protected boolean _tick_requested = false; // (a tick arrived while the previous one was in progress, so run another as soon as it completes)
+	protected long _last_tick_id = 0L;
+
+	// Tick metrics (across all the workers in this process)
+	protected static final AtomicLong _ticks_completed = new AtomicLong(0L);
+	protected static final AtomicLong _ticks_failed = new AtomicLong(0L);
+	protected static final AtomicLong _ticks_deferred = new AtomicLong(0L);
+	protected static final AtomicLong _last_tick_duration_ms = new AtomicLong(0L);
+	protected static final AtomicLong _max_tick_duration_ms = new AtomicLong(0L);
+	protected static final AtomicLong _last_tick_trigger_groups = new AtomicLong(0L);
+	protected static final AtomicLong _last_tick_owned_trigger_groups = new AtomicLong(0L);
+	protected static final AtomicLong _pending_bucket_messages = new AtomicLong(0L);
+
+	/** Returns the tick metrics: the number of ticks completed/failed/deferred (ie received while the previous tick was still in progress),
+	 *  the duration of the last and longest tick, the number of trigger groups due/owned in the last tick, and the number of bucket
+	 *  messages waiting to be applied to the trigger state
+	 * @return a map of metric name to value
+	 */
+	public static Map<String, Long> getMetrics() {
+		return ImmutableMap.<String, Long>builder()
+				.put("ticks_completed", _ticks_completed.get())
+				.put("ticks_failed", _ticks_failed.get())
+				.put("ticks_deferred", _ticks_deferred.get())
+				.put("last_tick_duration_ms", _last_tick_duration_ms.get())
+				.put("max_tick_duration_ms", _max_tick_duration_ms.get())
+				.put("last_tick_trigger_groups", _last_tick_trigger_groups.get())
+				.put("last_tick_owned_trigger_groups", _last_tick_owned_trigger_groups.get())
+				.put("pending_bucket_messages", _pending_bucket_messages.get())
+				.build();
+	}
+
 	/** Regular trigger event messages, check for things we're supposed to check
+	 *  (the checks run asynchronously, a TickCompleteMessage is sent back to the actor when they're done)
 	 * @param message
 	 */
 	protected void onAnalyticTrigger(final AnalyticsTriggerActionMessage message) {
+		// Never start a tick while the previous one is still running, however long it has been going (the spacing mutex below expires, 
+		// but overlapping ticks would both begin ownership ring cycles and could evaluate the same triggers twice)
+		if (_tick_in_progress.isPresent()) {
+			_tick_requested = true;
+			_ticks_deferred.incrementAndGet();
+			_tick_in_progress.filter(tick -> (System.currentTimeMillis() - tick.start_time_ms) > TickSpacingService.TIMEOUT_MS).ifPresent(tick -> 
+				_logger.warn(ErrorUtils.get("Trigger check {0} has been running for {1}ms, deferring the next one", tick.tick_id, System.currentTimeMillis() - tick.start_time_ms)));
+			return;
+		}
 		// Quick block to ensure that ticks don't collide on a give machine
 		if (!_spacing_service.grabMutex()) {
 			return;
 		}
-		try {
-			final Date now = new Date(); // a single global time used for this set of checks)
-			
-			final ICrudService<AnalyticTriggerStateBean> trigger_crud = 
-					_service_context.getCoreManagementDbService().getAnalyticBucketTriggerState(AnalyticTriggerStateBean.class);
-			
-			// 1) Get all state beans that need to be checked, update their "next time"
-			
-			final CompletableFuture<Map<Tuple2<String, String>, List<AnalyticTriggerStateBean>>> triggers_in = 
-					AnalyticTriggerCrudUtils.getTriggersToCheck(trigger_crud);		
-			
-			triggers_in.thenAccept(triggers_to_check -> {
-	
+		this.intializeStatusDatabase();
+
+		final Date now = new Date(); // a single global time used for this set of checks)
+		final long tick_id = ++_last_tick_id;
+		final ActorRef self = this.self();
+
+		final ICrudService<AnalyticTriggerStateBean> trigger_crud =
+				_service_context.getCoreManagementDbService().getAnalyticBucketTriggerState(AnalyticTriggerStateBean.class);
+
+		// 0) Wait for any bucket messages received before this tick to be applied
+
+		final CompletableFuture<?> pending_bucket_work =
+				CompletableFuture.allOf(_bucket_work.values().stream().toArray(CompletableFuture[]::new))
+					.handle((__, t) -> Unit.unit()); // (already logged)
+
+		// 1) Get all state beans that need to be checked
+
+		final CompletableFuture<Tuple2<Integer, Integer>> tick = pending_bucket_work
+			.thenCompose(__ -> AnalyticTriggerCrudUtils.getTriggersToCheck(trigger_crud))
+			.thenApplyAsync(triggers_to_check -> { // (off the dispatcher and DB threads from here on)
+
 				//DEBUG
 //				System.out.println("??? " + triggers_to_check.values().stream().flatMap(s->s.stream())
 //						.map(t -> BeanTemplateUtils.toJson(t).toString()).collect(Collectors.joining("\n")));
-				
-				final Consumer<String> on_collision = path -> {			
-					_logger.warn("Failed to grab trigger on {0}", path);
+
+				// Only check the triggers this worker owns (the ring is read once per tick, so workers don't collide over each other's mutexes)
+				final TriggerOwnershipRing.Ownership ownership = Lambdas.wrap_u(() -> getOwnershipRing().beginCycle()).get();
+				final Map<Tuple2<String, String>, List<AnalyticTriggerStateBean>> triggers =
+						AnalyticTriggerCoreUtils.selectOwnedTriggers(triggers_to_check, ownership);
+
+				if (triggers.size() < triggers_to_check.size()) {
+					_logger.debug(ErrorUtils.get("Checking {0} of {1} trigger group(s) (ring version {2}, {3} worker(s), settled={4})",
+							triggers.size(), triggers_to_check.size(), ownership.view.version, ownership.view.acked_versions.size(), ownership.settled));
+				}
+
+				// Still grab the bucket mutexes for the owned triggers, since bucket changes can be handled by any worker
+				// (uncontended unless a bucket change is in progress, in which case skip that bucket - its next check time is unchanged so it's picked up next tick)
+				final Consumer<String> on_collision = path -> {
+					_logger.debug(ErrorUtils.get("Bucket {0} is being updated, will check its triggers next time", path));
 				};
-				final Duration max_time_to_decollide = Duration.ofSeconds(1L); 
-				
+				final Duration max_time_to_decollide = Duration.ofSeconds(1L);
+
 				final SetOnce<Collection<Tuple2<String, String>>> path_names = new SetOnce<>();
 				try {
-					// Grab the mutex
-					final Map<Tuple2<String, String>, List<AnalyticTriggerStateBean>> triggers = 
-							AnalyticTriggerCoreUtils.registerOwnershipOfTriggers(triggers_to_check, 
-									_local_actor_context.getInformationService().getProcessUuid(), _distributed_services.getCuratorFramework(),  
+					final Map<Tuple2<String, String>, List<AnalyticTriggerStateBean>> locked_triggers =
+							AnalyticTriggerCoreUtils.registerOwnershipOfTriggers(triggers,
+									_local_actor_context.getInformationService().getProcessUuid(), _distributed_services.getCuratorFramework(),
 									Tuples._2T(max_time_to_decollide, on_collision));
-					
-					path_names.trySet(triggers.keySet());
-					
-					// 2) Issue checks to each bean
-					
-					triggers.entrySet().stream().parallel()
-						.forEach(kv -> {
-							//(discard bucket active records)
-							kv.getValue().stream().findFirst().ifPresent(trigger -> {
-	
-								final Optional<DataBucketBean> bucket_to_check_reply = Lambdas.wrap_u(__ -> {
-										return BucketUtils.isTestBucket(
-												BeanTemplateUtils.build(DataBucketBean.class)
-													.with(DataBucketBean::full_name, trigger.bucket_name())
-												.done().get())
-										?
-										// Test bucket - get from test
-										_service_context.getCoreManagementDbService().readOnlyVersion().getBucketTestQueue(BucketTimeoutMessage.class)
-											.getObjectById(trigger.bucket_name()) //(test bucket use transformed full name as _id)
-											.<Optional<DataBucketBean>>thenApply(bucket_msg -> 
-												bucket_msg
-													.map(msg -> msg.bucket()))
-											.join()
-										:
-										// Normal bucket get from bucket store
-										_service_context.getCoreManagementDbService().readOnlyVersion().getDataBucketStore().getObjectById(trigger.bucket_id())
-												.join()
-										;
-										// (annoyingly can't chain CFs because need to block this thread until i'm ready to release the mutex)
-									})
-									.<Optional<DataBucketBean>>andThen(maybe_bucket -> {
-										return maybe_bucket
-												.map(bucket -> (null == bucket.analytic_thread()) 
-														? DataBucketAnalyticsChangeActor.convertEnrichmentToAnalyticBucket(bucket)
-														: bucket)
-												.map(bucket ->
-														BeanTemplateUtils.clone(bucket)
-															.with(DataBucketBean::harvest_technology_name_or_id, null) // remove this so that only gets sent to analytics/enrichment engine
-															.done()
-														)
-												.map(bucket -> {
-														return !BucketUtils.isTestBucket(bucket) // for test buckets, override the scheduler to something short
-														? 
-														bucket
-														:
-														BeanTemplateUtils.clone(bucket)
-															.with(DataBucketBean::analytic_thread,
-																BeanTemplateUtils.clone(bucket.analytic_thread()) //(must exist by this point)
-																	.with(AnalyticThreadBean::trigger_config,
-																			BeanTemplateUtils.clone(
-																					Optional.ofNullable(bucket.analytic_thread().trigger_config())
-																							.orElse(BeanTemplateUtils.build(AnalyticThreadTriggerBean.class).done().get())
-																			)
-																				.with(AnalyticThreadTriggerBean::schedule, "10 seconds")
-																			.done()
-																	)
-																.done()		
-															)
-														.done();
-												})
-												;
-									})
-									.apply(Unit.unit());
-															
-								//(I've excluded the harvest component so any core management db messages only go to the analytics engine, not the harvest engine)  
-									
-								final SetOnce<AnalyticTriggerStateBean> active_bucket_record = new SetOnce<>();
-								final LinkedList<AnalyticTriggerStateBean> mutable_active_jobs = new LinkedList<>();
-								final LinkedList<AnalyticTriggerStateBean> mutable_external_triggers_active = new LinkedList<>();
-								final LinkedList<AnalyticTriggerStateBean> mutable_internal_triggers_active = new LinkedList<>();
-								final LinkedList<AnalyticTriggerStateBean> mutable_external_triggers_dormant = new LinkedList<>();
-								final LinkedList<AnalyticTriggerStateBean> mutable_internal_triggers_dormant = new LinkedList<>();
-								
-								bucket_to_check_reply.ifPresent(bucket_to_check -> {
-									kv.getValue().stream().forEach(trigger_in -> {
-										
-										Patterns.match().andAct()
-											.when(__ -> AnalyticTriggerBeanUtils.isActiveBucketOrJobRecord(trigger_in), __ -> {
-												
-												// 1) This is an active job, want to know if the job is complete
-												
-												final Optional<AnalyticThreadJobBean> analytic_job_opt = 
-														AnalyticTriggerBeanUtils.isActiveBucketRecord(trigger_in)
-														? Optional.empty()
-														: Optionals.of(() -> bucket_to_check.analytic_thread().jobs()
-																							.stream().filter(j -> j.name().equals(trigger_in.job_name())).findFirst().get());
-												
-												analytic_job_opt.ifPresent(analytic_job -> onAnalyticTrigger_checkActiveJob(bucket_to_check, analytic_job, trigger_in));
-												
-												//(don't care about a reply, will come asynchronously)
-												if (AnalyticTriggerBeanUtils.isActiveJobRecord(trigger_in)) {
-													mutable_active_jobs.add(trigger_in);
-												}
-												else { // bucket must be active since the bucket record exists
-													active_bucket_record.set(trigger_in); // (can call multiple times, will ignore all but the first)
-												}
-											})
-											.when(__ -> !trigger_in.is_bucket_active() && AnalyticTriggerBeanUtils.isExternalTrigger(trigger_in), __ -> {
-												
-												// 2) Inactive bucket, check external dependency											
-												onAnalyticTrigger_checkExternalTriggers(bucket_to_check, trigger_in, mutable_external_triggers_active, mutable_external_triggers_dormant, now);
-											})
-											.when(__ -> trigger_in.is_bucket_active() && AnalyticTriggerBeanUtils.isInternalTrigger(trigger_in), __ -> {
-	
-												// 3) Inactive job, active bucket
-												
-												final Optional<AnalyticThreadJobBean> analytic_job_opt = 
-														Optionals.of(() -> bucket_to_check.analytic_thread().jobs().stream().filter(j -> j.name().equals(trigger_in.job_name())).findFirst().get());
-												
-												analytic_job_opt
-													.ifPresent(analytic_job -> 
-														onAnalyticTrigger_checkInactiveJobs(bucket_to_check, analytic_job, trigger_in, 
-																							mutable_internal_triggers_active, mutable_internal_triggers_dormant, now));											
-											})
-											;
-											//(don't care about any other cases)
-									});
-	
-									triggerChecks_processResults(bucket_to_check, Optional.ofNullable(kv.getKey()._2()),
-											active_bucket_record.optional(), mutable_active_jobs, 
-											mutable_external_triggers_active, mutable_internal_triggers_active,
-											mutable_external_triggers_dormant, mutable_internal_triggers_dormant, now);
-								});
-								
-							});
-						});			
-				}			
+
+					path_names.trySet(locked_triggers.keySet());
+
+					// 2) Issue checks to each bucket, collecting the (by far the most common) "nothing happened" updates so they can be batched
+
+					final ConcurrentLinkedQueue<Tuple2<Date, AnalyticTriggerStateBean>> mutable_dormant_triggers = new ConcurrentLinkedQueue<>();
+
+					final CompletableFuture<?>[] bucket_checks = locked_triggers.entrySet().stream()
+						.map(kv -> onAnalyticTrigger_checkBucket(kv.getKey(), kv.getValue(), mutable_dormant_triggers, now)
+										.exceptionally(t -> {
+											_logger.error(ErrorUtils.getLongForm("Error checking triggers for bucket {1}: {0}", t, kv.getKey()._1()));
+											return null;
+										}))
+						.toArray(CompletableFuture[]::new);
+
+					// 3) Update all the unused triggers, one bulk update per next check time
+					// (wait for this before releasing the mutexes, which has to happen on this thread)
+
+					return CompletableFuture.allOf(bucket_checks)
+							.thenCompose(__ -> {
+								final Map<Date, List<AnalyticTriggerStateBean>> dormant_by_next_check = mutable_dormant_triggers.stream()
+										.collect(Collectors.groupingBy(t2 -> t2._1(), Collectors.mapping(t2 -> t2._2(), Collectors.toList())));
+
+								return CompletableFuture.allOf(dormant_by_next_check.entrySet().stream()
+											.map(kv -> AnalyticTriggerCrudUtils.updateTriggerStatuses(trigger_crud, kv.getValue().stream(), kv.getKey(), Optional.empty()))
+											.toArray(CompletableFuture[]::new));
+							})
+							.thenApply(__ -> Tuples._2T(triggers_to_check.size(), locked_triggers.size()))
+							.join();
+				}
 				finally { // ie always run this:
 					// Unset the mutexes
 					if (path_names.isSet()) AnalyticTriggerCoreUtils.deregisterOwnershipOfTriggers(path_names.get(), _distributed_services.getCuratorFramework());
-				}			
-			})
-			.join();
-			
-			// (don't wait for replies, these will come in asynchronously)
-		}
-		finally {
+				}
+			}, _trigger_check_executor);
+
+		_tick_in_progress = Optional.of(new TickState(tick_id, tick));
+
+		tick.whenComplete((res, t) -> self.tell(new TickCompleteMessage(tick_id, Optional.ofNullable(res), Optional.ofNullable(t)), self));
+
+		// (don't wait for replies, these will come in asynchronously)
+	}
+
+	/** A trigger check has completed, allow the next one in and update the metrics
+	 * @param message
+	 */
+	protected void onAnalyticTriggerComplete(final TickCompleteMessage message) {
+		_tick_in_progress.filter(tick -> tick.tick_id == message.tick_id).ifPresent(tick -> { // (ticks are never replaced while in progress, so this is just defensive)
+			_tick_in_progress = Optional.empty();
 			_spacing_service.releaseMutex();
-		}
+
+			final long duration_ms = System.currentTimeMillis() - tick.start_time_ms;
+			_last_tick_duration_ms.set(duration_ms);
+			_max_tick_duration_ms.accumulateAndGet(duration_ms, Math::max);
+			message.trigger_groups.ifPresent(groups -> {
+				_last_tick_trigger_groups.set(groups._1());
+				_last_tick_owned_trigger_groups.set(groups._2());
+			});
+
+			message.error.ifPresent(t -> {
+				_ticks_failed.incrementAndGet();
+				_logger.error(ErrorUtils.getLongForm("Error checking triggers: {0}", t));
+			});
+			if (!message.error.isPresent()) _ticks_completed.incrementAndGet();
+
+			_logger.debug(ErrorUtils.get("Trigger check complete: {0}", getMetrics()));
+
+			if (_tick_requested) {
+				_tick_requested = false;
+				self().tell(new AnalyticTriggerMessage(new AnalyticsTriggerActionMessage()), self());
+			}
+		});
+	}
+
+	/** Checks all the triggers for a single bucket (/host)
+	 * @param bucket_and_host - the bucket name and the host to which the triggers are locked (null if none)
+	 * @param triggers - the triggers for this bucket
+	 * @param mutable_dormant_triggers - a mutable, thread safe, results collection for triggers that need their next check time updated
+	 * @param now - single global time when all checks are performed this cycle
+	 * @return a future that completes when all the checks (and any resulting changes other than to the dormant triggers) are done
+	 */
+	protected CompletableFuture<?> onAnalyticTrigger_checkBucket(final Tuple2<String, String> bucket_and_host, final List<AnalyticTriggerStateBean> triggers,
+			final Collection<Tuple2<Date, AnalyticTriggerStateBean>> mutable_dormant_triggers, final Date now)
+	{
+		//(discard bucket active records)
+		return triggers.stream().findFirst().<CompletableFuture<?>>map(trigger -> {
+
+			return getBucketToCheck(trigger).thenComposeAsync(bucket_to_check_reply -> {
+
+				//(I've excluded the harvest component so any core management db messages only go to the analytics engine, not the harvest engine)
+
+				final SetOnce<AnalyticTriggerStateBean> active_bucket_record = new SetOnce<>();
+				final LinkedList<AnalyticTriggerStateBean> mutable_active_jobs = new LinkedList<>();
+				final LinkedList<AnalyticTriggerStateBean> mutable_external_triggers_active = new LinkedList<>();
+				final LinkedList<AnalyticTriggerStateBean> mutable_internal_triggers_active = new LinkedList<>();
+				final LinkedList<AnalyticTriggerStateBean> mutable_external_triggers_dormant = new LinkedList<>();
+				final LinkedList<AnalyticTriggerStateBean> mutable_internal_triggers_dormant = new LinkedList<>();
+
+				return bucket_to_check_reply.<CompletableFuture<?>>map(bucket_to_check -> {
+
+					// (the triggers for a bucket are checked one after the other, so the results lists are only ever accessed by one thread at a time)
+					CompletableFuture<?> checks = CompletableFuture.completedFuture(Unit.unit());
+
+					for (AnalyticTriggerStateBean trigger_in: triggers) {
+						checks = checks.thenCompose(__ -> Patterns.match().<CompletableFuture<?>>andReturn()
+							.when(___ -> AnalyticTriggerBeanUtils.isActiveBucketOrJobRecord(trigger_in), ___ -> {
+
+								// 1) This is an active job, want to know if the job is complete
+
+								final Optional<AnalyticThreadJobBean> analytic_job_opt =
+										AnalyticTriggerBeanUtils.isActiveBucketRecord(trigger_in)
+										? Optional.empty()
+										: Optionals.of(() -> bucket_to_check.analytic_thread().jobs()
+																			.stream().filter(j -> j.name().equals(trigger_in.job_name())).findFirst().get());
+
+								analytic_job_opt.ifPresent(analytic_job -> onAnalyticTrigger_checkActiveJob(bucket_to_check, analytic_job, trigger_in));
+
+								//(don't care about a reply, will come asynchronously)
+								if (AnalyticTriggerBeanUtils.isActiveJobRecord(trigger_in)) {
+									mutable_active_jobs.add(trigger_in);
+								}
+								else { // bucket must be active since the bucket record exists
+									active_bucket_record.set(trigger_in); // (can call multiple times, will ignore all but the first)
+								}
+								return CompletableFuture.completedFuture(Unit.unit());
+							})
+							.when(___ -> !trigger_in.is_bucket_active() && AnalyticTriggerBeanUtils.isExternalTrigger(trigger_in), ___ -> {
+
+								// 2) Inactive bucket, check external dependency
+								return onAnalyticTrigger_checkExternalTriggers(bucket_to_check, trigger_in, mutable_external_triggers_active, mutable_external_triggers_dormant, now);
+							})
+							.when(___ -> trigger_in.is_bucket_active() && AnalyticTriggerBeanUtils.isInternalTrigger(trigger_in), ___ -> {
+
+								// 3) Inactive job, active bucket
+
+								final Optional<AnalyticThreadJobBean> analytic_job_opt =
+										Optionals.of(() -> bucket_to_check.analytic_thread().jobs().stream().filter(j -> j.name().equals(trigger_in.job_name())).findFirst().get());
+
+								return analytic_job_opt
+									.<CompletableFuture<?>>map(analytic_job ->
+										onAnalyticTrigger_checkInactiveJobs(bucket_to_check, analytic_job, trigger_in,
+																			mutable_internal_triggers_active, mutable_internal_triggers_dormant, now))
+									.orElse(CompletableFuture.completedFuture(Unit.unit()));
+							})
+							.otherwise(___ -> CompletableFuture.completedFuture(Unit.unit())) //(don't care about any other cases)
+							);
+					}
+
+					return checks.thenCompose(__ -> triggerChecks_processResults(bucket_to_check, Optional.ofNullable(bucket_and_host._2()),
+							active_bucket_record.optional(), mutable_active_jobs,
+							mutable_external_triggers_active, mutable_internal_triggers_active,
+							mutable_external_triggers_dormant, mutable_internal_triggers_dormant, mutable_dormant_triggers, now));
+				})
+				.orElse(CompletableFuture.completedFuture(Unit.unit()));
+			}, _trigger_check_executor);
+		})
+		.orElse(CompletableFuture.completedFuture(Unit.unit()));
+	}
+
+	/** Gets the bucket that the trigger belongs to, in the form the analytics engine expects
+	 *  (test buckets come from the test queue, and have their schedule overridden to something short)
+	 * @param trigger
+	 * @return
+	 */
+	protected CompletableFuture<Optional<DataBucketBean>> getBucketToCheck(final AnalyticTriggerStateBean trigger) {
+		final CompletableFuture<Optional<DataBucketBean>> maybe_bucket_reply =
+				BucketUtils.isTestBucket(
+						BeanTemplateUtils.build(DataBucketBean.class)
+							.with(DataBucketBean::full_name, trigger.bucket_name())
+						.done().get())
+				?
+				// Test bucket - get from test
+				_service_context.getCoreManagementDbService().readOnlyVersion().getBucketTestQueue(BucketTimeoutMessage.class)
+					.getObjectById(trigger.bucket_name()) //(test bucket use transformed full name as _id)
+					.<Optional<DataBucketBean>>thenApply(bucket_msg ->
+						bucket_msg
+							.map(msg -> msg.bucket()))
+				:
+				// Normal bucket get from bucket store
+				_service_context.getCoreManagementDbService().readOnlyVersion().getDataBucketStore().getObjectById(trigger.bucket_id())
+				;
+
+		return maybe_bucket_reply.<Optional<DataBucketBean>>thenApply(maybe_bucket -> {
+			return maybe_bucket
+					.map(bucket -> (null == bucket.analytic_thread())
+							? DataBucketAnalyticsChangeActor.convertEnrichmentToAnalyticBucket(bucket)
+							: bucket)
+					.map(bucket ->
+							BeanTemplateUtils.clone(bucket)
+								.with(DataBucketBean::harvest_technology_name_or_id, null) // remove this so that only gets sent to analytics/enrichment engine
+								.done()
+							)
+					.map(bucket -> {
+							return !BucketUtils.isTestBucket(bucket) // for test buckets, override the scheduler to something short
+							?
+							bucket
+							:
+							BeanTemplateUtils.clone(bucket)
+								.with(DataBucketBean::analytic_thread,
+									BeanTemplateUtils.clone(bucket.analytic_thread()) //(must exist by this point)
+										.with(AnalyticThreadBean::trigger_config,
+												BeanTemplateUtils.clone(
+														Optional.ofNullable(bucket.analytic_thread().trigger_config())
+																.orElse(BeanTemplateUtils.build(AnalyticThreadTriggerBean.class).done().get())
+												)
+													.with(AnalyticThreadTriggerBean::schedule, "10 seconds")
+												.done()
+										)
+									.done()
+								)
+							.done();
+					})
+					;
+		});
 	}
 
 	/** If a job is active, want to know whether to clear it
@@ -478,19 +726,19 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 	
 	/** If a bucket is inactive, want to know whether to trigger it
 	 */
-	protected void onAnalyticTrigger_checkExternalTriggers(final DataBucketBean bucket, final AnalyticTriggerStateBean trigger, 
+	protected CompletableFuture<?> onAnalyticTrigger_checkExternalTriggers(final DataBucketBean bucket, final AnalyticTriggerStateBean trigger, 
 			final List<AnalyticTriggerStateBean> mutable_trigger_list_active, final List<AnalyticTriggerStateBean> mutable_trigger_list_dormant, final Date at)
 	{
-		onAnalyticTrigger_checkTrigger(bucket, Optional.empty(), trigger, mutable_trigger_list_active, mutable_trigger_list_dormant, at);
+		return onAnalyticTrigger_checkTrigger(bucket, Optional.empty(), trigger, mutable_trigger_list_active, mutable_trigger_list_dormant, at);
 	}
 	
 	/** If a bucket is active but its job is inactive, want to know whether to start it
 	 * @return true if the bucket is to be activated
 	 */
-	protected void onAnalyticTrigger_checkInactiveJobs(final DataBucketBean bucket, final AnalyticThreadJobBean job, final AnalyticTriggerStateBean trigger, 
+	protected CompletableFuture<?> onAnalyticTrigger_checkInactiveJobs(final DataBucketBean bucket, final AnalyticThreadJobBean job, final AnalyticTriggerStateBean trigger, 
 			final List<AnalyticTriggerStateBean> mutable_trigger_list_active, final List<AnalyticTriggerStateBean> mutable_trigger_list_dormant, final Date at)
 	{
-		onAnalyticTrigger_checkTrigger(bucket, Optional.of(job), trigger, mutable_trigger_list_active, mutable_trigger_list_dormant, at);
+		return onAnalyticTrigger_checkTrigger(bucket, Optional.of(job), trigger, mutable_trigger_list_active, mutable_trigger_list_dormant, at);
 	}
 	
 	/** Low level function for manipulating triggers
@@ -498,8 +746,9 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 	 * @param job
 	 * @param trigger
 	 * @param mutable_trigger_list -  a mutable results list for triggered entries
+	 * @return a future that completes when the trigger has been added to one of the results lists
 	 */
-	protected void onAnalyticTrigger_checkTrigger(final DataBucketBean bucket, final Optional<AnalyticThreadJobBean> job, final AnalyticTriggerStateBean trigger, 
+	protected CompletableFuture<?> onAnalyticTrigger_checkTrigger(final DataBucketBean bucket, final Optional<AnalyticThreadJobBean> job, final AnalyticTriggerStateBean trigger, 
 			final List<AnalyticTriggerStateBean> mutable_trigger_list_active, final List<AnalyticTriggerStateBean> mutable_trigger_list_dormant, final Date at)
 	{
 		final boolean is_already_triggered = AnalyticTriggerBeanUtils.checkTriggerLimits(trigger); 
@@ -512,23 +761,24 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 					_local_actor_context.getAnalyticTriggerFactory()
 						.getChecker(trigger.trigger_type(), Optional.ofNullable(trigger.input_data_service()));
 			
-			final Tuple2<Boolean, Long> check_result = checker.check(bucket, job, trigger, at).join(); // (can't use the async nature because of the InterProcessMutex)
-		
-			if (check_result._1()) {
-				mutable_trigger_list_active.add(
-						BeanTemplateUtils.clone(trigger)
-							.with(AnalyticTriggerStateBean::curr_resource_size, check_result._2())
-						.done());
-			}
-			else {
-				mutable_trigger_list_dormant.add(
-						BeanTemplateUtils.clone(trigger)
-							.with(AnalyticTriggerStateBean::curr_resource_size, check_result._2())
-						.done());				
-			}			
+			return checker.check(bucket, job, trigger, at).thenAccept(check_result -> {
+				if (check_result._1()) {
+					mutable_trigger_list_active.add(
+							BeanTemplateUtils.clone(trigger)
+								.with(AnalyticTriggerStateBean::curr_resource_size, check_result._2())
+							.done());
+				}
+				else {
+					mutable_trigger_list_dormant.add(
+							BeanTemplateUtils.clone(trigger)
+								.with(AnalyticTriggerStateBean::curr_resource_size, check_result._2())
+							.done());				
+				}
+			});
 		}
 		else { // (else going to see if it triggers this time...)
 			mutable_trigger_list_active.add(trigger);			
+			return CompletableFuture.completedFuture(Unit.unit());
 		}
 	}
 		
@@ -541,14 +791,15 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 	 *   - 1+ analytic jobs from a given bucket have started (manual trigger)
 	 *   - An analytic job has ended 
 	 * @param message
+	 * @return a future that completes when the trigger state has been updated
 	 */
-	protected void onAnalyticBucketEvent(final BucketActionMessage message) {
+	protected CompletableFuture<?> onAnalyticBucketEvent(final BucketActionMessage message) {
 		this.intializeStatusDatabase();
 		
 		final ICrudService<AnalyticTriggerStateBean> trigger_crud = 
 				_service_context.getCoreManagementDbService().getAnalyticBucketTriggerState(AnalyticTriggerStateBean.class);
 		
-		Patterns.match(message).andAct()
+		return Patterns.match(message).<CompletableFuture<?>>andReturn()
 			.when(BucketActionMessage.BucketActionAnalyticJobMessage.class, 
 					msg -> BucketActionMessage.BucketActionAnalyticJobMessage.JobMessageType.starting == msg.type(),
 						msg -> { // (note don't need to worry about locking here)
@@ -577,23 +828,24 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 							//(this is only used for consistency inside the updateAnalyticThreadState call below, no message is actually sent anywhere)
 							final BucketActionMessage new_message = 
 									AnalyticTriggerBeanUtils.buildInternalEventMessage(msg.bucket(), msg.jobs(), msg.type(), locked_to_host);						
-							AnalyticTriggerCrudUtils.updateAnalyticThreadState(new_message, msg.bucket(), _bucket_status_crud.get(), Optional.empty()).join(); 
-							// (use the join to ensure that the status is updated before going any further - can't compose any futures because of the distributed mutex limitations)																					
-							
-							Optionals.ofNullable(msg.jobs()).stream().forEach(job -> { // (note don't need to worry about locking here)
-							
-								// 1.1) Create an active entry for that job
+							return AnalyticTriggerCrudUtils.updateAnalyticThreadState(new_message, msg.bucket(), _bucket_status_crud.get(), Optional.empty())
+								// (ensure that the status is updated before going any further)
+								.thenCompose(__ -> CompletableFuture.allOf(Optionals.ofNullable(msg.jobs()).stream().map(job -> { // (note don't need to worry about locking here)
 								
-								AnalyticTriggerCrudUtils.createActiveBucketOrJobRecord(trigger_crud, msg.bucket(), Optional.of(job), locked_to_host).join();
-							});
-							
-							// Always (re-)activ(at)e the bucket when I get a jobs message
-							// (safe but inefficient way of handling multiple triggers)
-							AnalyticTriggerCrudUtils.updateTriggersWithBucketOrJobActivation(trigger_crud, msg.bucket(), Optional.empty(), locked_to_host).join();
-							Optional.ofNullable(msg.jobs()).ifPresent(jobs -> 
-								AnalyticTriggerCrudUtils.updateTriggersWithBucketOrJobActivation(trigger_crud, msg.bucket(), Optional.of(jobs), locked_to_host).join()
-							);
-							
+									// 1.1) Create an active entry for that job
+									
+									return AnalyticTriggerCrudUtils.createActiveBucketOrJobRecord(trigger_crud, msg.bucket(), Optional.of(job), locked_to_host);
+								})
+								.toArray(CompletableFuture[]::new)))
+								
+								// Always (re-)activ(at)e the bucket when I get a jobs message
+								// (safe but inefficient way of handling multiple triggers)
+								.thenCompose(__ -> AnalyticTriggerCrudUtils.updateTriggersWithBucketOrJobActivation(trigger_crud, msg.bucket(), Optional.empty(), locked_to_host))
+								.thenCompose(__ -> Optional.ofNullable(msg.jobs()).<CompletableFuture<?>>map(jobs -> 
+									AnalyticTriggerCrudUtils.updateTriggersWithBucketOrJobActivation(trigger_crud, msg.bucket(), Optional.of(jobs), locked_to_host)
+								)
+								.orElse(CompletableFuture.completedFuture(Unit.unit())))
+								;
 						})
 			.when(BucketActionMessage.BucketActionAnalyticJobMessage.class, 
 					msg -> BucketActionMessage.BucketActionAnalyticJobMessage.JobMessageType.stopping == msg.type(),
@@ -622,16 +874,16 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 							//(this is only used for consistency inside the updateAnalyticThreadState call below, no message is actually sent anywhere)
 							final BucketActionMessage new_message = 
 									AnalyticTriggerBeanUtils.buildInternalEventMessage(msg.bucket(), msg.jobs(), msg.type(), locked_to_host);						
-							AnalyticTriggerCrudUtils.updateAnalyticThreadState(new_message, msg.bucket(), _bucket_status_crud.get(), Optional.empty()).join(); 
-							// (use the join to ensure that the status is updated before going any further - can't compose any futures because of the distributed mutex limitations)							
+							// (ensure that the status is updated before going any further)
+							CompletableFuture<?> updates = AnalyticTriggerCrudUtils.updateAnalyticThreadState(new_message, msg.bucket(), _bucket_status_crud.get(), Optional.empty());
 							
 							// 2.1) Check whether the completion of that job is a trigger anywhere
 							
-							Optionals.ofNullable(msg.jobs()).stream().forEach(job -> {
+							for (AnalyticThreadJobBean job: Optionals.ofNullable(msg.jobs())) {
 							
-								AnalyticTriggerCrudUtils.updateTriggerInputsWhenJobOrBucketCompletes(
-										trigger_crud, msg.bucket(), Optional.of(job), locked_to_host).join();								
-							});
+								updates = updates.thenCompose(__ -> AnalyticTriggerCrudUtils.updateTriggerInputsWhenJobOrBucketCompletes(
+										trigger_crud, msg.bucket(), Optional.of(job), locked_to_host));								
+							}
 														
 							// [REMOVED - 2.2) Check whether the completion of that job completes a bucket's entire analytic thread:]
 							
@@ -640,14 +892,15 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 
 							// 2.3) Remove the active entry for that job
 							
-							AnalyticTriggerCrudUtils.deleteActiveJobEntries(trigger_crud, msg.bucket(), msg.jobs(), locked_to_host).join();
+							updates = updates.thenCompose(__ -> AnalyticTriggerCrudUtils.deleteActiveJobEntries(trigger_crud, msg.bucket(), msg.jobs(), locked_to_host));
 							
 							// 2.4) Update any pending entries for this job
 							
-							Optionals.ofNullable(msg.jobs()).stream().forEach(job -> {
+							for (AnalyticThreadJobBean job: Optionals.ofNullable(msg.jobs())) {
 								
-								AnalyticTriggerCrudUtils.updateCompletedJob(trigger_crud, msg.bucket().full_name(), job.name(), locked_to_host).join();							
-							});							
+								updates = updates.thenCompose(__ -> AnalyticTriggerCrudUtils.updateCompletedJob(trigger_crud, msg.bucket().full_name(), job.name(), locked_to_host));							
+							}
+							return updates;
 						})
 			.when(BucketActionMessage.BucketActionAnalyticJobMessage.class, 
 					msg -> BucketActionMessage.BucketActionAnalyticJobMessage.JobMessageType.deleting == msg.type(),
@@ -672,14 +925,14 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 							// This is a special message indicating that the bucket has been updated and some jobs have been removed
 							// so just remove those jobs from the trigger database
 							
-							AnalyticTriggerCrudUtils.deleteOldTriggers(trigger_crud, msg.bucket().full_name(), 
+							return AnalyticTriggerCrudUtils.deleteOldTriggers(trigger_crud, msg.bucket().full_name(), 
 									Optional.ofNullable(Optionals.ofNullable(msg.jobs()).stream().map(j -> j.name()).collect(Collectors.toList())), 
 									locked_to_host, Date.from(Instant.now()));
 						})						
 			.otherwise(__ -> {
 				_logger.warn(ErrorUtils.get("Bucket {0}: received unknown message: {1}", message.bucket().full_name(), message.getClass().getSimpleName()));				
+				return CompletableFuture.completedFuture(Unit.unit());
 			}); //(ignore)
-		;
 	}
 
 	///////////////////////////////////////////////////////////////////////////////
@@ -693,9 +946,11 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 	 * @param mutable_internal_triggers_active
 	 * @param mutable_external_triggers_dormant
 	 * @param mutable_internal_triggers_dormant
-	 * @param mutable_newly_active_jobs
+	 * @param mutable_dormant_triggers - a mutable, thread safe, results collection for dormant triggers and their next check time, to update in bulk
+	 * @param now  - single global time when all checks are performed this cycle 
+	 * @return a future that completes when all the state changes (other than to the dormant triggers) are done
 	 */
-	public void triggerChecks_processResults(
+	public CompletableFuture<?> triggerChecks_processResults(
 			final DataBucketBean bucket_to_check, Optional<String> locked_to_host,
 			final Optional<AnalyticTriggerStateBean> active_bucket_record,
 			final LinkedList<AnalyticTriggerStateBean> mutable_active_jobs,
@@ -703,6 +958,7 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 			final LinkedList<AnalyticTriggerStateBean> mutable_internal_triggers_active,
 			final LinkedList<AnalyticTriggerStateBean> mutable_external_triggers_dormant,
 			final LinkedList<AnalyticTriggerStateBean> mutable_internal_triggers_dormant,
+			final Collection<Tuple2<Date, AnalyticTriggerStateBean>> mutable_dormant_triggers,
 			final Date now)
 	{
 		this.intializeStatusDatabase();
@@ -710,38 +966,45 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 		final ICrudService<AnalyticTriggerStateBean> trigger_crud = 
 				_service_context.getCoreManagementDbService().getAnalyticBucketTriggerState(AnalyticTriggerStateBean.class);
 		
-		final Date check_active_buckets_every_trigger = Date.from(Instant.now());
-		final Date next_inactive_bucket_check = AnalyticTriggerBeanUtils.getNextCheckTime(Date.from(Instant.now()), bucket_to_check);
+		// (use the global time so that the dormant triggers from different buckets can share bulk updates)
+		final Date check_active_buckets_every_trigger = now;
+		final Date next_inactive_bucket_check = AnalyticTriggerBeanUtils.getNextCheckTime(now, bucket_to_check);
+		
+		// (each step runs once the DB changes from the previous step are complete, the lists are modified as each step starts)
 		
 		// 0) Nice and quick, just update all the active beans
 		// (there are no decisions to make because we receive the replies asynchronously via bucket action analytic event messages)
 		
-		triggerChecks_processResults_currentlyActiveJobs(trigger_crud, bucket_to_check, locked_to_host, check_active_buckets_every_trigger, mutable_active_jobs);
-		
-		// 1) OK (in theory only one of these 2 things should occur)
-		
-		// 1.1) should we activate a bucket based on external dependencies
+		return triggerChecks_processResults_currentlyActiveJobs(trigger_crud, bucket_to_check, locked_to_host, check_active_buckets_every_trigger, mutable_active_jobs)
 		
-		triggerChecks_processResults_currentlyInactiveBuckets(trigger_crud, bucket_to_check, locked_to_host, next_inactive_bucket_check, now, mutable_external_triggers_active, mutable_external_triggers_dormant);		
-		
-		// 1.2) should we activate a job from an active bucket based on internal dependencies
-
-		triggerChecks_processResults_currentlyInactiveJobs(trigger_crud, bucket_to_check, locked_to_host, check_active_buckets_every_trigger, now, mutable_internal_triggers_active, mutable_internal_triggers_dormant);
-		
-		// 1.3) if there are no activated jobs either in the data or from step 1.3 then might need to de-activate active buckets
-				
-		if (active_bucket_record.isPresent() && mutable_active_jobs.isEmpty()) {
-			// It looks like the bucket should no longer be active - check for sure
-			triggerChecks_processResults_currentActiveBuckets(trigger_crud, bucket_to_check, active_bucket_record.get(), locked_to_host, check_active_buckets_every_trigger, now, mutable_external_triggers_active, mutable_internal_triggers_active);
-		}
-		
-		// 2) Update all the unused triggers (do these 2 steps separately, since the next check time is different) 
-		if (!mutable_external_triggers_dormant.isEmpty()) {
-			AnalyticTriggerCrudUtils.updateTriggerStatuses(trigger_crud, mutable_external_triggers_dormant.stream(), next_inactive_bucket_check, Optional.empty()).join();
-		}
-		if (!mutable_internal_triggers_dormant.isEmpty()) {
-			AnalyticTriggerCrudUtils.updateTriggerStatuses(trigger_crud, mutable_internal_triggers_dormant.stream(), check_active_buckets_every_trigger, Optional.empty()).join();			
-		}
+			// 1) OK (in theory only one of these 2 things should occur)
+			
+			// 1.1) should we activate a bucket based on external dependencies
+			
+			.thenCompose(__ -> triggerChecks_processResults_currentlyInactiveBuckets(trigger_crud, bucket_to_check, locked_to_host, next_inactive_bucket_check, now, mutable_external_triggers_active, mutable_external_triggers_dormant))
+			
+			// 1.2) should we activate a job from an active bucket based on internal dependencies
+	
+			.thenCompose(__ -> triggerChecks_processResults_currentlyInactiveJobs(trigger_crud, bucket_to_check, locked_to_host, check_active_buckets_every_trigger, now, mutable_internal_triggers_active, mutable_internal_triggers_dormant))
+			
+			// 1.3) if there are no activated jobs either in the data or from step 1.3 then might need to de-activate active buckets
+			
+			.thenCompose(__ -> {
+				final CompletableFuture<?> bucket_changes;
+				if (active_bucket_record.isPresent() && mutable_active_jobs.isEmpty()) {
+					// It looks like the bucket should no longer be active - check for sure
+					bucket_changes = triggerChecks_processResults_currentActiveBuckets(trigger_crud, bucket_to_check, active_bucket_record.get(), locked_to_host, check_active_buckets_every_trigger, now, mutable_external_triggers_active, mutable_internal_triggers_active);
+				}
+				else bucket_changes = CompletableFuture.completedFuture(Unit.unit());
+				return bucket_changes;
+			})
+			
+			// 2) Hand back all the unused triggers to be updated in bulk across buckets (the 2 types have different next check times) 
+			
+			.thenAccept(__ -> {
+				mutable_external_triggers_dormant.forEach(t -> mutable_dormant_triggers.add(Tuples._2T(next_inactive_bucket_check, t)));
+				mutable_internal_triggers_dormant.forEach(t -> mutable_dormant_triggers.add(Tuples._2T(check_active_buckets_every_trigger, t)));
+			});
 	}
 	
 	/** Specifically handles currently active jobs - here we have requested status information via asynchronous messaging
@@ -749,8 +1012,9 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 	 * @param trigger_crud
 	 * @param bucket_to_check
 	 * @param mutable_active_jobs
+	 * @return a future that completes when the state has been updated
 	 */
-	public void triggerChecks_processResults_currentlyActiveJobs(
+	public CompletableFuture<?> triggerChecks_processResults_currentlyActiveJobs(
 			final ICrudService<AnalyticTriggerStateBean> trigger_crud,
 			final DataBucketBean bucket_to_check, Optional<String> locked_to_host,
 			final Date next_check,
@@ -758,8 +1022,9 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 	{
 		// (the job statuses are updated as they are received)
 		if (!mutable_active_jobs.isEmpty()) {
-			AnalyticTriggerCrudUtils.updateActiveJobTriggerStatus(trigger_crud, bucket_to_check, next_check).join();
+			return AnalyticTriggerCrudUtils.updateActiveJobTriggerStatus(trigger_crud, bucket_to_check, next_check);
 		}			
+		else return CompletableFuture.completedFuture(Unit.unit());
 	}
 	
 	/** Specifically handles active buckets - decide whether to mark the bucket as complete
@@ -771,8 +1036,9 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 	 * @param now  - single global time when all checks are performed this cycle 
 	 * @param mutable_external_triggers_active
 	 * @param mutable_internal_triggers_active
+	 * @return a future that completes when the state has been updated
 	 */
-	public void triggerChecks_processResults_currentActiveBuckets(
+	public CompletableFuture<?> triggerChecks_processResults_currentActiveBuckets(
 			final ICrudService<AnalyticTriggerStateBean> trigger_crud,
 			final DataBucketBean bucket_to_check, final AnalyticTriggerStateBean bucket_active_record, Optional<String> locked_to_host,
 			final Date next_check, final Date now,
@@ -794,7 +1060,7 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 							()->ErrorUtils.get("Ignoring possible de-activation of newly activated bucket {0}", bucket_to_check.full_name()), 
 							()->Collections.emptyMap()));														
 			
-			return;
+			return CompletableFuture.completedFuture(Unit.unit());
 		}
 		
 		if (mutable_external_triggers_active.isEmpty() && mutable_internal_triggers_active.isEmpty()) {
@@ -807,38 +1073,42 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 			
 			// If so:
 			
-			final boolean bucket_still_active = 
-					AnalyticTriggerCrudUtils.areAnalyticJobsActive(trigger_crud, bucket_to_check.full_name(), Optional.empty(), locked_to_host).join();
-
-			if (!bucket_still_active) {
-				_logging_service.getSystemLogger(bucket_to_check).log(Level.INFO, 
-						ErrorUtils.lazyBuildMessage(
-								true, 
-								()->this.getClass().getSimpleName(), 
-								()->"currentActiveBuckets", 
-								()->null, 
-								()->ErrorUtils.get("Bucket {0}: changed to inactive", bucket_to_check.full_name()), 
-								()->Collections.emptyMap()));														
+			return AnalyticTriggerCrudUtils.areAnalyticJobsActive(trigger_crud, bucket_to_check.full_name(), Optional.empty(), locked_to_host)
+					.thenCompose(bucket_still_active -> {
+						final CompletableFuture<?> bucket_changes;
+						if (!bucket_still_active) {
+							_logging_service.getSystemLogger(bucket_to_check).log(Level.INFO, 
+									ErrorUtils.lazyBuildMessage(
+											true, 
+											()->this.getClass().getSimpleName(), 
+											()->"currentActiveBuckets", 
+											()->null, 
+											()->ErrorUtils.get("Bucket {0}: changed to inactive", bucket_to_check.full_name()), 
+											()->Collections.emptyMap()));														
 				
-				// Send a message to the technology
+							// Send a message to the technology
 
-				final BucketActionMessage new_message = 
-						AnalyticTriggerBeanUtils.buildInternalEventMessage(bucket_to_check, null, JobMessageType.stopping, locked_to_host);						
+							final BucketActionMessage new_message = 
+									AnalyticTriggerBeanUtils.buildInternalEventMessage(bucket_to_check, null, JobMessageType.stopping, locked_to_host);						
 
-				AnalyticTriggerCrudUtils.updateAnalyticThreadState(new_message, bucket_to_check, _bucket_status_crud.get(), Optional.of(now))
-					.thenAccept(res -> { if (res) AnalyticTriggerBeanUtils.sendInternalEventMessage(new_message, _bucket_status_crud.get(), _bucket_test_status_crud.get()); });
-				//(don't wait for a reply or anything)
+							AnalyticTriggerCrudUtils.updateAnalyticThreadState(new_message, bucket_to_check, _bucket_status_crud.get(), Optional.of(now))
+								.thenAccept(res -> { if (res) AnalyticTriggerBeanUtils.sendInternalEventMessage(new_message, _bucket_status_crud.get(), _bucket_test_status_crud.get()); });
+							//(don't wait for a reply or anything)
 				
-				// Delete the bucket record
+							// Delete the bucket record
 				
-				AnalyticTriggerCrudUtils.deleteActiveBucketRecord(trigger_crud, bucket_to_check.full_name(), locked_to_host).join();
+							bucket_changes = AnalyticTriggerCrudUtils.deleteActiveBucketRecord(trigger_crud, bucket_to_check.full_name(), locked_to_host)
 				
-				// Also update triggers that might depend on this bucket:
+							// Also update triggers that might depend on this bucket:
 				
-				AnalyticTriggerCrudUtils.updateTriggerInputsWhenJobOrBucketCompletes(
-						trigger_crud, bucket_to_check, Optional.empty(), locked_to_host).join();								
-			}
+									.thenCompose(__ -> AnalyticTriggerCrudUtils.updateTriggerInputsWhenJobOrBucketCompletes(
+											trigger_crud, bucket_to_check, Optional.empty(), locked_to_host));								
+						}
+						else bucket_changes = CompletableFuture.completedFuture(Unit.unit());
+						return bucket_changes;
+					});
 		}
+		else return CompletableFuture.completedFuture(Unit.unit());
 	}
 	
 	/** Specifically handles inactive buckets - decide whether to activate the bucket or not
@@ -849,8 +1119,9 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 	 * @param now  - single global time when all checks are performed this cycle 
 	 * @param mutable_external_triggers_active
 	 * @param mutable_external_triggers_dormant
+	 * @return a future that completes when the state has been updated
 	 */
-	public void triggerChecks_processResults_currentlyInactiveBuckets(
+	public CompletableFuture<?> triggerChecks_processResults_currentlyInactiveBuckets(
 			final ICrudService<AnalyticTriggerStateBean> trigger_crud,
 			final DataBucketBean bucket_to_check, Optional<String> locked_to_host,
 			final Date next_check, final Date now,
@@ -906,16 +1177,17 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 				// (actually _don't_ do this unless I get a return from the tech via onAnalyticBucketEvent)
 				
 				// 3) Create an active bucket record
-				AnalyticTriggerCrudUtils.createActiveBucketOrJobRecord(trigger_crud, bucket_to_check, Optional.empty(), locked_to_host).join();
+				return AnalyticTriggerCrudUtils.createActiveBucketOrJobRecord(trigger_crud, bucket_to_check, Optional.empty(), locked_to_host)
 				
 				// 4) Also update the states:
 				
-				AnalyticTriggerCrudUtils.updateTriggerStatuses(trigger_crud, mutable_external_triggers_active.stream(), next_check, Optional.of(true)).join();				
+						.thenCompose(__ -> AnalyticTriggerCrudUtils.updateTriggerStatuses(trigger_crud, mutable_external_triggers_active.stream(), next_check, Optional.of(true)));				
 			}
 			else { // Treat these as if they never triggered at all:
 				mutable_external_triggers_dormant.addAll(mutable_external_triggers_active);
 			}
 		}
+		return CompletableFuture.completedFuture(Unit.unit());
 	}
 
 	 /** Specifically handles inactive jobs inside active bucketes - decide whether to activate the job or not
@@ -926,8 +1198,9 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 	 * @param now  - single global time when all checks are performed this cycle 
 	 * @param mutable_internal_triggers_active
 	 * @param mutable_internal_triggers_dormant
+	 * @return a future that completes when the state has been updated
 	 */
-	public void triggerChecks_processResults_currentlyInactiveJobs(
+	public CompletableFuture<?> triggerChecks_processResults_currentlyInactiveJobs(
 			final ICrudService<AnalyticTriggerStateBean> trigger_crud,
 			final DataBucketBean bucket_to_check, Optional<String> locked_to_host,
 			final Date next_check, final Date now,
@@ -971,6 +1244,7 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 
 		// the jobs:
 		
+		final CompletableFuture<?> new_job_records;
 		if (!mutable_newly_active_jobs.isEmpty()) {
 			final BucketActionMessage new_message = AnalyticTriggerBeanUtils.buildInternalEventMessage(bucket_to_check, mutable_newly_active_jobs, JobMessageType.starting, locked_to_host);
 
@@ -991,13 +1265,16 @@ public class AnalyticsTriggerWorkerActor extends UntypedActor {
 			
 			// But do immediately set up the jobs as active - if the tech fails, then we'll find out when we poll them later
 			
-			mutable_newly_active_jobs.stream().parallel().forEach(job ->
-				AnalyticTriggerCrudUtils.createActiveBucketOrJobRecord(trigger_crud, bucket_to_check, Optional.of(job), locked_to_host).join());
-			
-		}		
+			new_job_records = CompletableFuture.allOf(mutable_newly_active_jobs.stream().map(job ->
+				AnalyticTriggerCrudUtils.createActiveBucketOrJobRecord(trigger_crud, bucket_to_check, Optional.of(job), locked_to_host))
+				.toArray(CompletableFuture[]::new));
+		}
+		else new_job_records = CompletableFuture.completedFuture(Unit.unit());
+		
 		// the triggers:
 		// (note that all internal active triggers that remain at this point are "legit" (unlike external where you can have partial triggering)
 		
-		AnalyticTriggerCrudUtils.updateTriggerStatuses(trigger_crud, mutable_internal_triggers_active.stream(), next_check, Optional.of(true)).join();				
+		return new_job_records.thenCompose(__ -> 
+				AnalyticTriggerCrudUtils.updateTriggerStatuses(trigger_crud, mutable_internal_triggers_active.stream(), next_check, Optional.of(true)));				
 	}
 }
@@ -336,6 +336,11 @@ public class DataBucketAnalyticsChangeActor extends AbstractActor {
 			})
 			.thenAccept(reply -> { // (reply can contain an error or successful reply, they're the same bean type)
 				
+				if (reply instanceof BucketActionReplyMessage.BucketActionWillAcceptMessage) {
+					// (this node might be about to run the bucket, so start copying the rest of its libraries now)
+					LibraryCacheUtils.prefetchJars(message.bucket(), getAnalyticsTechnologyName(message.bucket()), getQuery(message.bucket(), false), _management_db, _globals, _fs, _context.getServiceContext(), hostname, message);
+				}
+				
 				if (!(reply instanceof BucketActionReplyMessage.BucketActionNullReplyMessage)) {
 					
 					// Some information logging:
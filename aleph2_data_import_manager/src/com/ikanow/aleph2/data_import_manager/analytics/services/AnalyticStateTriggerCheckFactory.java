@@ -15,11 +15,17 @@
  *******************************************************************************/
 package com.ikanow.aleph2.data_import_manager.analytics.services;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Map;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 
 
@@ -31,8 +37,15 @@ import org.apache.logging.log4j.Logger;
 
 
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.inject.Inject;
+import com.ikanow.aleph2.data_import_manager.analytics.utils.AnalyticTriggerBeanUtils;
+import com.ikanow.aleph2.data_import_manager.utils.DirectoryListingUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.IReadOnlyCrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadJobBean;
 import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadTriggerBean.AnalyticThreadComplexTriggerBean.TriggerType;
@@ -63,8 +76,17 @@ public class AnalyticStateTriggerCheckFactory {
 	protected final IServiceContext _service_context;
 	protected final SetOnce<FileContext> _file_context = new SetOnce<>();
 	
-	protected final Map<String, DataBucketBean> _bucket_cache = new ConcurrentHashMap<>();
-	protected final Map<String, DataBucketStatusBean> _bucket_status_cache = new ConcurrentHashMap<>();
+	public final static int MAX_CACHED_BUCKETS = 5000;
+	public final static long BUCKET_CACHE_TTL_SECS = 300L;
+	public final static int MAX_CACHED_DIRECTORIES = 20000;
+	public final static long DIRECTORY_CACHE_TTL_SECS = 3600L;
+	
+	protected final Cache<String, Optional<DataBucketBean>> _bucket_cache = 
+			CacheBuilder.newBuilder().maximumSize(MAX_CACHED_BUCKETS).expireAfterWrite(BUCKET_CACHE_TTL_SECS, TimeUnit.SECONDS).build();
+	protected final Cache<String, Optional<DataBucketStatusBean>> _bucket_status_cache = 
+			CacheBuilder.newBuilder().maximumSize(MAX_CACHED_BUCKETS).expireAfterWrite(BUCKET_CACHE_TTL_SECS, TimeUnit.SECONDS).build();
+	protected final Cache<String, DirectoryListing> _directory_cache = 
+			CacheBuilder.newBuilder().maximumSize(MAX_CACHED_DIRECTORIES).expireAfterAccess(DIRECTORY_CACHE_TTL_SECS, TimeUnit.SECONDS).build();
 	
 	/** User c'tor
 	 */
@@ -80,37 +102,155 @@ public class AnalyticStateTriggerCheckFactory {
 	}
 	
 	/** Clears the bucket and bucket status cache available across all the checkers
+	 *  (the directory listing cache validates itself against the directories' modification times, so isn't cleared)
 	 */
 	public void resetCache() {
-		_bucket_cache.clear();
-		_bucket_status_cache.clear();
+		_bucket_cache.invalidateAll();
+		_bucket_status_cache.invalidateAll();
 	}
 	
-	/** Retrieves/caches bucket
+	/** Retrieves/caches bucket (entries expire after BUCKET_CACHE_TTL_SECS so changes to the bucket are picked up,
+	 *  misses aren't cached so a newly created bucket is picked up immediately)
 	 * @param name (bucket full_name)
 	 * @return
 	 */
 	public DataBucketBean getBucket(final String name) {
-		return _bucket_cache.computeIfAbsent(name, n -> {
+		return getUnlessMissing(_bucket_cache, name, () -> {
 			return _service_context.getCoreManagementDbService().readOnlyVersion().getDataBucketStore()
-						.getObjectBySpec(CrudUtils.allOf(DataBucketBean.class).when(DataBucketBean::full_name, n))
-						.join().orElse(null)
+						.getObjectBySpec(CrudUtils.allOf(DataBucketBean.class).when(DataBucketBean::full_name, name))
+						.join()
 			;
 		});
 	}
-	/** Retrieves/caches bucket status
+	/** Retrieves/caches bucket status (entries expire after BUCKET_CACHE_TTL_SECS so changes to the status are picked up,
+	 *  misses aren't cached so a newly created bucket's status is picked up immediately)
 	 * @param name (bucket full_name)
 	 * @return
 	 */
 	public DataBucketStatusBean getBucketStatus(final String name) {
-		return _bucket_status_cache.computeIfAbsent(name, n -> {
+		return getUnlessMissing(_bucket_status_cache, name, () -> {
 			return _service_context.getCoreManagementDbService().readOnlyVersion().getDataBucketStatusStore()
-						.getObjectBySpec(CrudUtils.allOf(DataBucketStatusBean.class).when(DataBucketStatusBean::bucket_path, n))
-						.join().orElse(null)
+						.getObjectBySpec(CrudUtils.allOf(DataBucketStatusBean.class).when(DataBucketStatusBean::bucket_path, name))
+						.join()
 			;
 		});
 	}
 	
+	/** Reads through one of the bucket caches, but doesn't keep misses in the cache
+	 * @param cache
+	 * @param name
+	 * @param loader
+	 * @return the object, or null if it doesn't exist
+	 */
+	protected static <T> T getUnlessMissing(final Cache<String, Optional<T>> cache, final String name, final Callable<Optional<T>> loader) {
+		final Optional<T> ret_val = Lambdas.get(Lambdas.wrap_u(() -> cache.get(name, loader)));
+		if (!ret_val.isPresent()) {
+			cache.invalidate(name);
+		}
+		return ret_val.orElse(null);
+	}
+	
+	///////////////////////////////////////////////////////////////////////////////
+	
+	// DIRECTORY LISTING CACHE
+	
+	/** A cached listing of a single directory level
+	 * @author Alex
+	 */
+	protected static class DirectoryListing {
+		protected DirectoryListing(final long modification_time, final long listed_at, final FileStatus[] contents) {
+			this.modification_time = modification_time;
+			this.listed_at = listed_at;
+			this.num_entries = contents.length;
+			this.file_bytes = Arrays.stream(contents).filter(f -> !f.isDirectory()).mapToLong(f -> f.getLen()).sum();
+			this.subdirs = Collections.unmodifiableList(Arrays.stream(contents).filter(f -> f.isDirectory()).map(f -> f.getPath()).collect(Collectors.toList()));
+		}
+		public final long modification_time;
+		public final long listed_at;
+		public final int num_entries;
+		public final long file_bytes;
+		public final List<Path> subdirs;
+		
+		/** Whether this listing is still valid for a directory with the specified modification time (see DirectoryListingUtils)
+		 * @param curr_modification_time
+		 * @return
+		 */
+		public boolean isValidFor(final long curr_modification_time) {
+			return DirectoryListingUtils.isListingValid(modification_time, listed_at, curr_modification_time);
+		}
+	}
+	
+	/** Returns the listing of a single directory level, which costs a single getFileStatus if the directory hasn't changed since it was last listed
+	 *  (note directory modification times only change when entries are added/removed/renamed, which is how files are moved into both the input and the output directories)
+	 * @param path - the directory to list
+	 * @return the listing, or Optional.empty() if the directory doesn't exist 
+	 * @throws IOException
+	 */
+	protected Optional<DirectoryListing> getDirectoryListing(final Path path) throws IOException {
+		final FileContext file_context = getFileContext();
+		final FileStatus dir_status;
+		try {
+			dir_status = file_context.getFileStatus(path);
+		}
+		catch (FileNotFoundException e) {
+			_directory_cache.invalidate(path.toString());
+			return Optional.empty();
+		}
+		final DirectoryListing cached = _directory_cache.getIfPresent(path.toString());
+		if ((null != cached) && cached.isValidFor(dir_status.getModificationTime())) {
+			return Optional.of(cached);
+		}
+		else {
+			final long listed_at = System.currentTimeMillis();
+			final DirectoryListing listing = new DirectoryListing(dir_status.getModificationTime(), listed_at, file_context.util().listStatus(path));
+			_directory_cache.put(path.toString(), listing);
+			return Optional.of(listing);
+		}
+	}
+	
+	/** Returns the total size of the files under a directory, only re-listing the directories that have changed since they were last listed
+	 * @param path - the root directory
+	 * @return the total size in bytes (0 if the directory doesn't exist)
+	 * @throws IOException
+	 */
+	protected long getDirectorySize(final Path path) throws IOException {
+		final Optional<DirectoryListing> listing = getDirectoryListing(path);
+		if (!listing.isPresent()) return 0L;
+		
+		long total_bytes = listing.get().file_bytes;
+		for (Path subdir: listing.get().subdirs) {
+			total_bytes += getDirectorySize(subdir);
+		}
+		return total_bytes;
+	}
+	
+	/** Lazily grabs the file context from the storage service
+	 * @return
+	 */
+	protected FileContext getFileContext() {
+		if (!_file_context.isSet()) {
+			_file_context.set(_service_context.getStorageService().getUnderlyingPlatformDriver(FileContext.class, Optional.empty()).get());
+		}
+		return _file_context.get();
+	}
+	
+	/** Returns a read-only CRUD service pointing at the specified bucket in the specified data service 
+	 * @param bucket - the bucket whose data is being checked
+	 * @param data_service - search_index_service or document_service
+	 * @return
+	 */
+	protected Optional<IReadOnlyCrudService<JsonNode>> getReadableCrudService(final DataBucketBean bucket, final Optional<String> data_service) {
+		final Optional<? extends IDataServiceProvider> service_provider = Patterns.match().<Optional<? extends IDataServiceProvider>>andReturn()
+				.when(__ -> search_index_service.equals(data_service), __ -> _service_context.getSearchIndexService())
+				.when(__ -> document_service.equals(data_service), __ -> _service_context.getDocumentService())
+				.otherwise(__ -> Optional.empty())
+				;
+		return service_provider.flatMap(s -> s.getDataService())
+					.flatMap(s -> s.getReadableCrudService(JsonNode.class, Arrays.asList(bucket), Optional.empty()));
+	}
+	
+	///////////////////////////////////////////////////////////////////////////////
+	
 	/** Interface for performing the trigger check
 	 * @author Alex
 	 */
@@ -136,13 +276,14 @@ public class AnalyticStateTriggerCheckFactory {
 				.when(__ -> TriggerType.time == trigger_type, __ -> new AlwaysChecker())
 				.when(__ -> (TriggerType.bucket == trigger_type) && !data_service.isPresent(), __ -> new NeverChecker())
 				.when(__ -> (TriggerType.bucket == trigger_type) && storage_service.equals(data_service), __ -> new BucketStorageChecker())
-				.when(__ -> (TriggerType.bucket == trigger_type) && search_index_service.equals(data_service), __ -> new CrudChecker())
-				.when(__ -> (TriggerType.bucket == trigger_type) && document_service.equals(data_service), __ -> new CrudChecker())
+				.when(__ -> (TriggerType.bucket == trigger_type) && search_index_service.equals(data_service), __ -> new CrudChecker(data_service))
+				.when(__ -> (TriggerType.bucket == trigger_type) && document_service.equals(data_service), __ -> new CrudChecker(data_service))
 				.otherwise(__ -> new NeverChecker()) // (not currently supported, eg custom)
 				;
 	}
 	
 	/** Checks if files are present in this bucket's input directory
+	 *  (the listing is cached, so an unchanged directory only costs a single getFileStatus)
 	 *  TODO (ALEPH-12): hmm I think the idea was that this would also point to external
 	 *  and then you'd use a bucket check
 	 * @author alex
@@ -158,10 +299,6 @@ public class AnalyticStateTriggerCheckFactory {
 				AnalyticTriggerStateBean trigger, final Date at)
 		{
 			try {
-				if (!_file_context.isSet()) {
-					_file_context.set(_service_context.getStorageService().getUnderlyingPlatformDriver(FileContext.class, Optional.empty()).get());
-				}
-				
 				// Count the files
 				
 				//TODO (ALEPH-12): need to check if this is permitted by security in general (the input paths are pre-checked though)
@@ -174,21 +311,15 @@ public class AnalyticStateTriggerCheckFactory {
 								+ IStorageService.TO_IMPORT_DATA_SUFFIX
 								;
 					
-					final Path path = new Path(path_name);
+					final long num_files = getDirectoryListing(new Path(path_name)).map(listing -> (long) listing.num_entries).orElse(0L);
 					
-					if (_file_context.get().util().exists(path)) {						
-						FileStatus[] status = _file_context.get().util().listStatus(path);				
-						
-						if (status.length > 0) {
-							_logger.info(ErrorUtils.get("For bucket:job {0}:{1}, found {2} files in bucket {3}", bucket.full_name(), 
-									job.map(j -> j.name()).orElse("(no job)"),
-									status.length, trigger.input_resource_name_or_id()
-									));
-						}
-						
-						return (long) status.length;
+					if (num_files > 0) {
+						_logger.info(ErrorUtils.get("For bucket:job {0}:{1}, found {2} files in bucket {3}", bucket.full_name(), 
+								job.map(j -> j.name()).orElse("(no job)"),
+								num_files, trigger.input_resource_name_or_id()
+								));
 					}
-					else return 0L;
+					return num_files;
 				}));
 				return CompletableFuture.completedFuture(Tuples._2T(files > 0, files));
 			}
@@ -204,10 +335,17 @@ public class AnalyticStateTriggerCheckFactory {
 	}
 	
 	/** Checks the size of CRUD-accessible services, like the search index service and document service
+	 *  - the resource size is the number of records in the bucket, and it triggers once more than resource_limit records have been added 
+	 *    since the trigger was last activated 
 	 * @author alex
 	 */
 	protected class CrudChecker implements AnalyticStateChecker {
-
+		protected final Optional<String> _data_service;
+		
+		protected CrudChecker(final Optional<String> data_service) {
+			_data_service = data_service;
+		}
+		
 		/* (non-Javadoc)
 		 * @see com.ikanow.aleph2.data_import_manager.analytics.services.AnalyticStateTriggerCheckFactory.AnalyticStateChecker#check(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean, java.util.Optional, com.ikanow.aleph2.management_db.data_model.AnalyticTriggerStateBean, java.util.Date)
 		 */
@@ -216,8 +354,28 @@ public class AnalyticStateTriggerCheckFactory {
 				DataBucketBean bucket, Optional<AnalyticThreadJobBean> job,
 				AnalyticTriggerStateBean trigger, final Date at) {
 			
-			//TODO (ALEPH-12): implement this:
-			return CompletableFuture.completedFuture(Tuples._2T(false, trigger.curr_resource_size()));
+			//TODO: what about multi-buckets? could in theory support (getReadableCrudService takes a list of buckets)
+			
+			try {
+				final Optional<IReadOnlyCrudService<JsonNode>> crud_service = 
+						Optional.ofNullable(getBucket(trigger.input_resource_name_or_id()))
+							.flatMap(target_bucket -> getReadableCrudService(target_bucket, _data_service));
+				
+				if (!crud_service.isPresent()) {
+					return CompletableFuture.completedFuture(Tuples._2T(false, trigger.curr_resource_size()));
+				}
+				return crud_service.get().countObjects()
+						.thenApply(count -> Tuples._2T(isOverLimit(trigger, count), count))
+						.exceptionally(e -> {
+							_logger.warn(ErrorUtils.getLongForm("{0}", e));
+							return Tuples._2T(false, trigger.curr_resource_size());
+						});
+			}
+			catch (Exception e) {
+				_logger.warn(ErrorUtils.getLongForm("{0}", e));
+				
+				return CompletableFuture.completedFuture(Tuples._2T(false, trigger.curr_resource_size()));
+			}
 		}
 		
 	}
@@ -226,7 +384,10 @@ public class AnalyticStateTriggerCheckFactory {
 	// and also b) <bucket>:<job-name> (ie transient storage .. hmm i think you want to do bucket for that?
 	// and then also c) <bucket-import> and d) random files handled above
 	
-	/** Checks whether files are present in the bucket's output directory
+	/** Checks the size of the files in the bucket's output directory (<bucket>:raw|json|processed, defaults to processed)
+	 *  - the resource size is the total size in bytes, and it triggers once more than resource_limit MB has been added 
+	 *    since the trigger was last activated
+	 *  - the first level of directories is listed each time, but only directories that have changed since the last check are re-listed
 	 * @author alex
 	 */
 	protected class BucketStorageChecker implements AnalyticStateChecker {
@@ -239,21 +400,53 @@ public class AnalyticStateTriggerCheckFactory {
 				DataBucketBean bucket, Optional<AnalyticThreadJobBean> job,
 				AnalyticTriggerStateBean trigger, final Date at) {
 			
-			
-			// OK there's a few things going on here
-			// 1) need to distinguish between raw/json/processed
-			// 2) search the first level of directories for time > now
-			// 3) within each matching dir, search for files with time > now
-			// 4) sum size of files
-			
 			//TODO: what about multi-buckets? could in theory support
 			
-			// TODO Auto-generated method stub
-			return CompletableFuture.completedFuture(Tuples._2T(false, trigger.curr_resource_size()));
+			try {
+				final long bytes = Lambdas.get(Lambdas.wrap_u(() -> {
+					final String path_name = 
+							_service_context.getStorageService().getBucketRootPath() 
+								+ trigger.input_resource_name_or_id()
+								+ getStorageSuffix(trigger.input_resource_combined())
+								;
+					
+					return getDirectorySize(new Path(path_name));
+				}));
+				return CompletableFuture.completedFuture(Tuples._2T(isOverLimit(trigger, bytes), bytes));
+			}
+			catch (Exception e) {
+				_logger.warn(ErrorUtils.getLongForm("{0}", e));
+				
+				return CompletableFuture.completedFuture(Tuples._2T(false, trigger.curr_resource_size()));
+			}
 		}
 		
 	}
 	
+	/** Returns the storage service sub-directory for a <bucket>:raw|json|processed resource (defaults to processed)
+	 * @param input_resource_combined
+	 * @return
+	 */
+	protected static String getStorageSuffix(final String input_resource_combined) {
+		final String[] resource_subchannel = Optional.ofNullable(input_resource_combined).orElse("").split(":");
+		final String subchannel = (resource_subchannel.length > 1) ? resource_subchannel[1] : "";
+		
+		return Patterns.match(subchannel).<String>andReturn()
+				.when(s -> s.equals("raw"), __ -> IStorageService.STORED_DATA_SUFFIX_RAW)
+				.when(s -> s.equals("json"), __ -> IStorageService.STORED_DATA_SUFFIX_JSON)
+				.otherwise(__ -> IStorageService.STORED_DATA_SUFFIX_PROCESSED)
+				;
+	}
+	
+	/** Whether the resource has grown by more than the trigger's limit since the trigger was last activated
+	 * @param trigger
+	 * @param curr_resource_size
+	 * @return
+	 */
+	protected static boolean isOverLimit(final AnalyticTriggerStateBean trigger, final long curr_resource_size) {
+		return (curr_resource_size - Optional.ofNullable(trigger.last_resource_size()).orElse(0L)) > AnalyticTriggerBeanUtils.getResourceLimit(trigger);
+	}
+	
 	/** Always returns rue
 	 *  Used for pure time triggers
 	 * @author Alex
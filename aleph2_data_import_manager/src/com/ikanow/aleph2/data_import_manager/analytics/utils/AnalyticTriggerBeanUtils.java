@@ -42,6 +42,7 @@ import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadTrigger
 import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadTriggerBean.AnalyticThreadComplexTriggerBean.TriggerType;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketStatusBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.BucketUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
@@ -62,6 +63,8 @@ import com.ikanow.aleph2.management_db.services.ManagementDbActorContext;
 public class AnalyticTriggerBeanUtils {
 	private static final Logger _logger = LogManager.getLogger();	
 	
+	public final static long BYTES_PER_MB = 1024L*1024L;
+	
 	/** Generates a list of analytic trigger states from a job
 	 * @param bucket
 	 * @param job
@@ -293,6 +296,19 @@ public class AnalyticTriggerBeanUtils {
 		return trigger_info;
 	}
 	
+	/** Returns the trigger's resource limit in the same units as its resource sizes
+	 *  (the user specifies storage service limits in MB, but the storage checker measures sizes in bytes) 
+	 * @param trigger
+	 * @return
+	 */
+	public static long getResourceLimit(final AnalyticTriggerStateBean trigger) {
+		final long resource_limit = Optional.ofNullable(trigger.resource_limit()).orElse(0L);
+		return ((TriggerType.bucket == trigger.trigger_type()) 
+					&& DataSchemaBean.StorageSchemaBean.name.equals(trigger.input_data_service()))
+				? resource_limit*BYTES_PER_MB
+				: resource_limit;
+	}
+	
 	/** Simple utility to compare a few longs to decide if an updated trigger has activated 
 	 * @param trigger
 	 * @return
@@ -303,7 +319,7 @@ public class AnalyticTriggerBeanUtils {
 			(null != trigger.last_resource_size()))
 		{
 			return (trigger.curr_resource_size() - trigger.last_resource_size())
-					> Optional.ofNullable(trigger.resource_limit()).orElse(0L);
+					> getResourceLimit(trigger);
 		}
 		else return false;																
 	}
@@ -78,6 +78,32 @@ public class AnalyticTriggerCoreUtils {
 			;
 	}
 	
+	/** Filters out the triggers that this worker doesn't own (see TriggerOwnershipRing) - doesn't need any ZK calls per trigger, and is
+	 *  applied before registerOwnershipOfTriggers so that workers only grab (uncontended) mutexes for their own triggers
+	 * @param all_triggers - triggers indexed by bucket (+host for host-locked jobs)
+	 * @param ownership - the ownership snapshot for the current check cycle
+	 * @return - filtered trigger set, still indexed by bucket
+	 */
+	public static Map<Tuple2<String, String>, List<AnalyticTriggerStateBean>> selectOwnedTriggers(
+			final Map<Tuple2<String, String>, List<AnalyticTriggerStateBean>> all_triggers, 
+			final TriggerOwnershipRing.Ownership ownership
+			)
+	{
+		return all_triggers.entrySet()
+			.stream()
+			.filter(kv -> ownership.isOwner(getTriggerKey(kv.getKey())))
+			.collect(Collectors.toMap(kv -> kv.getKey(), kv -> kv.getValue()))
+			;
+	}
+	
+	/** Returns the key used to decide ownership of a set of triggers
+	 * @param bucket_host - the bucket name and (optional, can be null) host
+	 * @return
+	 */
+	public static String getTriggerKey(final Tuple2<String, String> bucket_host) {
+		return BucketUtils.getUniqueSignature(bucket_host._1(), Optional.ofNullable(bucket_host._2()));
+	}
+	
 	/** Deregister interest in triggers once we have completed processing them
 	 * @param job_names 
 	 * @param curator
@@ -27,6 +27,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -349,8 +350,10 @@ public class AnalyticTriggerCrudUtils {
 		
 	}
 	
-	/**  Updates the statuses of a bunch of existing triggers (does it by _id on each trigger, because it's updating a set of 
-	 *   resources also)
+	public static final int MAX_TRIGGER_IDS_PER_UPDATE = 1000;
+	
+	/**  Updates the statuses of a bunch of existing triggers - the triggers are grouped by resource size (the only per-trigger field
+	 *   that gets updated) and each group is updated with a single bulk update by _id (in chunks of MAX_TRIGGER_IDS_PER_UPDATE)
 	 * @param trigger_crud
 	 * @param trigger_stream
 	 * @param next_check
@@ -365,18 +368,24 @@ public class AnalyticTriggerCrudUtils {
 		// These queries want the following optimizations:
 		// (_id)
 		
-		final Stream<CompletableFuture<?>> ret = trigger_stream.parallel().map(t -> {
+		final Date last_checked = Date.from(Instant.now());
+		
+		final Map<Optional<Long>, List<String>> ids_by_size = trigger_stream.collect(
+				Collectors.groupingBy(t -> Optional.ofNullable(t.curr_resource_size()), Collectors.mapping(t -> t._id(), Collectors.toList())));
+		
+		final Stream<CompletableFuture<?>> ret = ids_by_size.entrySet().stream().flatMap(kv -> {
+			final Optional<Long> curr_resource_size = kv.getKey();
 			final UpdateComponent<AnalyticTriggerStateBean> trigger_update =
 					Optional.of(CrudUtils.update(AnalyticTriggerStateBean.class)						
-						.set(AnalyticTriggerStateBean::last_checked, Date.from(Instant.now()))
+						.set(AnalyticTriggerStateBean::last_checked, last_checked)
 						.set(AnalyticTriggerStateBean::next_check, next_check))
-					.map(q -> Optional.ofNullable(t.curr_resource_size())
-								.map(size -> q.set(AnalyticTriggerStateBean::curr_resource_size, t.curr_resource_size()))
+					.map(q -> curr_resource_size
+								.map(size -> q.set(AnalyticTriggerStateBean::curr_resource_size, size))
 								.orElse(q))
 					.map(q -> change_activation.map(change -> {
 						if (change) {
 							// (note: don't set the status to active until we get back a message from the technology)
-							return Optional.ofNullable(t.curr_resource_size())
+							return curr_resource_size
 											.map(size -> q.set(AnalyticTriggerStateBean::last_resource_size, size))
 											.orElse(q)
 									.set(AnalyticTriggerStateBean::is_job_active, true) // (this hasn't been confirmed by the tech yet but if it fails we'll find out in 10s time when we poll it)
@@ -391,9 +400,12 @@ public class AnalyticTriggerCrudUtils {
 					}).orElse(q))
 					.get()
 				;
-				final CompletableFuture<Boolean> cf_b = trigger_crud.updateObjectById(t._id(), trigger_update);
-				
-				return cf_b;
+			final List<String> ids = kv.getValue();
+			return IntStream.range(0, (ids.size() + MAX_TRIGGER_IDS_PER_UPDATE - 1)/MAX_TRIGGER_IDS_PER_UPDATE)
+						.mapToObj(i -> ids.subList(i*MAX_TRIGGER_IDS_PER_UPDATE, Math.min(ids.size(), (i + 1)*MAX_TRIGGER_IDS_PER_UPDATE)))
+						.map(id_chunk -> trigger_crud.updateObjectsBySpec(
+												CrudUtils.allOf(AnalyticTriggerStateBean.class).withAny(AnalyticTriggerStateBean::_id, id_chunk), 
+												Optional.of(false), trigger_update));
 		});		
 		
 		final CompletableFuture<?> combined[] = ret.toArray(size -> new CompletableFuture[size]);
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.analytics.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+/** Decides which trigger worker owns which triggers using a consistent hash ring over the live workers
+ *  - each worker registers a single ephemeral node under the members path, so adding/removing a worker only moves ~1/N of the triggers
+ *  - handoff: each worker writes the membership version it's currently working from into its node at the start of each check cycle
+ *    (by which point its previous cycle is complete), and a worker only picks up triggers it didn't check in its previous cycle once every 
+ *    live worker has moved onto that version, so the same trigger is never checked by 2 workers at once
+ * @author Alex
+ */
+public class TriggerOwnershipRing {
+	protected static final Logger _logger = LogManager.getLogger();
+
+	public static final int VIRTUAL_NODES_PER_MEMBER = 64;
+	protected static final HashFunction _hash = Hashing.murmur3_32();
+
+	protected final CuratorFramework _curator;
+	protected final String _members_path;
+	protected final String _member_id;
+
+	protected Set<String> _previously_checked = Collections.emptySet(); // (the keys this worker checked in its last cycle - only accessed from the thread running the check cycle)
+
+	/** User c'tor
+	 * @param curator - the ZK connection (the member node is tied to its session)
+	 * @param members_path - the ZK path under which all the workers register
+	 * @param member_id - the unique id of this worker (eg the process UUID)
+	 */
+	public TriggerOwnershipRing(final CuratorFramework curator, final String members_path, final String member_id) {
+		_curator = curator;
+		_members_path = members_path;
+		_member_id = member_id;
+	}
+
+	/** The membership as seen at the start of a check cycle
+	 */
+	public static class View {
+		protected View(final int version, final Map<String, Integer> acked_versions) {
+			this.version = version;
+			this.acked_versions = Collections.unmodifiableMap(acked_versions);
+			this.ring = new TreeMap<Integer, String>();
+			acked_versions.keySet().forEach(member -> {
+				for (int i = 0; i < VIRTUAL_NODES_PER_MEMBER; ++i) {
+					ring.put(hash(member + "#" + i), member);
+				}
+			});
+		}
+		public final int version;
+		public final Map<String, Integer> acked_versions;
+		protected final TreeMap<Integer, String> ring;
+
+		/** Returns the member that owns the specified key (empty if there are no members)
+		 * @param key
+		 * @return
+		 */
+		public Optional<String> getOwner(final String key) {
+			return Optional.ofNullable(Optional.ofNullable(ring.ceilingEntry(hash(key))).orElseGet(() -> ring.firstEntry()))
+						.map(kv -> kv.getValue());
+		}
+
+		/** Whether every live member is working from (at least) this version, ie has finished any checks made under older versions
+		 * @return
+		 */
+		public boolean isSettled() {
+			return acked_versions.values().stream().allMatch(v -> v >= version);
+		}
+
+		/** The live members
+		 * @return
+		 */
+		public List<String> getMembers() {
+			return acked_versions.keySet().stream().sorted().collect(Collectors.toList());
+		}
+	}
+
+	/** Registers this worker (safe to call if already registered)
+	 * @throws Exception
+	 */
+	public void join() throws Exception {
+		try {
+			_curator.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL)
+				.forPath(getMemberPath(), Integer.toString(-1).getBytes(StandardCharsets.UTF_8));
+		}
+		catch (KeeperException.NodeExistsException e) {} // (already registered)
+	}
+
+	/** Deregisters this worker, its triggers will move to the other workers
+	 */
+	public void leave() {
+		try {
+			_curator.delete().forPath(getMemberPath());
+		}
+		catch (KeeperException.NoNodeException e) {} // (already gone)
+		catch (Exception e) {
+			_logger.warn(ErrorUtils.getLongForm("Failed to leave trigger ownership ring {1}: {0}", e, _members_path));
+		}
+		_previously_checked = Collections.emptySet();
+	}
+
+	/** Call at the start of each check cycle (after the previous one has completed) - reads the current membership (re-joining if
+	 *  the ZK session has been lost) and then publishes the fact that this worker is now using it
+	 * @return an ownership snapshot to use for the entire check cycle
+	 * @throws Exception
+	 */
+	public Ownership beginCycle() throws Exception {
+		View view = readView();
+		if (!view.acked_versions.containsKey(_member_id)) {
+			// (other workers might have taken over our triggers while we were missing, so start again as if we were a new worker)
+			_previously_checked = Collections.emptySet();
+			join();
+			view = readView();
+		}
+		_curator.setData().forPath(getMemberPath(), Integer.toString(view.version).getBytes(StandardCharsets.UTF_8));
+
+		final Map<String, Integer> acked_versions = new HashMap<String, Integer>(view.acked_versions);
+		acked_versions.put(_member_id, view.version);
+		final Ownership ownership = new Ownership(new View(view.version, acked_versions), _previously_checked);
+		_previously_checked = ownership.checked;
+		return ownership;
+	}
+
+	/** Decides ownership of triggers for a single check cycle
+	 */
+	public class Ownership {
+		protected Ownership(final View view, final Set<String> previously_checked) {
+			this.view = view;
+			this.previously_checked = previously_checked;
+			this.settled = view.isSettled();
+		}
+		public final View view;
+		public final boolean settled;
+		protected final Set<String> previously_checked;
+		protected final Set<String> checked = ConcurrentHashMap.newKeySet();
+
+		/** Whether this worker should check the trigger with the specified key in this cycle
+		 *  (it must own it, and either have checked it last cycle too, or all the other workers must have stopped using older versions of the ring
+		 *   - note owning it in an unsettled ring isn't enough, since another worker might still be checking it under an older version)
+		 * @param key
+		 * @return
+		 */
+		public boolean isOwner(final String key) {
+			final boolean is_owner = view.getOwner(key).map(owner -> owner.equals(_member_id)).orElse(false)
+					&&
+					(settled || previously_checked.contains(key));
+			if (is_owner) checked.add(key);
+			return is_owner;
+		}
+	}
+
+	/** Reads the membership and the version each member is working from
+	 * @return
+	 * @throws Exception
+	 */
+	protected View readView() throws Exception {
+		final Stat stat = new Stat();
+		final List<String> members =
+				Optional.ofNullable(_curator.checkExists().forPath(_members_path)).isPresent()
+				? _curator.getChildren().storingStatIn(stat).forPath(_members_path)
+				: Collections.emptyList();
+
+		final Map<String, Integer> acked_versions = new HashMap<String, Integer>();
+		for (String member: members) {
+			try {
+				acked_versions.put(member, Integer.parseInt(new String(_curator.getData().forPath(_members_path + "/" + member), StandardCharsets.UTF_8)));
+			}
+			catch (KeeperException.NoNodeException e) {} // (left since we listed the members)
+			catch (NumberFormatException e) {
+				acked_versions.put(member, -1);
+			}
+		}
+		return new View(stat.getCversion(), acked_versions);
+	}
+
+	protected String getMemberPath() {
+		return _members_path + "/" + _member_id;
+	}
+
+	protected static int hash(final String s) {
+		return _hash.hashString(s, StandardCharsets.UTF_8).asInt();
+	}
+}
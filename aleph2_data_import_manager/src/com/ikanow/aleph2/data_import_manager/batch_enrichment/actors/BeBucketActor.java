@@ -78,6 +78,10 @@ public class BeBucketActor extends UntypedActor {
 	@Override
 	public void postStop() {
 		logger.debug("postStop");
+		releaseBucket();
+	}
+
+	protected void releaseBucket() {
 		if (bucketZkPath != null) {
 			try {
 				logger.debug("Deleting bucket path in ZK:" + bucketZkPath);
@@ -85,6 +89,7 @@ public class BeBucketActor extends UntypedActor {
 			} catch (Exception e) {
 				logger.error("Caught exception", e);
 			}
+			bucketZkPath = null;
 		}		
 	}
 
@@ -95,9 +100,9 @@ public class BeBucketActor extends UntypedActor {
 
 			BucketEnrichmentMessage bem = (BucketEnrichmentMessage) message;
 			Stat bucketExists = null;
+			final String zkPath = ActorUtils.BATCH_ENRICHMENT_ZOOKEEPER + bem.getBuckeFullName();
 			try {
-				this.bucketZkPath = ActorUtils.BATCH_ENRICHMENT_ZOOKEEPER + bem.getBuckeFullName();				
-				bucketExists = _curator.checkExists().forPath(bucketZkPath);
+				bucketExists = _curator.checkExists().forPath(zkPath);
 			} catch (Exception e) {
 				// do nothing on purpose, whole path might not exist in zk
 				//logger.debug("Caught exception for zk path:"+bucketZkPath,e);
@@ -105,15 +110,17 @@ public class BeBucketActor extends UntypedActor {
 			if (bucketExists == null) {
 				// bucket is not registered yet, grab it and do the processing
 				// on this node
-				_curator.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(bucketZkPath);
-				launchReadyJobs(fileContext,bem.getBuckeFullName(), bem.getBucketPathStr(),_management_db,this.self());
-
-				// stop actor after all the processing
-				getContext().stop(getSelf());
+				_curator.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(zkPath);
+				this.bucketZkPath = zkPath; // (only release the node if we created it)
+				try {
+					launchReadyJobs(fileContext,bem.getBuckeFullName(), bem.getBucketPathStr(),_management_db,this.self());
+				}
+				finally {
+					// (the actor is kept for the next change to this bucket, so release the bucket now)
+					releaseBucket();
+				}
 			} else {
 				logger.debug("Bucket alrady exists in ZK:" + bucketExists);
-				// stop actor if node exists
-				getContext().stop(getSelf());
 			}
 		} else {
 			logger.debug("unhandeld message:" + message);
@@ -15,10 +15,11 @@
  *******************************************************************************/
 package com.ikanow.aleph2.data_import_manager.batch_enrichment.actors;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.UUID;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.curator.framework.CuratorFramework;
@@ -30,11 +31,14 @@ import org.apache.logging.log4j.Logger;
 import scala.concurrent.duration.Duration;
 import akka.actor.ActorRef;
 import akka.actor.Cancellable;
+import akka.actor.PoisonPill;
 import akka.actor.Props;
+import akka.actor.Terminated;
 import akka.actor.UntypedActor;
 
+import com.ikanow.aleph2.data_import_manager.batch_enrichment.utils.IncrementalFolderScanner;
+import com.ikanow.aleph2.data_import_manager.batch_enrichment.utils.LocalFolderNotifier;
 import com.ikanow.aleph2.data_import_manager.services.DataImportActorContext;
-import com.ikanow.aleph2.core.shared.utils.DirUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
 import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
@@ -53,15 +57,34 @@ public class FolderWatcherActor extends UntypedActor {
 	protected final ICoreDistributedServices _core_distributed_services;
 	protected final IStorageService _storage_service;
 	protected GlobalPropertiesBean _global_properties_Bean = null; 
-	protected List<Path> _bucket_paths = null;
 	protected FileContext fileContext = null;
 	protected Path dataPath = null;
+	
+	protected final IncrementalFolderScanner _scanner;
+	protected final boolean _use_notifications;
+	protected Optional<LocalFolderNotifier> _notifier = Optional.empty();
+	protected final Map<String, ActorRef> _bucket_actors = new HashMap<String, ActorRef>(); // (bucket path -> persistent bucket actor)
+	protected int _ticks_since_full_scan = 0;
 
 	public static String MSG_START = "start";
 	public static String MSG_STOP = "stop";
 	public static String MSG_FOLDER_WATCH = "folderWatch";
+	public static String MSG_FOLDER_CHANGED = "folderChanged";
+	
+	public static final long INITIAL_DELAY_MS = 1000L;
+	public static final long TICK_INTERVAL_MS = 8000L;
+	public static final long NOTIFIED_TICK_DELAY_MS = 500L; // (allows a burst of file system changes to be handled in one tick)
+	public static final int FULL_SCAN_EVERY_N_TICKS = 15; // (when using notifications, catches anything they missed)
 	
     public FolderWatcherActor(IStorageService storage_service){
+    	this(storage_service, true);
+    }
+    
+    /**
+     * @param storage_service
+     * @param use_notifications - if the data lives on the local file system, use java.nio's WatchService to find out which directories have changed
+     */
+    public FolderWatcherActor(IStorageService storage_service, boolean use_notifications){
     	this._context = DataImportActorContext.get();
     	this._global_properties_Bean = _context.getGlobalProperties();
     	logger.debug("_global_properties_Bean"+_global_properties_Bean);
@@ -71,7 +94,8 @@ public class FolderWatcherActor extends UntypedActor {
     	this._storage_service = storage_service;
 		this.fileContext = storage_service.getUnderlyingPlatformDriver(FileContext.class,Optional.of("hdfs://localhost:8020")).get();
 		this.dataPath = new Path(_global_properties_Bean.distributed_root_dir()+"/data");
-		this._bucket_paths = detectBucketPaths();
+		this._scanner = new IncrementalFolderScanner(fileContext, dataPath, IncrementalFolderScanner.DEFAULT_BUCKET_MARKER);
+		this._use_notifications = use_notifications;
     }
     
 	
@@ -83,27 +107,41 @@ public class FolderWatcherActor extends UntypedActor {
 		if(folderWatch!=null){
 			folderWatch.cancel();
 		}
+		_notifier.ifPresent(n -> n.close());
 	}
 
 	@Override
 	public void onReceive(Object message) throws Exception {
 		if (MSG_START.equals(message)) {
 			logger.debug("Start message received");
-			folderWatch = getContext()
-			.system()
-			.scheduler()
-			.schedule(Duration.create(1000, TimeUnit.MILLISECONDS),
-					Duration.create(8000, TimeUnit.MILLISECONDS), getSelf(),
-					MSG_FOLDER_WATCH, getContext().dispatcher(), null);				
-
+			if (folderWatch == null) {
+				startNotifications();
+				scheduleNextTick(INITIAL_DELAY_MS);
+			}
 		}else
 		if (MSG_FOLDER_WATCH.equals(message)) {
 			logger.debug("watchFolders message received");
-			traverseFolders();
+			if (folderWatch != null) { // (else stopped)
+				folderWatch = null;
+				traverseFolders();
+				// (the next tick is only scheduled once this one has completed, so slow ticks can't pile up)
+				scheduleNextTick(TICK_INTERVAL_MS);
+			}
+		}else
+		if (MSG_FOLDER_CHANGED.equals(message)) {
+			// (bring the next tick forward)
+			if ((folderWatch != null) && folderWatch.cancel()) {
+				scheduleNextTick(NOTIFIED_TICK_DELAY_MS);
+			}
+		}else
+		if (message instanceof Terminated) {
+			final ActorRef terminated = ((Terminated) message).getActor();
+			_bucket_actors.values().removeIf(a -> a.equals(terminated));
 		}else 	if (MSG_STOP.equals(message)) {
 				logger.debug("Stop message received");
 				if(folderWatch!=null){
 					folderWatch.cancel();
+					folderWatch = null;
 				}	
 			} else {
 				logger.debug("unhandeld message:"+message);
@@ -111,19 +149,49 @@ public class FolderWatcherActor extends UntypedActor {
 		}
 	}
 
+	protected void scheduleNextTick(long delay_ms) {
+		folderWatch = getContext()
+				.system()
+				.scheduler()
+				.scheduleOnce(Duration.create(delay_ms, TimeUnit.MILLISECONDS), getSelf(),
+						MSG_FOLDER_WATCH, getContext().dispatcher(), null);
+	}
+
+	/** If enabled and the data is on the local file system, starts listening for file system notifications 
+	 */
+	protected void startNotifications() {
+		if (_use_notifications && !_notifier.isPresent() && LocalFolderNotifier.isLocal(fileContext.makeQualified(dataPath))) {
+			try {
+				final ActorRef self = getSelf();
+				_notifier = Optional.of(new LocalFolderNotifier(() -> self.tell(MSG_FOLDER_CHANGED, ActorRef.noSender())));
+			} catch (Exception e) {
+				logger.error("Failed to start local file system notifications, falling back to polling", e);
+			}
+		}
+	}
+
 	protected void traverseFolders() {
-		logger.debug("traverseFolders for path: "+_bucket_paths);
 		try {
-			detectBucketPaths();
-			if(_bucket_paths!=null){
-				logger.debug("traverseFolders for path: "+_bucket_paths);
-				for (Path path : _bucket_paths) {
-					String bucketPathStr = path.toString();
-					String dataPathStr = dataPath.toString();
-				    String bucketFullName = createFullName(bucketPathStr, dataPathStr);
-				    // create or send message to BatchBucketActors
-				    checkAndScheduleBucketAgent(bucketPathStr, bucketFullName);					
-				}
+			// Use a full (incremental) scan unless notifications tell us exactly what has changed
+			final Optional<Set<Path>> changed = _notifier.filter(n -> n.isRunning()).flatMap(n -> n.drainChanges());
+			final boolean full_scan = !changed.isPresent() || (++_ticks_since_full_scan >= FULL_SCAN_EVERY_N_TICKS);
+			if (full_scan) {
+				_ticks_since_full_scan = 0;
+			}
+			final IncrementalFolderScanner.ScanResult result = full_scan ? _scanner.scan() : _scanner.rescan(changed.get());
+			logger.debug("traverseFolders (full="+full_scan+"): "+result.ready_buckets.size()+" ready, "+result.removed_buckets.size()+" removed, "+result.num_fs_calls+" fs calls");
+			
+			_notifier.ifPresent(n -> n.register(result.new_directories));
+			
+			final String dataPathStr = dataPath.toString();
+			for (Path path : result.removed_buckets) {
+				Optional.ofNullable(_bucket_actors.remove(path.toString())).ifPresent(a -> a.tell(PoisonPill.getInstance(), getSelf()));
+			}
+			for (Path path : result.ready_buckets) {
+				String bucketPathStr = path.toString();
+			    String bucketFullName = createFullName(bucketPathStr, dataPathStr);
+			    // create or send message to BatchBucketActors
+			    checkAndScheduleBucketAgent(bucketPathStr, bucketFullName);					
 			}
 		} catch (Exception e) {
 			logger.error("traverseFolders Caught Exception:",e);
@@ -141,7 +209,7 @@ public class FolderWatcherActor extends UntypedActor {
 	}
 
 	protected static String createAgentName(String fullName) {
-		String agentName = fullName.replace('/', '@').replace('\\', '@')+  UUID.randomUUID().toString();
+		String agentName = fullName.replace('/', '@').replace('\\', '@');
 		return agentName;
 		
 	}
@@ -150,8 +218,11 @@ public class FolderWatcherActor extends UntypedActor {
 		//curator_framework.
 	    logger.debug("checkAndScheduleBucketAgent for Bucket Path: "+bucketPathStr+" ,Bucket id: "+bucketFullName);
 		try{
-			    String agentName = createAgentName(bucketFullName);
-				ActorRef beActor = getContext().actorOf(Props.create(BeBucketActor.class,_storage_service),agentName);
+				ActorRef beActor = _bucket_actors.computeIfAbsent(bucketPathStr, __ -> {
+					final ActorRef actor = getContext().actorOf(Props.create(BeBucketActor.class,_storage_service),createAgentName(bucketFullName));
+					getContext().watch(actor);
+					return actor;
+				});
 				String bucketZkPath = ActorUtils.BATCH_ENRICHMENT_ZOOKEEPER + bucketFullName;
 				beActor.tell(new BucketEnrichmentMessage(bucketPathStr, bucketFullName, bucketZkPath), getSelf());						
 		}
@@ -160,18 +231,10 @@ public class FolderWatcherActor extends UntypedActor {
 		}
 	}
 
+	/** The buckets found by the last scan
+	 * @return
+	 */
 	protected List<Path> detectBucketPaths(){
-		logger.debug("detectBucketPaths");
-		if(_bucket_paths==null){
-			try {
-				// looking for managed_bucket underneath /app/aleph2/data
-				_bucket_paths =  new ArrayList<Path>();
-				DirUtils.findAllSubdirectories(_bucket_paths, fileContext, dataPath, "managed_bucket",false);
-				logger.info("detectBucketPath found "+_bucket_paths.size()+" folders.");
-			} catch (Exception e) {
-				logger.error("detectBucketPath Caught Exception",e);
-			} 
-		}
-		return _bucket_paths;
+		return _scanner.getBuckets();
 	}
 }
@@ -0,0 +1,309 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.utils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.ikanow.aleph2.data_import_manager.utils.DirectoryListingUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+/** Finds the buckets under a root directory (ie the directories containing a "managed_bucket" sub-directory) and the buckets whose ready
+ *  directory has changed, re-using the listings of directories whose modification time hasn't changed since they were last listed
+ *  - a full scan costs one getFileStatus per directory (+ one per ready directory), plus a listStatus for each directory that has changed
+ *  - a partial scan (eg driven by file system notifications) only re-lists the specified directories (and any new directories under them)
+ *  (not thread safe - it's intended to be owned by a single actor)
+ * @author Alex
+ */
+public class IncrementalFolderScanner {
+	protected static final Logger _logger = LogManager.getLogger();
+
+	public static final String DEFAULT_BUCKET_MARKER = "managed_bucket";
+	public static final String READY_DIR_SUFFIX = "/managed_bucket/import/ready";
+
+	protected final FileContext _file_context;
+	protected final Path _root;
+	protected final String _bucket_marker;
+
+	protected final Map<String, DirectoryState> _directories = new HashMap<String, DirectoryState>();
+	protected final Map<String, ReadyState> _ready_dirs = new HashMap<String, ReadyState>(); // (bucket path -> state of its ready dir)
+
+	protected long _num_fs_calls = 0L;
+
+	/** User c'tor
+	 * @param file_context - the file system to scan
+	 * @param root - the directory under which all the buckets live
+	 * @param bucket_marker - directories containing a sub-directory whose name contains this are treated as buckets
+	 */
+	public IncrementalFolderScanner(final FileContext file_context, final Path root, final String bucket_marker) {
+		_file_context = file_context;
+		_root = root;
+		_bucket_marker = bucket_marker;
+	}
+
+	/** The cached state of a (non ready) directory
+	 */
+	protected static class DirectoryState {
+		protected DirectoryState(final long modification_time, final long listed_at, final boolean is_bucket, final List<Path> subdirs) {
+			this.modification_time = modification_time;
+			this.listed_at = listed_at;
+			this.is_bucket = is_bucket;
+			this.subdirs = subdirs;
+		}
+		public final long modification_time;
+		public final long listed_at;
+		public final boolean is_bucket;
+		public final List<Path> subdirs; // (excluding the bucket marker dir)
+	}
+
+	/** The cached state of a bucket's ready directory
+	 */
+	protected static class ReadyState {
+		protected ReadyState(final long modification_time, final long listed_at, final int num_files) {
+			this.modification_time = modification_time;
+			this.listed_at = listed_at;
+			this.num_files = num_files;
+		}
+		public final long modification_time;
+		public final long listed_at;
+		public final int num_files;
+	}
+
+	/** The output of a scan
+	 */
+	public static class ScanResult {
+		protected ScanResult(final List<Path> ready_buckets, final List<Path> removed_buckets, final List<Path> new_directories, final long num_fs_calls) {
+			this.ready_buckets = Collections.unmodifiableList(ready_buckets);
+			this.removed_buckets = Collections.unmodifiableList(removed_buckets);
+			this.new_directories = Collections.unmodifiableList(new_directories);
+			this.num_fs_calls = num_fs_calls;
+		}
+		/** Buckets whose ready directory contains files: for partial scans only those whose ready directory has changed, for full scans all
+		 *  of them (so files left behind, eg because the bucket was being processed elsewhere or processing failed, are retried every full scan)
+		 */
+		public final List<Path> ready_buckets;
+		/** Buckets that have been deleted since the last scan
+		 */
+		public final List<Path> removed_buckets;
+		/** Directories (including ready directories) seen for the first time, eg so they can be registered for notifications
+		 */
+		public final List<Path> new_directories;
+		/** The number of file system operations performed by the scan
+		 */
+		public final long num_fs_calls;
+	}
+
+	/** Scans the entire tree, only re-listing the directories that have changed
+	 *  (every bucket with a non-empty ready directory is returned, whether or not it has changed)
+	 * @return
+	 */
+	public ScanResult scan() {
+		final long start_calls = _num_fs_calls;
+		final Set<String> seen = new HashSet<String>();
+		final List<Path> mutable_new_dirs = new ArrayList<Path>();
+		final Set<Path> mutable_buckets = new LinkedHashSet<Path>();
+
+		scanDirectory(_root, true, seen, mutable_new_dirs, mutable_buckets);
+
+		// Anything we didn't see has been deleted
+		final List<Path> removed_buckets = _directories.entrySet().stream()
+											.filter(kv -> !seen.contains(kv.getKey()) && kv.getValue().is_bucket)
+											.map(kv -> new Path(kv.getKey()))
+											.collect(Collectors.toList());
+		_directories.keySet().retainAll(seen);
+		_ready_dirs.keySet().retainAll(seen);
+
+		final List<Path> ready_buckets = mutable_buckets.stream().filter(bucket -> checkReadyDir(bucket, true, mutable_new_dirs)).collect(Collectors.toList());
+
+		return new ScanResult(ready_buckets, removed_buckets, mutable_new_dirs, _num_fs_calls - start_calls);
+	}
+
+	/** Re-lists only the specified directories (plus any new directories found under them), eg in response to file system notifications
+	 *  Ready directories can be specified directly
+	 * @param changed_dirs - the directories that have changed
+	 * @return
+	 */
+	public ScanResult rescan(final Collection<Path> changed_dirs) {
+		final long start_calls = _num_fs_calls;
+		final List<Path> mutable_new_dirs = new ArrayList<Path>();
+		final Set<Path> mutable_buckets = new LinkedHashSet<Path>();
+		final List<Path> removed_buckets = new ArrayList<Path>();
+
+		for (Path changed_dir: changed_dirs) {
+			final String changed_key = changed_dir.toString();
+			if (changed_key.endsWith(READY_DIR_SUFFIX)) {
+				mutable_buckets.add(new Path(changed_key.substring(0, changed_key.length() - READY_DIR_SUFFIX.length())));
+			}
+			else if (_directories.containsKey(changed_key)) {
+				final List<Path> prev_subdirs = _directories.get(changed_key).subdirs;
+				if (scanDirectory(changed_dir, false, new HashSet<String>(), mutable_new_dirs, mutable_buckets)) {
+					// Forget about any sub-directories that have gone away
+					final Set<Path> curr_subdirs = new HashSet<Path>(Optional.ofNullable(_directories.get(changed_key)).map(d -> d.subdirs).orElse(Collections.emptyList()));
+					prev_subdirs.stream().filter(p -> !curr_subdirs.contains(p)).forEach(p -> removed_buckets.addAll(forgetSubtree(p)));
+				}
+				else {
+					removed_buckets.addAll(forgetSubtree(changed_dir));
+				}
+			}
+		}
+		final List<Path> ready_buckets = mutable_buckets.stream()
+											.filter(bucket -> Optional.ofNullable(_directories.get(bucket.toString())).map(d -> d.is_bucket).orElse(false))
+											.filter(bucket -> checkReadyDir(bucket, false, mutable_new_dirs))
+											.collect(Collectors.toList());
+
+		return new ScanResult(ready_buckets, removed_buckets, mutable_new_dirs, _num_fs_calls - start_calls);
+	}
+
+	/** The buckets found so far
+	 * @return
+	 */
+	public List<Path> getBuckets() {
+		return _directories.entrySet().stream().filter(kv -> kv.getValue().is_bucket).map(kv -> new Path(kv.getKey())).collect(Collectors.toList());
+	}
+
+	/** The total number of file system operations performed so far
+	 * @return
+	 */
+	public long getNumFsCalls() {
+		return _num_fs_calls;
+	}
+
+	////////////////////////////////////////////////////////////////////////////////
+
+	// UTILS
+
+	/** Updates the state of a single directory, and then optionally recurses into its sub-directories
+	 * @param path - the directory to scan
+	 * @param recurse_known - if false, only recurses into directories that haven't been seen before
+	 * @param mutable_seen - the keys of all the directories encountered
+	 * @param mutable_new_dirs - directories seen for the first time
+	 * @param mutable_buckets - buckets encountered
+	 * @return whether the directory exists
+	 */
+	protected boolean scanDirectory(final Path path, final boolean recurse_known, final Set<String> mutable_seen, final List<Path> mutable_new_dirs, final Set<Path> mutable_buckets) {
+		final String key = path.toString();
+		try {
+			++_num_fs_calls;
+			final FileStatus dir_status = _file_context.getFileStatus(path);
+			if (!dir_status.isDirectory()) return false;
+
+			final DirectoryState cached = _directories.get(key);
+			final DirectoryState state;
+			if ((null != cached) && DirectoryListingUtils.isListingValid(cached.modification_time, cached.listed_at, dir_status.getModificationTime())) {
+				state = cached;
+			}
+			else {
+				final long listed_at = System.currentTimeMillis();
+				++_num_fs_calls;
+				final FileStatus[] contents = _file_context.util().listStatus(path);
+				final List<FileStatus> subdirs = Arrays.stream(contents).filter(f -> f.isDirectory()).collect(Collectors.toList());
+				state = new DirectoryState(dir_status.getModificationTime(), listed_at,
+								subdirs.stream().anyMatch(f -> f.getPath().getName().contains(_bucket_marker)),
+								subdirs.stream().filter(f -> !f.getPath().getName().contains(_bucket_marker)).map(f -> f.getPath()).collect(Collectors.toList()));
+				_directories.put(key, state);
+				if (null == cached) mutable_new_dirs.add(path);
+			}
+			mutable_seen.add(key);
+			if (state.is_bucket) mutable_buckets.add(path);
+
+			for (Path subdir: state.subdirs) {
+				if (recurse_known || !_directories.containsKey(subdir.toString())) {
+					scanDirectory(subdir, recurse_known, mutable_seen, mutable_new_dirs, mutable_buckets);
+				}
+				else {
+					mutable_seen.add(subdir.toString());
+				}
+			}
+			return true;
+		}
+		catch (FileNotFoundException e) {
+			return false;
+		}
+		catch (IOException e) {
+			_logger.warn(ErrorUtils.getLongForm("Failed to scan {1}: {0}", e, key));
+			if (_directories.containsKey(key)) mutable_seen.add(key); // (leave the previous state alone)
+			return true;
+		}
+	}
+
+	/** Checks whether a bucket's ready dir has files in it (only re-listing it if it has changed)
+	 * @param bucket - the bucket path
+	 * @param include_unchanged - if true, unchanged ready dirs that were non-empty when last listed are also returned
+	 * @param mutable_new_dirs - directories seen for the first time
+	 * @return true if the ready dir is non-empty and has changed since the last check (or include_unchanged is set)
+	 */
+	protected boolean checkReadyDir(final Path bucket, final boolean include_unchanged, final List<Path> mutable_new_dirs) {
+		final String key = bucket.toString();
+		final Path ready_path = new Path(key + READY_DIR_SUFFIX);
+		final ReadyState cached = _ready_dirs.get(key);
+		try {
+			++_num_fs_calls;
+			final FileStatus dir_status = _file_context.getFileStatus(ready_path);
+			if ((null != cached) && DirectoryListingUtils.isListingValid(cached.modification_time, cached.listed_at, dir_status.getModificationTime())) {
+				return include_unchanged && (cached.num_files > 0); // (unchanged, so the cached listing is still correct)
+			}
+			final long listed_at = System.currentTimeMillis();
+			++_num_fs_calls;
+			final int num_files = _file_context.util().listStatus(ready_path).length;
+			_ready_dirs.put(key, new ReadyState(dir_status.getModificationTime(), listed_at, num_files));
+			if (null == cached) mutable_new_dirs.add(ready_path);
+			return num_files > 0;
+		}
+		catch (FileNotFoundException e) {
+			_ready_dirs.remove(key);
+			return false;
+		}
+		catch (IOException e) {
+			_logger.warn(ErrorUtils.getLongForm("Failed to check {1}: {0}", e, ready_path));
+			return false;
+		}
+	}
+
+	/** Removes the cached state of a directory and everything under it
+	 * @param path
+	 * @return the buckets that were removed
+	 */
+	protected List<Path> forgetSubtree(final Path path) {
+		final String key = path.toString();
+		final String prefix = key + "/";
+		final List<Path> removed_buckets = _directories.entrySet().stream()
+											.filter(kv -> kv.getKey().equals(key) || kv.getKey().startsWith(prefix))
+											.filter(kv -> kv.getValue().is_bucket)
+											.map(kv -> new Path(kv.getKey()))
+											.collect(Collectors.toList());
+		_directories.keySet().removeIf(k -> k.equals(key) || k.startsWith(prefix));
+		_ready_dirs.keySet().removeIf(k -> k.equals(key) || k.startsWith(prefix));
+		return removed_buckets;
+	}
+}
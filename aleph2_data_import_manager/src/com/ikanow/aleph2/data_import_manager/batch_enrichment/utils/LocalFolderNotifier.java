@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+
+/** Uses java.nio's WatchService to find out which directories on a local file system have changed, so they can be re-scanned
+ *  without polling the entire tree (watches aren't recursive, so each directory is registered individually)
+ *  A background thread collects the changes, and calls a callback when the first change arrives after the last drain
+ * @author Alex
+ */
+public class LocalFolderNotifier implements AutoCloseable {
+	protected static final Logger _logger = LogManager.getLogger();
+
+	protected final WatchService _watch_service;
+	protected final Map<WatchKey, Path> _watched = new ConcurrentHashMap<WatchKey, Path>();
+	protected final Set<Path> _changed = ConcurrentHashMap.newKeySet();
+	protected final AtomicBoolean _overflow = new AtomicBoolean(false);
+	protected final AtomicBoolean _notified = new AtomicBoolean(false);
+	protected final Runnable _on_change;
+	protected final Thread _thread;
+
+	/** User c'tor - starts the notification thread
+	 * @param on_change - called (from the notification thread) when the first change arrives after the last call to drainChanges
+	 * @throws IOException
+	 */
+	public LocalFolderNotifier(final Runnable on_change) throws IOException {
+		_watch_service = FileSystems.getDefault().newWatchService();
+		_on_change = on_change;
+		_thread = new Thread(() -> run(), "LocalFolderNotifier");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/** Whether the path (which must be fully qualified, or from the default file system) is on the local file system
+	 * @param path
+	 * @return
+	 */
+	public static boolean isLocal(final Path path) {
+		return Optional.ofNullable(path.toUri().getScheme()).map(scheme -> scheme.equals("file")).orElse(false);
+	}
+
+	/** Registers the specified directories for notifications (failures, eg because the directory has already been deleted, are ignored since the
+	 *  periodic full scans will pick up anything missed)
+	 * @param dirs
+	 * @return the number of directories registered
+	 */
+	public int register(final Collection<Path> dirs) {
+		int registered = 0;
+		for (Path dir: dirs) {
+			try {
+				final WatchKey key = new File(dir.toUri().getPath()).toPath().register(_watch_service,
+										StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				_watched.put(key, dir);
+				++registered;
+			}
+			catch (Exception e) {
+				if (_logger.isDebugEnabled()) _logger.debug(ErrorUtils.getLongForm("Failed to watch {1}: {0}", e, dir));
+			}
+		}
+		return registered;
+	}
+
+	/** Returns the directories that have changed since the last call
+	 * @return the changed directories, or Optional.empty() if some notifications were lost (so the entire tree needs re-scanning)
+	 */
+	public Optional<Set<Path>> drainChanges() {
+		_notified.set(false);
+		final boolean overflow = _overflow.getAndSet(false);
+		final Set<Path> changed = new HashSet<Path>();
+		for (Path path: _changed) {
+			_changed.remove(path);
+			changed.add(path);
+		}
+		return overflow ? Optional.empty() : Optional.of(changed);
+	}
+
+	/** Whether the notification thread is still running (if not, the caller should fall back to full scans)
+	 * @return
+	 */
+	public boolean isRunning() {
+		return _thread.isAlive();
+	}
+
+	/** The number of directories currently being watched
+	 * @return
+	 */
+	public int getNumWatched() {
+		return _watched.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.AutoCloseable#close()
+	 */
+	@Override
+	public void close() {
+		try {
+			_watch_service.close();
+		}
+		catch (IOException e) {} // (nothing to do)
+	}
+
+	/** The notification thread
+	 */
+	protected void run() {
+		try {
+			for (;;) {
+				final WatchKey key = _watch_service.take();
+				final Optional<Path> dir = Optional.ofNullable(_watched.get(key));
+				for (WatchEvent<?> event: key.pollEvents()) {
+					if (StandardWatchEventKinds.OVERFLOW == event.kind()) {
+						_overflow.set(true);
+					}
+				}
+				dir.ifPresent(d -> _changed.add(d));
+				if (!key.reset()) { // (directory has gone away)
+					_watched.remove(key);
+				}
+				if (!_notified.getAndSet(true)) {
+					_on_change.run();
+				}
+			}
+		}
+		catch (InterruptedException | ClosedWatchServiceException e) {} // (closed, exit)
+		catch (Exception e) {
+			_logger.error(ErrorUtils.getLongForm("LocalFolderNotifier failed: {0}", e));
+			_overflow.set(true); // (fall back to full scans)
+		}
+	}
+}
@@ -15,9 +15,20 @@
  *******************************************************************************/
 package com.ikanow.aleph2.data_import_manager.governance.actors;
 
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 
@@ -34,6 +45,7 @@ import org.apache.logging.log4j.Logger;
 
 
 
+import scala.Tuple2;
 import scala.concurrent.duration.Duration;
 import scala.concurrent.duration.FiniteDuration;
 
@@ -44,11 +56,11 @@ import scala.concurrent.duration.FiniteDuration;
 
 
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
-import com.ikanow.aleph2.data_model.interfaces.data_services.ISearchIndexService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IManagementCrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketStatusBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils.MethodNamingHelper;
@@ -58,6 +70,10 @@ import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.SetOnce;
+import com.ikanow.aleph2.data_model.utils.TimeUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.management_db.data_model.BucketMgmtMessage.BucketAgeOutMessage;
+import com.ikanow.aleph2.management_db.data_model.BucketMgmtMessage.BucketMgmtEventBusWrapper;
 import com.ikanow.aleph2.management_db.services.ManagementDbActorContext;
 
 
@@ -66,10 +82,14 @@ import com.ikanow.aleph2.management_db.services.ManagementDbActorContext;
 
 
 
+import akka.actor.ActorRef;
 import akka.actor.Cancellable;
 import akka.actor.UntypedActor;
+import akka.event.japi.LookupEventBus;
 
 /** Responsible for checking data vs the various age out fields in the data schema
+ *  Splits the work up into one request per bucket, sent out to the age out workers (one per node) over a round robin bus
+ *  Buckets whose data can't have expired since their last (successful) pass are skipped, so an interrupted pass just resumes from the remaining buckets
  * @author Alex
  */
 public class DataAgeOutSupervisor extends UntypedActor {
@@ -80,6 +100,9 @@ public class DataAgeOutSupervisor extends UntypedActor {
 	protected final IManagementDbService _core_management_db;
 	protected final IManagementDbService _underlying_management_db;
 	protected final SetOnce<ICrudService<DataBucketBean>> _bucket_crud = new SetOnce<>();	
+	protected final SetOnce<ICrudService<DataBucketStatusBean>> _bucket_status_crud = new SetOnce<>();	
+	protected final LookupEventBus<BucketMgmtEventBusWrapper, ActorRef, String> _age_out_bus;
+	protected final Map<String, Date> _in_flight = new ConcurrentHashMap<String, Date>(); // (bucket full name vs pass time, so a slow pass doesn't get buckets sent out twice)
 	protected final SetOnce<Cancellable> _ticker = new SetOnce<>();
 	
 	final protected static MethodNamingHelper<DataSchemaBean> _schema_fields = BeanTemplateUtils.from(DataBucketBean.class).nested(DataBucketBean::data_schema, DataSchemaBean.class);
@@ -89,12 +112,13 @@ public class DataAgeOutSupervisor extends UntypedActor {
 	final protected static MethodNamingHelper<DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean> _disk_fields_json = _disk_fields.nested(DataSchemaBean.StorageSchemaBean::json, DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean.class);
 	final protected static MethodNamingHelper<DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean> _disk_fields_px = _disk_fields.nested(DataSchemaBean.StorageSchemaBean::processed, DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean.class);
 	
-	//TODO (ALEPH-40): Add DateAgeOut workers on a round robin message bus so we can distribute the load
+	public static final long MAX_IN_FLIGHT_MS = 4L*3600L*1000L; // (after which an age out request that hasn't been replied to is assumed lost, and re-sent)
 	
 	/** Akka c'tor
 	 */
 	public DataAgeOutSupervisor() {
 		_actor_context = ManagementDbActorContext.get();
+		_age_out_bus = _actor_context.getAgeOutMgmtBus();
 		
 		_context = _actor_context.getServiceContext();
 		_core_management_db = Lambdas.get(() -> { try { return _context.getCoreManagementDbService(); } catch (Exception e) { return null; } });
@@ -118,6 +142,7 @@ public class DataAgeOutSupervisor extends UntypedActor {
 			
 			final IManagementCrudService<DataBucketBean> writable_crud = _underlying_management_db.getDataBucketStore();
 			_bucket_crud.set(writable_crud.readOnlyVersion());
+			_bucket_status_crud.set(_underlying_management_db.getDataBucketStatusStore());
 			
 			// Optimize the query the the age out manager is going to make
 			
@@ -125,6 +150,8 @@ public class DataAgeOutSupervisor extends UntypedActor {
 			writable_crud.optimizeQuery(Arrays.asList(_disk_fields_raw.field(DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean::exist_age_max))).join();
 			writable_crud.optimizeQuery(Arrays.asList(_disk_fields_json.field(DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean::exist_age_max))).join();
 			writable_crud.optimizeQuery(Arrays.asList(_disk_fields_px.field(DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean::exist_age_max))).join();
+			
+			_bucket_status_crud.get().optimizeQuery(Arrays.asList(BeanTemplateUtils.from(DataBucketStatusBean.class).field(DataBucketStatusBean::last_age_out))).join();
 		}
 	}
 	
@@ -135,8 +162,14 @@ public class DataAgeOutSupervisor extends UntypedActor {
 	public void onReceive(final Object message) throws Exception {
 		setup(); // (only does anything first time through)
 		
+		final ActorRef self = this.self();
 		if (String.class.isAssignableFrom(message.getClass())) { // tick!
 			
+			final Date now = new Date();
+			
+			// (anything that's been in flight for too long has presumably been lost, eg the worker node went down)
+			_in_flight.entrySet().removeIf(kv -> (now.getTime() - kv.getValue().getTime()) > MAX_IN_FLIGHT_MS);
+			
 			final QueryComponent<DataBucketBean> query = CrudUtils.anyOf(DataBucketBean.class)
 					.withPresent(_time_fields.field(DataSchemaBean.TemporalSchemaBean::exist_age_max))
 					.withPresent(_disk_fields_raw.field(DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean::exist_age_max))
@@ -144,58 +177,116 @@ public class DataAgeOutSupervisor extends UntypedActor {
 					.withPresent(_disk_fields_px.field(DataSchemaBean.StorageSchemaBean.StorageSubSchemaBean::exist_age_max))
 					;
 
-			_bucket_crud.get().getObjectsBySpec(query).thenAccept(cursor -> {
-				_logger.info(ErrorUtils.get("DataAgeOutSupervisor checking age out on {0} bucket(s)", cursor.count()));
+			_bucket_crud.get().getObjectsBySpec(query).thenCombine(getLastAgeOuts(), (cursor, last_age_outs) -> {
+				final long num_buckets = cursor.count();
 				
-				StreamSupport.stream(cursor.spliterator(), true)
-					.forEach(bucket -> {
-
-						// Currently supported: search index service and storage service
-						
-						Arrays.asList(
-							_context.getSearchIndexService().flatMap(ISearchIndexService::getDataService),
-							_context.getStorageService().getDataService()								
-							)
-							.stream()
-							.filter(Optional::isPresent)
-							.map(Optional::get)
-							.forEach(data_service -> {
-								data_service.handleAgeOutRequest(bucket).thenAccept(return_val -> {
-									
-									if (return_val.success()) {
-										// (only print out if there's something interesting to say)
-										Optional.of(return_val.details()).filter(m -> m.containsKey("loggable"))
-												.ifPresent(__ -> _logger.info(ErrorUtils.get("Bucket {0}:  {1}", bucket.full_name(), return_val.message())));
-									}
-									else {
-										_logger.warn(ErrorUtils.get("Bucket {0}:  {1}", bucket.full_name(), return_val.message()));
-									}
-								});
-								
-								//handle logging bucket age out (lazily always send the request, we both checking if the age out was data side/logging side/both)
-								final DataBucketBean logging_bucket = BucketUtils.convertDataBucketBeanToLogging(bucket);
-								data_service.handleAgeOutRequest(logging_bucket).thenAccept(return_val -> {
-									
-									if (return_val.success()) {
-										// (only print out if there's something interesting to say)
-										Optional.of(return_val.details()).filter(m -> m.containsKey("loggable"))
-												.ifPresent(__ -> _logger.info(ErrorUtils.get("BucketLogging {0}:  {1}", logging_bucket.full_name(), return_val.message())));
-									}
-									else {
-										_logger.warn(ErrorUtils.get("BucketLogging {0}:  {1}", logging_bucket.full_name(), return_val.message()));
-									}
-								});
-							})
-							;
-					});
+				final List<DataBucketBean> to_age_out = StreamSupport.stream(cursor.spliterator(), false)
+						.filter(bucket -> !_in_flight.containsKey(bucket.full_name()))
+						.filter(bucket -> needsAgeOut(bucket, Optional.ofNullable(last_age_outs.get(bucket.full_name())), now))
+						.collect(Collectors.toList());
+				
+				_logger.info(ErrorUtils.get("DataAgeOutSupervisor checking age out on {0} of {1} bucket(s)", to_age_out.size(), num_buckets));
+				
+				// Send out the buckets to be aged out by the workers
+				to_age_out.forEach(bucket -> {
+					_in_flight.put(bucket.full_name(), now);
+					_age_out_bus.publish(new BucketMgmtEventBusWrapper(self, new BucketAgeOutMessage(bucket, now, null)));
+				});
+				return null;
 			})
 			.exceptionally(t -> {
 				_logger.error(ErrorUtils.getLongForm("DataAgeOutSupervisor.onReceive: {0}", t));
 				return null;
 			});
-		}		
+		}
+		else if (BucketAgeOutMessage.class.isAssignableFrom(message.getClass())) { // age out has completed
+			final BucketAgeOutMessage msg = (BucketAgeOutMessage) message;
+			_in_flight.remove(msg.bucket().full_name());
+			
+			if (msg.success()) { // (else will retry next pass)
+				_bucket_status_crud.get().updateObjectBySpec(
+						CrudUtils.allOf(DataBucketStatusBean.class).when(DataBucketStatusBean::bucket_path, msg.bucket().full_name()), Optional.of(false),
+						CrudUtils.update(DataBucketStatusBean.class).set(DataBucketStatusBean::last_age_out, msg.pass_date()))
+				.exceptionally(t -> {
+					_logger.warn(ErrorUtils.getLongForm("Failed to record age out of bucket {1}: {0}", t, msg.bucket().full_name()));
+					return null;
+				});
+			}
+		}
 	}
 
+	/** Returns the start time of the last successful age out pass for each bucket
+	 * @return a future containing a map of bucket full name vs last age out time
+	 */
+	protected CompletableFuture<Map<String, Date>> getLastAgeOuts() {
+		final MethodNamingHelper<DataBucketStatusBean> status_fields = BeanTemplateUtils.from(DataBucketStatusBean.class);
+		return _bucket_status_crud.get().getObjectsBySpec(
+				CrudUtils.allOf(DataBucketStatusBean.class).withPresent(DataBucketStatusBean::last_age_out), 
+				Arrays.asList(status_fields.field(DataBucketStatusBean::bucket_path), status_fields.field(DataBucketStatusBean::last_age_out)), true)
+				.thenApply(cursor -> StreamSupport.stream(cursor.spliterator(), false)
+										.filter(status -> (null != status.bucket_path()) && (null != status.last_age_out()))
+										.collect(Collectors.toMap(status -> status.bucket_path(), status -> status.last_age_out(), (a, b) -> a)));
+	}
+	
+	/** Whether a bucket can have any data that has expired since its last age out pass, ie if any of its age out segments (or those of its 
+	 *  logging bucket, which is aged out in the same pass) has crossed a grouping period boundary (or if the bucket has been modified since then, 
+	 *  or the schema doesn't allow it to be worked out)
+	 * @param bucket - the bucket to check
+	 * @param last_age_out - the start time of the last successful age out pass for this bucket, if any
+	 * @param now - the start time of this pass
+	 * @return
+	 */
+	public static boolean needsAgeOut(final DataBucketBean bucket, final Optional<Date> last_age_out, final Date now) {
+		return last_age_out
+				.filter(last -> (null == bucket.modified()) || last.after(bucket.modified())) // (else the age out settings might have changed)
+				.map(last -> {
+					// (the logging bucket's schema comes from management_schema.logging_schema, with defaults)
+					final DataBucketBean logging_bucket = BucketUtils.convertDataBucketBeanToLogging(bucket);
+					return Stream.concat(getAgeOutSegments(bucket.data_schema()), getAgeOutSegments(logging_bucket.data_schema()))
+								.anyMatch(max_period -> canHaveExpired(max_period._1(), max_period._2(), last, now));
+				})
+				.orElse(true);
+	}
+	
+	/** Returns the age out settings of each part of a data schema that can age out
+	 * @param data_schema - the data schema (can be null)
+	 * @return a stream of (exist_age_max, grouping_time_period) - only includes entries with exist_age_max set
+	 */
+	protected static Stream<Tuple2<String, String>> getAgeOutSegments(final DataSchemaBean data_schema) {
+		final Optional<DataSchemaBean> schema = Optional.ofNullable(data_schema);
+		final Optional<DataSchemaBean.StorageSchemaBean> storage = schema.map(DataSchemaBean::storage_schema);
+		return Stream.of(
+					schema.map(DataSchemaBean::temporal_schema).map(t -> Tuples._2T(t.exist_age_max(), t.grouping_time_period())),
+					storage.map(DataSchemaBean.StorageSchemaBean::raw).map(t -> Tuples._2T(t.exist_age_max(), t.grouping_time_period())),
+					storage.map(DataSchemaBean.StorageSchemaBean::json).map(t -> Tuples._2T(t.exist_age_max(), t.grouping_time_period())),
+					storage.map(DataSchemaBean.StorageSchemaBean::processed).map(t -> Tuples._2T(t.exist_age_max(), t.grouping_time_period()))
+				)
+				.filter(Optional::isPresent)
+				.map(Optional::get)
+				.filter(max_period -> null != max_period._1());
+	}
+	
+	/** Data is aged out a grouping period segment at a time, so new data can only have expired if (time - exist_age_max) has moved into a new segment
+	 * @param exist_age_max - the age after which data is deleted
+	 * @param grouping_time_period - the size of the segments (if not present, always returns true)
+	 * @param last - the start time of the last successful age out pass
+	 * @param now - the start time of this pass
+	 * @return
+	 */
+	protected static boolean canHaveExpired(final String exist_age_max, final String grouping_time_period, final Date last, final Date now) {
+		final Optional<java.time.Duration> max_age = TimeUtils.getDuration(exist_age_max).validation(__ -> Optional.empty(), d -> Optional.of(d));
+		final Optional<ChronoUnit> period = Optional.ofNullable(grouping_time_period)
+													.flatMap(p -> TimeUtils.getTimePeriod(p).validation(__ -> Optional.<ChronoUnit>empty(), u -> Optional.of(u)));
+		if (!max_age.isPresent() || !period.isPresent()) { // (can't tell, so always check)
+			return true;
+		}
+		// (zoned times can only be truncated up to days - longer periods always start on a day boundary so this is just more conservative)
+		final ChronoUnit truncate_to = (period.get().compareTo(ChronoUnit.DAYS) > 0) ? ChronoUnit.DAYS : period.get();
+		final Function<Date, ZonedDateTime> segment_start = date -> 
+			ZonedDateTime.ofInstant(date.toInstant().minus(max_age.get()), ZoneId.systemDefault()).truncatedTo(truncate_to);
+		
+		return !segment_start.apply(last).equals(segment_start.apply(now));
+	}
 	
 	/* (non-Javadoc)
 	 * @see akka.actor.UntypedActor#postStop()
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.governance.actors;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import scala.Tuple2;
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import akka.event.japi.LookupEventBus;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ikanow.aleph2.data_model.interfaces.data_services.ISearchIndexService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IDataServiceProvider.IGenericDataService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.utils.BucketUtils;
+import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.management_db.data_model.BucketMgmtMessage.BucketAgeOutMessage;
+import com.ikanow.aleph2.management_db.data_model.BucketMgmtMessage.BucketMgmtEventBusWrapper;
+import com.ikanow.aleph2.management_db.services.ManagementDbActorContext;
+import com.ikanow.aleph2.management_db.utils.ActorUtils;
+
+/** One of these runs on each data import manager node, picks up age out requests for individual buckets from the round robin bus,
+ *  and runs them against the data services
+ *  Each data service gets its own bounded executor, so a slow data service can't starve the others (or the rest of the node)
+ *  Replies to the age out singleton once all the data services have completed
+ * @author Alex
+ */
+public class DataAgeOutWorkerActor extends UntypedActor {
+	protected static final Logger _logger = LogManager.getLogger();
+
+	public static final String search_index_service = "search_index_service";
+	public static final String storage_service = "storage_service";
+
+	public static final int MAX_CONCURRENT_SEARCH_INDEX_AGE_OUTS = 2;
+	public static final int MAX_CONCURRENT_STORAGE_AGE_OUTS = 4;
+	public static final int MAX_QUEUED_AGE_OUTS = 1000; // (per data service, beyond this the bucket is rejected and picked up by the next pass)
+
+	protected final ManagementDbActorContext _actor_context;
+	protected final IServiceContext _context;
+	protected final LookupEventBus<BucketMgmtEventBusWrapper, ActorRef, String> _age_out_bus;
+	protected final Map<String, ExecutorService> _executors;
+
+	/** Akka c'tor
+	 */
+	public DataAgeOutWorkerActor() {
+		// Attach self to round robin bus:
+		_actor_context = ManagementDbActorContext.get();
+		_context = _actor_context.getServiceContext();
+		_age_out_bus = _actor_context.getAgeOutMgmtBus();
+		_age_out_bus.subscribe(this.self(), ActorUtils.BUCKET_AGE_OUT_BUS);
+
+		_executors = ImmutableMap.<String, ExecutorService>builder()
+						.put(search_index_service, createExecutor(search_index_service, MAX_CONCURRENT_SEARCH_INDEX_AGE_OUTS))
+						.put(storage_service, createExecutor(storage_service, MAX_CONCURRENT_STORAGE_AGE_OUTS))
+						.build();
+	}
+
+	/** Creates a bounded executor for a single data service
+	 * @param name - the name of the data service
+	 * @param max_concurrent - the max number of age outs to run concurrently vs that data service
+	 * @return
+	 */
+	protected static ExecutorService createExecutor(final String name, final int max_concurrent) {
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(max_concurrent, max_concurrent, 60L, TimeUnit.SECONDS,
+												new LinkedBlockingQueue<Runnable>(MAX_QUEUED_AGE_OUTS),
+												new ThreadFactoryBuilder().setNameFormat("age-out-" + name + "-%d").setDaemon(true).build());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/** Returns the data services that currently support age out, together with their names
+	 *  Currently supported: search index service and storage service
+	 * @param context - the global service context
+	 * @return
+	 */
+	public static List<Tuple2<String, IGenericDataService>> getAgeOutDataServices(final IServiceContext context) {
+		return Arrays.asList(
+				Tuples._2T(search_index_service, context.getSearchIndexService().flatMap(ISearchIndexService::getDataService)),
+				Tuples._2T(storage_service, context.getStorageService().getDataService())
+				)
+				.stream()
+				.filter(name_service -> name_service._2().isPresent())
+				.map(name_service -> Tuples._2T(name_service._1(), name_service._2().get()))
+				.collect(Collectors.toList());
+	}
+
+	/* (non-Javadoc)
+	 * @see akka.actor.UntypedActor#onReceive(java.lang.Object)
+	 */
+	@Override
+	public void onReceive(final Object message) throws Exception {
+		if (!BucketAgeOutMessage.class.isAssignableFrom(message.getClass())) { // not for me
+			_logger.debug("Unexpected message: " + message.getClass());
+			return;
+		}
+		final ActorRef self_closure = this.self();
+		final ActorRef sender_closure = this.sender();
+		final BucketAgeOutMessage msg = (BucketAgeOutMessage) message;
+
+		final List<CompletableFuture<Boolean>> results = getAgeOutDataServices(_context).stream()
+				.map(name_service -> ageOut(msg.bucket(), name_service._1(), name_service._2()))
+				.collect(Collectors.toList());
+
+		CompletableFuture.allOf(results.stream().toArray(CompletableFuture[]::new))
+			.thenRun(() -> {
+				final boolean success = results.stream().allMatch(result -> result.join());
+				sender_closure.tell(new BucketAgeOutMessage(msg.bucket(), msg.pass_date(), success), self_closure);
+			});
+	}
+
+	/** Ages out the bucket (and its logging bucket) using the data service's executor
+	 * @param bucket - the bucket to age out
+	 * @param service_name - the name of the data service (selects the executor)
+	 * @param data_service - the data service
+	 * @return a future containing whether the bucket's (and its logging bucket's) age out succeeded (never completes exceptionally)
+	 */
+	protected CompletableFuture<Boolean> ageOut(final DataBucketBean bucket, final String service_name, final IGenericDataService data_service) {
+		try {
+			return CompletableFuture.supplyAsync(() -> {
+				// (block on the results so the executor limits the number of concurrent requests against the data service)
+				final boolean success = logResult("Bucket", bucket, data_service.handleAgeOutRequest(bucket).join());
+
+				//handle logging bucket age out (lazily always send the request, we both checking if the age out was data side/logging side/both)
+				final DataBucketBean logging_bucket = BucketUtils.convertDataBucketBeanToLogging(bucket);
+				final boolean logging_success = logResult("BucketLogging", logging_bucket, data_service.handleAgeOutRequest(logging_bucket).join());
+
+				return success && logging_success; // (so the pass is retried if either failed)
+			},
+			_executors.get(service_name))
+			.exceptionally(t -> {
+				_logger.warn(ErrorUtils.getLongForm("Bucket {1} service {2}: {0}", t, bucket.full_name(), service_name));
+				return false;
+			});
+		}
+		catch (RejectedExecutionException e) { // (too much queued up already, will get picked up by a later pass)
+			_logger.warn(ErrorUtils.get("Bucket {0} service {1}: too many age out requests queued, will retry", bucket.full_name(), service_name));
+			return CompletableFuture.completedFuture(false);
+		}
+	}
+
+	/** Logs the result of an age out request
+	 * @param prefix - for the log message
+	 * @param bucket - the bucket that was aged out
+	 * @param return_val - the result of the age out request
+	 * @return whether the age out request succeeded
+	 */
+	protected static boolean logResult(final String prefix, final DataBucketBean bucket, final BasicMessageBean return_val) {
+		if (return_val.success()) {
+			// (only print out if there's something interesting to say)
+			Optional.ofNullable(return_val.details()).filter(m -> m.containsKey("loggable"))
+					.ifPresent(__ -> _logger.info(ErrorUtils.get("{0} {1}:  {2}", prefix, bucket.full_name(), return_val.message())));
+		}
+		else {
+			_logger.warn(ErrorUtils.get("{0} {1}:  {2}", prefix, bucket.full_name(), return_val.message()));
+		}
+		return return_val.success();
+	}
+
+	/* (non-Javadoc)
+	 * @see akka.actor.UntypedActor#postStop()
+	 */
+	@Override
+	public void postStop() {
+		_age_out_bus.unsubscribe(this.self());
+		_executors.values().forEach(executor -> executor.shutdown());
+	}
+}
@@ -167,6 +167,11 @@ public class DataBucketHarvestChangeActor extends AbstractActor {
 								
 	    					})
 	    					.thenAccept(reply -> { // (reply can contain an error or successful reply, they're the same bean type)	    						
+	    						if (reply instanceof BucketActionReplyMessage.BucketActionWillAcceptMessage) {
+	    							// (this node might be about to run the bucket, so start copying the rest of its libraries now)
+	    							LibraryCacheUtils.prefetchJars(m.bucket(), Optional.ofNullable(m.bucket().harvest_technology_name_or_id()), getQuery(m.bucket(), false), _management_db, _globals, _fs, _context.getServiceContext(), hostname, m);
+	    						}
+	    						
 	    						// Some information logging:
 	    						Patterns.match(reply).andAct()
 	    							.when(BucketActionHandlerMessage.class, __ -> m instanceof BucketActionOfferMessage,
@@ -35,6 +35,7 @@ import com.google.inject.Scopes;
 import com.ikanow.aleph2.data_import_manager.analytics.services.AnalyticStateTriggerCheckFactory;
 import com.ikanow.aleph2.data_import_manager.data_model.DataImportConfigurationBean;
 import com.ikanow.aleph2.data_import_manager.governance.actors.DataAgeOutSupervisor;
+import com.ikanow.aleph2.data_import_manager.governance.actors.DataAgeOutWorkerActor;
 import com.ikanow.aleph2.data_import_manager.services.DataImportActorContext;
 import com.ikanow.aleph2.data_import_manager.utils.ActorNameUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
@@ -199,6 +200,15 @@ public class DataImportManagerModule {
 					ImmutableSet.<String>builder().add(DistributedServicesPropertyBean.ApplicationNames.DataImportManager.toString()).build(), 
 					Props.create(DataAgeOutSupervisor.class));
 			
+			// Create an age out worker (subscribes itself to the age out round robin bus)
+			
+			final ActorRef age_out_worker = _local_actor_context.getActorSystem().actorOf(
+					Props.create(DataAgeOutWorkerActor.class),
+					hostname + ActorNameUtils.DATA_AGE_OUT_WORKER_SUFFIX
+					);
+			
+			_logger.info(ErrorUtils.get("Attaching governance DataAgeOutWorkerActor {0} to bus {1}", age_out_worker, ActorUtils.BUCKET_AGE_OUT_BUS));
+			
 			_logger.info("Starting IkanowV1SynchronizationModule subservice=governance");
 		}		
 		for (;;) {
@@ -26,4 +26,5 @@ public class ActorNameUtils {
 	public static final String ANALYTICS_BUCKET_CHANGE_SUFFIX = ".analytics.actors.DataBucketAnalyticsChangeActor";
 	public static final String ANALYTICS_TRIGGER_WORKER_SUFFIX = ".analytics.actors.AnalyticsTriggerWorkerActor";
 	public static final String ANALYTICS_TRIGGER_SUPERVISOR_SUFFIX = ".analytics.actors.AnalyticsTriggerSupervisorActor";	
+	public static final String DATA_AGE_OUT_WORKER_SUFFIX = ".governance.actors.DataAgeOutWorkerActor";
 }
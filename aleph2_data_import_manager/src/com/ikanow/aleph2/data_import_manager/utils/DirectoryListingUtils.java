@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.utils;
+
+/** Utilities for re-using directory listings while the directory is unchanged (shared by the trigger checks and the batch enrichment folder scanner)
+ * @author Alex
+ */
+public class DirectoryListingUtils {
+
+	/** A listing is only re-used if it was taken at least this long after the directory was last modified, since a directory
+	 *  can be modified twice within the same (file system dependent) mtime tick
+	 */
+	public static final long MTIME_GRANULARITY_MS = 2000L;
+
+	/** Whether a listing taken at listed_at of a directory with modification time modification_time is still valid
+	 * @param modification_time - the modification time when the directory was listed
+	 * @param listed_at - when the directory was listed
+	 * @param curr_modification_time - the current modification time
+	 * @return
+	 */
+	public static boolean isListingValid(final long modification_time, final long listed_at, final long curr_modification_time) {
+		return (modification_time == curr_modification_time) && ((listed_at - modification_time) >= MTIME_GRANULARITY_MS);
+	}
+}
@@ -16,8 +16,12 @@
 package com.ikanow.aleph2.data_import_manager.utils;
 
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -27,6 +31,8 @@ import org.apache.logging.log4j.Logger;
 
 import scala.Tuple2;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ikanow.aleph2.core.shared.utils.ClassloaderUtils;
 import com.ikanow.aleph2.core.shared.utils.JarCacheUtils;
 import com.ikanow.aleph2.core.shared.utils.SharedErrorUtils;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
@@ -41,6 +47,7 @@ import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
 
+import fj.Unit;
 import fj.data.Validation;
 
 /** Common utilities between the harvest and analytics managers
@@ -147,4 +154,56 @@ public class LibraryCacheUtils {
 		}
 	}
 	
+	// (building a classloader reads the jars, so it's done off the DB/cache threads - one at a time, since it's only a head start)
+	protected static final Executor _classloader_warming_executor = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder().setNameFormat("classloader-warming-%d").setDaemon(true).build());
+	
+	/** Starts caching a bucket's libraries in the background without waiting for the result, eg once a node has accepted a bucket offer
+	 *  (in-flight copies are shared, so a subsequent cacheJars call for the same libraries just waits on the same copies)
+	 *  Once the libraries are cached, also builds the classloader for the technology with all the libraries on its classpath, as
+	 *  the harvest/analytics change actors do when the bucket is started, so creating the technology module is then a cache hit
+	 * @param bucket
+	 * @param technology_name_or_id - the bucket's harvest or analytic technology, if known
+	 * @param spec
+	 * @param management_db
+	 * @param globals
+	 * @param fs
+	 * @param context
+	 * @param handler_for_errors
+	 * @param msg_for_errors
+	 */
+	public static <M> void prefetchJars(
+			final DataBucketBean bucket, 
+			final Optional<String> technology_name_or_id,
+			final QueryComponent<SharedLibraryBean> spec,
+			final IManagementDbService management_db, 
+			final GlobalPropertiesBean globals,
+			final IStorageService fs, 
+			final IServiceContext context,
+			final String handler_for_errors, 
+			final M msg_for_errors
+		)
+	{
+		cacheJars(bucket, spec, management_db, globals, fs, context, handler_for_errors, msg_for_errors)
+			.thenAccept(err_or_map -> err_or_map.validation(
+				err -> {
+					_logger.debug(ErrorUtils.get("Failed to prefetch libraries for bucket {0}: {1}", bucket.full_name(), err.message()));
+					return Unit.unit();
+				},
+				libs -> {
+					technology_name_or_id.ifPresent(tech -> {
+						final Tuple2<Optional<String>, List<String>> classpath = Tuples._2T(
+								Optional.ofNullable(libs.get(tech)).map(libbean_path -> libbean_path._2()),
+								libs.values().stream().map(libbean_path -> libbean_path._2()).collect(Collectors.toList()));
+						
+						ClassloaderUtils.warmCache(Arrays.asList(classpath), _classloader_warming_executor)
+							.exceptionally(t -> {
+								_logger.debug(ErrorUtils.getLongForm("Failed to build classloader for bucket {1}: {0}", t, bucket.full_name()));
+								return null;
+							});
+					});
+					return Unit.unit();
+				}));
+	}
+	
 }
@@ -26,9 +26,11 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -47,6 +49,7 @@ import com.google.common.base.Charsets;
 import com.google.common.io.Resources;
 import com.ikanow.aleph2.data_import_manager.analytics.actors.AnalyticsTriggerWorkerActor.TickSpacingService;
 import com.ikanow.aleph2.data_import_manager.analytics.utils.TestAnalyticTriggerCrudUtils;
+import com.ikanow.aleph2.data_import_manager.analytics.utils.TriggerOwnershipRing;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
@@ -160,6 +163,67 @@ public class TestAnalyticsTriggerWorkerActor extends TestAnalyticsTriggerWorkerC
 		test.releaseMutex();
 	}
 	
+	/** Worker whose ticks block (just before reading the ownership ring) until the gate is opened, and then fail
+	 *  (so the tick/defer logic can be tested without any triggers or ring membership)
+	 */
+	public static class GatedTriggerWorkerActor extends AnalyticsTriggerWorkerActor {
+		public static class ExpireSpacingMutex {}
+		
+		protected static final AtomicInteger _num_ticks_started = new AtomicInteger(0);
+		protected static final CompletableFuture<Boolean> _gate = new CompletableFuture<>();
+		
+		@Override
+		public void onReceive(Object message) throws Exception {
+			if (message instanceof ExpireSpacingMutex) { // (simulates a tick running for longer than TickSpacingService.TIMEOUT_MS)
+				_spacing_service.releaseMutex();
+			}
+			else super.onReceive(message);
+		}
+		
+		@Override
+		protected TriggerOwnershipRing getOwnershipRing() {
+			_num_ticks_started.incrementAndGet();
+			_gate.join();
+			throw new RuntimeException("test tick complete");
+		}
+	}
+	
+	@Test
+	public void test_tickDeferredWhileInProgress() throws InterruptedException {
+		final ActorRef worker = _actor_context.getActorSystem().actorOf(Props.create(GatedTriggerWorkerActor.class), UuidUtils.get().getRandomUuid());
+		try {
+			final long deferred_before = AnalyticsTriggerWorkerActor.getMetrics().get("ticks_deferred");
+			final long failed_before = AnalyticsTriggerWorkerActor.getMetrics().get("ticks_failed");
+			final AnalyticTriggerMessage msg = new AnalyticTriggerMessage(new AnalyticTriggerMessage.AnalyticsTriggerActionMessage());
+			
+			// 1) Start a tick, wait for it to block
+			
+			worker.tell(msg, worker);
+			for (int i = 0; (i < 100) && (GatedTriggerWorkerActor._num_ticks_started.get() < 1); ++i) Thread.sleep(100L);
+			assertEquals(1, GatedTriggerWorkerActor._num_ticks_started.get());
+			
+			// 2) The spacing mutex expires while the tick is still running - the next tick must still be deferred
+			
+			worker.tell(new GatedTriggerWorkerActor.ExpireSpacingMutex(), worker);
+			worker.tell(msg, worker);
+			worker.tell(msg, worker);
+			Thread.sleep(1000L);
+			assertEquals(1, GatedTriggerWorkerActor._num_ticks_started.get());
+			assertEquals(deferred_before + 2L, AnalyticsTriggerWorkerActor.getMetrics().get("ticks_deferred").longValue());
+			
+			// 3) Once the first tick completes, the deferred ticks run as a single tick
+			
+			GatedTriggerWorkerActor._gate.complete(true);
+			for (int i = 0; (i < 100) && (AnalyticsTriggerWorkerActor.getMetrics().get("ticks_failed") < failed_before + 2L); ++i) Thread.sleep(100L);
+			Thread.sleep(500L);
+			assertEquals(2, GatedTriggerWorkerActor._num_ticks_started.get());
+			assertEquals(failed_before + 2L, AnalyticsTriggerWorkerActor.getMetrics().get("ticks_failed").longValue());
+		}
+		finally {
+			_actor_context.getActorSystem().stop(worker);
+		}
+	}
+	
 	///////////////////////////////////////////////////////////////////////////////////////
 	
 	// BASIC TRIGGER LIFECYCLE
@@ -399,11 +463,15 @@ public class TestAnalyticsTriggerWorkerActor extends TestAnalyticsTriggerWorkerC
 			
 			_trigger_worker.tell(msg, _trigger_worker);
 			
-			//(code coverage! this will be ignored due to spacing)
+			//(code coverage! this will be deferred due to spacing, and then run once the first tick completes)
 			_trigger_worker.tell(msg, _trigger_worker);
 			
 			// Give it a couple of secs to finish			
 			Thread.sleep(1000L);
+
+			// (both ticks have completed)
+			assertTrue(AnalyticsTriggerWorkerActor.getMetrics().get("ticks_deferred") > 0L);
+			assertTrue(AnalyticsTriggerWorkerActor.getMetrics().get("ticks_completed") >= 2L);
 			
 			// Check the DB
 		
@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.analytics.services;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.ikanow.aleph2.data_model.interfaces.data_services.IStorageService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.IReadOnlyCrudService;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.MockServiceContext;
+import com.ikanow.aleph2.data_model.objects.data_analytics.AnalyticThreadTriggerBean.AnalyticThreadComplexTriggerBean.TriggerType;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.shared.GlobalPropertiesBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.CrudServiceUtils;
+import com.ikanow.aleph2.data_model.utils.Lambdas;
+import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.management_db.data_model.AnalyticTriggerStateBean;
+import com.ikanow.aleph2.shared.crud.mongodb.services.MockMongoDbCrudServiceFactory;
+import com.ikanow.aleph2.storage_service_hdfs.services.MockHdfsStorageService;
+
+public class TestAnalyticStateTriggerCheckFactory {
+
+	protected static final ObjectMapper _mapper = new ObjectMapper();
+
+	protected MockServiceContext _service_context;
+	protected String _bucket_root;
+	protected ICrudService<JsonNode> _test_crud;
+	protected AnalyticStateTriggerCheckFactory _factory;
+
+	protected final DataBucketBean _bucket = BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test/check/analytics").done().get();
+	protected final DataBucketBean _input_bucket = BeanTemplateUtils.build(DataBucketBean.class).with(DataBucketBean::full_name, "/test/check/input").done().get();
+
+	@Before
+	public void setup() throws Exception {
+		final String tmpdir = System.getProperty("java.io.tmpdir") + File.separator + "test_trigger_check_" + UUID.randomUUID().toString();
+		_service_context = new MockServiceContext();
+		_service_context.addGlobals(new GlobalPropertiesBean(tmpdir, tmpdir, tmpdir, tmpdir));
+		final MockHdfsStorageService storage_service = new MockHdfsStorageService(_service_context.getGlobalProperties());
+		_service_context.addService(IStorageService.class, Optional.empty(), storage_service);
+		_bucket_root = storage_service.getBucketRootPath();
+
+		final MockMongoDbCrudServiceFactory crud_factory = new MockMongoDbCrudServiceFactory();
+		_test_crud = crud_factory.getMongoDbCrudService(JsonNode.class, Object.class, crud_factory.getMongoDbCollection("test.trigger_check"), Optional.empty(), Optional.empty(), Optional.empty());
+		_test_crud.deleteDatastore().get();
+
+		// (avoid needing a management DB or real data services)
+		_factory = new AnalyticStateTriggerCheckFactory(_service_context) {
+			@Override
+			public DataBucketBean getBucket(final String name) {
+				return _input_bucket.full_name().equals(name) ? _input_bucket : null;
+			}
+			@Override
+			protected FileContext getFileContext() {
+				return Lambdas.get(Lambdas.wrap_u(() -> FileContext.getLocalFSFileContext()));
+			}
+			@Override
+			protected Optional<IReadOnlyCrudService<JsonNode>> getReadableCrudService(final DataBucketBean bucket, final Optional<String> data_service) {
+				return Optional.of(new CrudServiceUtils.ReadOnlyCrudService<JsonNode>(_test_crud));
+			}
+		};
+	}
+
+	protected AnalyticTriggerStateBean buildTrigger(final TriggerType type, final Optional<String> data_service, final String resource_combined, final long last_resource_size, final long resource_limit) {
+		return BeanTemplateUtils.build(AnalyticTriggerStateBean.class)
+					.with(AnalyticTriggerStateBean::bucket_name, _bucket.full_name())
+					.with(AnalyticTriggerStateBean::trigger_type, type)
+					.with(AnalyticTriggerStateBean::input_data_service, data_service.orElse(null))
+					.with(AnalyticTriggerStateBean::input_resource_name_or_id, resource_combined.split(":")[0])
+					.with(AnalyticTriggerStateBean::input_resource_combined, resource_combined)
+					.with(AnalyticTriggerStateBean::last_resource_size, last_resource_size)
+					.with(AnalyticTriggerStateBean::resource_limit, resource_limit)
+				.done().get();
+	}
+
+	protected Tuple2<Boolean, Long> check(final AnalyticTriggerStateBean trigger) {
+		return _factory.getChecker(trigger.trigger_type(), Optional.ofNullable(trigger.input_data_service()))
+					.check(_bucket, Optional.empty(), trigger, new Date()).join();
+	}
+
+	protected AnalyticStateTriggerCheckFactory.DirectoryListing getCachedListing(final String dir_name) {
+		return _factory._directory_cache.asMap().entrySet().stream().filter(kv -> kv.getKey().endsWith(dir_name)).map(kv -> kv.getValue()).findFirst().get();
+	}
+
+	protected static void writeFile(final File dir, final String name, final int size) throws IOException {
+		dir.mkdirs();
+		Files.write(new File(dir, name).toPath(), new byte[size]);
+	}
+
+	@Test
+	public void test_inputFileChecker() throws Exception {
+		final String ready_path = new Path(_bucket_root + _input_bucket.full_name() + IStorageService.TO_IMPORT_DATA_SUFFIX).toString();
+		final File ready_dir = new File(ready_path);
+		final AnalyticTriggerStateBean trigger = buildTrigger(TriggerType.file, Optional.empty(), _input_bucket.full_name(), 0L, 0L);
+
+		// 1) Directory doesn't exist
+
+		assertEquals(Tuples._2T(false, 0L), check(trigger));
+
+		// 2) Some files
+
+		writeFile(ready_dir, "file1.json", 10);
+		writeFile(ready_dir, "file2.json", 10);
+		ready_dir.setLastModified(System.currentTimeMillis() - 10000L); // (so the listing is old enough to be re-used)
+
+		assertEquals(Tuples._2T(true, 2L), check(trigger));
+		final AnalyticStateTriggerCheckFactory.DirectoryListing listing = _factory._directory_cache.getIfPresent(ready_path);
+		assertTrue("Listing not cached: " + ready_path, null != listing);
+
+		// 3) Unchanged, so uses the cached listing
+
+		assertEquals(Tuples._2T(true, 2L), check(trigger));
+		assertSame(listing, _factory._directory_cache.getIfPresent(ready_path));
+
+		// 4) Add a file, so the directory is re-listed
+
+		writeFile(ready_dir, "file3.json", 10);
+		ready_dir.setLastModified(System.currentTimeMillis() - 5000L);
+
+		assertEquals(Tuples._2T(true, 3L), check(trigger));
+
+		// 5) Remove them all
+
+		Arrays.stream(ready_dir.listFiles()).forEach(f -> f.delete());
+		ready_dir.setLastModified(System.currentTimeMillis() - 2500L);
+
+		assertEquals(Tuples._2T(false, 0L), check(trigger));
+	}
+
+	@Test
+	public void test_bucketStorageChecker() throws Exception {
+		final File processed_dir = new File(_bucket_root + _input_bucket.full_name() + IStorageService.STORED_DATA_SUFFIX_PROCESSED);
+
+		final AnalyticTriggerStateBean trigger_processed = buildTrigger(TriggerType.bucket, AnalyticStateTriggerCheckFactory.storage_service, _input_bucket.full_name(), 0L, 0L);
+		final AnalyticTriggerStateBean trigger_raw = buildTrigger(TriggerType.bucket, AnalyticStateTriggerCheckFactory.storage_service, _input_bucket.full_name() + ":raw", 0L, 0L);
+
+		// 1) No data
+
+		assertEquals(Tuples._2T(false, 0L), check(trigger_processed));
+		assertEquals(Tuples._2T(false, 0L), check(trigger_raw));
+
+		// 2) Data in a couple of time-based sub-directories (processed only)
+
+		writeFile(new File(processed_dir, "2015-10-01"), "file1.json", 100);
+		writeFile(new File(processed_dir, "2015-10-01"), "file2.json", 200);
+		writeFile(new File(processed_dir, "2015-10-02"), "file3.json", 300);
+		writeFile(processed_dir, "file4.json", 400);
+		Arrays.asList(processed_dir, new File(processed_dir, "2015-10-01"), new File(processed_dir, "2015-10-02"))
+			.forEach(f -> f.setLastModified(System.currentTimeMillis() - 10000L));
+
+		assertEquals(Tuples._2T(true, 1000L), check(trigger_processed));
+		assertEquals(Tuples._2T(false, 0L), check(trigger_raw));
+
+		// 3) Add to one sub-directory - only that one changes
+
+		final AnalyticStateTriggerCheckFactory.DirectoryListing unchanged_listing = getCachedListing("2015-10-01");
+
+		writeFile(new File(processed_dir, "2015-10-02"), "file5.json", 500);
+		new File(processed_dir, "2015-10-02").setLastModified(System.currentTimeMillis() - 5000L);
+
+		assertEquals(Tuples._2T(true, 1500L), check(trigger_processed));
+		assertSame("Re-listed unchanged dir", unchanged_listing, getCachedListing("2015-10-01"));
+
+		// 4) Limits are in MB, and relative to the last activation
+
+		final AnalyticTriggerStateBean trigger_limit = buildTrigger(TriggerType.bucket, AnalyticStateTriggerCheckFactory.storage_service, _input_bucket.full_name(), 0L, 1L);
+		assertEquals(Tuples._2T(false, 1500L), check(trigger_limit));
+
+		final AnalyticTriggerStateBean trigger_activated = buildTrigger(TriggerType.bucket, AnalyticStateTriggerCheckFactory.storage_service, _input_bucket.full_name(), 1500L, 0L);
+		assertEquals(Tuples._2T(false, 1500L), check(trigger_activated));
+	}
+
+	@Test
+	public void test_crudChecker() throws Exception {
+		_test_crud.storeObjects(IntStream.range(0, 10).<JsonNode>mapToObj(i -> _mapper.createObjectNode().put("i", i)).collect(Collectors.toList())).get();
+
+		// 1) Triggers once the number of records added since last activation exceeds the limit
+
+		assertEquals(Tuples._2T(true, 10L),
+				check(buildTrigger(TriggerType.bucket, AnalyticStateTriggerCheckFactory.search_index_service, _input_bucket.full_name(), 5L, 3L)));
+		assertEquals(Tuples._2T(false, 10L),
+				check(buildTrigger(TriggerType.bucket, AnalyticStateTriggerCheckFactory.document_service, _input_bucket.full_name(), 5L, 5L)));
+
+		// 2) Unknown bucket - leave the resource size alone
+
+		final AnalyticTriggerStateBean trigger_unknown =
+				BeanTemplateUtils.clone(buildTrigger(TriggerType.bucket, AnalyticStateTriggerCheckFactory.search_index_service, "/test/check/unknown", 0L, 0L))
+					.with(AnalyticTriggerStateBean::curr_resource_size, 7L)
+				.done();
+		assertEquals(Tuples._2T(false, 7L), check(trigger_unknown));
+	}
+
+	@Test
+	public void test_bucketCacheMisses() throws Exception {
+		final Cache<String, Optional<String>> cache = CacheBuilder.newBuilder().build();
+		final AtomicInteger loads = new AtomicInteger(0);
+		
+		// Misses aren't cached, so the object is found as soon as it exists
+		assertEquals(null, AnalyticStateTriggerCheckFactory.getUnlessMissing(cache, "test", () -> { loads.incrementAndGet(); return Optional.empty(); }));
+		assertEquals(null, cache.getIfPresent("test"));
+		assertEquals("found", AnalyticStateTriggerCheckFactory.getUnlessMissing(cache, "test", () -> { loads.incrementAndGet(); return Optional.of("found"); }));
+		
+		// Hits are
+		assertEquals("found", AnalyticStateTriggerCheckFactory.getUnlessMissing(cache, "test", () -> { loads.incrementAndGet(); return Optional.empty(); }));
+		assertEquals(2, loads.get());
+	}
+}
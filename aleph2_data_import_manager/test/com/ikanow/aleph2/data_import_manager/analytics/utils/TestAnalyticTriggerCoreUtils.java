@@ -15,7 +15,143 @@
  *******************************************************************************/
 package com.ikanow.aleph2.data_import_manager.analytics.utils;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.junit.Before;
+import org.junit.Test;
+
+import scala.Tuple2;
+
+import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.distributed_services.services.MockCoreDistributedServices;
+import com.ikanow.aleph2.management_db.data_model.AnalyticTriggerStateBean;
+
 public class TestAnalyticTriggerCoreUtils {
 
-	//TODO (ALEPH-12) testing
+	//TODO (ALEPH-12) testing of the mutex based registerOwnershipOfTriggers
+
+	protected MockCoreDistributedServices _cds;
+	protected String _members_path;
+	protected final List<String> _keys = IntStream.range(0, 2000).mapToObj(i -> "/test/bucket/" + i).collect(Collectors.toList());
+
+	@Before
+	public void setup() throws Exception {
+		_cds = new MockCoreDistributedServices();
+		_members_path = "/test/trigger_workers_" + UUID.randomUUID().toString();
+	}
+
+	/** Each worker has its own ZK session, so closing it simulates the worker dying
+	 */
+	protected Tuple2<CuratorFramework, TriggerOwnershipRing> createWorker(final String id) throws Exception {
+		final CuratorFramework curator = CuratorFrameworkFactory.newClient(_cds.getConnectString(), new ExponentialBackoffRetry(1000, 3));
+		curator.start();
+		final TriggerOwnershipRing ring = new TriggerOwnershipRing(curator, _members_path, id);
+		ring.join();
+		return Tuples._2T(curator, ring);
+	}
+
+	/** Runs one check cycle on every worker, treating all the cycles as concurrent (ie checks no key is owned by 2 workers)
+	 * @return the keys checked by each worker
+	 */
+	protected Map<String, Set<String>> runRound(final Map<String, Tuple2<CuratorFramework, TriggerOwnershipRing>> workers) throws Exception {
+		final Map<String, Set<String>> owned = new LinkedHashMap<String, Set<String>>();
+		for (Map.Entry<String, Tuple2<CuratorFramework, TriggerOwnershipRing>> kv: workers.entrySet()) {
+			final TriggerOwnershipRing.Ownership ownership = kv.getValue()._2().beginCycle();
+			owned.put(kv.getKey(), _keys.stream().filter(k -> ownership.isOwner(k)).collect(Collectors.toSet()));
+		}
+		final List<String> all_owned = owned.values().stream().flatMap(s -> s.stream()).collect(Collectors.toList());
+		assertEquals("Key checked twice in round: " + owned.keySet(), all_owned.size(), new HashSet<String>(all_owned).size());
+		return owned;
+	}
+
+	protected static Map<String, String> toOwnerMap(final Map<String, Set<String>> owned) {
+		return owned.entrySet().stream().flatMap(kv -> kv.getValue().stream().map(k -> Tuples._2T(k, kv.getKey())))
+					.collect(Collectors.toMap(t2 -> t2._1(), t2 -> t2._2()));
+	}
+
+	@Test
+	public void test_ownershipRingChurn() throws Exception {
+		final Map<String, Tuple2<CuratorFramework, TriggerOwnershipRing>> workers = new LinkedHashMap<>();
+		for (String id: Arrays.asList("worker1", "worker2", "worker3")) {
+			workers.put(id, createWorker(id));
+		}
+
+		// 1) Steady state: every key owned by exactly one worker, reasonably balanced
+
+		runRound(workers);
+		final Map<String, Set<String>> steady = runRound(workers);
+		assertEquals(_keys.size(), toOwnerMap(steady).size());
+		steady.values().forEach(s -> assertTrue("Unbalanced: " + s.size(), s.size() > _keys.size()/6));
+
+		// 2) A worker joins: only its keys move, and they only move once everyone has moved onto the new ring
+
+		workers.put("worker4", createWorker("worker4"));
+		final Map<String, String> before_join = toOwnerMap(steady);
+		runRound(workers); // (handoff round)
+		final Map<String, Set<String>> after_join = runRound(workers);
+		final Map<String, String> after_join_owners = toOwnerMap(after_join);
+		assertEquals(_keys.size(), after_join_owners.size());
+		final Set<String> moved = _keys.stream().filter(k -> !before_join.get(k).equals(after_join_owners.get(k))).collect(Collectors.toSet());
+		assertTrue("Moved too many: " + moved.size(), moved.size() < 2*_keys.size()/4);
+		assertTrue(moved.stream().allMatch(k -> after_join_owners.get(k).equals("worker4")));
+
+		// 2b) A worker is stuck in a long check while the ring changes: the keys it's still checking aren't picked up by anyone else,
+		//     however many cycles the other workers run, until it moves onto the new ring
+
+		final Set<String> stalled_keys = after_join.get("worker1");
+		workers.put("worker5", createWorker("worker5"));
+		final Map<String, Tuple2<CuratorFramework, TriggerOwnershipRing>> not_stalled = workers.entrySet().stream()
+				.filter(kv -> !kv.getKey().equals("worker1"))
+				.collect(Collectors.toMap(kv -> kv.getKey(), kv -> kv.getValue(), (a, b) -> a, LinkedHashMap::new));
+		for (int i = 0; i < 3; ++i) {
+			runRound(not_stalled).values().forEach(keys -> assertTrue("Stalled worker's keys checked by another worker", Collections.disjoint(keys, stalled_keys)));
+		}
+		runRound(workers); // (worker1 finishes its check and moves on)
+		final Map<String, String> after_stall_owners = toOwnerMap(runRound(workers));
+		assertEquals(_keys.size(), after_stall_owners.size());
+
+		// 3) A worker dies: only its keys move, and none are checked twice while that happens
+
+		workers.remove("worker2")._1().close(); // (ephemeral node goes with the session)
+		runRound(workers);
+		final Map<String, Set<String>> after_leave = runRound(workers);
+		final Map<String, String> after_leave_owners = toOwnerMap(after_leave);
+		assertEquals(_keys.size(), after_leave_owners.size());
+		assertTrue(_keys.stream().filter(k -> !after_stall_owners.get(k).equals("worker2")).allMatch(k -> after_stall_owners.get(k).equals(after_leave_owners.get(k))));
+
+		// 4) A worker's node disappears (eg session expiry) - it re-registers at the start of its next cycle
+
+		workers.get("worker3")._1().delete().forPath(_members_path + "/worker3");
+		runRound(workers);
+		runRound(workers);
+		final Map<String, Set<String>> after_rejoin = runRound(workers);
+		assertEquals(_keys.size(), toOwnerMap(after_rejoin).size());
+		assertTrue(!after_rejoin.get("worker3").isEmpty());
+
+		// 5) Check the trigger filtering
+
+		final Map<Tuple2<String, String>, List<AnalyticTriggerStateBean>> triggers = _keys.stream()
+				.collect(Collectors.toMap(k -> Tuples._2T(k, (String) null), k -> Collections.<AnalyticTriggerStateBean>emptyList()));
+		final TriggerOwnershipRing.Ownership ownership = workers.get("worker1")._2().beginCycle();
+		final Map<Tuple2<String, String>, List<AnalyticTriggerStateBean>> owned_triggers = AnalyticTriggerCoreUtils.selectOwnedTriggers(triggers, ownership);
+		assertTrue(!owned_triggers.isEmpty());
+		assertTrue(owned_triggers.keySet().stream().allMatch(k -> ownership.isOwner(AnalyticTriggerCoreUtils.getTriggerKey(k))));
+
+		workers.values().forEach(w -> { w._2().leave(); w._1().close(); });
+	}
 }
@@ -26,6 +26,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import org.junit.Before;
@@ -256,6 +257,62 @@ public class TestAnalyticTriggerCrudUtils {
 		}
 	}
 	
+	@Test
+	public void test_updateTriggerStatuses_load() throws InterruptedException {
+		assertEquals(0, _test_crud.countObjects().join().intValue());
+		
+		// 10K synthetic external triggers over 500 buckets, all due for a check, with 4 different resource sizes (+ "no size")
+		
+		final int num_triggers = 10000;
+		final Date past = Date.from(Instant.now().minusSeconds(60L));
+		final List<AnalyticTriggerStateBean> synthetic_triggers = IntStream.range(0, num_triggers).boxed()
+				.map(i -> BeanTemplateUtils.build(AnalyticTriggerStateBean.class)
+							.with(AnalyticTriggerStateBean::_id, "trigger_" + i)
+							.with(AnalyticTriggerStateBean::bucket_name, "/test/load/" + (i % 500))
+							.with(AnalyticTriggerStateBean::trigger_type, TriggerType.file)
+							.with(AnalyticTriggerStateBean::input_resource_name_or_id, "/input/" + i)
+							.with(AnalyticTriggerStateBean::is_bucket_active, false)
+							.with(AnalyticTriggerStateBean::is_bucket_suspended, false)
+							.with(AnalyticTriggerStateBean::is_job_active, false)
+							.with(AnalyticTriggerStateBean::is_pending, false)
+							.with(AnalyticTriggerStateBean::next_check, past)
+							.with(AnalyticTriggerStateBean::curr_resource_size, (0 == (i % 5)) ? null : Long.valueOf(i % 4))
+						.done().get())
+				.collect(Collectors.toList());
+		
+		_test_crud.storeObjects(synthetic_triggers).join();
+		assertEquals(num_triggers, _test_crud.countObjects().join().intValue());
+		
+		// 1) Read them all back, as a tick would
+		
+		final Map<Tuple2<String, String>, List<AnalyticTriggerStateBean>> triggers_to_check = AnalyticTriggerCrudUtils.getTriggersToCheck(_test_crud).join();
+		
+		assertEquals(500, triggers_to_check.size());
+		assertEquals(num_triggers, triggers_to_check.values().stream().mapToInt(l -> l.size()).sum());
+		
+		// 2) Mark them all as dormant (ie the common case) with a next check in the future, in bulk
+		
+		final Date future = Date.from(Instant.now().plusSeconds(600L));
+		AnalyticTriggerCrudUtils.updateTriggerStatuses(_test_crud, 
+				triggers_to_check.values().stream().flatMap(l -> l.stream()), future, Optional.empty()).join();
+		
+		assertEquals(num_triggers, _test_crud.countObjectsBySpec(
+				CrudUtils.allOf(AnalyticTriggerStateBean.class)
+					.when(AnalyticTriggerStateBean::next_check, future)
+				).join().intValue());
+		// (the per trigger resource sizes are preserved)
+		assertEquals(num_triggers - num_triggers/5, _test_crud.countObjectsBySpec(
+				CrudUtils.allOf(AnalyticTriggerStateBean.class).withAny(AnalyticTriggerStateBean::curr_resource_size, Arrays.asList(0L, 1L, 2L, 3L))
+				).join().intValue());
+		assertEquals(2000L, _test_crud.countObjectsBySpec(
+				CrudUtils.allOf(AnalyticTriggerStateBean.class).when(AnalyticTriggerStateBean::curr_resource_size, 3L)
+				).join().intValue());
+		
+		// 3) Nothing left to check
+		
+		assertEquals(0, AnalyticTriggerCrudUtils.getTriggersToCheck(_test_crud).join().size());
+	}
+	
 	//////////////////////////////////////////////////////////////////
 
 	@Test
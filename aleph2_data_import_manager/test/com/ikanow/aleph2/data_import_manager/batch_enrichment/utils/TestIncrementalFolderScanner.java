@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.data_import_manager.batch_enrichment.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ikanow.aleph2.core.shared.utils.DirUtils;
+
+public class TestIncrementalFolderScanner {
+
+	public static final int NUM_GROUPS = 20;
+	public static final int BUCKETS_PER_GROUP = 100;
+
+	protected File _root;
+	protected FileContext _file_context;
+
+	@Before
+	public void setup() throws Exception {
+		_root = new File(System.getProperty("java.io.tmpdir") + File.separator + "test_folder_scanner_" + UUID.randomUUID().toString());
+		_file_context = FileContext.getLocalFSFileContext();
+	}
+
+	protected File getReadyDir(final int group, final int bucket) {
+		return new File(_root, "group" + group + File.separator + "bucket" + bucket + IncrementalFolderScanner.READY_DIR_SUFFIX);
+	}
+
+	/** Sets all the directory modification times into the past, so the listings are old enough to be re-used
+	 */
+	protected void ageDirectories() throws IOException {
+		final long old = System.currentTimeMillis() - 60000L;
+		try (Stream<java.nio.file.Path> dirs = Files.walk(_root.toPath())) {
+			dirs.forEach(p -> p.toFile().setLastModified(old));
+		}
+	}
+
+	@Test
+	public void test_incrementalScan() throws Exception {
+		// Generate the tree: <root>/group<N>/bucket<M>/managed_bucket/import/ready
+
+		for (int g = 0; g < NUM_GROUPS; ++g) {
+			for (int b = 0; b < BUCKETS_PER_GROUP; ++b) {
+				getReadyDir(g, b).mkdirs();
+			}
+		}
+		Files.write(new File(getReadyDir(0, 0), "file1.json").toPath(), new byte[10]);
+		ageDirectories();
+		final int num_buckets = NUM_GROUPS*BUCKETS_PER_GROUP;
+		final int num_dirs = 1 + NUM_GROUPS + num_buckets;
+
+		// 1) The previous approach (full traversal) finds the same number of buckets
+
+		final List<Path> all_buckets = new ArrayList<Path>();
+		DirUtils.findAllSubdirectories(all_buckets, _file_context, new Path(_root.toString()), IncrementalFolderScanner.DEFAULT_BUCKET_MARKER, false);
+		assertEquals(num_buckets, all_buckets.size());
+
+		// 2) First scan - has to list everything
+
+		final IncrementalFolderScanner scanner = new IncrementalFolderScanner(_file_context, new Path(_root.toString()), IncrementalFolderScanner.DEFAULT_BUCKET_MARKER);
+		final IncrementalFolderScanner.ScanResult cold = scanner.scan();
+		assertEquals(num_buckets, scanner.getBuckets().size());
+		assertEquals(Arrays.asList("bucket0"), cold.ready_buckets.stream().map(p -> p.getName()).collect(Collectors.toList()));
+		assertEquals(num_dirs + num_buckets, cold.new_directories.size());
+		assertEquals(2*(num_dirs + num_buckets), cold.num_fs_calls);
+
+		// 3) Nothing has changed - no listing, but the (still unprocessed) ready bucket is returned again so it gets retried
+
+		final IncrementalFolderScanner.ScanResult warm = scanner.scan();
+		assertEquals(Arrays.asList("bucket0"), warm.ready_buckets.stream().map(p -> p.getName()).collect(Collectors.toList()));
+		assertTrue(warm.removed_buckets.isEmpty());
+		assertTrue(warm.new_directories.isEmpty());
+		assertEquals(num_dirs + num_buckets, warm.num_fs_calls);
+
+		// 4) A file arrives, a bucket is added, a bucket is deleted
+
+		Files.write(new File(getReadyDir(1, 7), "file2.json").toPath(), new byte[10]);
+		getReadyDir(2, BUCKETS_PER_GROUP).mkdirs();
+		Files.write(new File(getReadyDir(2, BUCKETS_PER_GROUP), "file3.json").toPath(), new byte[10]);
+		deleteAll(getReadyDir(3, 3).getParentFile().getParentFile().getParentFile());
+
+		final IncrementalFolderScanner.ScanResult changed = scanner.scan();
+		assertEquals(Arrays.asList("bucket0", "bucket7", "bucket" + BUCKETS_PER_GROUP).stream().sorted().collect(Collectors.toList()),
+				changed.ready_buckets.stream().map(p -> p.getName()).sorted().collect(Collectors.toList()));
+		assertEquals(Arrays.asList("bucket3"), changed.removed_buckets.stream().map(p -> p.getName()).collect(Collectors.toList()));
+		assertEquals(num_buckets, scanner.getBuckets().size());
+
+		// 4b) Once a bucket's ready files have been processed (ie moved out) it is no longer returned
+
+		new File(getReadyDir(0, 0), "file1.json").delete();
+		final IncrementalFolderScanner.ScanResult processed = scanner.scan();
+		assertTrue(processed.ready_buckets.stream().noneMatch(p -> p.toString().endsWith("group0/bucket0")));
+
+		// 5) Partial rescan of just the changed ready dir
+
+		Files.write(new File(getReadyDir(4, 4), "file4.json").toPath(), new byte[10]);
+		final Path changed_ready = scanner.getBuckets().stream().filter(p -> p.toString().endsWith("group4/bucket4")).findFirst()
+										.map(p -> new Path(p.toString() + IncrementalFolderScanner.READY_DIR_SUFFIX)).get();
+		final IncrementalFolderScanner.ScanResult partial = scanner.rescan(Arrays.asList(changed_ready));
+		assertEquals(Arrays.asList("bucket4"), partial.ready_buckets.stream().map(p -> p.getName()).collect(Collectors.toList()));
+		assertEquals(2L, partial.num_fs_calls);
+
+		// 6) Partial rescan of a group dir after a bucket is deleted
+
+		final Path group5 = scanner.getBuckets().stream().filter(p -> p.toString().endsWith("group5/bucket5")).findFirst().map(p -> p.getParent()).get();
+		deleteAll(getReadyDir(5, 5).getParentFile().getParentFile().getParentFile());
+		final IncrementalFolderScanner.ScanResult partial_removed = scanner.rescan(Arrays.asList(group5));
+		assertEquals(Arrays.asList("bucket5"), partial_removed.removed_buckets.stream().map(p -> p.getName()).collect(Collectors.toList()));
+		assertEquals(num_buckets - 1, scanner.getBuckets().size());
+
+		deleteAll(_root);
+	}
+
+	@Test
+	public void test_localFolderNotifier() throws Exception {
+		getReadyDir(0, 0).mkdirs();
+		final IncrementalFolderScanner scanner = new IncrementalFolderScanner(_file_context, new Path(_root.toString()), IncrementalFolderScanner.DEFAULT_BUCKET_MARKER);
+		final IncrementalFolderScanner.ScanResult result = scanner.scan();
+		final Path root = _file_context.makeQualified(new Path(_root.toString()));
+		assertTrue(LocalFolderNotifier.isLocal(root));
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		try (LocalFolderNotifier notifier = new LocalFolderNotifier(() -> latch.countDown())) {
+			assertEquals(result.new_directories.size(), notifier.register(result.new_directories));
+
+			Files.write(new File(getReadyDir(0, 0), "file1.json").toPath(), new byte[10]);
+			assertTrue("No notification", latch.await(10, TimeUnit.SECONDS));
+
+			final Optional<Set<Path>> changes = notifier.drainChanges();
+			assertTrue(changes.isPresent());
+			assertTrue("Changes: " + changes.get(), changes.get().stream().anyMatch(p -> p.toString().endsWith(IncrementalFolderScanner.READY_DIR_SUFFIX)));
+
+			final IncrementalFolderScanner.ScanResult partial = scanner.rescan(changes.get());
+			assertEquals(Arrays.asList("bucket0"), partial.ready_buckets.stream().map(p -> p.getName()).collect(Collectors.toList()));
+		}
+		deleteAll(_root);
+	}
+
+	protected static void deleteAll(final File f) {
+		Optional.ofNullable(f.listFiles()).ifPresent(children -> Arrays.stream(children).forEach(c -> deleteAll(c)));
+		f.delete();
+	}
+}
@@ -19,8 +19,10 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.InputStreamReader;
+import java.time.ZonedDateTime;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -51,6 +53,7 @@ import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.SearchIndexSchemaBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataSchemaBean.TemporalSchemaBean;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
+import com.ikanow.aleph2.data_model.objects.shared.ManagementSchemaBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.BucketUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
@@ -280,6 +283,8 @@ public class TestDataAgeOutSupervisor {
 		
 		// Emulate the start up code in data import manager:
 		
+		_actor_context.getActorSystem().actorOf(Props.create(DataAgeOutWorkerActor.class), "TEST" + ".governance.actors.DataAgeOutWorkerActor");
+		
 		_actor_context.getDistributedServices().createSingletonActor("TEST" + ".governance.actors.DataAgeOutSupervisor", 
 				ImmutableSet.<String>builder().add(DistributedServicesPropertyBean.ApplicationNames.DataImportManager.toString()).build(), 
 				Props.create(DataAgeOutSupervisor.class));		
@@ -293,4 +298,76 @@ public class TestDataAgeOutSupervisor {
 		assertEquals(true, _test_results.handled3);
 		assertEquals(false, _test_results.handled4);
 	}
+	
+	@Test
+	public void test_needsAgeOut() {
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::full_name, "/test/needs_age_out")
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+						.with(DataSchemaBean::temporal_schema,
+								BeanTemplateUtils.build(TemporalSchemaBean.class)
+								.with(TemporalSchemaBean::exist_age_max, "1 day")
+								.with(TemporalSchemaBean::grouping_time_period, "hourly")
+								.done().get()
+								)
+						.done().get())
+			.done().get();
+		
+		final Date now = Date.from(ZonedDateTime.now().withMinute(30));
+		
+		// Never aged out
+		assertTrue(DataAgeOutSupervisor.needsAgeOut(bucket, Optional.empty(), now));
+		
+		// Still in the same hour
+		assertFalse(DataAgeOutSupervisor.needsAgeOut(bucket, Optional.of(new Date(now.getTime() - 60000L)), now));
+		
+		// Into the next hour
+		assertTrue(DataAgeOutSupervisor.needsAgeOut(bucket, Optional.of(new Date(now.getTime() - 3600000L)), now));
+		
+		// Bucket modified since the last age out
+		final DataBucketBean modified_bucket = BeanTemplateUtils.clone(bucket).with(DataBucketBean::modified, now).done();
+		assertTrue(DataAgeOutSupervisor.needsAgeOut(modified_bucket, Optional.of(new Date(now.getTime() - 60000L)), now));
+		
+		// No grouping period, so can't tell
+		final DataBucketBean no_grouping_bucket = BeanTemplateUtils.clone(bucket)
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+						.with(DataSchemaBean::temporal_schema,
+								BeanTemplateUtils.build(TemporalSchemaBean.class)
+								.with(TemporalSchemaBean::exist_age_max, "1 day")
+								.done().get()
+								)
+						.done().get())
+				.done();
+		assertTrue(DataAgeOutSupervisor.needsAgeOut(no_grouping_bucket, Optional.of(new Date(now.getTime() - 60000L)), now));
+		
+		// The logging bucket ages out more often than the data does
+		final DataBucketBean logging_bucket = BeanTemplateUtils.clone(bucket)
+				.with(DataBucketBean::data_schema,
+						BeanTemplateUtils.build(DataSchemaBean.class)
+						.with(DataSchemaBean::temporal_schema,
+								BeanTemplateUtils.build(TemporalSchemaBean.class)
+								.with(TemporalSchemaBean::exist_age_max, "1 day")
+								.with(TemporalSchemaBean::grouping_time_period, "daily")
+								.done().get()
+								)
+						.done().get())
+				.with(DataBucketBean::management_schema,
+						BeanTemplateUtils.build(ManagementSchemaBean.class)
+						.with(ManagementSchemaBean::logging_schema,
+								BeanTemplateUtils.build(ManagementSchemaBean.LoggingSchemaBean.class)
+								.with(ManagementSchemaBean.LoggingSchemaBean::temporal_schema,
+										BeanTemplateUtils.build(TemporalSchemaBean.class)
+										.with(TemporalSchemaBean::exist_age_max, "1 day")
+										.with(TemporalSchemaBean::grouping_time_period, "hourly")
+										.done().get()
+										)
+								.done().get())
+						.done().get())
+				.done();
+		final Date midday = Date.from(ZonedDateTime.now().withHour(12).withMinute(30)); // (so the previous hour is always the same day)
+		assertFalse(DataAgeOutSupervisor.needsAgeOut(logging_bucket, Optional.of(new Date(midday.getTime() - 60000L)), midday));
+		assertTrue(DataAgeOutSupervisor.needsAgeOut(logging_bucket, Optional.of(new Date(midday.getTime() - 3600000L)), midday));
+	}
 }
@@ -15,6 +15,9 @@
  *******************************************************************************/
 package com.ikanow.aleph2.data_model.interfaces.shared_services;
 
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
@@ -39,17 +42,33 @@ public interface IUuidService {
 	 */
 	public String getTimeBasedUuid(final long time);	
 	
+	/** Generates a batch of (type 1) UUID based strings from now
+	 * @param n - the number of UUIDs to generate
+	 * @return a list of time-based UUID strings
+	 */
+	default List<String> getTimeBasedUuids(final int n) {
+		return IntStream.range(0, n).mapToObj(__ -> getTimeBasedUuid()).collect(Collectors.toList());
+	}
+	
 	/** The time associated with the UUID
 	 * @param uuid - must be time based or the result is undefined
 	 * @return the time of the UUID in milliseconds from Unix Epoch
 	 */
 	public long getTimeUuid(final String uuid);
 	
-	/** Returns a random (type 3) UUID 
+	/** Returns a random (version 4) UUID 
 	 * @return UUID string
 	 */
 	public String getRandomUuid();
 	
+	/** Returns a batch of random (version 4) UUIDs
+	 * @param n - the number of UUIDs to generate
+	 * @return a list of UUID strings
+	 */
+	default List<String> getRandomUuids(final int n) {
+		return IntStream.range(0, n).mapToObj(__ -> getRandomUuid()).collect(Collectors.toList());
+	}
+	
 	/** Generates a UUID "unique to" the specified bean
 	 * @param bean
 	 * @return a UUID based on the json-ification of the bean
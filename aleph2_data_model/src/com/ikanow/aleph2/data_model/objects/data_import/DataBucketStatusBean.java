@@ -146,6 +146,11 @@ public class DataBucketStatusBean implements Serializable {
 	 * @return
 	 */
 	public Date next_poll_date() { return next_poll_date; }
+	
+	/** The start time of the last age out pass that completed successfully for this bucket (set by the core, used to skip buckets that can't have any newly expired data)
+	 * @return
+	 */
+	public Date last_age_out() { return last_age_out; }
 		
 	private String _id;
 	private String bucket_path;
@@ -160,6 +165,7 @@ public class DataBucketStatusBean implements Serializable {
 	private Boolean confirmed_multi_node_enabled;
 	private DataBucketBean.MasterEnrichmentType confirmed_master_enrichment_type;
 	private Date next_poll_date;
+	private Date last_age_out;
 	
 	private Map<String, BasicMessageBean> last_harvest_status_messages;
 	private Map<String, BasicMessageBean> last_enrichment_status_messages;
@@ -16,19 +16,23 @@
 package com.ikanow.aleph2.data_model.utils;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
-import java.util.stream.Stream;
 
-import com.codepoetics.protonpack.StreamUtils;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
@@ -42,8 +46,12 @@ import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigRenderOptions;
 
@@ -58,6 +66,32 @@ import net.sf.cglib.proxy.MethodProxy;
  */
 public class BeanTemplateUtils {
 
+	// A single mapper shared by all the conversions below (and JsonUtils/UuidUtils) - thread safe once configured, so must never be reconfigured
+	// (readers/writers are immutable, so are the preferred way of accessing it from outside this package)
+	protected static final ObjectMapper _mapper = configureMapper(Optional.empty());
+	// (weak keys so that eg classes loaded from bucket classloaders can be unloaded, soft values because the readers/writers reference their class)
+	protected static final Cache<Class<?>, ObjectReader> _readers = CacheBuilder.newBuilder().weakKeys().softValues().build();
+	protected static final Cache<Class<?>, ObjectWriter> _writers = CacheBuilder.newBuilder().weakKeys().softValues().build();
+	
+	/** Returns a cached, immutable reader for the specified class, configured as per configureMapper
+	 * @param clazz - the class to deserialize into
+	 * @return the reader
+	 */
+	public static <T> ObjectReader getReader(final Class<T> clazz) {
+		final ObjectReader cached = _readers.getIfPresent(clazz);
+		return (null != cached) ? cached : Lambdas.get(Lambdas.wrap_u(() -> _readers.get(clazz, () -> _mapper.readerFor(clazz))));
+	}
+	
+	/** Returns a cached, immutable writer for the specified class, configured as per configureMapper
+	 * @param clazz - the class to serialize from
+	 * @return the writer
+	 */
+	public static <T> ObjectWriter getWriter(final Class<T> clazz) {
+		final ObjectWriter cached = _writers.getIfPresent(clazz);
+		return (null != cached) ? cached : Lambdas.get(Lambdas.wrap_u(() -> _writers.get(clazz, () -> _mapper.writerFor(clazz))));
+	}
+	
+
 	/** Creates a property bean from the supplied config object
 	 * @param bean_root - the root of the configuration tree that needs to be converted to bean
 	 * @param bean_clazz - the class of the properties bean
@@ -68,31 +102,28 @@ public class BeanTemplateUtils {
 	 */
 	static public <T> T from(final Config bean_root, final Class<T> bean_clazz) throws JsonParseException, JsonMappingException, IOException {
 		if (null != bean_root) {
-			ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-			return object_mapper.readValue(bean_root.root().render(ConfigRenderOptions.concise()), bean_clazz);
+			return getReader(bean_clazz).readValue(bean_root.root().render(ConfigRenderOptions.concise()));
 		}
 		else {
 			return BeanTemplateUtils.build(bean_clazz).done().get();
 		}
 	}
 	
-	/** Converts a bean to its JsonNode representation (not high performance)
+	/** Converts a bean to its JsonNode representation
 	 * @param bean - the bean to convert to JSON
 	 * @return - the JSON
 	 */
 	static public <T> JsonNode toJson(final T bean) {
-		ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-		return object_mapper.valueToTree(bean);		
+		return _mapper.valueToTree(bean);		
 	}
 	
-	/** Converts a bean to its Map<String, Object> representation (not high performance)
+	/** Converts a bean to its Map<String, Object> representation
 	 * @param bean - the bean to convert to JSON
 	 * @return - the JSON
 	 */
 	@SuppressWarnings("unchecked")
 	static public <T> Map<String, Object> toMap(final T bean) {
-		ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-		return object_mapper.convertValue(bean, Map.class);		
+		return _mapper.convertValue(bean, Map.class);		
 	}
 	
 	/** Converts a JsonNode to a bean template of the specified type
@@ -102,8 +133,7 @@ public class BeanTemplateUtils {
 	 */
 	static public <T> BeanTemplate<T> from(final Map<String, Object> map_json, final Class<T> clazz) {
 		try {
-			ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-			return BeanTemplate.of(object_mapper.convertValue(map_json, clazz));
+			return BeanTemplate.of(_mapper.convertValue(map_json, clazz));
 		}
 		catch (Exception e) { // on fail returns an unchecked error
 			throw new RuntimeException(e); // (this can only happen due to "static" code type issues, so unchecked exception is fine
@@ -117,8 +147,7 @@ public class BeanTemplateUtils {
 	 */
 	static public <T> BeanTemplate<T> from(final String string_json, final Class<T> clazz) {
 		try {
-			ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-			return BeanTemplate.of(object_mapper.readValue(string_json, clazz));
+			return BeanTemplate.of(getReader(clazz).readValue(string_json));
 		}
 		catch (Exception e) { // on fail returns an unchecked error
 			throw new RuntimeException(e); // (this can only happen due to "static" code type issues, so unchecked exception is fine
@@ -132,8 +161,7 @@ public class BeanTemplateUtils {
 	 */
 	static public <T> BeanTemplate<T> from(final JsonNode bean_json, final Class<T> clazz) {
 		try {
-			ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-			return BeanTemplate.of(object_mapper.treeToValue(bean_json, clazz));
+			return BeanTemplate.of(_mapper.treeToValue(bean_json, clazz));
 		}
 		catch (Exception e) { // on fail returns an unchecked error
 			throw new RuntimeException(e); // (this can only happen due to "static" code type issues, so unchecked exception is fine
@@ -180,8 +208,7 @@ public class BeanTemplateUtils {
 	 * @throws IOException
 	 */
 	static public <T> TemplateHelper<T> build(final JsonNode json, final Class<T> bean_clazz) throws JsonParseException, JsonMappingException, IOException {
-		ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-		return build(object_mapper.treeToValue(json, bean_clazz));		
+		return build(_mapper.treeToValue(json, bean_clazz));		
 	}	
 	
 	/** Returns a template builder of the designated type from the JSON (note: not very high performance, should only be used for management-type operations)
@@ -193,8 +220,7 @@ public class BeanTemplateUtils {
 	 * @throws IOException
 	 */
 	static public <T> TemplateHelper<T> build(final String json_str, final Class<T> bean_clazz) throws JsonParseException, JsonMappingException, IOException {
-		ObjectMapper object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
-		return build(object_mapper.treeToValue(object_mapper.readTree(json_str.getBytes()), bean_clazz));		
+		return build(_mapper.treeToValue(_mapper.readTree(json_str.getBytes()), bean_clazz));		
 	}	
 	
 	/**
@@ -352,11 +378,9 @@ public class BeanTemplateUtils {
 		 */
 		public <U> CommonHelper<T> with(final String fieldName, final U val) {
 			try {
-				final Field f = getDeclaredAndInheritedField(fieldName, _element.getClass());
-				f.setAccessible(true);
-				f.set(_element, val);
+				_accessors.getField(fieldName).setter.invokeExact((Object)_element, (Object)val);
 			}
-			catch (Exception e) {
+			catch (Throwable e) {
 				throw new RuntimeException("CloningHelper", e);
 			}
 			return this;
@@ -369,28 +393,13 @@ public class BeanTemplateUtils {
 		@SuppressWarnings("unchecked")
 		public <R> R get(final String name) {
 			try {
-				final Field f = getDeclaredAndInheritedField(name, _element.getClass());
-				f.setAccessible(true);
-				return (R)f.get(_element);
+				return (R)_accessors.getField(name).getter.invokeExact((Object)_element);
 			}
-			catch (Exception e) {
+			catch (Throwable e) {
 				throw new RuntimeException("BeanTemplate.get", e);
 			}
 		}
 		
-		private Field getDeclaredAndInheritedField(final String field, Class<?> clazz) throws NoSuchFieldException {
-			try {
-				return clazz.getDeclaredField(field);
-			}
-			catch (NoSuchFieldException e) {
-				final Class<?> next_clazz = clazz.getSuperclass();
-				if (null == next_clazz) { 
-					throw e;
-				}
-				return getDeclaredAndInheritedField(field, next_clazz);
-			}
-		}
-		
 		/**Set a field in a cloned/new object
 		 * @param fieldName The field to set
 		 * @param val the value to which it should be set
@@ -403,72 +412,221 @@ public class BeanTemplateUtils {
 			return with(_naming_helper.field(getter), val);
 		}		
 		
-		protected void cloneInitialFields(final T to_clone) {			
-			StreamUtils.<Class<?>>takeWhile(Stream.iterate(_element.getClass(), c -> c.getSuperclass()), c -> null != c)
-				.<Field>flatMap(c -> Arrays.stream(c.getDeclaredFields()))
-				.filter(f -> !Modifier.isStatic(f.getModifiers())) // (ignore static fields)
-				.flatMap(Lambdas.flatWrap_i(f -> { f.setAccessible(true); return Tuples._2T(f, f.get(to_clone)); }))
-				.filter(t -> (null != t) && (null != t._2()))
-				.forEach(Lambdas.wrap_consumer_i(t -> t._1().set(_element, t._2())));
-			;
+		protected void cloneInitialFields(final T to_clone) {
+			try {
+				for (FieldAccessor field: _accessors.all_fields) {
+					final Object val = field.getter.invokeExact((Object)to_clone);
+					if (null != val) {
+						field.setter.invokeExact((Object)_element, val);
+					}
+				}
+			}
+			catch (Throwable e) {
+				throw new RuntimeException("CloningHelper", e);
+			}
 		}
 		
 		@SuppressWarnings("unchecked")
 		protected CommonHelper(final Class<?> element_clazz) throws InstantiationException, IllegalAccessException, NoSuchMethodException, SecurityException, IllegalArgumentException, InvocationTargetException {
-			final Constructor<T> contructor = (Constructor<T>) element_clazz.getDeclaredConstructor();
-			contructor.setAccessible(true);
-			_element = (T) contructor.newInstance();
+			_accessors = ClassAccessors.get(element_clazz);
+			_element = (T) _accessors.newInstance();
 		}
+		@SuppressWarnings("unchecked")
 		protected CommonHelper(final T to_clone) throws NoSuchMethodException, SecurityException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
-			@SuppressWarnings("unchecked")
-			final Constructor<T> contructor = (Constructor<T>) to_clone.getClass().getDeclaredConstructor();
-			contructor.setAccessible(true);
-			_element = (T) contructor.newInstance();
+			_accessors = ClassAccessors.get(to_clone.getClass());
+			_element = (T) _accessors.newInstance();
 			cloneInitialFields(to_clone);
 		}
+		protected final ClassAccessors _accessors;
 		protected final T _element;
 		protected MethodNamingHelper<T> _naming_helper = null;
 	}
 	
+	/** A getter/setter pair for a single (non static) field, adapted to (Object)Object and (Object,Object)void so they can be invoked exactly
+	 * @author acp
+	 */
+	protected static class FieldAccessor {
+		protected FieldAccessor(final Field field) throws IllegalAccessException {
+			field.setAccessible(true);
+			getter = MethodHandles.lookup().unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+			setter = getSetter(field).asType(MethodType.methodType(void.class, Object.class, Object.class));
+		}
+		/** Some JVMs won't produce direct setters for final fields, in which case fall back to a handle on (accessible) Field.set
+		 */
+		private static MethodHandle getSetter(final Field field) throws IllegalAccessException {
+			try {
+				return MethodHandles.lookup().unreflectSetter(field);
+			}
+			catch (IllegalAccessException e) {
+				return Lambdas.get(Lambdas.wrap_u(() -> MethodHandles.lookup()
+						.findVirtual(Field.class, "set", MethodType.methodType(void.class, Object.class, Object.class)).bindTo(field)));
+			}
+		}
+		final MethodHandle getter;
+		final MethodHandle setter;
+	}
+	
+	/** Per class cache of the constructor and field accessors used by clone/build, so that the class hierarchy is only
+	 *  walked (and setAccessible called) the first time a class is used
+	 * @author acp
+	 */
+	protected static class ClassAccessors {
+		// (weak keys so that eg classes loaded from bucket classloaders can be unloaded, soft values because the accessors reference their class)
+		protected static final Cache<Class<?>, ClassAccessors> _accessors = CacheBuilder.newBuilder().weakKeys().softValues().build();
+		
+		/** Returns the (shared) accessors for the specified class, creating them the first time it's used
+		 * @param clazz - the bean class
+		 * @return the accessors for that class
+		 */
+		protected static ClassAccessors get(final Class<?> clazz) {
+			final ClassAccessors cached = _accessors.getIfPresent(clazz);
+			return (null != cached) 
+					? cached 
+					: Lambdas.get(Lambdas.wrap_u(() -> _accessors.get(clazz, () -> new ClassAccessors(clazz))));
+		}
+		
+		protected ClassAccessors(final Class<?> clazz) throws NoSuchMethodException, SecurityException, IllegalAccessException {
+			final Constructor<?> contructor = clazz.getDeclaredConstructor();
+			contructor.setAccessible(true);
+			this.constructor = MethodHandles.lookup().unreflectConstructor(contructor).asType(MethodType.methodType(Object.class));
+			
+			final LinkedHashMap<String, FieldAccessor> mutable_fields = new LinkedHashMap<>();
+			final ArrayList<FieldAccessor> mutable_all_fields = new ArrayList<>();
+			for (Class<?> c = clazz; null != c; c = c.getSuperclass()) {
+				for (Field f: c.getDeclaredFields()) {
+					if (!Modifier.isStatic(f.getModifiers())) { // (ignore static fields)
+						final FieldAccessor accessor = new FieldAccessor(f);
+						mutable_all_fields.add(accessor);
+						mutable_fields.putIfAbsent(f.getName(), accessor); // (sub-class fields hide super-class fields of the same name)
+					}
+				}
+			}
+			this.fields = Collections.unmodifiableMap(mutable_fields);
+			this.all_fields = Collections.unmodifiableList(mutable_all_fields);
+		}
+		
+		/** Creates a new instance of the class using its (possibly non-public) default constructor
+		 * @return the new instance
+		 */
+		protected Object newInstance() {
+			try {
+				return constructor.invokeExact();
+			}
+			catch (RuntimeException e) {
+				throw e;
+			}
+			catch (Throwable e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		/** Returns the accessor for the named field (including inherited fields)
+		 * @param field_name - the field name
+		 * @return the accessor
+		 * @throws NoSuchFieldException
+		 */
+		protected FieldAccessor getField(final String field_name) throws NoSuchFieldException {
+			final FieldAccessor accessor = fields.get(field_name);
+			if (null == accessor) {
+				throw new NoSuchFieldException(field_name);
+			}
+			return accessor;
+		}
+		
+		protected final MethodHandle constructor;
+		protected final Map<String, FieldAccessor> fields;
+		protected final List<FieldAccessor> all_fields; // (includes hidden super-class fields, all copied on clone)
+	}
+	
 	/**
-	 * A helper class that enables type safe field specification
-	 * Note: depends on all accessors being in the format "_<fieldname>()" for the given <fieldname>  
+	 * Process-wide, thread-safe resolution of getter method references to field names: one cglib recorder proxy per class
+	 * (the last intercepted method name is recorded per thread), and each getter reference only invoked against it once 
 	 * @author acp
 	 *
 	 * @param <T>
 	 */
-	public static class MethodNamingHelper<T> implements MethodInterceptor {
+	protected static class FieldNameResolver<T> implements MethodInterceptor {
+		protected static final int MAX_CACHED_GETTERS_PER_CLASS = 1000;
+		protected static final ThreadLocal<String> _last_name = new ThreadLocal<String>();
+		// (weak keys so that eg classes loaded from bucket classloaders can be unloaded, soft values because the resolver references its class)
+		protected static final Cache<Class<?>, FieldNameResolver<?>> _resolvers = CacheBuilder.newBuilder().weakKeys().softValues().build();
 		
-		protected String _name;
-		protected T _recorder;
-		protected Optional<String> _parent_path;
+		/** Returns the (shared) resolver for the specified class, creating it the first time it's used
+		 * @param clazz - the containing class for the fields
+		 * @return the resolver for that class
+		 */
 		@SuppressWarnings("unchecked")
-		protected MethodNamingHelper(final Class<T> clazz, final Optional<String> parent_path) {
+		protected static <T> FieldNameResolver<T> get(final Class<T> clazz) {
+			final FieldNameResolver<T> cached = (FieldNameResolver<T>) _resolvers.getIfPresent(clazz);
+			return (null != cached) 
+					? cached 
+					: (FieldNameResolver<T>) Lambdas.get(Lambdas.wrap_u(() -> _resolvers.get(clazz, () -> new FieldNameResolver<T>(clazz))));
+		}
+		
+		protected final T _recorder;
+		// (getter lambdas have identity equality - non capturing method references are singletons per call site, so this is normally a handful of entries per class)
+		protected final Cache<Function<T, ?>, String> _names = CacheBuilder.newBuilder().weakKeys().maximumSize(MAX_CACHED_GETTERS_PER_CLASS).build();
+		
+		@SuppressWarnings("unchecked")
+		protected FieldNameResolver(final Class<T> clazz) {
 			Enhancer enhancer = new Enhancer();
 			enhancer.setSuperclass(clazz);
 			enhancer.setCallback(this);
 			_recorder = (T) enhancer.create();
-			_parent_path = parent_path;
 		}
 		@Override
 		public Object intercept(final Object object, final Method method, final Object[] args,
 				final MethodProxy proxy) throws Throwable
 		{
 			if (method.getName().equals("field")) {
-				return _name;
+				return _last_name.get();
 			}
 			else {
-				_name = method.getName();
+				_last_name.set(method.getName());
 			}
 			return null;
 		}
+		/** Returns the (non nested) name of the field accessed by the getter
+		 * @param getter - the method reference (T::<function>)
+		 * @return
+		 */
+		public String resolve(final Function<T, ?> getter) {
+			final String cached = _names.getIfPresent(getter);
+			if (null != cached) {
+				return cached;
+			}
+			_last_name.set(null);
+			getter.apply(_recorder);
+			final String name = _last_name.get();
+			if (null != name) {
+				_names.put(getter, name);
+			}
+			return name;
+		}
+	}
+	
+	/**
+	 * A helper class that enables type safe field specification
+	 * Note: depends on all accessors being in the format "_<fieldname>()" for the given <fieldname>  
+	 * (cheap to create and safe to share across threads, the field name resolution is cached per class, see FieldNameResolver)
+	 * @author acp
+	 *
+	 * @param <T>
+	 */
+	public static class MethodNamingHelper<T> {
+		
+		protected final FieldNameResolver<T> _resolver;
+		protected final Optional<String> _parent_path;
+		protected MethodNamingHelper(final Class<T> clazz, final Optional<String> parent_path) {
+			_resolver = FieldNameResolver.get(clazz);
+			_parent_path = parent_path;
+		}
 		/** Returns the field (in its nested format if obtained from a nested method helper)
 		 * @param getter - the method reference (T::<function>)
 		 * @return
 		 */
 		public String field(final Function<T, ?> getter) {
-			getter.apply(_recorder);
-			return field(_name);
+			return field(_resolver.resolve(getter));
 		}
 		/** Returns the field (in its nested format if obtained from a nested method helper)
 		 * @param field_name - the String version of the field name (eg needed for maps)
@@ -482,8 +640,7 @@ public class BeanTemplateUtils {
 		 * @return
 		 */
 		public String non_nested_field(final Function<T, ?> getter) {
-			getter.apply(_recorder);
-			return non_nested_field(_name);
+			return non_nested_field(_resolver.resolve(getter));
 		}
 		/** Returns the field (in its nested format if obtained from a nested method helper)
 		 * @param field_name - the String version of the field name (eg needed for maps)
@@ -0,0 +1,385 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.data_model.utils;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+import scala.Tuple2;
+
+/** An in-memory trie of bucket full_names (one node per path segment), which answers ancestor/descendant and glob queries
+ *  in O(path length + matches) without going to the management DB
+ *  Something (currently the DataBucketCrudService) needs to load it and keep it up to date - until then isLoaded() is false
+ *  and users should fall back to querying the DB
+ * @author Alex
+ */
+public class BucketPathIndex {
+	protected static final String GLOB_START_REGEX = "[?*\\[{].*$";
+	protected static final String COMPLEX_GLOB_REGEX = ".*[\\[{].*"; // (can contain /s so can't be matched segment by segment)
+	
+	protected static final BucketPathIndex _singleton = new BucketPathIndex();
+	
+	/** Returns the process-wide bucket path index
+	 * @return
+	 */
+	public static BucketPathIndex get() {
+		return _singleton;
+	}
+	
+	/** A single path segment - full_name is non-null if there's a bucket at this path
+	 */
+	protected static class Node {
+		protected final TreeMap<String, Node> children = new TreeMap<String, Node>();
+		protected String full_name = null;
+	}
+	
+	protected final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	protected Node _root = new Node(); // (guarded by _lock)
+	protected int _size = 0; // (guarded by _lock)
+	protected volatile boolean _loaded = false;
+	protected volatile long _last_loaded = 0L;
+	protected List<Tuple2<Boolean, String>> _reload_journal = null; // (guarded by _lock: adds (true)/removes (false) made since beginReload, null if no reload in progress)
+	
+	/** Whether the index has been loaded (eg from the management DB), if not then its answers are incomplete
+	 * @return
+	 */
+	public boolean isLoaded() {
+		return _loaded;
+	}
+	
+	/** The time (java time) the index was last fully (re)loaded, 0 if never
+	 * @return
+	 */
+	public long lastLoaded() {
+		return _last_loaded;
+	}
+	
+	/** The number of buckets in the index
+	 * @return
+	 */
+	public int size() {
+		_lock.readLock().lock();
+		try {
+			return _size;
+		}
+		finally {
+			_lock.readLock().unlock();
+		}
+	}
+	
+	/** Call before taking the snapshot that will be passed to replaceAll - any adds/removes made between the two calls
+	 *  are then re-applied on top of the snapshot, so they aren't lost if the snapshot was taken before they reached the DB
+	 */
+	public void beginReload() {
+		_lock.writeLock().lock();
+		try {
+			_reload_journal = new ArrayList<Tuple2<Boolean, String>>();
+		}
+		finally {
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	/** Call if the snapshot for a reload could not be taken, stops recording changes
+	 */
+	public void abortReload() {
+		_lock.writeLock().lock();
+		try {
+			_reload_journal = null;
+		}
+		finally {
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	/** Replaces the entire contents of the index (the new trie is built before the lock is taken), and marks it as loaded 
+	 *  (any changes made since beginReload are merged into the new contents)
+	 * @param full_names - the full_names of all the buckets in the system
+	 */
+	public void replaceAll(final Iterator<String> full_names) {
+		final Node new_root = new Node();
+		int new_size = 0;
+		while (full_names.hasNext()) {
+			new_size += add(new_root, full_names.next()) ? 1 : 0;
+		}
+		_lock.writeLock().lock();
+		try {
+			if (null != _reload_journal) {
+				for (Tuple2<Boolean, String> change: _reload_journal) {
+					if (change._1()) new_size += add(new_root, change._2()) ? 1 : 0;
+					else new_size -= remove(new_root, change._2()) ? 1 : 0;
+				}
+				_reload_journal = null;
+			}
+			_root = new_root;
+			_size = new_size;
+		}
+		finally {
+			_lock.writeLock().unlock();
+		}
+		_last_loaded = System.currentTimeMillis();
+		_loaded = true;
+	}
+	
+	/** Empties the index and marks it as not loaded
+	 */
+	public void clear() {
+		_lock.writeLock().lock();
+		try {
+			_root = new Node();
+			_size = 0;
+			_loaded = false;
+			_reload_journal = null;
+		}
+		finally {
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	/** Adds a bucket to the index
+	 * @param full_name - the bucket path
+	 * @return true if the bucket wasn't already in the index
+	 */
+	public boolean add(final String full_name) {
+		_lock.writeLock().lock();
+		try {
+			if (null != _reload_journal) _reload_journal.add(Tuples._2T(true, full_name));
+			final boolean added = add(_root, full_name);
+			_size += added ? 1 : 0;
+			return added;
+		}
+		finally {
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	/** Removes a bucket from the index (and any path segments that no longer lead to a bucket)
+	 * @param full_name - the bucket path
+	 * @return true if the bucket was in the index
+	 */
+	public boolean remove(final String full_name) {
+		_lock.writeLock().lock();
+		try {
+			if (null != _reload_journal) _reload_journal.add(Tuples._2T(false, full_name));
+			final boolean removed = remove(_root, full_name);
+			_size -= removed ? 1 : 0;
+			return removed;
+		}
+		finally {
+			_lock.writeLock().unlock();
+		}
+	}
+	
+	/** Whether there's a bucket at exactly this path
+	 * @param full_name - the bucket path
+	 * @return
+	 */
+	public boolean contains(final String full_name) {
+		_lock.readLock().lock();
+		try {
+			final Node n = find(_root, getSegments(full_name));
+			return (null != n) && (null != n.full_name);
+		}
+		finally {
+			_lock.readLock().unlock();
+		}
+	}
+	
+	/** Returns all the buckets that are strict ancestors of the specified path (eg /a and /a/b for /a/b/c), shortest first
+	 * @param full_name - the bucket path
+	 * @return
+	 */
+	public List<String> getAncestors(final String full_name) {
+		final List<String> segments = getSegments(full_name);
+		final List<String> ret_val = new ArrayList<String>();
+		_lock.readLock().lock();
+		try {
+			Node mutable_curr = _root;
+			for (int i = 0; (i < segments.size() - 1) && (null != mutable_curr); ++i) {
+				mutable_curr = mutable_curr.children.get(segments.get(i));
+				if ((null != mutable_curr) && (null != mutable_curr.full_name)) ret_val.add(mutable_curr.full_name);
+			}
+			return ret_val;
+		}
+		finally {
+			_lock.readLock().unlock();
+		}
+	}
+	
+	/** Returns all the buckets that are strict descendants of the specified path (eg /a/b/c and /a/b/d/e for /a/b), in path order
+	 * @param full_name - the bucket path
+	 * @return
+	 */
+	public List<String> getDescendants(final String full_name) {
+		final List<String> ret_val = new ArrayList<String>();
+		_lock.readLock().lock();
+		try {
+			final Node n = find(_root, getSegments(full_name));
+			if (null != n) {
+				n.children.values().forEach(child -> collect(child, ret_val, __ -> true));
+			}
+			return ret_val;
+		}
+		finally {
+			_lock.readLock().unlock();
+		}
+	}
+	
+	/** Returns all the buckets matching any of the specified paths/globs, using the same semantics as BucketUtils.refineMultiBucketQuery
+	 *  (only the sub-trees under the non-glob prefix of each path are visited)
+	 * @param buckets - a list of bucket paths including globs (eg ** and *)
+	 * @return
+	 */
+	public Set<String> match(final Collection<String> buckets) {
+		final Predicate<String> filter = BucketUtils.refineMultiBucketQuery(buckets);
+		final Set<String> ret_val = new HashSet<String>();
+		_lock.readLock().lock();
+		try {
+			for (String bucket: buckets) {
+				final String prefix = bucket.replaceFirst(GLOB_START_REGEX, "");
+				if (prefix.length() == bucket.length()) { // simple case
+					final Node n = find(_root, getSegments(bucket));
+					if ((null != n) && (null != n.full_name) && filter.test(n.full_name)) ret_val.add(n.full_name);
+				}
+				else if (!bucket.matches(COMPLEX_GLOB_REGEX)) { // only * and ?, so can match segment by segment
+					walk(_root, getSegments(bucket), 0, ret_val, filter);
+				}
+				else {
+					final List<String> segments = getSegments(prefix);
+					final boolean partial_last_segment = !prefix.endsWith("/") && !segments.isEmpty();
+					final Node n = find(_root, partial_last_segment ? segments.subList(0, segments.size() - 1) : segments);
+					if (null != n) {
+						if (partial_last_segment) {
+							final String partial = segments.get(segments.size() - 1);
+							n.children.subMap(partial, true, partial + Character.MAX_VALUE, false).values().forEach(child -> collect(child, ret_val, filter));
+						}
+						else collect(n, ret_val, filter);
+					}
+				}
+			}
+			return ret_val;
+		}
+		finally {
+			_lock.readLock().unlock();
+		}
+	}
+	
+	/////////////////////////////////////////////////////////////
+	
+	// UTILS
+	
+	/** Splits a bucket path into its (non-empty) segments, so eg /a/b, a/b/ and /a//b all map to the same node
+	 * @param path
+	 * @return
+	 */
+	protected static List<String> getSegments(final String path) {
+		final List<String> ret_val = new ArrayList<String>();
+		int start = 0;
+		for (int i = 0; i <= path.length(); ++i) {
+			if ((i == path.length()) || ('/' == path.charAt(i))) {
+				if (i > start) ret_val.add(path.substring(start, i));
+				start = i + 1;
+			}
+		}
+		return ret_val;
+	}
+	
+	protected static boolean add(final Node root, final String full_name) {
+		Node mutable_curr = root;
+		for (String segment: getSegments(full_name)) {
+			mutable_curr = mutable_curr.children.computeIfAbsent(segment, __ -> new Node());
+		}
+		final boolean added = (null == mutable_curr.full_name);
+		mutable_curr.full_name = full_name;
+		return added;
+	}
+	
+	protected static boolean remove(final Node root, final String full_name) {
+		final List<String> segments = getSegments(full_name);
+		final List<Node> nodes = new ArrayList<Node>(segments.size() + 1);
+		nodes.add(root);
+		for (String segment: segments) {
+			final Node next = nodes.get(nodes.size() - 1).children.get(segment);
+			if (null == next) return false;
+			nodes.add(next);
+		}
+		final Node last = nodes.get(nodes.size() - 1);
+		if (null == last.full_name) return false;
+		last.full_name = null;
+		// Prune empty branches
+		for (int i = nodes.size() - 1; i > 0; --i) {
+			final Node n = nodes.get(i);
+			if ((null != n.full_name) || !n.children.isEmpty()) break;
+			nodes.get(i - 1).children.remove(segments.get(i - 1));
+		}
+		return true;
+	}
+	
+	protected static Node find(final Node root, final List<String> segments) {
+		Node mutable_curr = root;
+		for (int i = 0; (i < segments.size()) && (null != mutable_curr); ++i) {
+			mutable_curr = mutable_curr.children.get(segments.get(i));
+		}
+		return mutable_curr;
+	}
+	
+	/** Matches the glob one path segment at a time, only visiting children that can match (all sub-trees below a ** though)
+	 *  (the filter is always applied to the final candidates so the semantics are identical to BucketUtils.refineMultiBucketQuery) 
+	 */
+	protected static void walk(final Node node, final List<String> segments, final int index, final Collection<String> results, final Predicate<String> filter) {
+		if (index == segments.size()) {
+			if ((null != node.full_name) && filter.test(node.full_name)) {
+				results.add(node.full_name);
+			}
+			return;
+		}
+		final String segment = segments.get(index);
+		final String prefix = segment.replaceFirst(GLOB_START_REGEX, "");
+		if (prefix.length() == segment.length()) { // literal
+			final Node child = node.children.get(segment);
+			if (null != child) walk(child, segments, index + 1, results, filter);
+		}
+		else if (segment.contains("**")) { // can match any depth
+			if (prefix.isEmpty()) collect(node, results, filter);
+			else node.children.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values().forEach(child -> collect(child, results, filter));
+		}
+		else {
+			final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + segment);
+			node.children.subMap(prefix, true, prefix + Character.MAX_VALUE, false).entrySet().stream()
+				.filter(kv -> matcher.matches(FileSystems.getDefault().getPath(kv.getKey())))
+				.forEach(kv -> walk(kv.getValue(), segments, index + 1, results, filter));
+		}
+	}
+	
+	protected static void collect(final Node node, final Collection<String> results, final Predicate<String> filter) {
+		if ((null != node.full_name) && filter.test(node.full_name)) {
+			results.add(node.full_name);
+		}
+		for (Map.Entry<String, Node> kv: node.children.entrySet()) {
+			collect(kv.getValue(), results, filter);
+		}
+	}
+}
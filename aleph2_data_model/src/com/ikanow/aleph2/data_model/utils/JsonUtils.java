@@ -28,12 +28,14 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeType;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.POJONode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /** Utility classes for managing JSON transforms
  * @author Alex
  */
 public class JsonUtils {
-	protected static final ObjectMapper _mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+	protected static final ObjectMapper _mapper = BeanTemplateUtils._mapper;
 	
 	public static final String _ID = "_id"; // (useful const)
 	
@@ -76,30 +78,90 @@ public class JsonUtils {
 	}
 	
 	/** Returns a nested sub-element from a path in dot notation, else empty 
+	 *  (for per-record use, prefer compiling the path once via JsonPath.compile)
 	 * @param path in dot notation
 	 * @return
 	 */
 	public static Optional<JsonNode> getProperty(final String path, final JsonNode obj) {
-		final String[] paths = path.split("[.]");
-		final String last = paths[paths.length - 1];
-		JsonNode mutable_curr = obj;
-		for (String p: paths) {
-			final JsonNode j = mutable_curr.get(p);
-			if (last == p) { 
-				return Optional.ofNullable(j).filter(__ -> !j.isNull());
-			}
-			else if (null == j) {
-				return Optional.empty();
-			}
-			else if (j.isArray()) { // if it's an array get the first value - for anything more complicated need jpath
-				mutable_curr = j.get(0);
+		return JsonPath.compile(path).get(obj);
+	}
+	
+	/** A dot notation path that has been parsed once and can then be evaluated against any number of JsonNodes
+	 *  without any further parsing or allocation (see getOrNull)
+	 *  Arrays are mapped through by taking their first element - for anything more complicated need jpath
+	 * @author Alex
+	 */
+	public static class JsonPath {
+		protected static final int MAX_CACHED_PATHS = 1000;
+		protected static final Cache<String, JsonPath> _paths = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_PATHS).build();
+		
+		/** Returns the compiled version of a path in dot notation (compiled paths are cached, so this is cheap to call repeatedly)
+		 * @param path in dot notation
+		 * @return the compiled path
+		 */
+		public static JsonPath compile(final String path) {
+			final JsonPath cached = _paths.getIfPresent(path);
+			if (null != cached) {
+				return cached;
 			}
-			else if (j.isObject()) {
-				mutable_curr = j;
+			final JsonPath compiled = new JsonPath(path);
+			_paths.put(path, compiled);
+			return compiled;
+		}
+		
+		protected JsonPath(final String path) {
+			_path = path;
+			_segments = path.split("[.]");
+		}
+		
+		/** Returns the nested sub-element at this path, else empty 
+		 * @param obj - the object to evaluate the path against
+		 * @return
+		 */
+		public Optional<JsonNode> get(final JsonNode obj) {
+			return Optional.ofNullable(getOrNull(obj));
+		}
+		
+		/** Returns the nested sub-element at this path, else null (JSON nulls are also returned as null)
+		 * @param obj - the object to evaluate the path against
+		 * @return
+		 */
+		public JsonNode getOrNull(final JsonNode obj) {
+			final int last = _segments.length - 1;
+			JsonNode mutable_curr = obj;
+			for (int i = 0; (i <= last) && (null != mutable_curr); ++i) {
+				final JsonNode j = mutable_curr.get(_segments[i]);
+				if (last == i) {
+					return ((null == j) || j.isNull()) ? null : j;
+				}
+				else if (null == j) {
+					return null;
+				}
+				else if (j.isArray()) { // if it's an array get the first value
+					mutable_curr = j.get(0);
+				}
+				else if (j.isObject()) {
+					mutable_curr = j;
+				}
+				else return null; // not at the end of the chain and it's not something you can map through
 			}
-			else return Optional.empty(); // not at the end of the chain and it's not something you can map through
+			return null;
+		}
+		
+		/** The path in dot notation
+		 * @return
+		 */
+		public String path() {
+			return _path;
+		}
+		
+		@Override
+		public String toString() {
+			return _path;
 		}
-		return Optional.empty();
+		
+		protected final String _path;
+		protected final String[] _segments;
 	}
 	
 	/** Converts (possibly recursively) a JsonNode to its Java equivalent
@@ -19,6 +19,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -80,8 +81,15 @@ public class MultiBucketUtils {
 								//DEBUG
 								//System.out.println("PATHS = " + wildcard_paths.stream().collect(Collectors.joining(";")));
 								
-								final QueryComponent<DataBucketBean> query = 
-										BucketUtils.getApproxMultiBucketQuery(multi_paths);
+								// If the in-memory path index is available then use it to get the exact list of matching buckets, else get a superset from the DB
+								// (including if the index has no matches, since it might not yet know about buckets created elsewhere)
+								final BucketPathIndex path_index = BucketPathIndex.get();
+								final Optional<Set<String>> maybe_matches = Optional.of(path_index).filter(index -> index.isLoaded()).map(index -> index.match(multi_paths))
+																				.filter(matches -> !matches.isEmpty());
+								
+								final QueryComponent<DataBucketBean> query = maybe_matches
+										.<QueryComponent<DataBucketBean>>map(matches -> CrudUtils.anyOf(DataBucketBean.class).withAny(DataBucketBean::full_name, matches))
+										.orElseGet(() -> BucketUtils.getApproxMultiBucketQuery(multi_paths));
 								
 								final Predicate<String> filter = BucketUtils.refineMultiBucketQuery(multi_paths);
 								
@@ -15,7 +15,14 @@
  *******************************************************************************/
 package com.ikanow.aleph2.data_model.utils;
 
-import java.util.Optional;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.eaio.uuid.UUIDGen;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -26,42 +33,136 @@ import com.ikanow.aleph2.data_model.interfaces.shared_services.IUuidService;
  *  Note that this code is tightly coupled to the internals of that code and cannot
  *  be swapped for another underlying library without modifying this one
  *  (Use the TestUuidUtils to check, including temporarily commenting the "debug test" in
+ *  The random source and MD5 digest are per thread, so those calls don't contend with each other; time based UUIDs share a single
+ *  lock-free clock so they are unique across the whole process (as with UUIDGen.createTime)
  * @author Alex
  */
 public class UuidUtils implements IUuidService {
+	protected static final long UUID_EPOCH_OFFSET = 0x01B21DD213814000L; // (100ns intervals between the UUID and Java epochs)
+
+	// (shared across all threads: the last time, in 100ns intervals since the UUID epoch, that was handed out)
+	protected static final AtomicLong _last_time = new AtomicLong(Long.MIN_VALUE);
 
 	protected final ObjectMapper _object_mapper; 
 	
 	/** Internal c'tor
 	 */
 	protected UuidUtils() {
-		_object_mapper = BeanTemplateUtils.configureMapper(Optional.empty());
+		_object_mapper = BeanTemplateUtils._mapper;
 	}
 	
-	protected static UuidUtils _singleton = null;
+	/** (Lazy, lock-free singleton - the JVM guarantees this is initialized exactly once, on first use)
+	 */
+	protected static class SingletonHolder {
+		protected static final UuidUtils _singleton = new UuidUtils();
+		static {
+			// Create one of every UUID:
+			_singleton.getTimeBasedUuid();
+			_singleton.getRandomUuid();
+			_singleton.getContentBasedUuid(_singleton.hashCode());
+		}
+	}
+	
+	// (only used to seed the per thread random sources - nextBytes doesn't block, unlike generateSeed)
+	protected static final SecureRandom _seed_source = new SecureRandom();
+	protected static final int SEED_BYTES = 20;
+	
+	/** Per thread generation state
+	 */
+	protected static class ThreadState {
+		protected ThreadState() {
+			try {
+				_md5 = MessageDigest.getInstance("MD5");
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new InternalError("MD5 not supported", e);
+			}
+			_random = createRandom();
+		}
+		
+		/** A SHA1PRNG seeded once from the shared seed source, so it never goes back to the (shared, possibly locked) system entropy
+		 *  (falls back to the default SecureRandom if that algorithm isn't available)
+		 */
+		protected static SecureRandom createRandom() {
+			try {
+				final SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+				final byte[] seed = new byte[SEED_BYTES];
+				_seed_source.nextBytes(seed);
+				random.setSeed(seed); // (before any other call, so replaces the self seeding)
+				return random;
+			}
+			catch (NoSuchAlgorithmException e) {
+				return new SecureRandom();
+			}
+		}
+		
+		protected final SecureRandom _random;
+		protected final MessageDigest _md5;
+		protected final byte[] _bytes = new byte[16];
+	}
+	protected static final ThreadLocal<ThreadState> _thread_state = ThreadLocal.withInitial(ThreadState::new);
+	
+	/** Reserves n consecutive times (in 100ns intervals since the UUID epoch), strictly increasing across all threads
+	 *  (a single CAS however many are reserved)
+	 * @param n - the number of times to reserve (>0)
+	 * @return the first reserved time
+	 */
+	protected static long reserveTimes(final int n) {
+		final long now = (System.currentTimeMillis() * 10000L) + UUID_EPOCH_OFFSET;
+		final long last = _last_time.accumulateAndGet(now, (prev, t) -> Math.max(t + n - 1, prev + n));
+		return last - n + 1;
+	}
+	
+	/** An output stream that just updates the (per thread) MD5 digest, so that JSON can be hashed without being rendered to a string
+	 */
+	protected static class DigestOutputStream extends OutputStream {
+		protected DigestOutputStream(final MessageDigest md5) {
+			_md5 = md5;
+		}
+		@Override
+		public void write(int b) throws IOException {
+			_md5.update((byte) b);
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			_md5.update(b, off, len);
+		}
+		protected final MessageDigest _md5;
+	}
 	
 	/** Get a static reference to a default UUID library
 	 * @return
 	 */
 	public static IUuidService get() {
-		if (null == _singleton) {
-			_singleton = new UuidUtils();
-		}
-		// Create one of every UUID:
-		_singleton.getTimeBasedUuid();
-		_singleton.getRandomUuid();
-		_singleton.getContentBasedUuid(_singleton.hashCode());
-		return _singleton;
+		return SingletonHolder._singleton;
 	}
 	
-	/** Returns a UNIQUE uuid based on the current date (adjusts the time by a milli-second to make it unique where needed)
+	/** Returns a UNIQUE uuid based on the current date (adjusts the time by 100ns to make it unique where needed)
+	 *  (monotonic and unique across all threads in the process)
 	 * @return a string representation of the type 2 UUID
 	 */
 	@Override
 	public String getTimeBasedUuid() {
-		return new com.eaio.uuid.UUID(UUIDGen.createTime(new java.util.Date().getTime()), UUIDGen.getClockSeqAndNode()).toString();
+		return new com.eaio.uuid.UUID(toTimeField(reserveTimes(1)), UUIDGen.getClockSeqAndNode()).toString();
 	}
 
+	/** Returns a list of UNIQUE uuids based on the current date - see getTimeBasedUuid()
+	 * @param n - the number of UUIDs to generate
+	 * @return a list of string representations of the type 2 UUIDs (in increasing time order)
+	 */
+	@Override
+	public List<String> getTimeBasedUuids(final int n) {
+		final List<String> ret_val = new ArrayList<String>(Math.max(n, 0));
+		if (n > 0) {
+			final long first_time = reserveTimes(n);
+			final long clock_seq_and_node = UUIDGen.getClockSeqAndNode();
+			for (int i = 0; i < n; ++i) {
+				ret_val.add(new com.eaio.uuid.UUID(toTimeField(first_time + i), clock_seq_and_node).toString());
+			}
+		}
+		return ret_val;
+	}
+	
 	/** Returns a NON-UNIQUE uuid based on the specified date 
 	 * @param java_time - the date in java time
 	 * @return a string representation of the type 2 UUID
@@ -69,12 +170,17 @@ public class UuidUtils implements IUuidService {
 	@Override
 	public String getTimeBasedUuid(final long java_time) {
 		// (taken code from UUIDGen.createTime but without the monotonicity enforcement)
-		long new_time = (java_time * 10000) + 0x01B21DD213814000L;
-		new_time = new_time << 32 | ((new_time & 0xFFFF00000000L) >> 16) | (0x1000 | ((new_time >> 48) & 0x0FFF));
-		
-		return new com.eaio.uuid.UUID(new_time, UUIDGen.getClockSeqAndNode()).toString();
+		return new com.eaio.uuid.UUID(toTimeField((java_time * 10000) + UUID_EPOCH_OFFSET), UUIDGen.getClockSeqAndNode()).toString();
 	}
 
+	/** Converts a time in 100ns intervals since the UUID epoch into the (shuffled) time field of a UUID (as per UUIDGen.createTime)
+	 * @param uuid_time
+	 * @return
+	 */
+	protected static long toTimeField(final long uuid_time) {
+		return uuid_time << 32 | ((uuid_time & 0xFFFF00000000L) >> 16) | (0x1000 | ((uuid_time >> 48) & 0x0FFF));
+	}
+	
 	/** Gets the time from a UUID - must be a type 2 UUID, or errors will occur
 	 * @param uuid
 	 * @return the time in java time
@@ -91,20 +197,48 @@ public class UuidUtils implements IUuidService {
 	public long getTimeFromTimeField(long time_field) {
 		long tmp_time = ((time_field >> 32) & 0x00000000FFFFFFFFL) | ((time_field << 16) & 0x0000FFFF00000000L) | ((time_field & 0x0000000000000FFF) << 48);
 
-		tmp_time -= 0x01B21DD213814000L;
+		tmp_time -= UUID_EPOCH_OFFSET;
 		tmp_time /= 10000L;
 		
 		return tmp_time;
 	}
 	
-	/** Creates a random (type1) UUID
-	 * @return a string representation of the type 1 UUID
+	/** Creates a random (version 4) UUID
+	 *  (same as java.util.UUID.randomUUID, but from a per thread source, since the shared SecureRandom is a point of contention)
+	 * @return a string representation of the version 4 UUID
 	 */
 	@Override
 	public String getRandomUuid() {
-		return java.util.UUID.randomUUID().toString();
+		return nextRandomUuid(_thread_state.get());
 	}
 
+	/** Returns a list of random UUIDs - see getRandomUuid()
+	 * @param n - the number of UUIDs to generate
+	 * @return a list of string representations of the version 4 UUIDs
+	 */
+	@Override
+	public List<String> getRandomUuids(final int n) {
+		final ThreadState state = _thread_state.get();
+		final List<String> ret_val = new ArrayList<String>(n);
+		for (int i = 0; i < n; ++i) {
+			ret_val.add(nextRandomUuid(state));
+		}
+		return ret_val;
+	}
+	
+	/** Generates a single (version 4) random UUID from the thread's random source
+	 * @param state
+	 * @return
+	 */
+	protected static String nextRandomUuid(final ThreadState state) {
+		state._random.nextBytes(state._bytes);
+		state._bytes[6] &= 0x0f;  /* clear version        */
+		state._bytes[6] |= 0x40;  /* set to version 4     */
+		state._bytes[8] &= 0x3f;  /* clear variant        */
+		state._bytes[8] |= 0x80;  /* set to IETF variant  */
+		return toUuid(state._bytes).toString();
+	}
+	
 	/** Generates a UUID based on the bean
 	 * @param binary
 	 * @return a string representation of the type 3 UUID
@@ -114,13 +248,22 @@ public class UuidUtils implements IUuidService {
 		return getContentBasedUuid(_object_mapper.valueToTree(bean));
 	}
 
-	/** Generates a UUID based on the JSON (warnings: 1) slow, 2) sensitive to field order)
+	/** Generates a UUID based on the JSON (warning: sensitive to field order)
+	 *  The JSON is streamed (UTF-8 encoded) through the digest rather than converted to a string first
 	 * @param binary
 	 * @return a string representation of the type 3 UUID
 	 */
 	@Override
 	public <T> String getContentBasedUuid(final JsonNode json) {
-		return getContentBasedUuid(json.toString().getBytes());
+		final ThreadState state = _thread_state.get();
+		state._md5.reset();
+		try {
+			_object_mapper.writeValue(new DigestOutputStream(state._md5), json);
+		}
+		catch (IOException e) { // (can't happen, the stream doesn't do any I/O)
+			throw new RuntimeException(e);
+		}
+		return toContentBasedUuid(state._md5.digest());
 	}
 
 	/** Generates a UUID based on the binary blob (slow - us with caution)
@@ -129,6 +272,36 @@ public class UuidUtils implements IUuidService {
 	 */
 	@Override
 	public <T> String getContentBasedUuid(final byte[] binary) {
-		return java.util.UUID.nameUUIDFromBytes(binary).toString();
+		final ThreadState state = _thread_state.get();
+		state._md5.reset();
+		return toContentBasedUuid(state._md5.digest(binary));
+	}
+	
+	/** Converts an MD5 hash into a (version 3) UUID, as per java.util.UUID.nameUUIDFromBytes
+	 * @param md5
+	 * @return
+	 */
+	protected static String toContentBasedUuid(final byte[] md5) {
+		md5[6]  &= 0x0f;  /* clear version        */
+		md5[6]  |= 0x30;  /* set to version 3     */
+		md5[8]  &= 0x3f;  /* clear variant        */
+		md5[8]  |= 0x80;  /* set to IETF variant  */
+		return toUuid(md5).toString();
+	}
+	
+	/** Builds a UUID from 16 bytes
+	 * @param data
+	 * @return
+	 */
+	protected static java.util.UUID toUuid(final byte[] data) {
+		long msb = 0;
+		long lsb = 0;
+		for (int i = 0; i < 8; i++) {
+			msb = (msb << 8) | (data[i] & 0xff);
+		}
+		for (int i = 8; i < 16; i++) {
+			lsb = (lsb << 8) | (data[i] & 0xff);
+		}
+		return new java.util.UUID(msb, lsb);
 	}
 }
@@ -20,9 +20,12 @@ import static org.hamcrest.CoreMatchers.*;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -35,6 +38,8 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.google.common.collect.ImmutableMap;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
+import com.ikanow.aleph2.data_model.objects.data_import.DataBucketStatusBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils.BeanTemplate;
 import com.ikanow.aleph2.data_model.utils.TestBeanTemplateUtils.NestedTestBean.NestedNestedTestBean;
 
@@ -112,6 +117,71 @@ public class TestBeanTemplateUtils {
 		assertEquals("The type safe reference should resolve correctly (nested, object ref)", "nestedBean.nestedBean", test4);		
 	}
 	
+	@Test
+	public void testMethodHelperConcurrency() throws Exception {
+		// Shared helper, different fields resolved from lots of threads at once
+		final BeanTemplateUtils.MethodNamingHelper<NestedTestBean> helper = BeanTemplateUtils.from(NestedTestBean.class);
+		final List<String> results = IntStream.range(0, 10000).boxed().parallel()
+				.map(i -> (0 == (i % 2)) 
+						? helper.field(NestedTestBean::testField) 
+						: helper.nested(NestedTestBean::nestedBean, NestedNestedTestBean.class).field(NestedNestedTestBean::nestedBean))
+				.collect(Collectors.toList());
+		
+		for (int i = 0; i < results.size(); ++i) {
+			assertEquals((0 == (i % 2)) ? "testField" : "nestedBean.nestedBean", results.get(i));
+		}
+	}
+	
+	@Test
+	public void testSharedMapperConversions() {
+		assertSame(BeanTemplateUtils.getReader(DataBucketBean.class), BeanTemplateUtils.getReader(DataBucketBean.class));
+		assertSame(BeanTemplateUtils.getWriter(DataBucketBean.class), BeanTemplateUtils.getWriter(DataBucketBean.class));
+		
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::_id, "test_id")
+				.with(DataBucketBean::full_name, "/test/shared/mapper")
+				.with(DataBucketBean::owner_id, "test_owner")
+				.with(DataBucketBean::multi_node_enabled, true)
+				.with(DataBucketBean::aliases, new HashSet<String>(Arrays.asList("/test/alias")))
+				.done().get();
+		final DataBucketStatusBean status = BeanTemplateUtils.build(DataBucketStatusBean.class)
+				.with(DataBucketStatusBean::bucket_path, "/test/shared/mapper")
+				.with(DataBucketStatusBean::suspended, false)
+				.with(DataBucketStatusBean::num_objects, 100L)
+				.with(DataBucketStatusBean::node_affinity, Arrays.asList("node1", "node2"))
+				.done().get();
+		
+		final String bucket_str = BeanTemplateUtils.toJson(bucket).toString();
+		final String status_str = BeanTemplateUtils.toJson(status).toString();
+		assertEquals(bucket_str, BeanTemplateUtils.toJson(BeanTemplateUtils.from(bucket_str, DataBucketBean.class).get()).toString());
+		assertEquals(status_str, BeanTemplateUtils.toJson(BeanTemplateUtils.from(BeanTemplateUtils.toMap(status), DataBucketStatusBean.class).get()).toString());
+	}
+	
+	@Test
+	public void testCloneAccessors() {
+		final DataBucketBean bucket = BeanTemplateUtils.build(DataBucketBean.class)
+				.with(DataBucketBean::_id, "test_id")
+				.with(DataBucketBean::full_name, "/test/clone")
+				.with(DataBucketBean::owner_id, "test_owner")
+				.with(DataBucketBean::multi_node_enabled, true)
+				.done().get();
+		
+		final DataBucketBean cloned = BeanTemplateUtils.clone(bucket).with(DataBucketBean::full_name, "/test/clone/2").done();
+		assertEquals("test_id", cloned._id());
+		assertEquals("/test/clone/2", cloned.full_name());
+		assertEquals("/test/clone", bucket.full_name());
+		assertEquals(true, cloned.multi_node_enabled());
+		assertEquals("test_owner", BeanTemplateUtils.clone(bucket).get("owner_id"));
+		
+		try {
+			BeanTemplateUtils.clone(bucket).with("not_a_field", "test");
+			fail("Should have thrown");
+		}
+		catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof NoSuchFieldException);
+		}
+	}
+	
 	public static class TestBuildBean {
 		public String testField() { return testField; } /** Test field */
 		public String test3Field() { return test3Field; } /** Test field */
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright 2015, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.data_model.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class TestBucketPathIndex {
+
+	@Test
+	public void test_addRemoveAndPathChain() {
+		final BucketPathIndex index = new BucketPathIndex();
+		assertFalse(index.isLoaded());
+		
+		index.replaceAll(Arrays.asList("/a", "/a/b/c", "/a/b/d/e", "/x/y").iterator());
+		assertTrue(index.isLoaded());
+		assertEquals(4, index.size());
+		
+		assertTrue(index.add("/a/b"));
+		assertFalse(index.add("/a/b/")); // (same node, the most recent name is returned)
+		assertEquals(5, index.size());
+		assertTrue(index.contains("/a/b"));
+		assertFalse(index.contains("/a/b/d"));
+		
+		assertEquals(Arrays.asList("/a", "/a/b/"), index.getAncestors("/a/b/c"));
+		assertEquals(Arrays.asList("/a/b/c", "/a/b/d/e"), index.getDescendants("/a/b"));
+		assertEquals(Arrays.asList(), index.getDescendants("/a/b/c"));
+		assertEquals(Arrays.asList(), index.getAncestors("/x"));
+		
+		assertTrue(index.remove("/a/b/d/e"));
+		assertFalse(index.remove("/a/b/d/e"));
+		assertEquals(4, index.size());
+		assertEquals(Arrays.asList("/a/b/", "/a/b/c"), index.getDescendants("/a"));
+		assertEquals(Arrays.asList(), index.getDescendants("/a/b/d")); // (pruned)
+		
+		index.clear();
+		assertEquals(0, index.size());
+		assertFalse(index.isLoaded());
+	}
+	
+	@Test
+	public void test_reloadKeepsConcurrentChanges() {
+		final BucketPathIndex index = new BucketPathIndex();
+		index.replaceAll(Arrays.asList("/a", "/b").iterator());
+		
+		// Changes made after the snapshot is taken (but before it's swapped in) are re-applied on top of it:
+		index.beginReload();
+		final List<String> snapshot = Arrays.asList("/a", "/b", "/c");
+		assertTrue(index.add("/d"));
+		assertTrue(index.remove("/b"));
+		index.replaceAll(snapshot.iterator());
+		
+		assertEquals(3, index.size());
+		assertTrue(index.contains("/a"));
+		assertFalse(index.contains("/b"));
+		assertTrue(index.contains("/c"));
+		assertTrue(index.contains("/d"));
+		
+		// The journal is cleared once the reload completes
+		assertTrue(index.add("/e"));
+		index.replaceAll(Arrays.asList("/a").iterator());
+		assertEquals(1, index.size());
+		assertFalse(index.contains("/e"));
+	}
+	
+	@Test
+	public void test_matchAgainstRefine() {
+		final BucketPathIndex index = new BucketPathIndex();
+		final List<String> buckets = Arrays.asList("/test", "/test/single/fixed", "/test/single/timed", "/test/multi/a", "/test/multi/b/c",
+													"/test2/single", "/other/test/single", "/test/singular");
+		index.replaceAll(buckets.iterator());
+		
+		final List<List<String>> queries = Arrays.asList(
+				Arrays.asList("/test/single/fixed"),
+				Arrays.asList("/test/single/fixed", "/test/multi/missing"),
+				Arrays.asList("/test/*"),
+				Arrays.asList("/test/**"),
+				Arrays.asList("/test*/**"),
+				Arrays.asList("/test/sing*/**"),
+				Arrays.asList("/test/single/*", "/test/multi/**"),
+				Arrays.asList("/*/test/*"),
+				Arrays.asList("/*/single/*", "/test/*/b/*"),
+				Arrays.asList("/test/**/c", "/**/single"),
+				Arrays.asList("/te?t/s*gle/*"),
+				Arrays.asList("/test/single/{fixed,timed}"),
+				Arrays.asList("/test/single/?ixed"),
+				Arrays.asList("/**"),
+				Arrays.asList("/nothing/**")
+				);
+		
+		queries.forEach(q -> {
+			final Predicate<String> filter = BucketUtils.refineMultiBucketQuery(q);
+			final Set<String> expected = buckets.stream().filter(filter).collect(Collectors.toSet());
+			assertEquals("Query: " + q, expected, index.match(q));
+		});
+	}
+	
+	@Test
+	public void test_largeTree() {
+		// Synthetic tree: 100 owners x 100 groups x 10 buckets = 100k buckets
+		final List<String> buckets = new ArrayList<String>(100000);
+		for (int i = 0; i < 100; ++i) {
+			for (int j = 0; j < 100; ++j) {
+				for (int k = 0; k < 10; ++k) {
+					buckets.add("/owner_" + i + "/group_" + j + "/bucket_" + k);
+				}
+			}
+		}
+		final BucketPathIndex index = new BucketPathIndex();
+		index.replaceAll(buckets.iterator());
+		assertEquals(100000, index.size());
+		
+		final int iterations = 1000;
+		
+		// Path chain lookups
+		int mutable_chain_count = 0;
+		for (int n = 0; n < iterations; ++n) {
+			final String name = buckets.get((n*7919) % buckets.size());
+			mutable_chain_count += index.getAncestors(name).size() + index.getDescendants(name).size();
+			mutable_chain_count += index.getDescendants(name.substring(0, name.lastIndexOf('/'))).size();
+		}
+		assertEquals(10*iterations, mutable_chain_count);
+		
+		// Glob expansions: index vs linear refine filter (same results)
+		final List<String> query = Arrays.asList("/owner_4*/group_1/**", "/owner_7/group_99/bucket_?");
+		final Predicate<String> filter = BucketUtils.refineMultiBucketQuery(query);
+		
+		final Set<String> index_results = index.match(query);
+		assertEquals(buckets.stream().filter(filter).collect(Collectors.toSet()), index_results);
+		assertEquals(11*10 + 10, index_results.size());
+	}
+}
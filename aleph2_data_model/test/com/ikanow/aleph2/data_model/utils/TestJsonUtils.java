@@ -102,6 +102,34 @@ public class TestJsonUtils {
 		
 	}
 	
+	@Test
+	public void test_jsonPath() throws JsonProcessingException, IOException {
+		final JsonNode test = BeanTemplateUtils.configureMapper(Optional.empty()).readTree("{\"a\": {\"aa\": [ {\"aaa\":true}, {} ], \"b\": false, \"n\": null, \"e\": [] }}");
+		
+		final JsonUtils.JsonPath path = JsonUtils.JsonPath.compile("a.aa.aaa");
+		assertSame(path, JsonUtils.JsonPath.compile("a.aa.aaa"));
+		assertEquals("a.aa.aaa", path.path());
+		assertEquals(true, path.getOrNull(test).asBoolean());
+		assertEquals(false, JsonUtils.JsonPath.compile("a.b").get(test).get().asBoolean());
+		assertEquals(null, JsonUtils.JsonPath.compile("a.n").getOrNull(test));
+		assertEquals(null, JsonUtils.JsonPath.compile("a.e.x").getOrNull(test));
+		assertEquals(null, JsonUtils.JsonPath.compile("a.b.c").getOrNull(test));
+		assertEquals(Optional.empty(), JsonUtils.JsonPath.compile("z").get(test));
+		
+		// Same results as splitting the path per call, over a realistic nested record
+		final JsonNode record = BeanTemplateUtils.configureMapper(Optional.empty()).readTree(
+				"{\"_id\":\"id1\",\"@timestamp\":1450000000000,\"source\":{\"host\":\"host1\",\"geo\":{\"city\":\"c\",\"loc\":{\"lat\":1.0,\"lon\":2.0}}},"
+				+ "\"tags\":[{\"name\":\"t1\"},{\"name\":\"t2\"}],\"user\":{\"name\":\"u\",\"roles\":[\"r1\",\"r2\"]}}");
+		final String[] fields = { "_id", "@timestamp", "source.host", "source.geo.loc.lat", "tags.name", "user.name" };
+		for (String field: fields) {
+			JsonNode mutable_curr = record;
+			for (String p: field.split("[.]")) {
+				mutable_curr = (null == mutable_curr) ? null : mutable_curr.isArray() ? mutable_curr.get(0).get(p) : mutable_curr.get(p);
+			}
+			assertEquals(field, mutable_curr, JsonUtils.JsonPath.compile(field).getOrNull(record));
+		}
+	}
+	
 	@Test
 	public void test_jacksonToJava() {
 		
@@ -17,12 +17,23 @@ package com.ikanow.aleph2.data_model.utils;
 
 import static org.junit.Assert.*;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.junit.Test;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IUuidService;
 
 public class TestUuidUtils {
@@ -127,4 +138,63 @@ public class TestUuidUtils {
 		assertEquals(uuid2a, uuid2b);
 		assertNotEquals(uuid1a, uuid2a);
 	}
+	
+	@Test
+	public void testBulkAndConcurrentUuids() throws Exception {
+		final IUuidService test_service = UuidUtils.get();
+		
+		// 1) Bulk versions
+		
+		final List<String> time_uuids = test_service.getTimeBasedUuids(1000);
+		assertEquals(1000, time_uuids.size());
+		assertEquals(1000, new HashSet<String>(time_uuids).size());
+		final long now = new Date().getTime();
+		time_uuids.forEach(uuid -> assertEquals((double)now, (double)test_service.getTimeUuid(uuid), 500.0));
+		
+		final List<String> random_uuids = test_service.getRandomUuids(1000);
+		assertEquals(1000, new HashSet<String>(random_uuids).size());
+		random_uuids.forEach(uuid -> assertEquals(4, java.util.UUID.fromString(uuid).version()));
+		
+		// 2) Time based UUIDs generated concurrently are unique across threads
+		
+		final int num_threads = 8;
+		final int num_per_thread = 20000;
+		final ExecutorService executor = Executors.newFixedThreadPool(num_threads);
+		final List<Future<List<String>>> futures = IntStream.range(0, num_threads).boxed()
+				.map(__ -> executor.submit(() -> test_service.getTimeBasedUuids(num_per_thread)))
+				.collect(Collectors.toList());
+		final Set<String> all_uuids = new HashSet<String>();
+		for (Future<List<String>> f: futures) all_uuids.addAll(f.get());
+		executor.shutdown();
+		assertEquals(num_threads*num_per_thread, all_uuids.size());
+		
+		// 3) Streamed content based UUIDs match the previous string based ones
+		
+		final JsonNode json = BeanTemplateUtils.toJson(TestBean.generate1());
+		assertEquals(java.util.UUID.nameUUIDFromBytes(json.toString().getBytes(StandardCharsets.UTF_8)).toString(), test_service.getContentBasedUuid(json));
+		assertEquals(java.util.UUID.nameUUIDFromBytes(new byte[] { 1, 2, 3 }).toString(), test_service.getContentBasedUuid(new byte[] { 1, 2, 3 }));
+		
+		// 3a) ... including nested objects/arrays, null fields, non-ASCII strings and floating point numbers
+		
+		final ObjectMapper mapper = new ObjectMapper();
+		final ObjectNode nested_json = mapper.createObjectNode();
+		nested_json.put("str", "caf\u00e9 \u2603").putNull("null_field").put("num", 1.5).put("long", Long.MAX_VALUE);
+		nested_json.putObject("nested").put("a", 1).putNull("b").putObject("deeper").putArray("arr").add(1).addNull().add("x").addObject().putNull("c");
+		nested_json.putArray("empty_arr");
+		nested_json.putObject("empty_obj");
+		for (JsonNode j: Arrays.asList(nested_json, nested_json.get("nested"), mapper.createObjectNode(), mapper.createArrayNode(), nested_json.get("null_field"))) {
+			assertEquals(j.toString(), java.util.UUID.nameUUIDFromBytes(j.toString().getBytes(StandardCharsets.UTF_8)).toString(), test_service.getContentBasedUuid(j));
+		}
+		
+		// 3b) ... and for beans, with null fields at the top level and nested
+		
+		final TestBean null_bean = TestBean.generate1();
+		null_bean.test1 = null;
+		null_bean.test2 = Arrays.asList(new TestBean.NestedTestBean(), null);
+		for (TestBean bean: Arrays.asList(null_bean, new TestBean())) {
+			final JsonNode bean_json = BeanTemplateUtils.toJson(bean);
+			assertEquals(bean_json.toString(), java.util.UUID.nameUUIDFromBytes(bean_json.toString().getBytes(StandardCharsets.UTF_8)).toString(), test_service.getContentBasedUuid(bean));
+		}
+		assertNotEquals(test_service.getContentBasedUuid(null_bean), test_service.getContentBasedUuid(TestBean.generate1()));
+	}
 }
@@ -22,10 +22,17 @@ package com.ikanow.aleph2.logging.data_model;
  */
 public class LoggingServiceConfigBean {
 	public static final String PROPERTIES_ROOT = "LoggingService";
+	public enum AsyncOverflowPolicy { drop, block };
 	private String default_time_field;
 	private String default_system_log_level;
 	private String default_user_log_level;
 	private String system_mirror_to_log4j_level;
+	private Integer async_queue_size;
+	private Integer async_batch_size;
+	private AsyncOverflowPolicy async_overflow_policy;
+	private Long merge_max_keys;
+	private Long merge_key_ttl_secs;
+	private Boolean merge_flush_on_evict;
 	
 	protected LoggingServiceConfigBean() {}
 	
@@ -36,6 +43,23 @@ public class LoggingServiceConfigBean {
 		this.system_mirror_to_log4j_level = system_mirror_to_log4j_level;
 	}
 	
+	public LoggingServiceConfigBean(final String default_time_field, final String default_system_log_level, final String default_user_log_level, final String system_mirror_to_log4j_level,
+			final Integer async_queue_size, final Integer async_batch_size, final AsyncOverflowPolicy async_overflow_policy) {
+		this(default_time_field, default_system_log_level, default_user_log_level, system_mirror_to_log4j_level);
+		this.async_queue_size = async_queue_size;
+		this.async_batch_size = async_batch_size;
+		this.async_overflow_policy = async_overflow_policy;
+	}
+
+	public LoggingServiceConfigBean(final String default_time_field, final String default_system_log_level, final String default_user_log_level, final String system_mirror_to_log4j_level,
+			final Integer async_queue_size, final Integer async_batch_size, final AsyncOverflowPolicy async_overflow_policy,
+			final Long merge_max_keys, final Long merge_key_ttl_secs, final Boolean merge_flush_on_evict) {
+		this(default_time_field, default_system_log_level, default_user_log_level, system_mirror_to_log4j_level, async_queue_size, async_batch_size, async_overflow_policy);
+		this.merge_max_keys = merge_max_keys;
+		this.merge_key_ttl_secs = merge_key_ttl_secs;
+		this.merge_flush_on_evict = merge_flush_on_evict;
+	}
+	
 	/**
 	 * Default field to output logging timestamp as (defaults to 'date')
 	 * @return
@@ -56,4 +80,34 @@ public class LoggingServiceConfigBean {
 	 * @return
 	 */
 	public String system_mirror_to_log4j_level() { return this.system_mirror_to_log4j_level; }
+	/**
+	 * If set (>0), log calls are queued (up to this many) and processed in batches on a background thread, otherwise they are processed on the caller's thread (the default)
+	 * @return
+	 */
+	public Integer async_queue_size() { return this.async_queue_size; }
+	/**
+	 * Max number of queued log calls to process in one go (defaults to 1000)
+	 * @return
+	 */
+	public Integer async_batch_size() { return this.async_batch_size; }
+	/**
+	 * What to do when the async queue is full - drop the message or block the caller (defaults to block)
+	 * @return
+	 */
+	public AsyncOverflowPolicy async_overflow_policy() { return this.async_overflow_policy; }
+	/**
+	 * Max number of merge keys each logger keeps state for, least recently used are evicted first (defaults to 10000)
+	 * @return
+	 */
+	public Long merge_max_keys() { return this.merge_max_keys; }
+	/**
+	 * If set, merge keys that haven't been logged to for this long are evicted (defaults to never)
+	 * @return
+	 */
+	public Long merge_key_ttl_secs() { return this.merge_key_ttl_secs; }
+	/**
+	 * If true, when a merge key is evicted its final merged message (and log_count) is written out as a summary (defaults to false)
+	 * @return
+	 */
+	public Boolean merge_flush_on_evict() { return this.merge_flush_on_evict; }
 }
@@ -15,18 +15,22 @@
  *******************************************************************************/
 package com.ikanow.aleph2.logging.service;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -42,7 +46,9 @@ import scala.Tuple2;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Striped;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.ikanow.aleph2.core.shared.services.MultiDataService;
@@ -56,11 +62,13 @@ import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBeanSupplier;
 import com.ikanow.aleph2.data_model.objects.shared.ManagementSchemaBean.LoggingSchemaBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.BucketUtils;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
 import com.ikanow.aleph2.logging.data_model.LoggingServiceConfig;
 import com.ikanow.aleph2.logging.data_model.LoggingServiceConfigBean;
+import com.ikanow.aleph2.logging.data_model.LoggingServiceConfigBean.AsyncOverflowPolicy;
 import com.ikanow.aleph2.logging.module.LoggingServiceModule;
 import com.ikanow.aleph2.logging.utils.Log4JUtils;
 import com.ikanow.aleph2.logging.utils.LoggingUtils;
@@ -77,12 +85,35 @@ public class LoggingService implements ILoggingService, IExtraDependencyLoader {
 	protected final static Cache<String, MultiDataService> bucket_writable_cache = CacheBuilder.newBuilder().expireAfterAccess(30, TimeUnit.MINUTES).build();
 	private static final BasicMessageBean LOG_MESSAGE_BELOW_THRESHOLD = ErrorUtils.buildSuccessMessage(BucketLogger.class.getName(), "log", "Log message dropped, below threshold");
 	private static final BasicMessageBean LOG_MESSAGE_DID_NOT_MATCH_RULE = ErrorUtils.buildSuccessMessage(BucketLogger.class.getName(), "log", "Log message dropped, did not match rule");
+	private static final BasicMessageBean LOG_MESSAGE_QUEUE_FULL = ErrorUtils.buildErrorMessage(BucketLogger.class.getName(), "log", "Log message dropped, async logging queue full");
+	public static final int DEFAULT_ASYNC_BATCH_SIZE = 1000;
+	public static final long DEFAULT_MERGE_MAX_KEYS = 10000L;
+	public static final int MERGE_LOCK_STRIPES = 64;
+	public static final long ASYNC_SHUTDOWN_TIMEOUT_MS = 10000L;
 	
 //	protected final LoggingServiceConfigBean properties;
 	protected final LoggingServiceConfig properties_converted;
 	protected final IServiceContext service_context;
 	protected final IStorageService storage_service;
 	
+	// Async mode (if enabled, log calls are queued here and processed by a single background thread - merge state is still synchronized,
+	// see BucketLogger, since log calls run on the caller's thread when async mode is off or has been shut down)
+	protected final Optional<BlockingQueue<Runnable>> async_queue;
+	protected final Optional<Thread> async_worker;
+	protected volatile boolean async_shutdown = false;
+	protected final int async_batch_size;
+	protected final AsyncOverflowPolicy async_overflow_policy;
+	protected final AtomicLong async_enqueued = new AtomicLong(0L);
+	protected final AtomicLong async_processed = new AtomicLong(0L);
+	protected final AtomicLong async_dropped = new AtomicLong(0L);
+	protected final AtomicLong async_max_queue_depth = new AtomicLong(0L);
+	
+	// Merge key state bounds (per logger), and evictions across all loggers
+	protected final long merge_max_keys;
+	protected final Optional<Long> merge_key_ttl_secs;
+	protected final boolean merge_flush_on_evict;
+	protected final AtomicLong merge_evictions = new AtomicLong(0L);
+	
 	@Inject
 	public LoggingService(
 			final LoggingServiceConfigBean properties, 
@@ -91,7 +122,146 @@ public class LoggingService implements ILoggingService, IExtraDependencyLoader {
 		this.properties_converted = new LoggingServiceConfig(properties.default_time_field(), properties.default_system_log_level(), properties.default_user_log_level(), properties.system_mirror_to_log4j_level());
 		this.service_context = service_context;
 		this.storage_service = service_context.getStorageService();		
+		
+		this.async_queue = Optional.ofNullable(properties.async_queue_size()).filter(size -> size > 0).map(size -> new ArrayBlockingQueue<Runnable>(size));
+		this.async_batch_size = Optional.ofNullable(properties.async_batch_size()).filter(size -> size > 0).orElse(DEFAULT_ASYNC_BATCH_SIZE);
+		this.async_overflow_policy = Optional.ofNullable(properties.async_overflow_policy()).orElse(AsyncOverflowPolicy.block);
+		this.merge_max_keys = Optional.ofNullable(properties.merge_max_keys()).filter(max -> max > 0).orElse(DEFAULT_MERGE_MAX_KEYS);
+		this.merge_key_ttl_secs = Optional.ofNullable(properties.merge_key_ttl_secs()).filter(ttl -> ttl > 0);
+		this.merge_flush_on_evict = Optional.ofNullable(properties.merge_flush_on_evict()).orElse(false);
+		this.async_worker = this.async_queue.map(queue -> {
+			final Thread worker = new Thread(() -> runAsyncWorker(queue), "aleph2-logging-service");
+			worker.setDaemon(true);
+			worker.start();
+			// (so queued log calls aren't lost on exit)
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown()));
+			return worker;
+		});
 	}	
+	
+	/**
+	 * Stops the async logging worker thread (if async logging is enabled) once it has run the log calls already queued, 
+	 * waiting up to ASYNC_SHUTDOWN_TIMEOUT_MS. Subsequent log calls are run synchronously on the caller's thread.
+	 * (Called from a shutdown hook, can also be called directly)
+	 */
+	public void shutdown() {
+		async_worker.ifPresent(worker -> {
+			async_shutdown = true;
+			worker.interrupt();
+			try {
+				worker.join(ASYNC_SHUTDOWN_TIMEOUT_MS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+	}
+	
+	/**
+	 * Returns metrics for the async logging queue: queue_depth, max_queue_depth, queue_capacity, enqueued, processed, dropped
+	 * (all zero if async logging is not enabled)
+	 * @return
+	 */
+	public Map<String, Long> getAsyncMetrics() {
+		return ImmutableMap.<String, Long>builder()
+				.put("queue_depth", async_queue.map(queue -> (long)queue.size()).orElse(0L))
+				.put("max_queue_depth", async_max_queue_depth.get())
+				.put("queue_capacity", async_queue.map(queue -> (long)(queue.size() + queue.remainingCapacity())).orElse(0L))
+				.put("enqueued", async_enqueued.get())
+				.put("processed", async_processed.get())
+				.put("dropped", async_dropped.get())
+				.build();
+	}
+	
+	/**
+	 * Returns the number of merge keys evicted (by size or TTL) across all the loggers created by this service
+	 * - if this is growing then merge keys are probably being generated from unbounded data
+	 * @return
+	 */
+	public long getMergeEvictions() {
+		return merge_evictions.get();
+	}
+	
+	/**
+	 * The background thread for async mode - takes queued log calls in batches and runs them, until interrupted by shutdown
+	 * @param queue
+	 */
+	private void runAsyncWorker(final BlockingQueue<Runnable> queue) {
+		final List<Runnable> batch = new ArrayList<Runnable>(async_batch_size);
+		for (;;) {
+			try {
+				batch.add(queue.take());
+				queue.drainTo(batch, async_batch_size - 1);
+				runAsyncBatch(batch);
+			}
+			catch (InterruptedException e) {
+				// Shutting down - run anything still queued then exit
+				for (queue.drainTo(batch, async_batch_size); !batch.isEmpty(); queue.drainTo(batch, async_batch_size)) {
+					runAsyncBatch(batch);
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Runs (and then clears) a batch of queued log calls
+	 * @param batch
+	 */
+	private void runAsyncBatch(final List<Runnable> batch) {
+		batch.forEach(task -> {
+			try {
+				task.run();
+			}
+			catch (Throwable t) {
+				_logger.error("Error processing async log message", t);
+			}
+		});
+		async_processed.addAndGet(batch.size());
+		batch.clear();
+	}
+	
+	/**
+	 * In sync mode just runs the log call, in async mode queues it for the background thread, applying the overflow policy if the queue is full
+	 * @param log_call - the actual log call
+	 * @param never_drop - for calls that must not be dropped (ie flush), blocks regardless of the overflow policy
+	 * @return a future that completes with the result of the log call once it's been run
+	 */
+	private CompletableFuture<?> submit(final Supplier<CompletableFuture<?>> log_call, final boolean never_drop) {
+		if (!async_queue.isPresent() || async_shutdown) {
+			return log_call.get();
+		}
+		final BlockingQueue<Runnable> queue = async_queue.get();
+		final CompletableFuture<Object> result = new CompletableFuture<Object>();
+		final Runnable task = () -> {
+			try {
+				log_call.get().whenComplete((res, t) -> {
+					if (null != t) result.completeExceptionally(t);
+					else result.complete(res);
+				});
+			}
+			catch (Throwable t) {
+				result.completeExceptionally(t);
+			}
+		};
+		if (never_drop || (AsyncOverflowPolicy.block == async_overflow_policy)) {
+			try {
+				queue.put(task);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				result.completeExceptionally(e);
+				return result;
+			}
+		}
+		else if (!queue.offer(task)) {
+			async_dropped.incrementAndGet();
+			return CompletableFuture.completedFuture(LOG_MESSAGE_QUEUE_FULL);
+		}
+		async_enqueued.incrementAndGet();
+		async_max_queue_depth.accumulateAndGet(queue.size(), Math::max);
+		return result;
+	}
 
 	/* (non-Javadoc)
 	 * @see com.ikanow.aleph2.data_model.interfaces.shared_services.ILoggingService#getLogger(com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean)
@@ -177,6 +347,25 @@ public class LoggingService implements ILoggingService, IExtraDependencyLoader {
 		return bucket.full_name() + ":" + Optional.ofNullable(bucket.modified()).map(d->d.toString());
 	}
 	
+	/**
+	 * Returns the current number of merge keys held by a logger created by this service ("size") and the number that have been evicted ("evictions")
+	 * @param logger
+	 * @return
+	 */
+	Map<String, Long> getMergeMetrics(final IBucketLogger logger) {
+		return ((BucketLogger)logger).getMergeMetrics();
+	}
+	
+	/**
+	 * Returns the current merge state of a merge key for a logger created by this service
+	 * @param logger
+	 * @param merge_key
+	 * @return
+	 */
+	Optional<Tuple2<BasicMessageBean, Map<String,Object>>> getMergeInfo(final IBucketLogger logger, final String merge_key) {
+		return Optional.ofNullable(((BucketLogger)logger).merge_logs.getIfPresent(merge_key));
+	}
+	
 	/**
 	 * Implementation of the IBucketLogger that just filters log messages based on the ManagementSchema in
 	 * the DatabucketBean and pushes objects into a writable created from the same schema at initialization of this object.
@@ -191,7 +380,9 @@ public class LoggingService implements ILoggingService, IExtraDependencyLoader {
 		final Level default_log_level;  //holds the default log level for quick matching
 		final Level log4j_level;
 		final ImmutableMap<String, Level> bucket_logging_thresholds; //holds bucket logging overrides for quick matching
-		final Map<String, Tuple2<BasicMessageBean, Map<String,Object>>> merge_logs;
+		final Cache<String, Tuple2<BasicMessageBean, Map<String,Object>>> merge_logs; //bounded LRU, updates to a given key are serialized by merge_locks
+		final Striped<Lock> merge_locks;
+		final AtomicLong num_merge_evictions = new AtomicLong(0L);
 		final String hostname;
 		
 		public BucketLogger(final DataBucketBean bucket, final MultiDataService logging_writable, final boolean isSystem) {
@@ -202,23 +393,80 @@ public class LoggingService implements ILoggingService, IExtraDependencyLoader {
 			this.bucket_logging_thresholds = LoggingUtils.getBucketLoggingThresholds(bucket, properties_converted.default_system_log_level());
 			this.date_field = Optional.ofNullable(properties_converted.default_time_field()).orElse("date");
 			this.default_log_level = isSystem ? Optional.ofNullable(properties_converted.default_system_log_level()).orElse(Level.OFF) : Optional.ofNullable(properties_converted.default_user_log_level()).orElse(Level.OFF);	
-			this.merge_logs = new HashMap<String, Tuple2<BasicMessageBean, Map<String,Object>>>();
+			final CacheBuilder<Object, Object> merge_logs_builder = CacheBuilder.newBuilder().maximumSize(merge_max_keys);
+			merge_key_ttl_secs.ifPresent(ttl -> merge_logs_builder.expireAfterAccess(ttl, TimeUnit.SECONDS));
+			this.merge_logs = merge_logs_builder.<String, Tuple2<BasicMessageBean, Map<String,Object>>>removalListener(notification -> onMergeKeyRemoved(notification)).build();
+			this.merge_locks = Striped.lazyWeakLock(MERGE_LOCK_STRIPES);
 			this.hostname = LoggingUtils.getHostname();
 		}
 
+		/**
+		 * Returns the caller's location if this message will be mirrored to log4j - as a Throwable. Creating it captures the (native) stack eagerly,
+		 * at a cost proportional to the stack depth, so it's only done when mirroring to log4j - but decoding that into StackTraceElements (the more
+		 * expensive part) only happens when the log4j message is actually built. Element [2] of its stack trace is the caller of the log method that called this.
+		 * Also returns the caller's thread name, since the message may be built on a different thread
+		 * @param level
+		 * @return
+		 */
+		private Optional<Tuple2<Throwable, String>> getCallerLocation(final Level level) {
+			return (isSystem && log4j_level.isLessSpecificThan(level))
+					? Optional.of(Tuples._2T(new Throwable(), Log4JUtils.getThreadName(Thread.currentThread())))
+					: Optional.empty();
+		}
+		
+		/**
+		 * Returns the current number of merge keys held by this logger and the number that have been evicted
+		 * @return
+		 */
+		Map<String, Long> getMergeMetrics() {
+			return ImmutableMap.<String, Long>of("size", merge_logs.size(), "evictions", num_merge_evictions.get());
+		}
+		
+		/**
+		 * Called when a merge key is removed - if it was evicted, counts it and (optionally) writes out its final state as a summary
+		 * (at the level it was last logged at, if that meets this logger's threshold)
+		 * @param notification
+		 */
+		private void onMergeKeyRemoved(final RemovalNotification<String, Tuple2<BasicMessageBean, Map<String,Object>>> notification) {
+			if (notification.wasEvicted()) {
+				if (0 == num_merge_evictions.getAndIncrement()) {
+					_logger.warn("Merge key state for bucket " + bucket.full_name() + " reached its limit (max_keys=" + merge_max_keys + ", ttl_secs=" + merge_key_ttl_secs.orElse(null) + "), evicting least recently used keys");
+				}
+				merge_evictions.incrementAndGet();
+				if (merge_flush_on_evict && (null != notification.getValue())) {
+					final BasicMessageBean last = notification.getValue()._1;
+					final Level level = Optional.ofNullable((Level) notification.getValue()._2.get(LoggingUtils.LAST_LOG_LEVEL_FIELD)).orElse(Level.INFO);
+					if (LoggingUtils.meetsLogLevelThreshold(level, bucket_logging_thresholds, last.source(), default_log_level)) {
+						final BasicMessageBean summary = BeanTemplateUtils.clone(last)
+								.with(BasicMessageBean::details, LoggingUtils.mergeDetailsAddValue(last, last, LoggingUtils.LOG_COUNT_FIELD, notification.getValue()._2.get(LoggingUtils.LOG_COUNT_FIELD)))
+								.done();
+						logging_writable.batchWrite(LoggingUtils.createLogObject(level, bucket, summary, isSystem, date_field, hostname));
+					}
+				}
+			}
+		}
+		
 		/**
 		 * Non-merge version of logging, doesn't allow rules/formatter/merging
 		 */
 		@Override
 		public CompletableFuture<?> log(final Level level, final IBasicMessageBeanSupplier message) {	
+			final Optional<Tuple2<Throwable, String>> caller = getCallerLocation(level);
+			return submit(() -> logNow(level, message, caller), false);
+		}
+		
+		/**
+		 * Does the actual work of log(level, message) - either on the caller's thread or the async worker
+		 */
+		private CompletableFuture<?> logNow(final Level level, final IBasicMessageBeanSupplier message, final Optional<Tuple2<Throwable, String>> caller) {	
 			final boolean log_out = LoggingUtils.meetsLogLevelThreshold(level, bucket_logging_thresholds, message.getSubsystem(), default_log_level); //need to log to multiwriter
-			final boolean log_log4j = isSystem && log4j_level.isLessSpecificThan(level); //need to log to log4j
+			final boolean log_log4j = caller.isPresent(); //need to log to log4j
 			if ( log_out || log_log4j ) {
 				//create log message to output:			
 				final BasicMessageBean bmb = message.getBasicMessageBean();
 				final JsonNode logObject = LoggingUtils.createLogObject(level, bucket, bmb, isSystem, date_field, hostname);				
 				if ( log_log4j )					
-					_logger.log(level, Log4JUtils.getLog4JMessage(logObject, level, Thread.currentThread().getStackTrace()[2], date_field, bmb.details(), hostname));
+					_logger.log(level, Log4JUtils.getLog4JMessage(logObject, level, caller.get()._1().getStackTrace()[2], caller.get()._2(), date_field, bmb.details(), hostname));
 				if ( log_out )
 					return CompletableFuture.completedFuture(logging_writable.batchWrite(logObject));				
 			}
@@ -236,26 +484,49 @@ public class LoggingService implements ILoggingService, IExtraDependencyLoader {
 				final Collection<Function<Tuple2<BasicMessageBean, Map<String,Object>>, Boolean>> rule_functions,
 				final Optional<Function<BasicMessageBean, BasicMessageBean>> formatter,
 				@SuppressWarnings("unchecked") final BiFunction<BasicMessageBean, BasicMessageBean, BasicMessageBean>... merge_operations) {
+			final Optional<Tuple2<Throwable, String>> caller = getCallerLocation(level);
+			return submit(() -> logNow(level, message, merge_key, rule_functions, formatter, caller, merge_operations), false);
+		}
+		
+		/**
+		 * Does the actual work of the merging version of log - either on the caller's thread or the async worker
+		 */
+		private CompletableFuture<?> logNow(
+				final Level level,
+				final IBasicMessageBeanSupplier message,
+				final String merge_key,				
+				final Collection<Function<Tuple2<BasicMessageBean, Map<String,Object>>, Boolean>> rule_functions,
+				final Optional<Function<BasicMessageBean, BasicMessageBean>> formatter,
+				final Optional<Tuple2<Throwable, String>> caller,
+				final BiFunction<BasicMessageBean, BasicMessageBean, BasicMessageBean>[] merge_operations) {
 			final boolean log_out = LoggingUtils.meetsLogLevelThreshold(level, bucket_logging_thresholds, message.getSubsystem(), default_log_level); //need to log to multiwriter
-			final boolean log_log4j = isSystem && log4j_level.isLessSpecificThan(level); //need to log to log4j
+			final boolean log_log4j = caller.isPresent(); //need to log to log4j
 			if ( log_out || log_log4j ) {				
-				//call operator and replace existing entry (if exists)
-				final Tuple2<BasicMessageBean, Map<String,Object>> merge_info = LoggingUtils.getOrCreateMergeInfo(merge_logs, message.getBasicMessageBean(), merge_key, merge_operations);
-				if ( rule_functions.isEmpty() || rule_functions.stream().anyMatch(r->r.apply(merge_info))) {				
-					//we are sending a msg, update bmb w/ timestamp and count
-					final Tuple2<BasicMessageBean, Map<String,Object>> info = LoggingUtils.updateInfo(merge_info, Optional.of(new Date().getTime()));
-					final Tuple2<BasicMessageBean, Map<String,Object>> toWrite = new Tuple2<BasicMessageBean, Map<String,Object>>(formatter.map(f->f.apply(info._1)).orElse(info._1), info._2); //format the message if needbe
-					merge_logs.put(merge_key, toWrite);
-					final JsonNode logObject = LoggingUtils.createLogObject(level, bucket, toWrite._1, isSystem, date_field, hostname);
-					if ( log_log4j )					
-						_logger.log(level, Log4JUtils.getLog4JMessage(logObject, level, Thread.currentThread().getStackTrace()[2], date_field, toWrite._1.details(), hostname));
-					if ( log_out )
-						logging_writable.batchWrite(logObject);					
-					return CompletableFuture.completedFuture(true);
+				final Lock merge_lock = merge_locks.get(merge_key);
+				merge_lock.lock();
+				try {
+					//call operator and replace existing entry (if exists)
+					final Tuple2<BasicMessageBean, Map<String,Object>> merge_info = LoggingUtils.getOrCreateMergeInfo(merge_logs.asMap(), message.getBasicMessageBean(), merge_key, merge_operations);
+					merge_info._2.put(LoggingUtils.LAST_LOG_LEVEL_FIELD, level); // (so a summary written on eviction uses the same level/threshold)
+					if ( rule_functions.isEmpty() || rule_functions.stream().anyMatch(r->r.apply(merge_info))) {				
+						//we are sending a msg, update bmb w/ timestamp and count
+						final Tuple2<BasicMessageBean, Map<String,Object>> info = LoggingUtils.updateInfo(merge_info, Optional.of(new Date().getTime()));
+						final Tuple2<BasicMessageBean, Map<String,Object>> toWrite = new Tuple2<BasicMessageBean, Map<String,Object>>(formatter.map(f->f.apply(info._1)).orElse(info._1), info._2); //format the message if needbe
+						merge_logs.put(merge_key, toWrite);
+						final JsonNode logObject = LoggingUtils.createLogObject(level, bucket, toWrite._1, isSystem, date_field, hostname);
+						if ( log_log4j )					
+							_logger.log(level, Log4JUtils.getLog4JMessage(logObject, level, caller.get()._1().getStackTrace()[2], caller.get()._2(), date_field, toWrite._1.details(), hostname));
+						if ( log_out )
+							logging_writable.batchWrite(logObject);					
+						return CompletableFuture.completedFuture(true);
+					}
+					//even if we didn't send a bmb, update the count
+					merge_logs.put(merge_key, LoggingUtils.updateInfo(merge_info, Optional.empty()));
+					return CompletableFuture.completedFuture(LOG_MESSAGE_DID_NOT_MATCH_RULE);
+				}
+				finally {
+					merge_lock.unlock();
 				}
-				//even if we didn't send a bmb, update the count
-				merge_logs.put(merge_key, LoggingUtils.updateInfo(merge_info, Optional.empty()));
-				return CompletableFuture.completedFuture(LOG_MESSAGE_DID_NOT_MATCH_RULE);
 			}
 			return CompletableFuture.completedFuture(LOG_MESSAGE_BELOW_THRESHOLD);	
 		}	
@@ -265,7 +536,7 @@ public class LoggingService implements ILoggingService, IExtraDependencyLoader {
 		 */
 		@Override
 		public CompletableFuture<?> flush() {
-			return logging_writable.flushBatchOutput();
+			return submit(() -> logging_writable.flushBatchOutput(), true); // (in async mode, runs after all the log calls queued before it)
 		}
 
 		/* (non-Javadoc)
@@ -34,10 +34,17 @@ public class Log4JUtils {
 	private static String message_format = "%s [%s] %s %s:%s %s"; // <date> [<thread.name>] <level> <class[1]:line> <message> <other_fields=other_values>
 	private static String field_format = " %s=%s";
 	public static String getLog4JMessage(final JsonNode logObject, final Level level, final StackTraceElement stack, final String date_field, final Map<String, Object> map, final String hostname) {
+		return getLog4JMessage(logObject, level, stack, getThreadName(Thread.currentThread()), date_field, map, hostname);
+	}
+	
+	/**
+	 * Version of getLog4JMessage for when the message is being built on a different thread to the one that logged it
+	 * @param thread - the name of the logging thread (see getThreadName)
+	 */
+	public static String getLog4JMessage(final JsonNode logObject, final Level level, final StackTraceElement stack, final String thread, final String date_field, final Map<String, Object> map, final String hostname) {
 		StringBuilder sb = new StringBuilder();
 		final String c = stack.getClassName().substring(stack.getClassName().lastIndexOf(".")+1);
 		final String l = Integer.toString(stack.getLineNumber());
-		final String thread = Thread.currentThread().getName().isEmpty() ? Long.toString(Thread.currentThread().getId()) : Thread.currentThread().getName();
 		sb.append(String.format(message_format, date_format.format(new Date(logObject.get(date_field).asLong())), thread, level.name(), c, l, logObject.get("message").asText()));
 		sb.append(String.format(field_format, "bucket", logObject.get("bucket").asText()));
 		sb.append(String.format(field_format, "hostname", hostname));
@@ -46,4 +53,13 @@ public class Log4JUtils {
 		Optional.ofNullable(map).orElse(Collections.emptyMap()).entrySet().stream().forEach(e -> sb.append(String.format(field_format, e.getKey(), e.getValue())));
 		return sb.toString();
 	}
+	
+	/**
+	 * Returns the name of the thread as used in log4j messages (its id if it doesn't have a name)
+	 * @param thread
+	 * @return
+	 */
+	public static String getThreadName(final Thread thread) {
+		return thread.getName().isEmpty() ? Long.toString(thread.getId()) : thread.getName();
+	}
 }
@@ -27,6 +27,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import org.apache.logging.log4j.Level;
@@ -209,6 +213,92 @@ public class TestLoggingService {
 		logging_crud.deleteDatastore().get();
 	}
 	
+	/**
+	 * Tests writing messages via the async (queued) logger (and the sync logger for comparison), checks they were all stored once flushed.
+	 * 
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	@Test
+	public void test_asyncLogBucket() throws InterruptedException, ExecutionException {
+		final String subsystem_name = "logging_test_async";
+		final int num_messages_to_log = 500;
+		final LoggingService async_logging_service = new LoggingService(new LoggingServiceConfigBean(_config.default_time_field(), _config.default_system_log_level(), 
+				_config.default_user_log_level(), _config.system_mirror_to_log4j_level(), 1000, 100, LoggingServiceConfigBean.AsyncOverflowPolicy.block), _service_context);
+		final DataBucketBean test_bucket = getTestBucket("test_async", Optional.of(Level.ALL.toString()), Optional.empty()); 
+		
+		for (LoggingService service : Arrays.asList(logging_service, async_logging_service)) {
+			final IBucketLogger user_logger = service.getLogger(test_bucket);
+			final IBucketLogger system_logger = service.getSystemLogger(test_bucket);
+			IntStream.rangeClosed(1, num_messages_to_log).boxed().forEach(i -> {		
+				user_logger.log(Level.ERROR, ErrorUtils.lazyBuildMessage(true, () -> subsystem_name, ()->"test_message " + i, () -> null, ()->"no error", ()->Collections.emptyMap()));
+				system_logger.log(Level.ERROR, ErrorUtils.lazyBuildMessage(true, () -> subsystem_name, ()->"test_message " + i, () -> null, ()->"no error", ()->Collections.emptyMap()));
+			});
+			
+			user_logger.flush().get();
+			system_logger.flush().get();
+		}
+		
+		final Map<String, Long> metrics = async_logging_service.getAsyncMetrics();
+		assertEquals(2L*num_messages_to_log + 2L, metrics.get("enqueued").longValue()); // (+2 for the flushes)
+		assertEquals(0L, metrics.get("dropped").longValue());
+		assertEquals(0L, metrics.get("queue_depth").longValue());
+		assertTrue(metrics.get("max_queue_depth") <= 1000L);
+		assertEquals(0L, logging_service.getAsyncMetrics().get("enqueued").longValue());
+		
+		//shutdown stops the worker thread, after which log calls are run on the caller's thread
+		async_logging_service.shutdown();
+		assertFalse(async_logging_service.async_worker.get().isAlive());
+		final IBucketLogger after_shutdown_logger = async_logging_service.getLogger(test_bucket);
+		after_shutdown_logger.log(Level.ERROR, ErrorUtils.lazyBuildMessage(true, () -> subsystem_name, ()->"test_message after shutdown", () -> null, ()->"no error", ()->Collections.emptyMap())).get();
+		after_shutdown_logger.flush().get();
+		assertEquals(2L*num_messages_to_log + 2L, async_logging_service.getAsyncMetrics().get("enqueued").longValue());
+		
+		//check its in ES, wait 10s max for the index to refresh
+		final DataBucketBean logging_test_bucket = BucketUtils.convertDataBucketBeanToLogging(test_bucket);
+		final IDataWriteService<BasicMessageBean> logging_crud = search_index_service.getDataService().get().getWritableDataService(BasicMessageBean.class, logging_test_bucket, Optional.empty(), Optional.empty()).get();
+		waitForResults(logging_crud, 10, num_messages_to_log*4 + 1);
+		assertEquals(num_messages_to_log*4 + 1, logging_crud.countObjects().get().longValue());
+		
+		//cleanup
+		logging_crud.deleteDatastore().get();
+	}
+	
+	@Test
+	public void test_mergeKeyBounds() throws InterruptedException, ExecutionException {
+		final String subsystem_name = "logging_test_merge_bounds";
+		final long max_keys = 10L;
+		final int num_keys = 100;
+		final int num_threads = 8;
+		final int num_messages_per_thread = 250;
+		final LoggingService bounded_logging_service = new LoggingService(new LoggingServiceConfigBean(_config.default_time_field(), _config.default_system_log_level(), 
+				_config.default_user_log_level(), _config.system_mirror_to_log4j_level(), null, null, null, max_keys, null, false), _service_context);
+		final DataBucketBean test_bucket = getTestBucket("test_merge_bounds", Optional.of(Level.ALL.toString()), Optional.empty()); 
+		final IBucketLogger user_logger = bounded_logging_service.getLogger(test_bucket);
+		
+		//log to many more distinct merge keys than we're allowed to keep, rule never passes so nothing is written out
+		IntStream.range(0, num_keys).boxed().forEach(i -> {
+			user_logger.log(Level.ERROR, ErrorUtils.lazyBuildMessage(true, () -> subsystem_name, ()->"test_message " + i, () -> null, ()->"no error", ()->Collections.emptyMap()), "key" + i, Arrays.asList(LoggingRules.logEveryCount(Integer.MAX_VALUE)), Optional.empty(), LoggingMergeFunctions.replaceMessage());
+		});
+		Map<String, Long> metrics = bounded_logging_service.getMergeMetrics(user_logger);
+		assertTrue("size=" + metrics.get("size"), metrics.get("size") <= max_keys);
+		assertTrue("evictions=" + metrics.get("evictions"), metrics.get("evictions") >= num_keys - max_keys);
+		assertEquals(metrics.get("evictions").longValue(), bounded_logging_service.getMergeEvictions());
+		
+		//hammer a single key from multiple threads, no updates to the count should be lost
+		final ExecutorService executor = Executors.newFixedThreadPool(num_threads);
+		final List<Future<?>> futures = IntStream.range(0, num_threads).boxed().map(t -> executor.submit(() -> {
+			IntStream.range(0, num_messages_per_thread).forEach(i -> {
+				user_logger.log(Level.ERROR, ErrorUtils.lazyBuildMessage(true, () -> subsystem_name, ()->"test_message " + i, () -> null, ()->"no error", ()->Collections.emptyMap()), "shared_key", Arrays.asList(LoggingRules.logEveryCount(Integer.MAX_VALUE)), Optional.empty(), LoggingMergeFunctions.replaceMessage());
+			});
+		})).collect(Collectors.toList());
+		for (Future<?> f : futures) f.get();
+		executor.shutdown();
+		assertEquals((long)(num_threads*num_messages_per_thread), bounded_logging_service.getMergeInfo(user_logger, "shared_key").get()._2.get(LoggingUtils.LOG_COUNT_FIELD));
+		metrics = bounded_logging_service.getMergeMetrics(user_logger);
+		assertTrue("size=" + metrics.get("size"), metrics.get("size") <= max_keys);
+	}
+	
 	/**
 	 * Tests writing messages as user, system, external at 3 different log levels and verifies
 	 * the too low of level messages were filtered out (not written to storage).
@@ -15,17 +15,23 @@
  *******************************************************************************/
 package com.ikanow.aleph2.management_db.controllers.actors;
 
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -34,66 +40,161 @@ import scala.Tuple2;
 import scala.concurrent.duration.Duration;
 import scala.concurrent.duration.FiniteDuration;
 
+import com.google.common.collect.ImmutableMap;
 import com.ikanow.aleph2.data_model.interfaces.data_services.IManagementDbService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketBean;
 import com.ikanow.aleph2.data_model.objects.data_import.DataBucketStatusBean;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
 import com.ikanow.aleph2.data_model.utils.CrudUtils;
 import com.ikanow.aleph2.data_model.utils.Optionals;
 import com.ikanow.aleph2.data_model.utils.SetOnce;
 import com.ikanow.aleph2.data_model.utils.TimeUtils;
 import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils.MethodNamingHelper;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent;
 import com.ikanow.aleph2.management_db.data_model.BucketActionMessage.PollFreqBucketActionMessage;
 import com.ikanow.aleph2.management_db.data_model.BucketActionReplyMessage.BucketActionCollectedRepliesMessage;
+import com.ikanow.aleph2.management_db.data_model.BucketMgmtMessage.BucketMgmtEventBusWrapper;
+import com.ikanow.aleph2.management_db.data_model.BucketMgmtMessage.BucketPollScheduleMessage;
 import com.ikanow.aleph2.management_db.services.ManagementDbActorContext;
+import com.ikanow.aleph2.management_db.utils.ActorUtils;
 
-import fj.data.Validation;
+import akka.actor.ActorRef;
 import akka.actor.Cancellable;
 import akka.actor.UntypedActor;
 
 /** This actor is a singleton, ie runs on only one node in the cluster
  *  its role is to monitor the bucket db looking for buckets that have a next_date < now
  *  then send a message out to any harvesters to do an onPollFrequency call
+ *
+ *  Buckets due within the next LOOKAHEAD_SECS are held in an in-memory priority queue, and polled at their exact due time.
+ *  The queue is kept up to date by the bucket/status CRUD services, which publish a BucketPollScheduleMessage on the poll schedule bus
+ *  whenever a bucket's poll date/suspension changes or it is deleted - a full (_id/next_poll_date/node_affinity) re-sync every RESYNC_PERIOD_SECS
+ *  catches anything missed. Due buckets are fetched in one query, and their next poll dates written back in bulk
  * @author cburch
  *
  */
 public class BucketPollFreqSingletonActor extends UntypedActor {
 	private static final Logger _logger = LogManager.getLogger();
+
+	public static final long RESYNC_PERIOD_SECS = 60L;
+	public static final long LOOKAHEAD_SECS = 2L*RESYNC_PERIOD_SECS; // (so every due time is inside the window of at least one re-sync)
+
+	protected static final String SYNC = "Tick";
+	protected static final String FIRE = "Fire";
+	public static final String METRICS = "Metrics";
+
 	protected final ManagementDbActorContext _actor_context;
 	protected final IServiceContext _context;
 	protected final IManagementDbService _core_mgmt_db;
 	protected final ManagementDbActorContext _system_context;
-	protected final IManagementDbService _underlying_management_db;	
+	protected final IManagementDbService _underlying_management_db;
 	protected final SetOnce<ICrudService<DataBucketBean>> _bucket_crud = new SetOnce<>();
 	protected final SetOnce<ICrudService<DataBucketStatusBean>> _bucket_status_crud = new SetOnce<>();
 	protected final SetOnce<Cancellable> _ticker = new SetOnce<>();
-	
+
+	// The schedule - only touched from onReceive, so no need for synchronization
+	// (entries are removed lazily, ie an entry in the queue is only valid if it matches _scheduled)
+	protected final PriorityQueue<Tuple2<Long, String>> _schedule = new PriorityQueue<>(
+			Comparator.<Tuple2<Long, String>, Long>comparing(t2 -> t2._1()).thenComparing(t2 -> t2._2()));
+	protected final Map<String, DataBucketStatusBean> _scheduled = new HashMap<>(); // (bucket _id -> (_id, next_poll_date, node_affinity) of its status)
+	protected final Set<String> _in_progress = new HashSet<>(); // (buckets that have fired but not yet had their next poll date written back)
+	protected final Set<String> _changed_in_progress = new HashSet<>(); // (in progress buckets that were changed while they were being polled, so need looking up once complete)
+	protected final Map<String, Long> _versions = new HashMap<>(); // (bucket _id -> when the information its schedule is based on was looked up, so results of older lookups can be ignored)
+	protected Optional<Tuple2<Long, Cancellable>> _next_fire = Optional.empty();
+
+	// Scheduling metrics (only touched from onReceive)
+	protected long _num_fired = 0L;
+	protected long _last_lag_ms = 0L;
+	protected long _max_lag_ms = 0L;
+	protected long _total_lag_ms = 0L;
+	protected long _num_resync_queries = 0L;
+	protected long _num_event_queries = 0L;
+	protected long _num_fire_queries = 0L;
+
+	/** Internal message, the result of syncing with the status store
+	 */
+	protected static class ScheduleUpdateMessage implements Serializable {
+		private static final long serialVersionUID = 2387312459816475622L;
+		protected ScheduleUpdateMessage(final long issued_at, final Collection<String> bucket_ids, final List<DataBucketStatusBean> statuses, final Optional<Long> window_end) {
+			this.issued_at = issued_at; this.bucket_ids = bucket_ids; this.statuses = statuses; this.window_end = window_end;
+		}
+		protected final long issued_at; // (when the lookup was issued)
+		protected final Collection<String> bucket_ids; // (the buckets whose schedules are being updated - empty for a full re-sync) 
+		protected final List<DataBucketStatusBean> statuses; // (the non-suspended statuses with a next_poll_date inside the lookahead window)
+		protected final Optional<Long> window_end; // (for a full re-sync, the end of the lookahead window it covered) 
+	}
+
+	/** Internal message, once the next poll dates for a set of fired buckets have been written back
+	 */
+	protected static class PollCompleteMessage implements Serializable {
+		private static final long serialVersionUID = -1470826574113396235L;
+		protected PollCompleteMessage(final Collection<String> bucket_ids, final List<DataBucketStatusBean> rescheduled) { this.bucket_ids = bucket_ids; this.rescheduled = rescheduled; }
+		protected final Collection<String> bucket_ids;
+		protected final List<DataBucketStatusBean> rescheduled; // (the statuses of the polled buckets, with their new next_poll_date)
+	}
+
 	public BucketPollFreqSingletonActor() {
 		_system_context = ManagementDbActorContext.get();
 		_actor_context = ManagementDbActorContext.get();
 		_context = _actor_context.getServiceContext();
 		_core_mgmt_db = _context.getCoreManagementDbService();
-		_underlying_management_db = _system_context.getServiceContext().getService(IManagementDbService.class, Optional.empty()).orElse(null);		
+		_underlying_management_db = _system_context.getServiceContext().getService(IManagementDbService.class, Optional.empty()).orElse(null);
 		if (null != _underlying_management_db) {
+			_actor_context.getPollScheduleMgmtBus().subscribe(this.self(), ActorUtils.BUCKET_POLL_SCHEDULE_BUS);
+			
 			final FiniteDuration poll_delay = Duration.create(1, TimeUnit.SECONDS);
-			final FiniteDuration poll_frequency = Duration.create(1, TimeUnit.SECONDS);
+			final FiniteDuration poll_frequency = Duration.create(RESYNC_PERIOD_SECS, TimeUnit.SECONDS);
 			_ticker.set(this.context().system().scheduler()
-					.schedule(poll_delay, poll_frequency, this.self(), "Tick", this.context().system().dispatcher(), null));					
-			_logger.info("BucketPollSingletonActor has started on this node.");						
-		}			
+					.schedule(poll_delay, poll_frequency, this.self(), SYNC, this.context().system().dispatcher(), null));
+			_logger.info("BucketPollSingletonActor has started on this node.");
+		}
+	}
+
+	/** Called by anything that changes a bucket's next_poll_date/suspended state (or deletes it), so the poll schedule can be updated immediately
+	 *  (best effort - the periodic re-sync will catch any changes that don't get notified)
+	 * @param actor_context - the management db actor context
+	 * @param bucket_id - the _id of the bucket (and its status) that changed
+	 * @param deleted - if the bucket has been deleted (so no need to look it up)
+	 */
+	public static void notifyScheduleChanged(final ManagementDbActorContext actor_context, final String bucket_id, final boolean deleted) {
+		try {
+			actor_context.getPollScheduleMgmtBus().publish(new BucketMgmtEventBusWrapper(ActorRef.noSender(), new BucketPollScheduleMessage(bucket_id, deleted)));
+		}
+		catch (Throwable t) { // (eg no distributed services, just leave it to the re-sync)
+			_logger.debug("Failed to notify poll schedule change for bucket: " + bucket_id + ": " + t.getMessage());
+		}
 	}
 	
+	/** Returns some simple metrics describing how accurately polls are being scheduled, and how much DB load that costs:
+	 *  fired (number of polls fired), scheduled (current number of scheduled buckets), last_lag_ms/max_lag_ms/mean_lag_ms (time between the due time and the poll being fired),
+	 *  resync_queries (full schedule re-syncs), event_queries (single bucket lookups triggered by change notifications), fire_queries (bucket lookups for due polls)
+	 * @return
+	 */
+	protected Map<String, Long> getSchedulingMetrics() {
+		return ImmutableMap.<String, Long>builder()
+				.put("fired", _num_fired)
+				.put("scheduled", (long)_scheduled.size())
+				.put("last_lag_ms", _last_lag_ms)
+				.put("max_lag_ms", _max_lag_ms)
+				.put("mean_lag_ms", 0 == _num_fired ? 0L : _total_lag_ms/_num_fired)
+				.put("resync_queries", _num_resync_queries)
+				.put("event_queries", _num_event_queries)
+				.put("fire_queries", _num_fire_queries)
+				.build();
+	}
+
 	/** For some reason can run into guice problems with doing this in the c'tor
 	 *  so do it here instead
 	 */
 	protected void setup() {
-		//TODO get the bucket db and optimize it's query path
-		if (!_bucket_crud.isSet()) { // (for some reason, core_mdb.anything() can fail in the c'tor)			
+		if (!_bucket_crud.isSet()) { // (for some reason, core_mdb.anything() can fail in the c'tor)
 			_bucket_crud.set(_underlying_management_db.getDataBucketStore());
 			_bucket_status_crud.set(_underlying_management_db.getDataBucketStatusStore());
+			_bucket_status_crud.get().optimizeQuery(Arrays.asList(BeanTemplateUtils.from(DataBucketStatusBean.class).field(DataBucketStatusBean::next_poll_date)));
 		}
 	}
 
@@ -102,90 +203,276 @@ public class BucketPollFreqSingletonActor extends UntypedActor {
 	 */
 	@Override
 	public void onReceive(Object message) throws Exception {
-		//Note: we don't bother checking what the message is, we always assume it means we should check
-		//i.e. we only think it's going to be the string "Tick" sent from the scheduler we setup in the c'tor
 		setup();
-		getExpiredBuckets().thenAccept(m -> {
-			final List<Tuple2<DataBucketBean, DataBucketStatusBean>> buckets = StreamSupport.stream(m.spliterator(), false).collect(Collectors.toList());			
-			buckets.stream().forEach(bucket_bstatus -> {
-				//DEBUG (investigating travis issues)
-				if (_logger.isDebugEnabled()) {
-					System.out.println("Poll Expired for bucket: " + bucket_bstatus._1().full_name() + ": " + new Date());
-				}
-				_logger.debug("Poll Expired for bucket: " + bucket_bstatus._1().full_name());				
-				updateBucketNextPollTime(bucket_bstatus._1()).thenAccept(x -> {
-					_logger.debug("Sending poll message");
-					sendPollMessage(bucket_bstatus);
-				}).exceptionally(t-> {
-					_logger.error("Error updating bucket next poll time: " + t.getMessage());
-					return null;
-				});			
+		if (message instanceof ScheduleUpdateMessage) {
+			final ScheduleUpdateMessage update = (ScheduleUpdateMessage) message;
+			onScheduleUpdate(update.issued_at, update.bucket_ids, update.statuses, update.window_end);
+		}
+		else if (message instanceof PollCompleteMessage) {
+			final PollCompleteMessage complete = (PollCompleteMessage) message;
+			final long now = System.currentTimeMillis();
+			_in_progress.removeAll(complete.bucket_ids);
+			onScheduleUpdate(now, complete.bucket_ids, complete.rescheduled, Optional.empty());
+			complete.bucket_ids.stream().filter(id -> _changed_in_progress.remove(id)).forEach(id -> onScheduleChanged(new BucketPollScheduleMessage(id, false)));
+		}
+		else if (message instanceof BucketMgmtEventBusWrapper) {
+			Optional.of(((BucketMgmtEventBusWrapper) message).message())
+				.filter(msg -> msg instanceof BucketPollScheduleMessage)
+				.map(msg -> (BucketPollScheduleMessage) msg)
+				.ifPresent(msg -> onScheduleChanged(msg));
+		}
+		else if (FIRE.equals(message)) {
+			_next_fire = Optional.empty();
+			onFire();
+		}
+		else if (METRICS.equals(message)) {
+			this.sender().tell(getSchedulingMetrics(), this.self());
+		}
+		else { // (assume anything else is the re-sync "Tick" sent from the scheduler we setup in the c'tor)
+			final long now = System.currentTimeMillis();
+			final long window_end = now + 1000L*LOOKAHEAD_SECS;
+			_versions.values().removeIf(version -> version < now - 1000L*LOOKAHEAD_SECS); // (no lookups are outstanding for that long)
+			_num_resync_queries++;
+			getUpcomingPollTimes(Optional.empty(), window_end).thenAccept(statuses -> {
+				this.self().tell(new ScheduleUpdateMessage(now, Collections.emptyList(), statuses, Optional.of(window_end)), this.self());
+			}).exceptionally(t -> {
+				_logger.error("Error retrieving upcoming poll times", t);
+				return null;
 			});
-		}).exceptionally(t -> {
+		}
+	}
+
+	/** Handles a change notification for a single bucket - just removes it from the schedule if deleted, else looks up its current schedule
+	 * @param msg - the change notification
+	 */
+	protected void onScheduleChanged(final BucketPollScheduleMessage msg) {
+		if (_in_progress.contains(msg.bucket_id())) { // (the poll is about to overwrite the next poll date, so check again once it's complete)
+			_changed_in_progress.add(msg.bucket_id());
+		}
+		else if (msg.deleted()) {
+			onScheduleUpdate(System.currentTimeMillis(), Arrays.asList(msg.bucket_id()), Collections.emptyList(), Optional.empty());
+		}
+		else {
+			final long now = System.currentTimeMillis();
+			_num_event_queries++;
+			getUpcomingPollTimes(Optional.of(msg.bucket_id()), now + 1000L*LOOKAHEAD_SECS).thenAccept(statuses -> {
+				this.self().tell(new ScheduleUpdateMessage(now, Arrays.asList(msg.bucket_id()), statuses, Optional.empty()), this.self());
+			}).exceptionally(t -> {
+				_logger.error("Error retrieving upcoming poll time for bucket: " + msg.bucket_id(), t);
+				return null;
+			});
+		}
+	}
+	
+	/** Updates the schedule for a set of buckets (or all buckets in the lookahead window for a full re-sync)
+	 * @param issued_at - when the lookup was issued - buckets whose schedule has been updated from a more recent lookup (or poll) are left alone
+	 * @param bucket_ids - the buckets being updated, any not in statuses are removed from the schedule (ignored if window_end is present)
+	 * @param statuses - the (_id, next_poll_date, node_affinity) of the buckets due within the lookahead window
+	 * @param window_end - for a full re-sync, the end of its lookahead window - any scheduled buckets due before then that aren't in statuses are removed 
+	 */
+	protected void onScheduleUpdate(final long issued_at, final Collection<String> bucket_ids, final List<DataBucketStatusBean> statuses, final Optional<Long> window_end) {
+		final Map<String, DataBucketStatusBean> statuses_by_id = statuses.stream()
+				.filter(s -> null != s.next_poll_date())
+				.filter(s -> !_in_progress.contains(s._id()))
+				.filter(s -> _versions.getOrDefault(s._id(), 0L) <= issued_at)
+				.collect(Collectors.toMap(s -> s._id(), s -> s, (a, b) -> b));
+		
+		// Remove anything that is no longer due inside the window
+		final Collection<String> to_check = window_end
+				.<Collection<String>>map(end -> _scheduled.entrySet().stream().filter(kv -> kv.getValue().next_poll_date().getTime() < end).map(kv -> kv.getKey()).collect(Collectors.toList()))
+				.orElse(bucket_ids);
+		to_check.stream()
+			.filter(id -> !statuses_by_id.containsKey(id))
+			.filter(id -> _versions.getOrDefault(id, 0L) <= issued_at) // (else has been rescheduled since the lookup)
+			.collect(Collectors.toList())
+			.forEach(id -> {
+				_scheduled.remove(id);
+				_versions.put(id, issued_at);
+			});
+		
+		// Add any new or changed poll times
+		statuses_by_id.values().stream()
+			.filter(s -> !s.next_poll_date().equals(Optional.ofNullable(_scheduled.get(s._id())).map(ss -> ss.next_poll_date()).orElse(null)))
+			.forEach(s -> _schedule.add(Tuples._2T(s.next_poll_date().getTime(), s._id())));
+		_scheduled.putAll(statuses_by_id);
+		statuses_by_id.keySet().forEach(id -> _versions.put(id, issued_at));
+		
+		scheduleNextFire();
+	}
+
+	/** Pulls all the due buckets off the schedule, retrieves them from the DB, writes their next poll dates back and polls them
+	 */
+	protected void onFire() {
+		final long now = System.currentTimeMillis();
+		final Map<String, DataBucketStatusBean> due = new HashMap<>();
+		while (!_schedule.isEmpty() && (_schedule.peek()._1() <= now)) {
+			final Tuple2<Long, String> due_id = _schedule.poll();
+			if (isCurrent(due_id)) { // (else is stale)
+				due.put(due_id._2(), _scheduled.remove(due_id._2()));
+				_in_progress.add(due_id._2());
+
+				final long lag = now - due_id._1();
+				_num_fired++;
+				_last_lag_ms = lag;
+				_total_lag_ms += lag;
+				_max_lag_ms = Math.max(_max_lag_ms, lag);
+				_logger.debug("Poll Expired for bucket: " + due_id._2() + ", lag=" + lag + "ms");
+			}
+		}
+		scheduleNextFire();
+
+		if (due.isEmpty()) return;
+
+		final Collection<String> due_ids = new LinkedList<>(due.keySet());
+		_num_fire_queries++;
+		getExpiredBuckets(due.keySet(), now).thenCompose(buckets -> {
+			//DEBUG (investigating travis issues)
+			if (_logger.isDebugEnabled()) {
+				buckets.forEach(bucket_bstatus -> System.out.println("Poll Expired for bucket: " + bucket_bstatus._1().full_name() + ": " + new Date()));
+			}
+			return updateBucketNextPollTimes(buckets);
+		})
+		.exceptionally(t -> {
 			_logger.error("Error retrieving expired buckets", t);
-			return null;
-		});		
+			return Collections.emptyList();
+		})
+		.thenAccept(rescheduled -> this.self().tell(new PollCompleteMessage(due_ids, rescheduled), this.self()));
+	}
+
+	/** Whether an entry in the priority queue still matches the schedule
+	 * @param due_id - (due time, bucket _id)
+	 * @return
+	 */
+	protected boolean isCurrent(final Tuple2<Long, String> due_id) {
+		return Optional.ofNullable(_scheduled.get(due_id._2())).map(s -> s.next_poll_date().getTime() == due_id._1()).orElse(false);
+	}
+	
+	/** (Re)schedules the fire message for the head of the queue, if it has changed
+	 */
+	protected void scheduleNextFire() {
+		// (discard any stale entries at the head of the queue)
+		while (!_schedule.isEmpty() && !isCurrent(_schedule.peek())) {
+			_schedule.poll();
+		}
+		final Optional<Long> next_due = Optional.ofNullable(_schedule.peek()).map(t2 -> t2._1());
+		if (!next_due.equals(_next_fire.map(t2 -> t2._1()))) {
+			_next_fire.ifPresent(t2 -> t2._2().cancel());
+			_next_fire = next_due.map(due -> Tuples._2T(due,
+					this.context().system().scheduler().scheduleOnce(
+							Duration.create(Math.max(0L, due - System.currentTimeMillis()), TimeUnit.MILLISECONDS),
+							this.self(), FIRE, this.context().system().dispatcher(), null)));
+		}
 	}
 
-	private CompletableFuture<BucketActionCollectedRepliesMessage> sendPollMessage(final Tuple2<DataBucketBean, DataBucketStatusBean> bucket_bstatus) {		
+	private CompletableFuture<BucketActionCollectedRepliesMessage> sendPollMessage(final Tuple2<DataBucketBean, DataBucketStatusBean> bucket_bstatus) {
 		final boolean multi_node_enabled = Optional.ofNullable(bucket_bstatus._1().multi_node_enabled()).orElse(false);
-		
+
 		final CompletableFuture<BucketActionCollectedRepliesMessage> poll_future = BucketActionSupervisor.askBucketActionActor(
-				Optional.of(multi_node_enabled || !Optional.ofNullable(bucket_bstatus._2().node_affinity()).orElse(Collections.emptyList()).isEmpty()),				
-				_actor_context.getBucketActionSupervisor(), 
-				_actor_context.getActorSystem(), 
-				new PollFreqBucketActionMessage(bucket_bstatus._1(), new HashSet<String>(Optionals.ofNullable(bucket_bstatus._2().node_affinity()))), 
-				Optional.empty());			
+				Optional.of(multi_node_enabled || !Optional.ofNullable(bucket_bstatus._2().node_affinity()).orElse(Collections.emptyList()).isEmpty()),
+				_actor_context.getBucketActionSupervisor(),
+				_actor_context.getActorSystem(),
+				new PollFreqBucketActionMessage(bucket_bstatus._1(), new HashSet<String>(Optionals.ofNullable(bucket_bstatus._2().node_affinity()))),
+				Optional.empty());
 		_logger.debug("Sent poll message from actor for bucket: " + bucket_bstatus._1().full_name());
 		return poll_future;
 	}
 
-	private CompletableFuture<Stream<Tuple2<DataBucketBean, DataBucketStatusBean>>> getExpiredBuckets() {
-		//they are buckets where suspended:false AND next_poll_date < now
-		final QueryComponent<DataBucketStatusBean> non_suspended_expired_buckets = CrudUtils.allOf(DataBucketStatusBean.class).when(DataBucketStatusBean::suspended, false).rangeBelow(DataBucketStatusBean::next_poll_date, new Date(), false);
-		//first get the status items where suspended:false and next_poll_date < now
-		return _bucket_status_crud.get().getObjectsBySpec(non_suspended_expired_buckets).thenCompose(c -> {
-			//match those to databuckets with the ids
-			final Map<String, DataBucketStatusBean> bucket_ids = Optionals.streamOf(c.iterator(), false).collect(Collectors.toMap(b -> b._id(), b->b));			
-			final QueryComponent<DataBucketBean> matching_ids = CrudUtils.allOf(DataBucketBean.class).withAny(DataBucketBean::_id, bucket_ids.keySet());			
-			return _bucket_crud.get().getObjectsBySpec(matching_ids).thenApply(cc -> 
-				Optionals.streamOf(cc.iterator(), false).map(b -> Tuples._2T(b, bucket_ids.get(b._id()))).filter(t2 -> null != t2._2()));
-		});
+	/** Returns the (_id, next_poll_date, node_affinity) of all (or one) non suspended buckets due within the lookahead window (just returns those 3 fields)
+	 * @param maybe_bucket_id - if present, just looks up that bucket
+	 * @param window_end - the end of the lookahead window
+	 * @return
+	 */
+	private CompletableFuture<List<DataBucketStatusBean>> getUpcomingPollTimes(final Optional<String> maybe_bucket_id, final long window_end) {
+		final QueryComponent<DataBucketStatusBean> upcoming_buckets = maybe_bucket_id
+				.map(id -> CrudUtils.allOf(DataBucketStatusBean.class).when(DataBucketStatusBean::_id, id))
+				.orElseGet(() -> CrudUtils.allOf(DataBucketStatusBean.class))
+				.when(DataBucketStatusBean::suspended, false)
+				.rangeBelow(DataBucketStatusBean::next_poll_date, new Date(window_end), false);
+
+		final MethodNamingHelper<DataBucketStatusBean> helper = BeanTemplateUtils.from(DataBucketStatusBean.class);
+		return _bucket_status_crud.get().getObjectsBySpec(upcoming_buckets,
+				Arrays.asList(helper.field(DataBucketStatusBean::_id), helper.field(DataBucketStatusBean::next_poll_date), helper.field(DataBucketStatusBean::node_affinity)), true)
+				.thenApply(c -> Optionals.streamOf(c.iterator(), false)
+									.filter(s -> null != s.next_poll_date())
+									.collect(Collectors.toList()));
 	}
-	
-	private CompletableFuture<Boolean> updateBucketNextPollTime(DataBucketBean bucket)  {
-		//DEBUG (investigating travis issues)
-		if (_logger.isDebugEnabled()) {
-			System.out.println("updateBucketNextPollTime: " + new Date());
-		}
-		//update this buckets with a new next_date		
+
+	/** Retrieves the buckets that have fired, and returns them with their current status
+	 *  (the status is re-read, since a bucket can have been suspended or rescheduled after it was queued and before the change notification arrived
+	 *   - only buckets that are still not suspended and due are returned)
+	 * @param due_ids - the _ids of the due buckets
+	 * @param now - the time the buckets fired
+	 * @return
+	 */
+	private CompletableFuture<List<Tuple2<DataBucketBean, DataBucketStatusBean>>> getExpiredBuckets(final Collection<String> due_ids, final long now) {
+		final QueryComponent<DataBucketStatusBean> non_suspended_expired_buckets = CrudUtils.allOf(DataBucketStatusBean.class)
+				.withAny(DataBucketStatusBean::_id, due_ids)
+				.when(DataBucketStatusBean::suspended, false)
+				.rangeBelow(DataBucketStatusBean::next_poll_date, new Date(now), false);
+
+		final MethodNamingHelper<DataBucketStatusBean> helper = BeanTemplateUtils.from(DataBucketStatusBean.class);
+		return _bucket_status_crud.get().getObjectsBySpec(non_suspended_expired_buckets,
+				Arrays.asList(helper.field(DataBucketStatusBean::_id), helper.field(DataBucketStatusBean::next_poll_date), helper.field(DataBucketStatusBean::node_affinity)), true)
+			.thenCompose(c -> {
+				final Map<String, DataBucketStatusBean> expired = Optionals.streamOf(c.iterator(), false)
+						.collect(Collectors.toMap(status -> status._id(), status -> status));
+				if (expired.isEmpty()) return CompletableFuture.completedFuture(Collections.<Tuple2<DataBucketBean, DataBucketStatusBean>>emptyList());
+
+				final QueryComponent<DataBucketBean> matching_ids = CrudUtils.allOf(DataBucketBean.class).withAny(DataBucketBean::_id, expired.keySet());
+				return _bucket_crud.get().getObjectsBySpec(matching_ids).thenApply(cc ->
+					Optionals.streamOf(cc.iterator(), false).map(b -> Tuples._2T(b, expired.get(b._id()))).filter(t2 -> null != t2._2()).collect(Collectors.toList()));
+			});
+	}
+
+	/** Writes back the next poll dates for a batch of buckets - one update per distinct next poll date (so typically one per poll frequency),
+	 *  then sends the poll messages for the buckets that were successfully updated
+	 * @param buckets
+	 * @return the statuses of the buckets that were polled, with their new next poll dates (so they can be rescheduled without waiting for the re-sync) 
+	 */
+	private CompletableFuture<List<DataBucketStatusBean>> updateBucketNextPollTimes(final List<Tuple2<DataBucketBean, DataBucketStatusBean>> buckets)  {
+		final Date now = new Date();
+
 		//TODO handle validation failure (shouldn't happen if poll date was already set? (i.e. instead of calling .success())
-		return Optional.ofNullable(bucket.poll_frequency())
-				.map(p_f -> TimeUtils.getForwardSchedule(bucket.poll_frequency(), Optional.of(new Date()))) //success pass back poll_freq
-				.orElse(Validation.fail("next_poll_time does not exist, probably was removed when bucket was republished")) //poll_freq doesn't exist, fail validation
-				.validation(f->{
-					//didn't have a poll_freq, clean up and kick out
-					_logger.debug(f + " unsetting next_poll_date so we don't call this again");
-					final QueryComponent<DataBucketStatusBean> expired_bucket_status = 
-							CrudUtils.allOf(DataBucketStatusBean.class).when(DataBucketStatusBean::_id, bucket._id());
-					final UpdateComponent<DataBucketStatusBean> update = CrudUtils.update(DataBucketStatusBean.class)
-							.unset(DataBucketStatusBean::next_poll_date);
-					return _bucket_status_crud.get().updateObjectBySpec(expired_bucket_status, Optional.of(false), update);
-//					CompletableFuture<Boolean> fail_future = new CompletableFuture<Boolean>();
-//					fail_future.complete(false);
-//					return fail_future;
-				}, 
-				next_poll_date->{
-					//success, update next_poll_date and continue
-					_logger.debug("Setting next poll time to: " + next_poll_date.toString());
-					final QueryComponent<DataBucketStatusBean> expired_bucket_status = 
-							CrudUtils.allOf(DataBucketStatusBean.class).when(DataBucketStatusBean::_id, bucket._id());
-					final UpdateComponent<DataBucketStatusBean> update = CrudUtils.update(DataBucketStatusBean.class)
-							.set(DataBucketStatusBean::next_poll_date, next_poll_date);
-					return _bucket_status_crud.get().updateObjectBySpec(expired_bucket_status, Optional.of(false), update);
-				});
-//		final Date next_poll_date = TimeUtils.getSchedule(bucket.poll_frequency(), Optional.of(new Date())).success();
+		// (Optional.empty() == poll_freq doesn't exist, probably was removed when bucket was republished, so unset the next poll date so we don't call this again)
+		final Map<Optional<Date>, List<Tuple2<DataBucketBean, DataBucketStatusBean>>> buckets_by_next_date = buckets.stream()
+				.collect(Collectors.groupingBy(bucket_bstatus -> Optional.ofNullable(bucket_bstatus._1().poll_frequency())
+															.flatMap(p_f -> Optional.of(TimeUtils.getForwardSchedule(p_f, Optional.of(now))).filter(v -> v.isSuccess()).map(v -> v.success()))));
+
+		final List<CompletableFuture<List<DataBucketStatusBean>>> updates = buckets_by_next_date.entrySet().stream().map(kv -> {
+			final List<String> ids = kv.getValue().stream().map(t2 -> t2._1()._id()).collect(Collectors.toList());
+			final QueryComponent<DataBucketStatusBean> expired_bucket_statuses =
+					CrudUtils.allOf(DataBucketStatusBean.class).withAny(DataBucketStatusBean::_id, ids);
+			final UpdateComponent<DataBucketStatusBean> update = kv.getKey()
+					.map(next_poll_date -> {
+						_logger.debug("Setting next poll time to: " + next_poll_date.toString() + " for " + ids.size() + " bucket(s)");
+						return CrudUtils.update(DataBucketStatusBean.class).set(DataBucketStatusBean::next_poll_date, next_poll_date);
+					})
+					.orElseGet(() -> {
+						_logger.debug("next_poll_time does not exist, unsetting next_poll_date so we don't call this again for " + ids.size() + " bucket(s)");
+						return CrudUtils.update(DataBucketStatusBean.class).unset(DataBucketStatusBean::next_poll_date);
+					});
+
+			return _bucket_status_crud.get().updateObjectsBySpec(expired_bucket_statuses, Optional.of(false), update)
+					.<List<DataBucketStatusBean>>thenApply(x -> {
+						_logger.debug("Sending poll messages");
+						kv.getValue().forEach(bucket_bstatus -> sendPollMessage(bucket_bstatus));
+						return kv.getKey()
+								.map(next_poll_date -> kv.getValue().stream()
+										.map(bucket_bstatus -> BeanTemplateUtils.clone(bucket_bstatus._2()).with(DataBucketStatusBean::next_poll_date, next_poll_date).done())
+										.collect(Collectors.toList()))
+								.orElse(Collections.emptyList());
+					})
+					.exceptionally(t -> {
+						_logger.error("Error updating bucket next poll time: " + t.getMessage());
+						return Collections.emptyList();
+					});
+		})
+		.collect(Collectors.toList());
 		
+		return CompletableFuture.allOf(updates.toArray(new CompletableFuture<?>[updates.size()]))
+				.thenApply(__ -> updates.stream().flatMap(f -> f.join().stream())
+											.filter(s -> s.next_poll_date().getTime() < System.currentTimeMillis() + 1000L*LOOKAHEAD_SECS) // (else the re-sync will pick it up)
+											.collect(Collectors.toList()));
 	}
 
 	/* (non-Javadoc)
@@ -195,7 +482,9 @@ public class BucketPollFreqSingletonActor extends UntypedActor {
 	public void postStop() {
 		if ( _ticker.isSet()) {
 			_ticker.get().cancel();
+			_actor_context.getPollScheduleMgmtBus().unsubscribe(this.self(), ActorUtils.BUCKET_POLL_SCHEDULE_BUS);
 		}
+		_next_fire.ifPresent(t2 -> t2._2().cancel());
 		try {
 			_logger.info("BucketPollSingletonActor has stopped on this node.");
 		}
@@ -106,6 +106,73 @@ public class BucketMgmtMessage implements Serializable {
 		private Boolean data_only;
 	}
 	
+	/** Sent by the age out singleton to one of the age out workers (round robin), for it to age out the data in a single bucket
+	 *  The worker replies to the sender with a copy of the message with success set, once all the data services have completed
+	 * @author Alex
+	 */
+	public static class BucketAgeOutMessage extends BucketMgmtMessage implements Serializable {
+		private static final long serialVersionUID = 2380536720953207455L;
+		/** (Jackson c'tor)
+		 */
+		protected BucketAgeOutMessage() { super(null); } 
+		
+		/** User constructor
+		 * @param bucket - bucket to age out
+		 * @param pass_date - the time the age out pass started (recorded against the bucket if the age out succeeds)
+		 * @param success - (for replies) whether all the data services aged out the bucket successfully
+		 */
+		public BucketAgeOutMessage(final DataBucketBean bucket, final Date pass_date, final Boolean success) {
+			super(bucket);
+			this.pass_date = pass_date;
+			this.success = success;
+		}
+		
+		/** The time the age out pass started
+		 * @return
+		 */
+		public Date pass_date() { return pass_date; }
+		/** (For replies) whether all the data services aged out the bucket successfully
+		 * @return
+		 */
+		public boolean success() { return Optional.ofNullable(success).orElse(false); }
+		
+		private Date pass_date;
+		private Boolean success;
+	}
+	
+	/** Published (round robin, to the poll frequency singleton) whenever a bucket's next_poll_date/suspended state changes, or it is deleted
+	 *  (just contains the bucket _id, the singleton looks up the current state itself)
+	 * @author Alex
+	 */
+	public static class BucketPollScheduleMessage extends BucketMgmtMessage implements Serializable {
+		private static final long serialVersionUID = 6520391788457196318L;
+		/** (Jackson c'tor)
+		 */
+		protected BucketPollScheduleMessage() { super(null); }
+		
+		/** User constructor
+		 * @param bucket_id - the _id of the bucket whose poll schedule has changed
+		 * @param deleted - whether the bucket has been deleted
+		 */
+		public BucketPollScheduleMessage(final String bucket_id, final boolean deleted) {
+			super(null);
+			this.bucket_id = bucket_id;
+			this.deleted = deleted;
+		}
+		
+		/** The _id of the bucket whose poll schedule has changed
+		 * @return
+		 */
+		public String bucket_id() { return bucket_id; }
+		/** Whether the bucket has been deleted (so no need to look it up)
+		 * @return
+		 */
+		public boolean deleted() { return Optional.ofNullable(deleted).orElse(false); }
+		
+		private String bucket_id;
+		private Boolean deleted;
+	}
+	
 	public static class BucketTimeoutMessage extends BucketMgmtMessage implements Serializable {
 		private static final long serialVersionUID = -1141752282442676055L;
 		private Object _id; // (read-only used for deletion)
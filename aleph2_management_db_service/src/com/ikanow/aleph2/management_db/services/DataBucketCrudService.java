@@ -16,6 +16,7 @@
 package com.ikanow.aleph2.management_db.services;
 
 import java.io.FileNotFoundException;
+import java.lang.ref.WeakReference;
 import java.sql.Timestamp;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
@@ -35,6 +36,8 @@ import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -69,6 +72,7 @@ import com.ikanow.aleph2.data_model.objects.shared.AuthorizationBean;
 import com.ikanow.aleph2.data_model.objects.shared.BasicMessageBean;
 import com.ikanow.aleph2.data_model.objects.shared.ProjectBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
+import com.ikanow.aleph2.data_model.utils.BucketPathIndex;
 import com.ikanow.aleph2.data_model.utils.BucketUtils;
 import com.ikanow.aleph2.data_model.utils.CrudUtils;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleBeanQueryComponent;
@@ -86,6 +90,7 @@ import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent;
 import com.ikanow.aleph2.data_model.utils.FutureUtils.ManagementFuture;
 import com.ikanow.aleph2.management_db.controllers.actors.BucketActionSupervisor;
+import com.ikanow.aleph2.management_db.controllers.actors.BucketPollFreqSingletonActor;
 import com.ikanow.aleph2.management_db.data_model.BucketActionMessage;
 import com.ikanow.aleph2.management_db.data_model.BucketActionReplyMessage.BucketActionCollectedRepliesMessage;
 import com.ikanow.aleph2.management_db.data_model.BucketActionRetryMessage;
@@ -103,7 +108,6 @@ import java.util.stream.Stream;
  * @author acp
  */
 public class DataBucketCrudService implements IManagementCrudService<DataBucketBean> {
-	@SuppressWarnings("unused")
 	private static final Logger _logger = LogManager.getLogger();	
 	
 	protected final Provider<IStorageService> _storage_service;	
@@ -117,6 +121,9 @@ public class DataBucketCrudService implements IManagementCrudService<DataBucketB
 	protected final ManagementDbActorContext _actor_context;
 	protected final IServiceContext _service_context;
 	
+	public static final long PATH_INDEX_REFRESH_SECS = 60L;
+	protected final SetOnce<ScheduledExecutorService> _path_index_refresher = new SetOnce<>();
+	
 	/** Guice invoked constructor
 	 */
 	@Inject
@@ -146,6 +153,53 @@ public class DataBucketCrudService implements IManagementCrudService<DataBucketB
 					BeanTemplateUtils.from(DataBucketBean.class).field(DataBucketBean::full_name)));
 		});		
 		
+		// Keep the in-memory bucket path index in sync with the DB (writes via this service update it immediately, this catches everything else)
+		// (the refresh task only holds a weak reference to this service, and shuts its executor down once the service has gone away)
+		final ScheduledExecutorService path_index_refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread t = new Thread(r, "bucket-path-index-refresh");
+			t.setDaemon(true);
+			return t;
+		});
+		_path_index_refresher.set(path_index_refresher);
+		final WeakReference<DataBucketCrudService> weak_this = new WeakReference<>(this);
+		path_index_refresher.scheduleWithFixedDelay(() -> {
+			final DataBucketCrudService service = weak_this.get();
+			if (null == service) {
+				path_index_refresher.shutdown();
+			}
+			else {
+				reloadPathIndex(service._underlying_data_bucket_db.get());
+			}
+		}, 
+		0L, PATH_INDEX_REFRESH_SECS, TimeUnit.SECONDS);
+	}
+	
+	/** Stops the background refresh of the in-memory bucket path index (eg when the service is being shut down)
+	 */
+	public void stopPathIndexRefresh() {
+		_path_index_refresher.optional().ifPresent(refresher -> refresher.shutdownNow());
+	}
+	
+	/** Reloads the in-memory bucket path index from the bucket store (just the full_name field)
+	 * @param bucket_db - the underlying bucket store
+	 */
+	protected static void reloadPathIndex(final ICrudService<DataBucketBean> bucket_db) {
+		try {
+			final MethodNamingHelper<DataBucketBean> helper = BeanTemplateUtils.from(DataBucketBean.class);
+			BucketPathIndex.get().beginReload(); // (so adds/removes made while the DB is being read aren't lost)
+			bucket_db.getObjectsBySpec(CrudUtils.allOf(DataBucketBean.class), 
+					Arrays.asList(helper.field(DataBucketBean::full_name)), true)
+				.thenAccept(cursor -> BucketPathIndex.get().replaceAll(
+						StreamSupport.stream(cursor.spliterator(), false)
+							.map(b -> b.full_name())
+							.filter(name -> null != name)
+							.iterator()))
+				.join();
+		}
+		catch (Throwable t) { // (just leave the old index in place, will try again next time)
+			BucketPathIndex.get().abortReload();
+			_logger.warn(ErrorUtils.getLongForm("Failed to reload bucket path index: {0}", t));
+		}
 	}
 	
 	/** User constructor, for wrapping
@@ -276,7 +330,8 @@ public class DataBucketCrudService implements IManagementCrudService<DataBucketB
 			//get the next poll time
 			final Date next_poll_time = TimeUtils.getForwardSchedule(new_object.poll_frequency(), Optional.of(new Date())).success();
 			//update the status
-			_underlying_data_bucket_status_db.get().updateObjectById(new_object._id(), CrudUtils.update(DataBucketStatusBean.class).set(DataBucketStatusBean::next_poll_date, next_poll_time));
+			_underlying_data_bucket_status_db.get().updateObjectById(new_object._id(), CrudUtils.update(DataBucketStatusBean.class).set(DataBucketStatusBean::next_poll_date, next_poll_time))
+				.thenRun(() -> BucketPollFreqSingletonActor.notifyScheduleChanged(_actor_context, new_object._id(), false));
 		}
 		
 		// Create the directories
@@ -295,7 +350,8 @@ public class DataBucketCrudService implements IManagementCrudService<DataBucketB
 		}
 		// OK if the bucket is validated we can store it (and create a status object)
 				
-		final CompletableFuture<Supplier<Object>> ret_val = _underlying_data_bucket_db.get().storeObject(new_object, replace_if_present);
+		final CompletableFuture<Supplier<Object>> ret_val = _underlying_data_bucket_db.get().storeObject(new_object, replace_if_present)
+																.thenApply(id -> { BucketPathIndex.get().add(new_object.full_name()); return id; });
 		final boolean is_suspended = DataBucketStatusCrudService.bucketIsSuspended(corresponding_status.get().get());
 
 		// Register the bucket update with any applicable data services		
@@ -537,7 +593,14 @@ public class DataBucketCrudService implements IManagementCrudService<DataBucketB
 			final CompletableFuture<Supplier<Object>> enqueue_delete = this._bucket_deletion_queue.get().storeObject(new BucketDeletionMessage(to_delete, to_delete_date, false));
 			
 			final CompletableFuture<Boolean> delete_reply = enqueue_delete
-																.thenCompose(__ -> _underlying_data_bucket_db.get().deleteObjectById(to_delete._id()));
+																.thenCompose(__ -> _underlying_data_bucket_db.get().deleteObjectById(to_delete._id()))
+																.thenApply(deleted -> { 
+																	if (deleted) {
+																		BucketPathIndex.get().remove(to_delete.full_name());
+																		BucketPollFreqSingletonActor.notifyScheduleChanged(_actor_context, to_delete._id(), true);
+																	}
+																	return deleted; 
+																});
 
 			return FutureUtils.denestManagementFuture(delete_reply
 				.thenCompose(del_reply -> {		
@@ -61,6 +61,7 @@ import com.ikanow.aleph2.data_model.utils.FutureUtils.ManagementFuture;
 import com.ikanow.aleph2.data_model.utils.ModuleUtils;
 import com.ikanow.aleph2.data_model.utils.Patterns;
 import com.ikanow.aleph2.data_model.utils.SetOnce;
+import com.ikanow.aleph2.management_db.controllers.actors.BucketPollFreqSingletonActor;
 import com.ikanow.aleph2.management_db.data_model.BucketActionMessage;
 import com.ikanow.aleph2.management_db.data_model.BucketActionRetryMessage;
 import com.ikanow.aleph2.management_db.utils.ManagementDbErrorUtils;
@@ -353,6 +354,11 @@ public class DataBucketStatusCrudService implements IManagementCrudService<DataB
 												 helper.field(DataBucketStatusBean::node_affinity)), 
 											true);
 		
+		// If the poll schedule might have changed, let the poll frequency singleton know
+		if (update.getAll().containsKey(helper.field(DataBucketStatusBean::suspended)) || update.getAll().containsKey(helper.field(DataBucketStatusBean::next_poll_date))) {
+			update_reply.thenAccept(maybe_status -> maybe_status.ifPresent(status -> BucketPollFreqSingletonActor.notifyScheduleChanged(_actor_context, status._id(), false)));
+		}
+		
 		try {
 			// What happens now depends on the contents of the message			
 			
@@ -94,6 +94,8 @@ public class ManagementDbActorContext {
 	protected final SetOnce<LookupEventBus<BucketActionEventBusWrapper, ActorRef, String>> _bucket_action_bus;
 	protected final SetOnce<LookupEventBus<BucketActionEventBusWrapper, ActorRef, String>> _analytics_bus;
 	protected final SetOnce<LookupEventBus<BucketMgmtEventBusWrapper, ActorRef, String>> _delete_round_robin_bus;
+	protected final SetOnce<LookupEventBus<BucketMgmtEventBusWrapper, ActorRef, String>> _age_out_round_robin_bus;
+	protected final SetOnce<LookupEventBus<BucketMgmtEventBusWrapper, ActorRef, String>> _poll_schedule_round_robin_bus;
 	protected final SetOnce<LookupEventBus<AnalyticsTriggerEventBusWrapper, ActorRef, String>> _analytics_trigger_round_robin_bus;
 	
 	// Some mutable state just used for cleaning up in tests
@@ -142,6 +144,8 @@ public class ManagementDbActorContext {
 			_bucket_action_bus = new SetOnce<>();
 			_analytics_bus = new SetOnce<>();
 			_delete_round_robin_bus = new SetOnce<>();
+			_age_out_round_robin_bus = new SetOnce<>();
+			_poll_schedule_round_robin_bus = new SetOnce<>();
 			_analytics_trigger_round_robin_bus = new SetOnce<>();
 						
 			_distributed_services.getApplicationName()
@@ -174,6 +178,8 @@ public class ManagementDbActorContext {
 			_bucket_action_bus = _singleton.get()._bucket_action_bus;
 			_analytics_bus = _singleton.get()._analytics_bus;
 			_delete_round_robin_bus = _singleton.get()._delete_round_robin_bus;			
+			_age_out_round_robin_bus = _singleton.get()._age_out_round_robin_bus;			
+			_poll_schedule_round_robin_bus = _singleton.get()._poll_schedule_round_robin_bus;
 			_analytics_trigger_round_robin_bus = _singleton.get()._analytics_trigger_round_robin_bus;
 		}		
 	}
@@ -242,6 +248,26 @@ public class ManagementDbActorContext {
 		return _delete_round_robin_bus.get();
 	}
 	
+	/** Returns a static accessor to the age out round robin message bus
+	 * @return the age out round robin message bus
+	 */
+	public synchronized LookupEventBus<BucketMgmtEventBusWrapper, ActorRef, String> getAgeOutMgmtBus() {
+		if (!_age_out_round_robin_bus.isSet()) {
+			_age_out_round_robin_bus.set(_distributed_services.getRoundRobinMessageBus(BucketMgmtEventBusWrapper.class, BucketMgmtMessage.class, ActorUtils.BUCKET_AGE_OUT_BUS));
+		}
+		return _age_out_round_robin_bus.get();
+	}
+	
+	/** Returns a static accessor to the poll schedule round robin message bus
+	 * @return the poll schedule round robin message bus
+	 */
+	public synchronized LookupEventBus<BucketMgmtEventBusWrapper, ActorRef, String> getPollScheduleMgmtBus() {
+		if (!_poll_schedule_round_robin_bus.isSet()) {
+			_poll_schedule_round_robin_bus.set(_distributed_services.getRoundRobinMessageBus(BucketMgmtEventBusWrapper.class, BucketMgmtMessage.class, ActorUtils.BUCKET_POLL_SCHEDULE_BUS));
+		}
+		return _poll_schedule_round_robin_bus.get();
+	}
+	
 	/** Returns a static accessor to the analytics trigger round robin message bus
 	 * @return the analytics trigger round robin message bus
 	 */
@@ -24,11 +24,14 @@ public class ActorUtils {
 	public final static String BATCH_ENRICHMENT_ZOOKEEPER = "/app/aleph2/batch_enrichment";
 	public final static String BUCKET_ANALYTICS_ZOOKEEPER = "/app/aleph2/bucket_analytics";
 	public final static String BUCKET_ANALYTICS_TRIGGER_ZOOKEEEPER = "/app/aleph2/analytics_triggers/";
+	public final static String ANALYTICS_TRIGGER_WORKERS_ZOOKEEPER = "/app/aleph2/analytics_trigger_workers";
 	
 	public final static String BUCKET_ACTION_EVENT_BUS = BUCKET_ACTION_ZOOKEEPER;
 	public final static String BUCKET_ANALYTICS_EVENT_BUS = BUCKET_ANALYTICS_ZOOKEEPER;
 	public final static String BUCKET_DELETION_BUS = "/app/aleph2/deletion_round_robin";
 	public final static String ANALYTICS_TRIGGER_BUS = "/app/aleph2/analytics_trigger_round_robin";
+	public final static String BUCKET_AGE_OUT_BUS = "/app/aleph2/age_out_round_robin";
+	public final static String BUCKET_POLL_SCHEDULE_BUS = "/app/aleph2/poll_schedule_round_robin";
 	
 	public final static String BUCKET_ACTION_SUPERVISOR = "bucket_actions_supervisor";
 	public final static String BUCKET_ACTION_HANDLER = "bucket_actions_handler";
@@ -22,8 +22,10 @@ import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -32,9 +34,14 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
 import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
 import akka.actor.Props;
 import akka.actor.UntypedActor;
+import akka.pattern.Patterns;
 
 import com.google.inject.Inject;
 import com.google.inject.Injector;
@@ -203,6 +210,18 @@ public class TestBucketPollFreqSingletonActor {
 		
 		//2. tries to send out poll messsage	
 		assertEquals("Actor should have received 1 poll request and accepted it", 1, TestActor_Accepter.num_accepted_messages);
+		
+		//3. scheduling metrics
+		final Map<String, Long> metrics = getSchedulingMetrics();
+		_logger.info("Poll scheduling metrics: " + metrics);
+		assertEquals("Should have fired 1 poll", 1L, metrics.get("fired").longValue());
+		assertTrue("Poll later bucket should be outside the lookahead window", metrics.get("scheduled") == 0L);
+		assertTrue("Lag should be non-negative", metrics.get("max_lag_ms") >= 0L);
+		// (the schedule is driven by the change notifications, so over the ~5s of the test there should be only the initial re-sync, 
+		//  rather than one every couple of seconds, and only one query (for the bucket) per fire)
+		assertEquals("Should only have re-synced once", 1L, metrics.get("resync_queries").longValue());
+		assertEquals("Should have retrieved the due bucket in 1 query", 1L, metrics.get("fire_queries").longValue());
+		assertTrue("Should have looked up each notified bucket at most once: " + metrics.get("event_queries"), metrics.get("event_queries") <= 3L);
 	}
 	
 	@Test
@@ -436,6 +455,8 @@ public class TestBucketPollFreqSingletonActor {
 						.done().get();			
 				underlying_crud_status.storeObject(status_bean).get();
 			}
+			// (mimic the status CRUD service)
+			BucketPollFreqSingletonActor.notifyScheduleChanged(_actor_context, bucket._id(), false);
 		}
 	}
 	
@@ -443,12 +464,20 @@ public class TestBucketPollFreqSingletonActor {
 		final UpdateComponent<DataBucketStatusBean> update = CrudUtils.update(DataBucketStatusBean.class)
 				.set(DataBucketStatusBean::suspended, true);
 		underlying_crud_status.updateObjectById(bucket._id(), update).get();
+		BucketPollFreqSingletonActor.notifyScheduleChanged(_actor_context, bucket._id(), false); // (mimic the status CRUD service)
 	}
 	
 	private void updateNextPollTime(final DataBucketBean bucket, ICrudService<DataBucketStatusBean> underlying_status_crud, final Date updated_poll_date) throws InterruptedException, ExecutionException {
 		final UpdateComponent<DataBucketStatusBean> update = CrudUtils.update(DataBucketStatusBean.class)
 				.set(DataBucketStatusBean::next_poll_date, updated_poll_date);
 		underlying_status_crud.updateObjectById(bucket._id(), update).get();
+		BucketPollFreqSingletonActor.notifyScheduleChanged(_actor_context, bucket._id(), false); // (mimic the status CRUD service)
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Map<String, Long> getSchedulingMetrics() throws Exception {
+		final ActorSelection singleton = _cds.getAkkaSystem().actorSelection("akka://default/user/" + ActorUtils.BUCKET_POLL_FREQUENCY_SINGLETON_ACTOR);
+		return (Map<String, Long>) Await.result(Patterns.ask(singleton, BucketPollFreqSingletonActor.METRICS, 10000L), Duration.create(10, TimeUnit.SECONDS));
 	}
 	
 	public String insertActor(Class<? extends UntypedActor> actor_clazz) throws Exception {
@@ -17,8 +17,6 @@ package com.ikanow.aleph2.aleph2_rest_utils;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
@@ -65,25 +63,61 @@ public class DataStoreCrudService implements ICrudService<FileDescriptor> {
 		_logger.debug("Created DataStoreCrudService pointed at dir: " + output_directory);
 	}
 	
+	/**
+	 * Pages through the directory listing as it is iterated (the listing is only requested on the first call to iterator()),
+	 * so large directories are never held in memory
+	 */
 	public static class DataStoreCursor extends Cursor<FileDescriptor> {
-		private static Collection<FileDescriptor> file_status;
-		public DataStoreCursor(final Collection<FileDescriptor> file_status) {
-			this.file_status = file_status;
+		private final FileContext file_context;
+		private final Path folder;
+		
+		public DataStoreCursor(final FileContext file_context, final Path folder) {
+			this.file_context = file_context;
+			this.folder = folder;
 		}
 		
 		@Override
 		public Iterator<FileDescriptor> iterator() {
-			return this.file_status.iterator();
+			return new Iterator<FileDescriptor>() {
+				private RemoteIterator<FileStatus> file_status = null;
+				
+				private RemoteIterator<FileStatus> getFileStatus() throws IOException {
+					if (null == file_status) file_status = file_context.listStatus(folder);
+					return file_status;
+				}
+				
+				@Override
+				public boolean hasNext() {
+					try {
+						return getFileStatus().hasNext();
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+
+				@Override
+				public FileDescriptor next() {
+					try {
+						return new FileDescriptor(null, getFileStatus().next().getPath().getName());
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}				
+			};
 		}
 
 		@Override
 		public void close() throws Exception {
-			//do nothing, we already converted iter into list
+			//do nothing, the listing is consumed lazily and holds nothing open
 		}
 
 		@Override
 		public long count() {
-			return this.count();
+			try {
+				return countFolderFiles(folder, file_context);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
 		}
 		
 	}
@@ -123,18 +157,11 @@ public class DataStoreCrudService implements ICrudService<FileDescriptor> {
 	@Override
 	public CompletableFuture<Long> countObjects() {
 		//count the number of objects in the dir
-		Long count = 0L;		
 		try {
-			final RemoteIterator<FileStatus> it = fileContext.listStatus(new Path(output_directory));
-			while ( it.hasNext() ) {
-				it.next();
-				count++;
-			}
+			return CompletableFuture.completedFuture(countFolderFiles(new Path(output_directory), fileContext));
 		} catch (IllegalArgumentException | IOException e) {
 			return FutureUtils.returnError(e);
 		}
-		
-		return CompletableFuture.completedFuture(count);
 	}
 
 	/* (non-Javadoc)
@@ -264,13 +291,7 @@ public class DataStoreCrudService implements ICrudService<FileDescriptor> {
 	@Override
 	public CompletableFuture<Cursor<FileDescriptor>> getObjectsBySpec(
 			QueryComponent<FileDescriptor> spec) {
-		try {
-			return CompletableFuture.completedFuture(new DataStoreCursor(getFolderFilenames(output_directory, fileContext)));
-		} catch (IllegalArgumentException | IOException e) {
-			final CompletableFuture<Cursor<FileDescriptor>> fut = new CompletableFuture<Cursor<FileDescriptor>>();
-			fut.completeExceptionally(e);
-			return fut;
-		}
+		return CompletableFuture.completedFuture(new DataStoreCursor(fileContext, new Path(output_directory)));
 	}
 
 	/* (non-Javadoc)
@@ -279,13 +300,7 @@ public class DataStoreCrudService implements ICrudService<FileDescriptor> {
 	@Override
 	public CompletableFuture<Cursor<FileDescriptor>> getObjectsBySpec(
 			QueryComponent<FileDescriptor> spec, List<String> field_list, boolean include) {
-		try {
-			return CompletableFuture.completedFuture(new DataStoreCursor(getFolderFilenames(output_directory, fileContext)));
-		} catch (IllegalArgumentException | IOException e) {
-			final CompletableFuture<Cursor<FileDescriptor>> fut = new CompletableFuture<Cursor<FileDescriptor>>();
-			fut.completeExceptionally(e);
-			return fut;
-		}
+		return CompletableFuture.completedFuture(new DataStoreCursor(fileContext, new Path(output_directory)));
 	}
 
 	/* (non-Javadoc)
@@ -293,13 +308,7 @@ public class DataStoreCrudService implements ICrudService<FileDescriptor> {
 	 */
 	@Override
 	public CompletableFuture<Long> countObjectsBySpec(QueryComponent<FileDescriptor> spec) {
-		try {
-			return CompletableFuture.completedFuture(new DataStoreCursor(getFolderFilenames(output_directory, fileContext)).count());			
-		} catch (IllegalArgumentException | IOException e) {
-			final CompletableFuture<Long> fut = new CompletableFuture<Long>();
-			fut.completeExceptionally(e);
-			return fut;
-		}
+		return countObjects();
 	}
 
 	/* (non-Javadoc)
@@ -420,11 +429,13 @@ public class DataStoreCrudService implements ICrudService<FileDescriptor> {
 		return null;
 	}
 	
-	private static Collection<FileDescriptor> getFolderFilenames(final String folder, final FileContext file_context) throws AccessControlException, FileNotFoundException, UnsupportedFileSystemException, IllegalArgumentException, IOException {
-		Collection<FileDescriptor> file_names = new ArrayList<FileDescriptor>();
-		RemoteIterator<FileStatus> file_status = file_context.listStatus(new Path(folder));
-		while ( file_status.hasNext() ) 
-			file_names.add(new FileDescriptor(null, file_status.next().getPath().getName()));
-		return file_names;
+	private static long countFolderFiles(final Path folder, final FileContext file_context) throws AccessControlException, FileNotFoundException, UnsupportedFileSystemException, IllegalArgumentException, IOException {
+		long count = 0L;
+		final RemoteIterator<FileStatus> file_status = file_context.listStatus(folder);
+		while ( file_status.hasNext() ) {
+			file_status.next();
+			count++;
+		}
+		return count;
 	}
 }
@@ -20,8 +20,16 @@ import java.util.Collections;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
@@ -36,7 +44,6 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService;
-import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.Cursor;
 import com.ikanow.aleph2.data_model.interfaces.shared_services.IServiceContext;
 import com.ikanow.aleph2.data_model.objects.shared.SharedLibraryBean;
 import com.ikanow.aleph2.data_model.utils.BeanTemplateUtils;
@@ -44,8 +51,11 @@ import com.ikanow.aleph2.data_model.utils.CrudUtils;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.UpdateComponent;
 import com.ikanow.aleph2.data_model.utils.ErrorUtils;
+import com.ikanow.aleph2.data_model.utils.Lambdas;
 import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
 import com.ikanow.aleph2.data_model.utils.Tuples;
+import com.ikanow.aleph2.aleph2_rest_utils.RestUtils.CursorStreamingOutput;
+import com.ikanow.aleph2.aleph2_rest_utils.RestUtils.OutputFormat;
 
 import fj.data.Either;
 
@@ -57,6 +67,25 @@ public class RestCrudFunctions {
 	private static Logger _logger = LogManager.getLogger();
 	private static final String COUNT_FIELD_NAME = "count";
 	private static final String DELETE_SUCCESS_FIELD_NAME = "delete_success";
+	private static final long DEFAULT_LIMIT = 10L;
+	public static final long DEFAULT_TIMEOUT_MS = 60000L;
+	private static final int MAX_RESPONSE_THREADS = 32;
+	private static final String TIMEOUT_MESSAGE = "Timed out waiting for a response from the data service";
+	
+	// Responses are resumed (and so cursors are streamed out to the client) from here, rather than from the CRUD service's own threads
+	// (if they're all busy, the thread that completed the query writes the response instead)
+	private static final ExecutorService _response_executor = createResponseExecutor();
+	
+	private static ExecutorService createResponseExecutor() {
+		final AtomicInteger thread_num = new AtomicInteger(0);
+		return new ThreadPoolExecutor(0, MAX_RESPONSE_THREADS, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), 
+				runnable -> {
+					final Thread thread = new Thread(runnable, "rest-response-" + thread_num.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
 	
 	public enum FunctionType {
 		QUERY,
@@ -74,29 +103,93 @@ public class RestCrudFunctions {
 		}
 	}
 	
+	/**
+	 * Blocking version of readFunction, kept for callers that can't suspend the request - query results are still streamed
+	 * 
+	 * @return
+	 */
 	public static <T> Response readFunction(IServiceContext service_context, FunctionType function_type, String service_type, String access_level, String service_identifier, Optional<String> bucket_full_names, 
-			Optional<String> query_json, Optional<String> query_id, Optional<Long> limit) {				
+			Optional<String> query_json, Optional<String> query_id, Optional<Long> limit) {
+		return awaitResponse(RestCrudFunctions.<T>readFunction(service_context, function_type, service_type, access_level, service_identifier, bucket_full_names, 
+				query_json, query_id, limit, Optional.empty(), Optional.empty()), DEFAULT_TIMEOUT_MS);
+	}
+	
+	/**
+	 * Waits for a response, returning SERVICE_UNAVAILABLE on timeout (as the non-blocking version does)
+	 * 
+	 * @param response
+	 * @param timeout_ms
+	 * @return
+	 */
+	static Response awaitResponse(final CompletableFuture<Response> response, final long timeout_ms) {
+		try {
+			return response.get(timeout_ms, TimeUnit.MILLISECONDS);
+		} catch ( TimeoutException ex ) {
+			response.thenAccept(RestCrudFunctions::closeResponse); // (in case it completes after the timeout)
+			return Response.status(Status.SERVICE_UNAVAILABLE).entity(TIMEOUT_MESSAGE).build();
+		} catch ( Exception ex ) {
+    		return Response.status(Status.BAD_REQUEST).entity(ErrorUtils.getLongForm("Error: {0}", ex)).build();
+		}
+	}
+	
+	/**
+	 * Non-blocking version of readFunction, the request is suspended until the CRUD service replies (or the timeout expires) 
+	 * and query results are streamed back from the cursor
+	 * 
+	 * @param page_token - if present, pages through the results in _id order, limit objects at a time (RestUtils.FIRST_PAGE_TOKEN for the first page, then the next_page_token from the previous response)
+	 * @param output_format - "json" (default) or "ndjson"
+	 * @param timeout_ms - how long to wait for the CRUD service before giving up (default DEFAULT_TIMEOUT_MS)
+	 * @param async_response - the suspended request
+	 */
+	public static <T> void readFunction(IServiceContext service_context, FunctionType function_type, String service_type, String access_level, String service_identifier, Optional<String> bucket_full_names, 
+			Optional<String> query_json, Optional<String> query_id, Optional<Long> limit, Optional<String> page_token, Optional<String> output_format, Optional<Long> timeout_ms,
+			final AsyncResponse async_response) {
+		async_response.setTimeoutHandler(ar -> ar.resume(Response.status(Status.SERVICE_UNAVAILABLE).entity(TIMEOUT_MESSAGE).build()));
+		async_response.setTimeout(timeout_ms.orElse(DEFAULT_TIMEOUT_MS), TimeUnit.MILLISECONDS);
+		
+		RestCrudFunctions.<T>readFunction(service_context, function_type, service_type, access_level, service_identifier, bucket_full_names, query_json, query_id, limit, page_token, output_format)
+			.whenCompleteAsync((response, ex) -> {
+				final Response to_send = (null != response) ? response : Response.status(Status.BAD_REQUEST).entity(ErrorUtils.getLongForm("Error: {0}", ex)).build();
+				if (!async_response.resume(to_send)) { // (timed out or cancelled)
+					closeResponse(to_send);
+				}
+			}, 
+			_response_executor);
+	}
+	
+	private static <T> CompletableFuture<Response> readFunction(IServiceContext service_context, FunctionType function_type, String service_type, String access_level, String service_identifier, Optional<String> bucket_full_names, 
+			Optional<String> query_json, Optional<String> query_id, Optional<Long> limit, Optional<String> page_token, Optional<String> output_format) {				
 		_logger.debug("Handling READ request");
 		//parse out the url params
-		
-		final Either<String,Tuple2<ICrudService<T>, Class<T>>> crud_service_either = RestUtils.getCrudService(service_context, service_type, access_level, service_identifier, bucket_full_names);
-		if ( crud_service_either.isLeft() )
-    		return Response.status(Status.BAD_REQUEST).entity(crud_service_either.left().value()).build();
-		
 		try {
+			final Either<String,Tuple2<ICrudService<T>, Class<T>>> crud_service_either = RestUtils.getCrudService(service_context, service_type, access_level, service_identifier, bucket_full_names);
+			if ( crud_service_either.isLeft() )
+	    		return CompletableFuture.completedFuture(Response.status(Status.BAD_REQUEST).entity(crud_service_either.left().value()).build());
+			
         	switch ( function_type ) {
 			case COUNT:
 				return handleCountRequest(query_json, crud_service_either.right().value()._1, crud_service_either.right().value()._2);
 			case QUERY:
-				return handleQueryRequest(query_json, query_id, crud_service_either.right().value()._1, crud_service_either.right().value()._2, limit);
+				final OutputFormat format = output_format.map(f -> OutputFormat.valueOf(f.toLowerCase())).orElse(OutputFormat.json);
+				return handleQueryRequest(query_json, query_id, crud_service_either.right().value()._1, crud_service_either.right().value()._2, limit, page_token, format);
 			default:
-				return Response.status(Status.BAD_REQUEST).entity("Unknown GET function type (how did you do this?): " + function_type).build();	        	
+				return CompletableFuture.completedFuture(Response.status(Status.BAD_REQUEST).entity("Unknown GET function type (how did you do this?): " + function_type).build());	        	
         	}
     	} catch ( Exception ex ) {
-    		return Response.status(Status.BAD_REQUEST).entity(ErrorUtils.getLongForm("Error: {0}", ex)).build();
+    		return CompletableFuture.completedFuture(Response.status(Status.BAD_REQUEST).entity(ErrorUtils.getLongForm("Error: {0}", ex)).build());
     	}	
 	}
 	
+	/**
+	 * Closes the cursor behind a streamed response that is never going to be sent
+	 * @param response
+	 */
+	private static void closeResponse(final Response response) {
+		if (response.getEntity() instanceof CursorStreamingOutput) {
+			((CursorStreamingOutput<?>)response.getEntity()).close();
+		}
+	}
+	
 //	public static <T> Response createFunction(IServiceContext service_context, String service_type, String access_level, String service_identifier, Optional<String> bucket_full_names, 
 //			Optional<String> json) {
 //		return createFunction(service_context, service_type, access_level, service_identifier, bucket_full_names, json, Optional.empty());
@@ -200,54 +293,79 @@ public class RestCrudFunctions {
     	}
 	}
 	
-	private static <T> Response handleQueryRequest(final Optional<String> query_json, final Optional<String> query_id, final ICrudService<T> crud_service, final Class<T> clazz,
-			Optional<Long> limit) {
+	private static <T> CompletableFuture<Response> handleQueryRequest(final Optional<String> query_json, final Optional<String> query_id, final ICrudService<T> crud_service, final Class<T> clazz,
+			Optional<Long> limit, Optional<String> page_token, OutputFormat format) throws IOException {
 		//get id or a query object that was posted
-		//TODO switch to query_id.map().orElse() ... just making a quick swap for the moment
     	if ( query_id.isPresent() ) {
     		//ID query
-    		try {
-    			final String id = query_id.get();
-        		_logger.debug("id: " + id);
-				return Response.ok(RestUtils.convertObjectToJson(crud_service.getObjectById(id).get()).toString()).build();
-			} catch (JsonProcessingException | InterruptedException | ExecutionException e) {
-				return Response.status(Status.BAD_REQUEST).entity(ErrorUtils.getLongForm("Error converting input stream to string: {0}", e)).build();
-			}
-    	} else if (query_json.isPresent()) {
-    		//Body Query
-			try {
+			final String id = query_id.get();
+    		_logger.debug("id: " + id);
+			return crud_service.getObjectById(id)
+					.thenApply(Lambdas.wrap_u(obj -> Response.ok(RestUtils.convertObjectToJson(obj).toString()).build()))
+					.exceptionally(e -> Response.status(Status.BAD_REQUEST).entity(ErrorUtils.getLongForm("Error converting input stream to string: {0}", e)).build());
+    	} else {
+    		if (page_token.isPresent() && (crud_service instanceof DataStoreCrudService)) { // (its objects are files, which have no _id to page on)
+    			return CompletableFuture.completedFuture(Response.status(Status.BAD_REQUEST).entity("Paged queries aren't supported for the data store service").build());
+    		}
+    		// (if paged, the limit is the page size, applied by getPagedQuery)
+    		final Optional<Long> page_size = page_token.map(__ -> limit.orElse(DEFAULT_LIMIT));
+    		final QueryComponent<T> query;
+    		if (query_json.isPresent()) {
+	    		//Body Query
 				final String json = query_json.get();
 				_logger.debug("query: " + json);
-				final QueryComponent<T> query = RestUtils.convertStringToQueryComponent(json, clazz, limit);				
-				return Response.ok(RestUtils.convertCursorToJson(crud_service.getObjectsBySpec(query).get()).toString()).build();
-			} catch (Exception e) {
-				return Response.status(Status.BAD_REQUEST).entity(ErrorUtils.getLongForm("Error converting input stream to string: {0}", e)).build();
-			}    		
-    	} else {
-    		//empty query, does a getall using limit (or 10)
-    		try {
+				query = RestUtils.convertStringToQueryComponent(json, clazz, page_size.isPresent() ? Optional.empty() : limit);
+    		} else {
+	    		//empty query, does a getall using limit (or 10)
     			_logger.debug("empty query, get all");
-    			final SingleQueryComponent<T> query = JsonNode.class.isAssignableFrom(clazz) ? (SingleQueryComponent<T>) CrudUtils.allOf() : CrudUtils.allOf(clazz);
-    			final Cursor<T> cursor = crud_service.getObjectsBySpec(query.limit(limit.orElse(10L))).get();
-				return Response.ok(RestUtils.convertCursorToJson(cursor).toString()).build();
-			} catch (JsonProcessingException | InterruptedException
-					| ExecutionException e) {
-				return Response.status(Status.BAD_REQUEST).entity(ErrorUtils.getLongForm("Error converting input stream to string: {0}", e)).build();
-			}
+    			final SingleQueryComponent<T> all = JsonNode.class.isAssignableFrom(clazz) ? (SingleQueryComponent<T>) CrudUtils.allOf() : CrudUtils.allOf(clazz);
+    			query = page_size.isPresent() ? all : all.limit(limit.orElse(DEFAULT_LIMIT));
+    		}
+    		final QueryComponent<T> paged_query = page_token.isPresent() ? getPagedQuery(query, clazz, page_token.get(), page_size.get()) : query;
+    		
+			return crud_service.getObjectsBySpec(paged_query)
+					.thenApply(cursor -> Response.ok(RestUtils.convertCursorToJsonStream(cursor, format, page_size))
+											.type(OutputFormat.ndjson == format ? RestUtils.NDJSON_TYPE : MediaType.APPLICATION_JSON_TYPE)
+											.build())
+					.exceptionally(e -> Response.status(Status.BAD_REQUEST).entity(ErrorUtils.getLongForm("Error converting input stream to string: {0}", e)).build());
     	}
 	}
 	
-	private static <T> Response handleCountRequest(final Optional<String> query_json, final ICrudService<T> crud_service, final Class<T> clazz) throws InterruptedException, ExecutionException {
-		//get query or if there is none just return count	  		
-		return query_json.map(json->{
-			try {
-				_logger.debug("query: " + json);
-				final QueryComponent<T> query = RestUtils.convertStringToQueryComponent(json, clazz, Optional.empty());				
-				return Response.ok(RestUtils.convertSingleObjectToJson(crud_service.countObjectsBySpec(query).get(), COUNT_FIELD_NAME).toString()).build();
-			} catch (Exception e) {
-				return Response.status(Status.BAD_REQUEST).entity(ErrorUtils.getLongForm("Error converting input stream to string: {0}", e)).build();
-			}
-		}).orElse(Response.ok(RestUtils.convertSingleObjectToJson(crud_service.countObjects().get(), COUNT_FIELD_NAME).toString()).build());
+	/**
+	 * Restricts the query to objects after the page token's _id, sorted by _id, so each page is a range query (rather than a skip over all the previous pages)
+	 * 
+	 * @param query - must not have its own orderBy/limit (paged queries are always ordered by _id, and sized by the page size)
+	 * @param clazz
+	 * @param page_token - RestUtils.FIRST_PAGE_TOKEN or the next_page_token from the previous page
+	 * @param page_size
+	 * @return
+	 * @throws IOException if the page token is invalid
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> QueryComponent<T> getPagedQuery(final QueryComponent<T> query, final Class<T> clazz, final String page_token, final long page_size) throws IOException {
+		if ((null != query.getLimit()) || !Optional.ofNullable(query.getOrderBy()).orElse(Collections.emptyList()).isEmpty()) {
+			throw new RuntimeException("Paged queries are ordered by _id and sized by the limit parameter, so can't specify their own order/limit");
+		}
+		final SingleQueryComponent<T> after = JsonNode.class.isAssignableFrom(clazz) ? (SingleQueryComponent<T>) CrudUtils.allOf() : CrudUtils.allOf(clazz);
+		if (!RestUtils.FIRST_PAGE_TOKEN.equals(page_token)) {
+			after.rangeAbove(RestUtils.ID_FIELD_NAME, RestUtils.decodePageToken(page_token), true);
+		}
+		return CrudUtils.allOf(query, after).orderBy(Tuples._2T(RestUtils.ID_FIELD_NAME, 1)).limit(page_size);
+	}
+	
+	private static <T> CompletableFuture<Response> handleCountRequest(final Optional<String> query_json, final ICrudService<T> crud_service, final Class<T> clazz) throws IOException {
+		//get query or if there is none just return count
+		final CompletableFuture<Long> count;
+		if ( query_json.isPresent() ) {
+			_logger.debug("query: " + query_json.get());
+			final QueryComponent<T> query = RestUtils.convertStringToQueryComponent(query_json.get(), clazz, Optional.empty());
+			count = crud_service.countObjectsBySpec(query);
+		} else {
+			count = crud_service.countObjects();
+		}
+		return count
+				.thenApply(c -> Response.ok(RestUtils.convertSingleObjectToJson(c, COUNT_FIELD_NAME).toString()).build())
+				.exceptionally(e -> Response.status(Status.BAD_REQUEST).entity(ErrorUtils.getLongForm("Error converting input stream to string: {0}", e)).build());
 	}
 	
 	private static <T> Response handleCreateRequest(final String json, final ICrudService<T> crud_service, final Class<T> clazz) throws JsonProcessingException, InterruptedException, ExecutionException {
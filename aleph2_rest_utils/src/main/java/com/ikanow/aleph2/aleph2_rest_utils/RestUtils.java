@@ -15,21 +15,32 @@
  *******************************************************************************/
 package com.ikanow.aleph2.aleph2_rest_utils;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import scala.Tuple2;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.SerializedString;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -85,6 +96,34 @@ public class RestUtils {
 	private static final ObjectMapper mapper = new ObjectMapper();
 	private static final String BUCKET_BINARY_DIR = "/data/";
 	
+	//streaming output
+	private static final int STREAM_BUFFER_SIZE = 64*1024; // (max bytes held before being written out to the client)
+	private static final int STREAM_FLUSH_EVERY = 100; // (objects - so slow cursors still send results promptly)
+	public static final String ID_FIELD_NAME = "_id";
+	public static final String PAGE_DATA_FIELD_NAME = "data";
+	public static final String NEXT_PAGE_TOKEN_FIELD_NAME = "next_page_token";
+	/** Pass as the page token to get the first page of a paged query */
+	public static final String FIRST_PAGE_TOKEN = "*";
+	// (the _id types a page token can hold)
+	private static final String PAGE_TOKEN_TYPE_SEPARATOR = ":";
+	private static final String PAGE_TOKEN_TYPE_STRING = "string";
+	private static final String PAGE_TOKEN_TYPE_INT = "int";
+	private static final String PAGE_TOKEN_TYPE_LONG = "long";
+	private static final String PAGE_TOKEN_TYPE_BIGINT = "bigint";
+	private static final String PAGE_TOKEN_TYPE_DOUBLE = "double";
+	private static final String PAGE_TOKEN_TYPE_DECIMAL = "decimal";
+	private static final String PAGE_TOKEN_TYPE_BOOLEAN = "boolean";
+	public static final MediaType NDJSON_TYPE = new MediaType("application", "x-ndjson");
+	
+	/** The formats a cursor can be streamed back in
+	 *  json: a single JSON array (or, if paged, an object containing the array and the next page token)
+	 *  ndjson: one JSON object per line (if paged, the last line is an object containing the next page token) 
+	 */
+	public enum OutputFormat {
+		json,
+		ndjson
+	}
+	
 	
 	private static Logger _logger = LogManager.getLogger();	
 	
@@ -306,6 +345,150 @@ public class RestUtils {
 		return BeanTemplateUtils.toJson(list);
 	}
 	
+	/**
+	 * Returns a streaming entity that writes the cursor out as it is iterated, so the result set is never held in memory.
+	 * The cursor is closed once it has been written (or if the entity is closed without being written, eg the request timed out).
+	 * 
+	 * @param cursor - the cursor to stream
+	 * @param format - json array or ndjson
+	 * @param page_size - if present, the response is paged and a next page token is written at the end (null if this is the last page, 
+	 *                    or if the last _id isn't a type that can be paged on - see encodePageToken)
+	 * @return
+	 */
+	public static <T> CursorStreamingOutput<T> convertCursorToJsonStream(final Cursor<T> cursor, final OutputFormat format, final Optional<Long> page_size) {
+		return new CursorStreamingOutput<T>(cursor, format, page_size);
+	}
+	
+	public static class CursorStreamingOutput<T> implements StreamingOutput, AutoCloseable {
+		private final Cursor<T> cursor;
+		private final OutputFormat format;
+		private final Optional<Long> page_size;
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+		
+		protected CursorStreamingOutput(final Cursor<T> cursor, final OutputFormat format, final Optional<Long> page_size) {
+			this.cursor = cursor;
+			this.format = format;
+			this.page_size = page_size;
+		}
+		
+		/* (non-Javadoc)
+		 * @see javax.ws.rs.core.StreamingOutput#write(java.io.OutputStream)
+		 */
+		@Override
+		public void write(final OutputStream output) throws IOException, WebApplicationException {
+			try (final JsonGenerator gen = mapper.getFactory().createGenerator(new BufferedOutputStream(output, STREAM_BUFFER_SIZE))) {
+				final boolean is_json = OutputFormat.json == format;
+				if (is_json) {
+					if (page_size.isPresent()) {
+						gen.writeStartObject();
+						gen.writeArrayFieldStart(PAGE_DATA_FIELD_NAME);
+					}
+					else gen.writeStartArray();
+				}
+				else gen.setRootValueSeparator(new SerializedString("\n"));
+				
+				long num_written = 0L;
+				JsonNode last_id = null;
+				for (T obj: cursor) {
+					final JsonNode json = BeanTemplateUtils.toJson(obj);
+					gen.writeTree(json);
+					if (page_size.isPresent()) last_id = json.get(ID_FIELD_NAME);
+					if (0 == (++num_written % STREAM_FLUSH_EVERY)) gen.flush();
+				}
+				// (a short page means there's nothing left)
+				final Optional<String> next_page_token = (page_size.isPresent() && (num_written >= page_size.get()))
+						? Optional.ofNullable(last_id).flatMap(RestUtils::encodePageToken)
+						: Optional.empty();
+				if (page_size.isPresent() && (num_written >= page_size.get()) && !next_page_token.isPresent()) {
+					_logger.warn(ErrorUtils.get("Can't page on _id {0} (only scalar _ids are supported), returning no next page token", last_id));
+				}
+				
+				if (is_json) {
+					gen.writeEndArray();
+					if (page_size.isPresent()) {
+						gen.writeStringField(NEXT_PAGE_TOKEN_FIELD_NAME, next_page_token.orElse(null));
+						gen.writeEndObject();
+					}
+				}
+				else if (page_size.isPresent()) {
+					gen.writeStartObject();
+					gen.writeStringField(NEXT_PAGE_TOKEN_FIELD_NAME, next_page_token.orElse(null));
+					gen.writeEndObject();
+				}
+				if (!is_json) gen.writeRaw('\n');
+			}
+			finally {
+				close();
+			}
+		}
+		
+		/* (non-Javadoc)
+		 * @see java.lang.AutoCloseable#close()
+		 */
+		@Override
+		public void close() {
+			if (!closed.getAndSet(true)) {
+				try {
+					cursor.close();
+				}
+				catch (Exception e) {
+					_logger.debug(ErrorUtils.getLongForm("Error closing cursor: {0}", e));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Page tokens are the (url-safe base64 encoded) type and value of the _id of the last object returned, so the next page is a range query on _id rather than a skip
+	 * (the type is kept so the range query compares against the same type as the stored _ids)
+	 * @param last_id
+	 * @return the page token, or empty if the _id isn't a scalar (eg an object or null), since those can't be range queried
+	 */
+	public static Optional<String> encodePageToken(final JsonNode last_id) {
+		final String type = last_id.isTextual() ? PAGE_TOKEN_TYPE_STRING
+				: last_id.isInt() ? PAGE_TOKEN_TYPE_INT
+				: last_id.isLong() ? PAGE_TOKEN_TYPE_LONG
+				: last_id.isBigInteger() ? PAGE_TOKEN_TYPE_BIGINT
+				: last_id.isDouble() || last_id.isFloat() ? PAGE_TOKEN_TYPE_DOUBLE
+				: last_id.isBigDecimal() ? PAGE_TOKEN_TYPE_DECIMAL
+				: last_id.isBoolean() ? PAGE_TOKEN_TYPE_BOOLEAN
+				: null;
+		return Optional.ofNullable(type)
+				.map(t -> Base64.getUrlEncoder().encodeToString((t + PAGE_TOKEN_TYPE_SEPARATOR + last_id.toString()).getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	/**
+	 * Converts a page token (see encodePageToken) back into the _id to page from, as the same type it was returned as
+	 * @param page_token
+	 * @return
+	 * @throws IOException if the page token is invalid
+	 */
+	public static Object decodePageToken(final String page_token) throws IOException {
+		final String decoded;
+		try {
+			decoded = new String(Base64.getUrlDecoder().decode(page_token), StandardCharsets.UTF_8);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IOException("Invalid page token: " + page_token, e);
+		}
+		final int separator = decoded.indexOf(PAGE_TOKEN_TYPE_SEPARATOR);
+		if (separator < 0) {
+			throw new IOException("Invalid page token: " + page_token);
+		}
+		final String type = decoded.substring(0, separator);
+		final JsonNode last_id = mapper.readTree(decoded.substring(separator + 1));
+		switch (type) {
+			case PAGE_TOKEN_TYPE_STRING: return last_id.asText();
+			case PAGE_TOKEN_TYPE_INT: return last_id.intValue();
+			case PAGE_TOKEN_TYPE_LONG: return last_id.longValue();
+			case PAGE_TOKEN_TYPE_BIGINT: return last_id.bigIntegerValue();
+			case PAGE_TOKEN_TYPE_DOUBLE: return last_id.doubleValue();
+			case PAGE_TOKEN_TYPE_DECIMAL: return last_id.decimalValue();
+			case PAGE_TOKEN_TYPE_BOOLEAN: return last_id.booleanValue();
+			default: throw new IOException("Invalid page token: " + page_token);
+		}
+	}
+	
 	public static <T> JsonNode convertObjectToJson(final T obj) throws JsonProcessingException {	
 		return BeanTemplateUtils.toJson(obj);
 	}
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright 2016, The IKANOW Open Source Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.ikanow.aleph2.aleph2_rest_utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.junit.Test;
+
+import scala.Tuple2;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.ikanow.aleph2.data_model.interfaces.shared_services.ICrudService.Cursor;
+import com.ikanow.aleph2.data_model.utils.CrudUtils;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.MultiQueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.Operator;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.QueryComponent;
+import com.ikanow.aleph2.data_model.utils.CrudUtils.SingleQueryComponent;
+import com.ikanow.aleph2.aleph2_rest_utils.RestUtils.OutputFormat;
+
+public class TestRestCrudFunctions {
+	private static final ObjectMapper _mapper = new ObjectMapper();
+
+	/** Simple in-memory cursor that records whether it's been closed
+	 */
+	protected static class ListCursor extends Cursor<JsonNode> {
+		protected final List<JsonNode> _list;
+		protected boolean _closed = false;
+		public ListCursor(final List<JsonNode> list) { _list = list; }
+		@Override
+		public Iterator<JsonNode> iterator() { return _list.iterator(); }
+		@Override
+		public long count() { return _list.size(); }
+		@Override
+		public void close() throws Exception { _closed = true; }
+	}
+
+	protected static List<JsonNode> createObjects(final int num_objects) {
+		return IntStream.range(0, num_objects).boxed()
+				.map(i -> (JsonNode) _mapper.createObjectNode().put(RestUtils.ID_FIELD_NAME, "id" + i).put("value", i))
+				.collect(Collectors.toList());
+	}
+
+	protected static String stream(final ListCursor cursor, final OutputFormat format, final Optional<Long> page_size) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RestUtils.convertCursorToJsonStream(cursor, format, page_size).write(out);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void test_pageTokens() throws IOException {
+		final JsonNodeFactory nodes = JsonNodeFactory.instance;
+
+		// The _id comes back as the same type it was returned as
+		assertEquals("abc", RestUtils.decodePageToken(RestUtils.encodePageToken(nodes.textNode("abc")).get()));
+		assertEquals("123", RestUtils.decodePageToken(RestUtils.encodePageToken(nodes.textNode("123")).get())); // (a string, even though it looks like a number)
+		assertEquals(5, RestUtils.decodePageToken(RestUtils.encodePageToken(nodes.numberNode(5)).get()));
+		assertEquals(1L << 40, RestUtils.decodePageToken(RestUtils.encodePageToken(nodes.numberNode(1L << 40)).get()));
+		assertEquals(1.5, RestUtils.decodePageToken(RestUtils.encodePageToken(nodes.numberNode(1.5)).get()));
+		assertEquals(true, RestUtils.decodePageToken(RestUtils.encodePageToken(nodes.booleanNode(true)).get()));
+
+		// Can't page on non-scalar _ids
+		assertFalse(RestUtils.encodePageToken(_mapper.createObjectNode().put("$oid", "abc")).isPresent());
+		assertFalse(RestUtils.encodePageToken(nodes.nullNode()).isPresent());
+
+		// Invalid tokens
+		for (String invalid: Arrays.asList(
+				"!not base64!",
+				Base64.getUrlEncoder().encodeToString("no type".getBytes(StandardCharsets.UTF_8)),
+				Base64.getUrlEncoder().encodeToString("unknown:1".getBytes(StandardCharsets.UTF_8)),
+				Base64.getUrlEncoder().encodeToString("json:{}".getBytes(StandardCharsets.UTF_8))
+				))
+		{
+			try {
+				RestUtils.decodePageToken(invalid);
+				fail("Should have rejected page token: " + invalid);
+			}
+			catch (IOException e) {}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_pagedQuery() throws IOException {
+		final SingleQueryComponent<JsonNode> query = CrudUtils.allOf().when("value", 1);
+
+		// First page: all objects, ordered by _id
+		final QueryComponent<JsonNode> first_page = RestCrudFunctions.getPagedQuery(query, JsonNode.class, RestUtils.FIRST_PAGE_TOKEN, 5L);
+		assertEquals(5L, first_page.getLimit().longValue());
+		assertEquals(Arrays.asList(new Tuple2<String, Integer>(RestUtils.ID_FIELD_NAME, 1)), first_page.getOrderBy());
+		assertEquals(2, ((MultiQueryComponent<JsonNode>) first_page).getElements().size());
+		assertTrue(((SingleQueryComponent<JsonNode>) ((MultiQueryComponent<JsonNode>) first_page).getElements().get(1)).getAll().isEmpty());
+
+		// Next page: objects after the last _id (compared as the same type)
+		final QueryComponent<JsonNode> next_page = RestCrudFunctions.getPagedQuery(query, JsonNode.class, RestUtils.encodePageToken(JsonNodeFactory.instance.numberNode(7L)).get(), 5L);
+		assertEquals(5L, next_page.getLimit().longValue());
+		final SingleQueryComponent<JsonNode> after = (SingleQueryComponent<JsonNode>) ((MultiQueryComponent<JsonNode>) next_page).getElements().get(1);
+		final Tuple2<Operator, Tuple2<Object, Object>> range = after.getAll().get(RestUtils.ID_FIELD_NAME).iterator().next();
+		assertEquals(Operator.range_open_closed, range._1());
+		assertEquals(7L, range._2()._1());
+
+		// Queries can't have their own order/limit
+		for (SingleQueryComponent<JsonNode> invalid: Arrays.asList(
+				CrudUtils.allOf().when("value", 1).limit(3L),
+				CrudUtils.allOf().when("value", 1).orderBy(new Tuple2<String, Integer>("value", -1))))
+		{
+			try {
+				RestCrudFunctions.getPagedQuery(invalid, JsonNode.class, RestUtils.FIRST_PAGE_TOKEN, 5L);
+				fail("Should have rejected query with its own order/limit");
+			}
+			catch (RuntimeException e) {}
+		}
+	}
+
+	@Test
+	public void test_pageBoundaries() throws IOException {
+		// Full page: next token points at the last object
+		{
+			final ListCursor cursor = new ListCursor(createObjects(3));
+			final JsonNode page = _mapper.readTree(stream(cursor, OutputFormat.json, Optional.of(3L)));
+			assertEquals(3, page.get(RestUtils.PAGE_DATA_FIELD_NAME).size());
+			assertEquals("id2", RestUtils.decodePageToken(page.get(RestUtils.NEXT_PAGE_TOKEN_FIELD_NAME).asText()));
+			assertTrue(cursor._closed);
+		}
+		// Short page: that's the last one
+		{
+			final ListCursor cursor = new ListCursor(createObjects(2));
+			final JsonNode page = _mapper.readTree(stream(cursor, OutputFormat.json, Optional.of(3L)));
+			assertEquals(2, page.get(RestUtils.PAGE_DATA_FIELD_NAME).size());
+			assertTrue(page.get(RestUtils.NEXT_PAGE_TOKEN_FIELD_NAME).isNull());
+		}
+		// Empty page (eg after an exactly full one)
+		{
+			final ListCursor cursor = new ListCursor(createObjects(0));
+			final JsonNode page = _mapper.readTree(stream(cursor, OutputFormat.json, Optional.of(3L)));
+			assertEquals(0, page.get(RestUtils.PAGE_DATA_FIELD_NAME).size());
+			assertTrue(page.get(RestUtils.NEXT_PAGE_TOKEN_FIELD_NAME).isNull());
+		}
+		// ndjson: the token is on the last line
+		{
+			final ListCursor cursor = new ListCursor(createObjects(3));
+			final List<String> lines = Arrays.asList(stream(cursor, OutputFormat.ndjson, Optional.of(3L)).trim().split("\n"));
+			assertEquals(4, lines.size());
+			assertEquals("id0", _mapper.readTree(lines.get(0)).get(RestUtils.ID_FIELD_NAME).asText());
+			assertEquals("id2", RestUtils.decodePageToken(_mapper.readTree(lines.get(3)).get(RestUtils.NEXT_PAGE_TOKEN_FIELD_NAME).asText()));
+		}
+		// Non-scalar _ids: a full page, but no next token since it couldn't be decoded
+		{
+			final ListCursor cursor = new ListCursor(createObjects(3).stream()
+					.map(o -> (JsonNode) ((ObjectNode) o).set(RestUtils.ID_FIELD_NAME, _mapper.createObjectNode().put("$oid", o.get(RestUtils.ID_FIELD_NAME).asText())))
+					.collect(Collectors.toList()));
+			final JsonNode page = _mapper.readTree(stream(cursor, OutputFormat.json, Optional.of(3L)));
+			assertEquals(3, page.get(RestUtils.PAGE_DATA_FIELD_NAME).size());
+			assertTrue(page.get(RestUtils.NEXT_PAGE_TOKEN_FIELD_NAME).isNull());
+		}
+		// Not paged: just the array
+		{
+			final ListCursor cursor = new ListCursor(createObjects(3));
+			final JsonNode page = _mapper.readTree(stream(cursor, OutputFormat.json, Optional.empty()));
+			assertTrue(page.isArray());
+			assertEquals(3, page.size());
+		}
+	}
+
+	@Test
+	public void test_blockingTimeout() throws Exception {
+		// Times out: same status as the non-blocking version
+		final CompletableFuture<Response> slow_response = new CompletableFuture<Response>();
+		final Response timed_out = RestCrudFunctions.awaitResponse(slow_response, 10L);
+		assertEquals(Status.SERVICE_UNAVAILABLE.getStatusCode(), timed_out.getStatus());
+
+		// (and if the query completes afterwards, the cursor is closed rather than leaked)
+		final ListCursor cursor = new ListCursor(createObjects(3));
+		slow_response.complete(Response.ok(RestUtils.convertCursorToJsonStream(cursor, OutputFormat.json, Optional.empty())).build());
+		assertTrue(cursor._closed);
+
+		// Fails: bad request
+		final CompletableFuture<Response> failed_response = new CompletableFuture<Response>();
+		failed_response.completeExceptionally(new RuntimeException("test"));
+		assertEquals(Status.BAD_REQUEST.getStatusCode(), RestCrudFunctions.awaitResponse(failed_response, 1000L).getStatus());
+
+		// Completes in time
+		final ListCursor ok_cursor = new ListCursor(createObjects(1));
+		final Response ok = RestCrudFunctions.awaitResponse(CompletableFuture.completedFuture(
+				Response.ok(RestUtils.convertCursorToJsonStream(ok_cursor, OutputFormat.json, Optional.empty())).build()), 1000L);
+		assertEquals(Status.OK.getStatusCode(), ok.getStatus());
+		assertFalse(ok_cursor._closed);
+	}
+}